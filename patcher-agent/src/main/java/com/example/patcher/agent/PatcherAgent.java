@@ -1,6 +1,7 @@
 package com.example.patcher.agent;
 
 import com.example.patcher.agent.features.FeatureTransformer;
+import com.example.patcher.agent.features.MetricsEndpoint;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import net.bytebuddy.agent.ByteBuddyAgent;
 
@@ -8,6 +9,7 @@ import java.io.File;
 import java.io.IOException;
 import java.lang.instrument.ClassDefinition;
 import java.lang.instrument.Instrumentation;
+import java.lang.management.ManagementFactory;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
@@ -16,6 +18,11 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
@@ -23,11 +30,17 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
 import java.util.stream.Collectors;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
 /**
  * A Java agent that can dynamically patch classes at runtime using OpenRewrite-generated patches.
@@ -41,10 +54,11 @@ public class PatcherAgent {
     private static final String PATCH_ENDPOINT = System.getProperty("patcher.endpoint", "http://localhost:8080/patches");
     private static final long POLLING_INTERVAL_MINUTES = Long.parseLong(System.getProperty("patcher.polling.minutes", "5"));
     
-    // SpeedDoctor feature flags
+    // SpeedDoctor feature flags, the state at startup; features can be toggled later through the FeatureMetrics MBean
     private static final boolean ENABLE_PROFILER = Boolean.parseBoolean(System.getProperty("speeddoctor.profiler", "true"));
     private static final boolean ENABLE_DEPRECATION_RESCUE = Boolean.parseBoolean(System.getProperty("speeddoctor.deprecationrescue", "true"));
     private static final boolean ENABLE_SECURITY_PATCHES = Boolean.parseBoolean(System.getProperty("speeddoctor.securitypatches", "true"));
+    private static final boolean ENABLE_LOCK_PROFILER = Boolean.parseBoolean(System.getProperty("speeddoctor.locks", "false"));
     
     // SpeedDoctor feature configurations
     private static final String PROFILER_PACKAGES = System.getProperty("speeddoctor.profiler.packages", 
@@ -57,6 +71,17 @@ public class PatcherAgent {
     // Keep track of applied patches to avoid reapplying
     private static final Map<String, Long> APPLIED_PATCHES = new ConcurrentHashMap<>();
     
+    // Poll and patch history, exposed through the PatcherAgent MBean and the metrics endpoint
+    static final String OBJECT_NAME = "com.example.patcher:type=PatcherAgent";
+    private static final int PATCH_HISTORY_SIZE = 50;
+    private static final Deque<String> PATCH_HISTORY = new ArrayDeque<>();
+    private static final AtomicLong POLL_COUNT = new AtomicLong();
+    private static final AtomicLong LAST_POLL_TIME = new AtomicLong();
+    private static final AtomicLong PATCHES_APPLIED = new AtomicLong();
+    private static final AtomicLong PATCH_FAILURES = new AtomicLong();
+    // Scheduled polls and polls forced through the MBean never run concurrently
+    private static final Object POLL_LOCK = new Object();
+    
     private static Instrumentation instrumentation;
     private static volatile boolean isRunning = false;
     private static ScheduledExecutorService scheduler;
@@ -93,7 +118,7 @@ public class PatcherAgent {
      * Initialize SpeedDoctor features based on configuration.
      */
     private static void initializeSpeedDoctor(Instrumentation inst) {
-        if (ENABLE_PROFILER || ENABLE_DEPRECATION_RESCUE || ENABLE_SECURITY_PATCHES) {
+        if (ENABLE_PROFILER || ENABLE_DEPRECATION_RESCUE || ENABLE_SECURITY_PATCHES || ENABLE_LOCK_PROFILER) {
             LOGGER.info("Initializing SpeedDoctor features");
             
             // Parse profiler package patterns
@@ -102,16 +127,30 @@ public class PatcherAgent {
                     .filter(s -> !s.isEmpty())
                     .collect(Collectors.toList());
             
+            // Every feature is installed, the disabled ones can be enabled at runtime
+            Set<String> disabledFeatures = new HashSet<>();
+            if (!ENABLE_PROFILER) {
+                // JDBC and async profiling are part of the profiler, and installed only if configured
+                disabledFeatures.add(FeatureTransformer.PROFILER);
+                disabledFeatures.add(FeatureTransformer.JDBC);
+                disabledFeatures.add(FeatureTransformer.ASYNC);
+            }
+            if (!ENABLE_DEPRECATION_RESCUE) {
+                disabledFeatures.add(FeatureTransformer.DEPRECATION_RESCUE);
+            }
+            if (!ENABLE_SECURITY_PATCHES) {
+                disabledFeatures.add(FeatureTransformer.SECURITY_PATCHES);
+            }
+            if (!ENABLE_LOCK_PROFILER) {
+                disabledFeatures.add(FeatureTransformer.LOCKS);
+            }
+            
             // Install transformers with configuration
-            FeatureTransformer.install(inst, profilerPackages, DEPRECATION_CONFIG_PATH, SECURITY_PATTERNS_PATH);
+            FeatureTransformer.install(inst, profilerPackages, DEPRECATION_CONFIG_PATH, SECURITY_PATTERNS_PATH,
+                    disabledFeatures);
             
-            // Set up a shutdown hook to save profiler data
-            if (ENABLE_PROFILER) {
-                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-                    LOGGER.info("Saving profiler data before shutdown");
-                    FeatureTransformer.saveHotspotData();
-                }));
-            }
+            // Set up a shutdown hook to save profiler data, also if profiling is only enabled at runtime
+            Runtime.getRuntime().addShutdownHook(new Thread(FeatureTransformer::saveHotspotData));
         }
     }
     
@@ -144,6 +183,7 @@ public class PatcherAgent {
         }
         
         isRunning = true;
+        registerManagement();
         
         scheduler = Executors.newScheduledThreadPool(1);
         scheduler.scheduleAtFixedRate(
@@ -173,6 +213,14 @@ public class PatcherAgent {
      * Check for new patches from the configured endpoint.
      */
     private static void checkForPatches() {
+        synchronized (POLL_LOCK) {
+            POLL_COUNT.incrementAndGet();
+            LAST_POLL_TIME.set(System.currentTimeMillis());
+            pollPatches();
+        }
+    }
+    
+    private static void pollPatches() {
         try {
             LOGGER.info("Checking for patches at " + PATCH_ENDPOINT);
             
@@ -256,17 +304,25 @@ public class PatcherAgent {
         
         for (PatchEntry patch : manifest.getPatches()) {
             try {
-                applyPatch(patch, manifest.getVersion());
+                if (applyPatch(patch, manifest.getVersion())) {
+                    PATCHES_APPLIED.incrementAndGet();
+                    recordHistory("applied " + patch.getClassName() + " from version " + manifest.getVersion());
+                }
             } catch (Exception e) {
                 LOGGER.log(Level.SEVERE, "Failed to apply patch for class " + patch.getClassName(), e);
+                PATCH_FAILURES.incrementAndGet();
+                recordHistory("failed " + patch.getClassName() + " from version " + manifest.getVersion()
+                        + ": " + e);
             }
         }
     }
     
     /**
      * Apply an individual patch.
+     * 
+     * @return True if the class was redefined, false if the patch was skipped
      */
-    private static void applyPatch(PatchEntry patch, String version) throws Exception {
+    private static boolean applyPatch(PatchEntry patch, String version) throws Exception {
         String className = patch.getClassName();
         byte[] patchedBytes;
         
@@ -279,14 +335,14 @@ public class PatcherAgent {
         
         if (patchedBytes == null || patchedBytes.length == 0) {
             LOGGER.warning("No bytecode found for patch " + patch.getPath());
-            return;
+            return false;
         }
         
         // Find the class to patch
         Class<?> clazz = loadClass(className);
         if (clazz == null) {
             LOGGER.warning("Class not found: " + className);
-            return;
+            return false;
         }
         
         // Create the class definition
@@ -295,6 +351,7 @@ public class PatcherAgent {
         // Apply the patch
         LOGGER.info("Applying patch for " + className);
         instrumentation.redefineClasses(definition);
+        return true;
     }
     
     private static byte[] fetchPatchedBytesFromHttp(String path, String version) throws IOException, InterruptedException {
@@ -341,4 +398,103 @@ public class PatcherAgent {
             }
         }
     }
-} 
\ No newline at end of file
+    
+    /**
+     * Append an entry to the bounded patch history.
+     */
+    private static void recordHistory(String entry) {
+        synchronized (PATCH_HISTORY) {
+            if (PATCH_HISTORY.size() == PATCH_HISTORY_SIZE) {
+                PATCH_HISTORY.removeFirst();
+            }
+            PATCH_HISTORY.addLast(Instant.now() + " " + entry);
+        }
+    }
+    
+    /**
+     * Register the PatcherAgent MBean and its metrics, and start the metrics endpoint if configured.
+     */
+    private static void registerManagement() {
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(
+                        new StandardMBean(new Management(), PatcherAgentMXBean.class, true), name);
+                MetricsEndpoint.addCollector(PatcherAgent::collectMetrics);
+            }
+        } catch (InstanceAlreadyExistsException e) {
+            // Registered by an earlier start of the poller
+        } catch (JMException e) {
+            LOGGER.log(Level.WARNING, "Failed to register MBean " + OBJECT_NAME, e);
+        }
+        MetricsEndpoint.start();
+    }
+    
+    private static void collectMetrics(MetricsEndpoint.MetricsWriter writer) {
+        writer.family("patcher_polls_total", "counter", "Patch manifest polls");
+        writer.sample("patcher_polls_total", POLL_COUNT.get());
+        writer.family("patcher_last_poll_timestamp_seconds", "gauge", "Time of the last patch poll");
+        writer.sample("patcher_last_poll_timestamp_seconds", LAST_POLL_TIME.get() / 1000);
+        writer.family("patcher_patches_applied_total", "counter", "Classes redefined by patches");
+        writer.sample("patcher_patches_applied_total", PATCHES_APPLIED.get());
+        writer.family("patcher_patch_failures_total", "counter", "Classes whose patch failed to apply");
+        writer.sample("patcher_patch_failures_total", PATCH_FAILURES.get());
+    }
+    
+    /**
+     * MBean view of the poller state.
+     */
+    private static final class Management implements PatcherAgentMXBean {
+        @Override
+        public String getPatchEndpoint() {
+            return PATCH_ENDPOINT;
+        }
+        
+        @Override
+        public long getPollingIntervalMinutes() {
+            return POLLING_INTERVAL_MINUTES;
+        }
+        
+        @Override
+        public boolean isPollerRunning() {
+            return isRunning;
+        }
+        
+        @Override
+        public long getPollCount() {
+            return POLL_COUNT.get();
+        }
+        
+        @Override
+        public long getLastPollTime() {
+            return LAST_POLL_TIME.get();
+        }
+        
+        @Override
+        public long getPatchesApplied() {
+            return PATCHES_APPLIED.get();
+        }
+        
+        @Override
+        public long getPatchFailures() {
+            return PATCH_FAILURES.get();
+        }
+        
+        @Override
+        public Map<String, Long> getAppliedPatchVersions() {
+            return new HashMap<>(APPLIED_PATCHES);
+        }
+        
+        @Override
+        public String[] getPatchHistory() {
+            synchronized (PATCH_HISTORY) {
+                return PATCH_HISTORY.toArray(new String[0]);
+            }
+        }
+        
+        @Override
+        public void pollNow() {
+            checkForPatches();
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,59 @@
+package com.example.patcher.agent;
+
+import java.util.Map;
+
+/**
+ * Management interface of the patch poller, registered as {@value PatcherAgent#OBJECT_NAME}.
+ */
+public interface PatcherAgentMXBean {
+
+    /**
+     * @return The HTTP endpoint or directory patches are polled from
+     */
+    String getPatchEndpoint();
+
+    /**
+     * @return Minutes between two polls
+     */
+    long getPollingIntervalMinutes();
+
+    /**
+     * @return True while the poller is scheduled
+     */
+    boolean isPollerRunning();
+
+    /**
+     * @return Number of polls since startup
+     */
+    long getPollCount();
+
+    /**
+     * @return Time of the last poll in epoch millis, or 0 if there was none
+     */
+    long getLastPollTime();
+
+    /**
+     * @return Number of classes redefined by patches
+     */
+    long getPatchesApplied();
+
+    /**
+     * @return Number of classes whose patch failed to apply
+     */
+    long getPatchFailures();
+
+    /**
+     * @return Applied patch versions mapped to their manifest timestamps
+     */
+    Map<String, Long> getAppliedPatchVersions();
+
+    /**
+     * @return The most recent patch applications and failures, oldest first
+     */
+    String[] getPatchHistory();
+
+    /**
+     * Poll for patches now instead of waiting for the next scheduled poll.
+     */
+    void pollNow();
+}
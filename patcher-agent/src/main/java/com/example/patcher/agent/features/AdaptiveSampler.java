@@ -0,0 +1,223 @@
+package com.example.patcher.agent.features;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+
+/**
+ * Adaptive per-method sampling that keeps profiler overhead under a CPU budget.
+ * <p>
+ * Enabled with {@code -Dspeeddoctor.profiler.overheadBudget=0.01} (1% of all available CPU).
+ * Each method is timed with probability 1/period. Once per interval a controller estimates every
+ * method's call rate from its samples and splits the budget between methods water-filling style:
+ * rarely called methods keep being timed on every call, while the hottest methods get the largest
+ * periods. Each sample is recorded with a weight equal to its period, so histogram counts, totals
+ * and percentiles are unbiased estimates of the full population.
+ * <p>
+ * The sum of {@code weight * (weight - 1)} over all samples estimates the variance of the call
+ * count, which the hotspot report turns into a 95% error bound.
+ */
+final class AdaptiveSampler {
+    private static final Logger LOGGER = Logger.getLogger(AdaptiveSampler.class.getName());
+
+    /**
+     * Returned by the enter advice when the call is not sampled.
+     */
+    static final long NOT_SAMPLED = Long.MIN_VALUE;
+
+    static final double OVERHEAD_BUDGET = Double.parseDouble(
+            System.getProperty("speeddoctor.profiler.overheadBudget", "0"));
+    static final boolean ENABLED = OVERHEAD_BUDGET > 0;
+    private static final long INTERVAL_MS = Long.parseLong(
+            System.getProperty("speeddoctor.profiler.samplingIntervalMs", "1000"));
+    private static final long CONFIGURED_SAMPLE_COST_NANOS = Long.parseLong(
+            System.getProperty("speeddoctor.profiler.sampleCostNanos", "0"));
+    private static final int MAX_PERIOD = 1 << 20;
+
+    private static final AtomicIntegerArray PERIODS = new AtomicIntegerArray(MethodRegistry.capacity());
+    private static final AtomicLongArray SAMPLES = new AtomicLongArray(MethodRegistry.capacity());
+    private static final AtomicLongArray VARIANCE = new AtomicLongArray(MethodRegistry.capacity());
+
+    // Controller state, only touched by the controller thread
+    private static long[] lastSamples = new long[0];
+    private static double sampleCostNanos;
+    private static ScheduledExecutorService controller;
+
+    private AdaptiveSampler() {
+    }
+
+    /**
+     * Decide whether the current call of a method is timed.
+     *
+     * @param methodId The {@link MethodRegistry} ID of the method
+     * @return true if the call should be timed
+     */
+    static boolean shouldSample(int methodId) {
+        int period = PERIODS.get(methodId);
+        return period <= 1 || ThreadLocalRandom.current().nextInt(period) == 0;
+    }
+
+    /**
+     * Account for a sampled call.
+     *
+     * @return The weight (current period) the sample must be recorded with
+     */
+    static int onSample(int methodId) {
+        int period = Math.max(1, PERIODS.get(methodId));
+        SAMPLES.incrementAndGet(methodId);
+        if (period > 1) {
+            VARIANCE.addAndGet(methodId, (long) period * (period - 1));
+        }
+        return period;
+    }
+
+    /**
+     * @return Number of calls of the method that were actually timed
+     */
+    static long getSamples(int methodId) {
+        return SAMPLES.get(methodId);
+    }
+
+    /**
+     * @return Half-width of the 95% confidence interval of the estimated call count
+     */
+    static long getCountErrorBound(int methodId) {
+        return Math.round(1.96 * Math.sqrt(VARIANCE.get(methodId)));
+    }
+
+    /**
+     * @return The current sampling period of a method (1 = every call is timed)
+     */
+    static int getPeriod(int methodId) {
+        return Math.max(1, PERIODS.get(methodId));
+    }
+
+    /**
+     * Start the controller thread if sampling is enabled.
+     */
+    static synchronized void start() {
+        if (!ENABLED || controller != null) {
+            return;
+        }
+        sampleCostNanos = CONFIGURED_SAMPLE_COST_NANOS > 0
+                ? CONFIGURED_SAMPLE_COST_NANOS
+                : calibrateSampleCost();
+        controller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "speeddoctor-profiler-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        controller.scheduleAtFixedRate(() -> {
+            try {
+                adjustPeriods();
+            } catch (RuntimeException e) {
+                LOGGER.warning("[Profiler] Failed to adjust sampling periods: " + e.getMessage());
+            }
+        }, INTERVAL_MS, INTERVAL_MS, TimeUnit.MILLISECONDS);
+        LOGGER.info(String.format("[Profiler] Adaptive sampling enabled: budget %.2f%% CPU, ~%.0fns per sample",
+                OVERHEAD_BUDGET * 100, sampleCostNanos));
+    }
+
+    /**
+     * Stop the controller thread. The methods keep their last sampling periods.
+     */
+    static synchronized void stop() {
+        if (controller != null) {
+            controller.shutdownNow();
+            controller = null;
+        }
+    }
+
+    /**
+     * Re-split the sampling budget between methods based on their estimated call rates.
+     */
+    private static void adjustPeriods() {
+        int size = MethodRegistry.size();
+        if (lastSamples.length < size) {
+            long[] grown = new long[size];
+            System.arraycopy(lastSamples, 0, grown, 0, lastSamples.length);
+            lastSamples = grown;
+        }
+
+        List<Integer> active = new ArrayList<>();
+        List<Double> rates = new ArrayList<>();
+        double intervalSeconds = INTERVAL_MS / 1000.0;
+        for (int id = 0; id < size; id++) {
+            long samples = SAMPLES.get(id);
+            long delta = samples - lastSamples[id];
+            lastSamples[id] = samples;
+            int period = getPeriod(id);
+            if (delta == 0) {
+                // No samples: the method went quiet or the period is too coarse, so let it recover
+                if (period > 1) {
+                    PERIODS.set(id, period / 2);
+                }
+                continue;
+            }
+            active.add(id);
+            rates.add(delta * (double) period / intervalSeconds);
+        }
+
+        double budgetSamplesPerSecond = OVERHEAD_BUDGET * Runtime.getRuntime().availableProcessors()
+                * 1_000_000_000.0 / sampleCostNanos;
+        int[] periods = computePeriods(rates.stream().mapToDouble(Double::doubleValue).toArray(),
+                budgetSamplesPerSecond);
+        for (int i = 0; i < periods.length; i++) {
+            PERIODS.set(active.get(i), periods[i]);
+        }
+    }
+
+    /**
+     * Water-fill a budget of samples per second over methods with the given call rates.
+     *
+     * @param rates Estimated calls per second of each method
+     * @param budgetSamplesPerSecond Total number of samples per second that fits the budget
+     * @return The sampling period for each method
+     */
+    static int[] computePeriods(double[] rates, double budgetSamplesPerSecond) {
+        Integer[] order = new Integer[rates.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(rates[a], rates[b]));
+
+        int[] periods = new int[rates.length];
+        double remaining = budgetSamplesPerSecond;
+        for (int i = 0; i < order.length; i++) {
+            int method = order[i];
+            double share = remaining / (order.length - i);
+            double rate = rates[method];
+            if (rate <= share) {
+                periods[method] = 1;
+                remaining -= rate;
+            } else {
+                double period = share > 0 ? Math.ceil(rate / share) : MAX_PERIOD;
+                periods[method] = (int) Math.min(MAX_PERIOD, period);
+                remaining -= rate / periods[method];
+            }
+        }
+        return periods;
+    }
+
+    /**
+     * Measure the cost of one timed call: two nanoTime reads plus a histogram update.
+     */
+    private static double calibrateSampleCost() {
+        LatencyHistogram scratch = new LatencyHistogram();
+        int iterations = 200_000;
+        long begin = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            long duration = System.nanoTime() - start;
+            scratch.record(duration, 1);
+        }
+        return Math.max(10, (System.nanoTime() - begin) / (double) iterations);
+    }
+}
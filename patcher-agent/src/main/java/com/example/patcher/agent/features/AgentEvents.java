@@ -0,0 +1,230 @@
+package com.example.patcher.agent.features;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.SettingControl;
+import jdk.jfr.SettingDefinition;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Custom JFR events emitted by the SpeedDoctor features.
+ * <p>
+ * Events are written to JFR's thread-local buffers, so they are cheap to emit from application
+ * threads and land in the same recording as GC, safepoint and lock events. Every event is disabled
+ * by default, so recordings that do not ask for them, including the agent's own, pay nothing; a
+ * recording enables them with JFR's standard {@code enabled} setting, e.g.
+ * {@code jcmd <pid> JFR.start settings=profile +speeddoctor.SlowMethod#enabled=true}. The
+ * security events complement the security warnings in the log, they do not replace them.
+ * {@link SlowMethod} additionally has a {@code callThreshold} setting (default
+ * {@code -Dspeeddoctor.jfr.slowMethodThresholdMs}), and {@link ShimInvoked} uses the standard
+ * {@code threshold} on the shim's duration.
+ * <p>
+ * {@link JfrHotspotConverter} turns recorded {@link SlowMethod} events into a hotspot CSV.
+ */
+final class AgentEvents {
+
+    static final String SLOW_METHOD = "speeddoctor.SlowMethod";
+    static final String SQL_SANITIZED = "speeddoctor.SqlSanitized";
+    static final String XSS_ESCAPED = "speeddoctor.XssEscaped";
+    static final String SHIM_INVOKED = "speeddoctor.ShimInvoked";
+    static final List<String> NAMES = List.of(SLOW_METHOD, SQL_SANITIZED, XSS_ESCAPED, SHIM_INVOKED);
+
+    private static final long DEFAULT_THRESHOLD_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(
+            System.getProperty("speeddoctor.jfr.slowMethodThresholdMs", "50")));
+    private static final int MAX_TEXT_LENGTH = 1024;
+
+    // Lowest callThreshold of all running recordings, so calls below it skip the event entirely
+    private static volatile long slowMethodThresholdNanos = DEFAULT_THRESHOLD_NANOS;
+
+    private AgentEvents() {
+    }
+
+    /**
+     * Emit a {@link SlowMethod} event if the call is above the threshold of a running recording.
+     *
+     * @param signature The method signature
+     * @param durationNanos The call duration
+     * @param weight The number of calls this call stands for when sampling
+     */
+    static void slowMethod(String signature, long durationNanos, long weight) {
+        if (durationNanos < slowMethodThresholdNanos) {
+            return;
+        }
+        SlowMethod event = new SlowMethod();
+        if (event.isEnabled()) {
+            event.method = signature;
+            event.callDuration = durationNanos;
+            event.weight = weight;
+            if (event.shouldCommit()) {
+                event.commit();
+            }
+        }
+    }
+
+    static void sqlSanitized(String original, String sanitized) {
+        SqlSanitized event = new SqlSanitized();
+        if (event.shouldCommit()) {
+            event.original = truncate(original);
+            event.sanitized = truncate(sanitized);
+            event.commit();
+        }
+    }
+
+    static void xssEscaped(String original, int index) {
+        XssEscaped event = new XssEscaped();
+        if (event.shouldCommit()) {
+            event.original = truncate(original);
+            event.index = index;
+            event.commit();
+        }
+    }
+
+    private static String truncate(String text) {
+        return text == null || text.length() <= MAX_TEXT_LENGTH ? text : text.substring(0, MAX_TEXT_LENGTH);
+    }
+
+    /**
+     * A profiled call that took longer than the recording's {@code callThreshold}.
+     */
+    @Name(SLOW_METHOD)
+    @Label("Slow Method")
+    @Category({"SpeedDoctor", "Profiler"})
+    @Description("A profiled method call above the slow-call threshold")
+    @StackTrace(false)
+    @Enabled(false)
+    static final class SlowMethod extends Event {
+        @Label("Method")
+        String method;
+
+        @Label("Call Duration")
+        @Timespan(Timespan.NANOSECONDS)
+        long callDuration;
+
+        @Label("Weight")
+        @Description("Number of calls this call stands for when the profiler samples")
+        long weight;
+
+        @Label("Call Threshold")
+        @Name("callThreshold")
+        @SettingDefinition
+        boolean callThreshold(CallThresholdSetting setting) {
+            return callDuration >= setting.thresholdNanos;
+        }
+    }
+
+    /**
+     * A SQL statement that matched the injection pattern and was rewritten.
+     */
+    @Name(SQL_SANITIZED)
+    @Label("SQL Sanitized")
+    @Category({"SpeedDoctor", "Security"})
+    @Description("A SQL statement that matched the injection pattern and was sanitized")
+    @Enabled(false)
+    static final class SqlSanitized extends Event {
+        @Label("Original SQL")
+        String original;
+
+        @Label("Sanitized SQL")
+        String sanitized;
+    }
+
+    /**
+     * An HTTP parameter that matched the XSS pattern and was HTML-escaped.
+     */
+    @Name(XSS_ESCAPED)
+    @Label("XSS Escaped")
+    @Category({"SpeedDoctor", "Security"})
+    @Description("An HTTP request parameter that matched the XSS pattern and was escaped")
+    @Enabled(false)
+    static final class XssEscaped extends Event {
+        @Label("Original Value")
+        String original;
+
+        @Label("Array Index")
+        @Description("Index in getParameterValues(), or -1 for getParameter()")
+        int index;
+    }
+
+    /**
+     * A deprecated API call redirected through a shim; the event duration covers the shim call.
+     */
+    @Name(SHIM_INVOKED)
+    @Label("Shim Invoked")
+    @Category({"SpeedDoctor", "Deprecation Rescue"})
+    @Description("A call to a deprecated API that was redirected to its replacement")
+    @Threshold("0 ms")
+    @Enabled(false)
+    static final class ShimInvoked extends Event {
+        @Label("Shim")
+        String shim;
+
+        @Label("Target")
+        String target;
+    }
+
+    /**
+     * JFR setting for the minimum call duration of {@link SlowMethod}, e.g. {@code "20 ms"}.
+     * With several recordings, the lowest threshold wins.
+     */
+    static final class CallThresholdSetting extends SettingControl {
+        private String value = DEFAULT_THRESHOLD_NANOS + " ns";
+        private long thresholdNanos = DEFAULT_THRESHOLD_NANOS;
+
+        @Override
+        public String combine(Set<String> values) {
+            long min = Long.MAX_VALUE;
+            String result = null;
+            for (String candidate : values) {
+                long nanos = parseNanos(candidate);
+                if (nanos < min) {
+                    min = nanos;
+                    result = candidate;
+                }
+            }
+            return result != null ? result : DEFAULT_THRESHOLD_NANOS + " ns";
+        }
+
+        @Override
+        public void setValue(String value) {
+            this.value = value;
+            this.thresholdNanos = parseNanos(value);
+            slowMethodThresholdNanos = thresholdNanos;
+        }
+
+        @Override
+        public String getValue() {
+            return value;
+        }
+
+        static long parseNanos(String value) {
+            String[] parts = value.trim().split("\\s+");
+            try {
+                long amount = Long.parseLong(parts[0]);
+                String unit = parts.length > 1 ? parts[1] : "ms";
+                switch (unit) {
+                    case "ns":
+                        return amount;
+                    case "us":
+                        return TimeUnit.MICROSECONDS.toNanos(amount);
+                    case "s":
+                        return TimeUnit.SECONDS.toNanos(amount);
+                    case "ms":
+                    default:
+                        return TimeUnit.MILLISECONDS.toNanos(amount);
+                }
+            } catch (NumberFormatException e) {
+                return DEFAULT_THRESHOLD_NANOS;
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.example.patcher.agent.features;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+
+/**
+ * Allocation profiling: bytes allocated per call of the profiled methods.
+ * <p>
+ * Enabled with {@code -Dspeeddoctor.profiler.allocations=true}. A sampled call reads the current
+ * thread's allocated-bytes counter ({@link com.sun.management.ThreadMXBean#getThreadAllocatedBytes(long)})
+ * on entry and exit; the difference is what the call allocated, including its callees. Reading the
+ * counter costs far more than a {@code nanoTime}, so only one call in
+ * {@code speeddoctor.profiler.allocations.sampleEvery} is measured, chosen at random per call so that
+ * periodic call patterns cannot bias the sample. Top-K mode has no method IDs and is not covered.
+ */
+final class AllocationProfiler {
+    private static final Logger LOGGER = Logger.getLogger(AllocationProfiler.class.getName());
+
+    private static final com.sun.management.ThreadMXBean THREADS = threadBean();
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty(
+            "speeddoctor.profiler.allocations", "false")) && enableCounters();
+    private static final int SAMPLE_MASK = Integer.highestOneBit(Math.max(1, Integer.parseInt(System.getProperty(
+            "speeddoctor.profiler.allocations.sampleEvery", "16"))) * 2 - 1) - 1;
+
+    static final long NOT_SAMPLED = -1;
+
+    private static final AtomicLongArray SAMPLES = new AtomicLongArray(MethodRegistry.capacity());
+    private static final AtomicLongArray BYTES = new AtomicLongArray(MethodRegistry.capacity());
+    private static final AtomicLongArray MAX_BYTES = new AtomicLongArray(MethodRegistry.capacity());
+
+    private AllocationProfiler() {
+    }
+
+    /**
+     * @return The thread's allocated bytes if this call is sampled, {@link #NOT_SAMPLED} otherwise
+     */
+    static long enter() {
+        if ((ThreadLocalRandom.current().nextInt() & SAMPLE_MASK) != 0) {
+            return NOT_SAMPLED;
+        }
+        if (VirtualThreads.isVirtual(Thread.currentThread())) {
+            // The per-thread counter only covers platform threads
+            return NOT_SAMPLED;
+        }
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Record the bytes a sampled call allocated.
+     *
+     * @param methodId The {@link MethodRegistry} ID of the method
+     * @param start The value returned by {@link #enter()}
+     */
+    static void exit(int methodId, long start) {
+        if (start == NOT_SAMPLED) {
+            return;
+        }
+        record(methodId, THREADS.getThreadAllocatedBytes(Thread.currentThread().getId()) - start);
+    }
+
+    static void record(int methodId, long bytes) {
+        if (bytes < 0) {
+            return;
+        }
+        SAMPLES.incrementAndGet(methodId);
+        BYTES.addAndGet(methodId, bytes);
+        long max;
+        while (bytes > (max = MAX_BYTES.get(methodId))) {
+            if (MAX_BYTES.compareAndSet(methodId, max, bytes)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return Number of calls of the method whose allocations were measured
+     */
+    static long getSamples(int methodId) {
+        return SAMPLES.get(methodId);
+    }
+
+    /**
+     * @return Bytes allocated by the sampled calls of the method
+     */
+    static long getBytes(int methodId) {
+        return BYTES.get(methodId);
+    }
+
+    /**
+     * @return Most bytes allocated by a single sampled call of the method
+     */
+    static long getMaxBytes(int methodId) {
+        return MAX_BYTES.get(methodId);
+    }
+
+    /**
+     * Clear the recorded allocations of every method.
+     */
+    static void reset() {
+        for (int id = 0; id < MethodRegistry.size(); id++) {
+            SAMPLES.set(id, 0);
+            BYTES.set(id, 0);
+            MAX_BYTES.set(id, 0);
+        }
+    }
+
+    static void logConfiguration() {
+        LOGGER.info("[Profiler] Allocation profiling enabled, sampling 1 in " + (SAMPLE_MASK + 1) + " calls");
+    }
+
+    private static com.sun.management.ThreadMXBean threadBean() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            if (threads.isThreadAllocatedMemorySupported()) {
+                return threads;
+            }
+        }
+        return null;
+    }
+
+    private static boolean enableCounters() {
+        if (THREADS == null) {
+            LOGGER.warning("[Profiler] Per-thread allocation counters are not supported by this JVM, "
+                    + "allocation profiling is disabled");
+            return false;
+        }
+        if (!THREADS.isThreadAllocatedMemoryEnabled()) {
+            THREADS.setThreadAllocatedMemoryEnabled(true);
+        }
+        return true;
+    }
+}
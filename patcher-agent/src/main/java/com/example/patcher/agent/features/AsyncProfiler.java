@@ -0,0 +1,469 @@
+package com.example.patcher.agent.features;
+
+import net.bytebuddy.asm.AsmVisitorWrapper;
+import net.bytebuddy.description.field.FieldDescription;
+import net.bytebuddy.description.field.FieldList;
+import net.bytebuddy.description.method.MethodList;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.implementation.Implementation;
+import net.bytebuddy.jar.asm.ClassVisitor;
+import net.bytebuddy.jar.asm.MethodVisitor;
+import net.bytebuddy.jar.asm.Opcodes;
+import net.bytebuddy.jar.asm.Type;
+import net.bytebuddy.pool.TypePool;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import static net.bytebuddy.matcher.ElementMatchers.hasDescriptor;
+import static net.bytebuddy.matcher.ElementMatchers.hasMethodName;
+
+/**
+ * Async-aware profiling: queue wait and execution time of work handed to executors and
+ * {@code CompletableFuture}, attributed to the method that started it.
+ * <p>
+ * Enabled with {@code -Dspeeddoctor.profiler.async=true}. The method advice of {@link ProfilerAdvice}
+ * only sees a method that returns a future take as long as the submission; the work itself runs
+ * later on another thread. This feature rewrites the call sites inside the profiled packages,
+ * like {@link LockContentionAdvice}: the task passed to {@code Executor.execute},
+ * {@code ExecutorService.submit} and the {@code CompletableFuture} {@code *Async} methods is
+ * wrapped in a task that carries the submission time and the originating method. When it runs,
+ * the wait since submission is recorded as queue time and the run itself as execution time, both
+ * in histograms of their own, separate from the synchronous latency. For a dependent stage such as
+ * {@code thenApplyAsync}, the queue time includes waiting for the previous stage.
+ * <p>
+ * The originating method is the {@link MethodRegistry} ID of the method containing the call site,
+ * unless the submission happens inside a wrapped task: then the context is propagated and the
+ * new task is attributed to the method that started the chain. Wrapping changes the task's
+ * identity, so {@code ThreadPoolExecutor.remove} no longer finds a task submitted through
+ * {@code execute}; that is why the feature is off by default.
+ */
+public class AsyncProfiler {
+
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty(
+            "speeddoctor.profiler.async", "false"));
+
+    static final int NO_ORIGIN = -1;
+    static final String REPORT_HEADER = "method,tasks,failures,queue_total_ns,queue_p50_ns,queue_p99_ns,queue_max_ns,"
+            + "exec_total_ns,exec_p50_ns,exec_p99_ns,exec_max_ns\n";
+
+    private static final AtomicReferenceArray<LatencyHistogram> QUEUE_HISTOGRAMS =
+            new AtomicReferenceArray<>(MethodRegistry.capacity());
+    private static final AtomicReferenceArray<LatencyHistogram> EXEC_HISTOGRAMS =
+            new AtomicReferenceArray<>(MethodRegistry.capacity());
+    private static final AtomicLongArray FAILURES = new AtomicLongArray(MethodRegistry.capacity());
+
+    // Origin of the wrapped task running on this thread, propagated to the tasks it submits. Only
+    // threads that run wrapped tasks get one, so plain submitters, e.g. virtual threads per request, stay stateless
+    private static final ThreadLocal<int[]> CURRENT_ORIGIN = new ThreadLocal<>();
+
+    private static final String HELPER = Type.getInternalName(AsyncProfiler.class);
+    private static final Set<String> EXECUTOR_OWNERS = Set.of(
+            "java/util/concurrent/Executor",
+            "java/util/concurrent/ExecutorService",
+            "java/util/concurrent/ScheduledExecutorService",
+            "java/util/concurrent/AbstractExecutorService",
+            "java/util/concurrent/ThreadPoolExecutor",
+            "java/util/concurrent/ScheduledThreadPoolExecutor",
+            "java/util/concurrent/ForkJoinPool");
+    private static final Set<String> FUTURE_OWNERS = Set.of(
+            "java/util/concurrent/CompletableFuture",
+            "java/util/concurrent/CompletionStage");
+    // The helper method wrapping each task type; stages are named apart, as lambdas could match several overloads
+    private static final Map<String, String> TASK_WRAPPERS = Map.of(
+            Type.getDescriptor(Runnable.class), "wrap",
+            Type.getDescriptor(Callable.class), "wrap",
+            Type.getDescriptor(Supplier.class), "wrap",
+            Type.getDescriptor(Function.class), "wrapFunction",
+            Type.getDescriptor(Consumer.class), "wrapConsumer",
+            Type.getDescriptor(BiFunction.class), "wrapBiFunction",
+            Type.getDescriptor(BiConsumer.class), "wrapBiConsumer");
+
+    /**
+     * Wraps the tasks submitted by every method of an instrumented type. Work is often submitted
+     * from lambda bodies, so unlike {@link AsmVisitorWrapper.ForDeclaredMethods} this also visits
+     * the synthetic methods that Byte Buddy leaves out of the instrumented methods.
+     */
+    static final AsmVisitorWrapper VISITOR = new AsmVisitorWrapper.AbstractBase() {
+        @Override
+        public ClassVisitor wrap(TypeDescription instrumentedType, ClassVisitor classVisitor,
+                                 Implementation.Context implementationContext, TypePool typePool,
+                                 FieldList<FieldDescription.InDefinedShape> fields, MethodList<?> methods,
+                                 int writerFlags, int readerFlags) {
+            return new ClassVisitor(Opcodes.ASM9, classVisitor) {
+                @Override
+                public MethodVisitor visitMethod(int access, String name, String descriptor, String signature,
+                                                 String[] exceptions) {
+                    MethodVisitor methodVisitor = super.visitMethod(access, name, descriptor, signature, exceptions);
+                    return methodVisitor == null ? null
+                            : new SubmissionVisitor(methodVisitor, instrumentedType, name, descriptor);
+                }
+            };
+        }
+    };
+
+    private AsyncProfiler() {
+    }
+
+    /**
+     * Wrap a task. Invoked from rewritten call sites, so it must stay public.
+     *
+     * @param task The submitted task
+     * @param methodId The {@link MethodRegistry} ID of the method containing the call site
+     * @return The timed task
+     */
+    public static Runnable wrap(Runnable task, int methodId) {
+        if (task == null || task instanceof TimedTask) {
+            return task;
+        }
+        Context context = new Context(origin(methodId));
+        return (Runnable & TimedTask) () -> {
+            long started = System.nanoTime();
+            int previous = context.begin();
+            try {
+                task.run();
+            } catch (RuntimeException | Error e) {
+                context.failed();
+                throw e;
+            } finally {
+                context.end(previous, started);
+            }
+        };
+    }
+
+    /**
+     * Wrap a task. Invoked from rewritten call sites, so it must stay public.
+     */
+    public static <V> Callable<V> wrap(Callable<V> task, int methodId) {
+        if (task == null || task instanceof TimedTask) {
+            return task;
+        }
+        Context context = new Context(origin(methodId));
+        return (Callable<V> & TimedTask) () -> {
+            long started = System.nanoTime();
+            int previous = context.begin();
+            try {
+                return task.call();
+            } catch (Exception | Error e) {
+                context.failed();
+                throw e;
+            } finally {
+                context.end(previous, started);
+            }
+        };
+    }
+
+    /**
+     * Wrap a stage. Invoked from rewritten call sites, so it must stay public.
+     */
+    public static <T> Supplier<T> wrap(Supplier<T> task, int methodId) {
+        if (task == null || task instanceof TimedTask) {
+            return task;
+        }
+        Context context = new Context(origin(methodId));
+        return (Supplier<T> & TimedTask) () -> {
+            long started = System.nanoTime();
+            int previous = context.begin();
+            try {
+                return task.get();
+            } catch (RuntimeException | Error e) {
+                context.failed();
+                throw e;
+            } finally {
+                context.end(previous, started);
+            }
+        };
+    }
+
+    /**
+     * Wrap a stage. Invoked from rewritten call sites, so it must stay public.
+     */
+    public static <T, R> Function<T, R> wrapFunction(Function<T, R> task, int methodId) {
+        if (task == null || task instanceof TimedTask) {
+            return task;
+        }
+        Context context = new Context(origin(methodId));
+        return (Function<T, R> & TimedTask) value -> {
+            long started = System.nanoTime();
+            int previous = context.begin();
+            try {
+                return task.apply(value);
+            } catch (RuntimeException | Error e) {
+                context.failed();
+                throw e;
+            } finally {
+                context.end(previous, started);
+            }
+        };
+    }
+
+    /**
+     * Wrap a stage. Invoked from rewritten call sites, so it must stay public.
+     */
+    public static <T> Consumer<T> wrapConsumer(Consumer<T> task, int methodId) {
+        if (task == null || task instanceof TimedTask) {
+            return task;
+        }
+        Context context = new Context(origin(methodId));
+        return (Consumer<T> & TimedTask) value -> {
+            long started = System.nanoTime();
+            int previous = context.begin();
+            try {
+                task.accept(value);
+            } catch (RuntimeException | Error e) {
+                context.failed();
+                throw e;
+            } finally {
+                context.end(previous, started);
+            }
+        };
+    }
+
+    /**
+     * Wrap a stage. Invoked from rewritten call sites, so it must stay public.
+     */
+    public static <T, U, R> BiFunction<T, U, R> wrapBiFunction(BiFunction<T, U, R> task, int methodId) {
+        if (task == null || task instanceof TimedTask) {
+            return task;
+        }
+        Context context = new Context(origin(methodId));
+        return (BiFunction<T, U, R> & TimedTask) (first, second) -> {
+            long started = System.nanoTime();
+            int previous = context.begin();
+            try {
+                return task.apply(first, second);
+            } catch (RuntimeException | Error e) {
+                context.failed();
+                throw e;
+            } finally {
+                context.end(previous, started);
+            }
+        };
+    }
+
+    /**
+     * Wrap a stage. Invoked from rewritten call sites, so it must stay public.
+     */
+    public static <T, U> BiConsumer<T, U> wrapBiConsumer(BiConsumer<T, U> task, int methodId) {
+        if (task == null || task instanceof TimedTask) {
+            return task;
+        }
+        Context context = new Context(origin(methodId));
+        return (BiConsumer<T, U> & TimedTask) (first, second) -> {
+            long started = System.nanoTime();
+            int previous = context.begin();
+            try {
+                task.accept(first, second);
+            } catch (RuntimeException | Error e) {
+                context.failed();
+                throw e;
+            } finally {
+                context.end(previous, started);
+            }
+        };
+    }
+
+    /**
+     * @return The method a task submitted from the given method is attributed to
+     */
+    private static int origin(int methodId) {
+        int[] current = CURRENT_ORIGIN.get();
+        return current == null || current[0] == NO_ORIGIN ? methodId : current[0];
+    }
+
+    /**
+     * Record one run of an asynchronous task.
+     *
+     * @param methodId The originating method
+     * @param queueNanos Time from submission until the task started
+     * @param execNanos Time the task ran
+     */
+    static void record(int methodId, long queueNanos, long execNanos) {
+        histogram(QUEUE_HISTOGRAMS, methodId).record(queueNanos);
+        histogram(EXEC_HISTOGRAMS, methodId).record(execNanos);
+    }
+
+    private static LatencyHistogram histogram(AtomicReferenceArray<LatencyHistogram> histograms, int methodId) {
+        LatencyHistogram histogram = histograms.get(methodId);
+        if (histogram == null) {
+            histograms.compareAndSet(methodId, null, new LatencyHistogram());
+            histogram = histograms.get(methodId);
+        }
+        return histogram;
+    }
+
+    /**
+     * @return The execution-time histogram of the tasks started by a method, or null if it started none
+     */
+    static LatencyHistogram getExecHistogram(int methodId) {
+        return EXEC_HISTOGRAMS.get(methodId);
+    }
+
+    /**
+     * @return The queue-time histogram of the tasks started by a method, or null if it started none
+     */
+    static LatencyHistogram getQueueHistogram(int methodId) {
+        return QUEUE_HISTOGRAMS.get(methodId);
+    }
+
+    /**
+     * @return Number of tasks started by a method that threw
+     */
+    static long getFailures(int methodId) {
+        return FAILURES.get(methodId);
+    }
+
+    /**
+     * Write the asynchronous statistics of every method that started tasks as CSV, most execution time first.
+     *
+     * @param writer The destination
+     */
+    static void writeReport(Writer writer) throws IOException {
+        List<Integer> methods = new ArrayList<>();
+        for (int id = 0; id < MethodRegistry.size(); id++) {
+            if (EXEC_HISTOGRAMS.get(id) != null && QUEUE_HISTOGRAMS.get(id) != null) {
+                methods.add(id);
+            }
+        }
+        methods.sort(Comparator.comparingLong((Integer id) -> EXEC_HISTOGRAMS.get(id).getTotal()).reversed());
+
+        StringBuilder report = new StringBuilder(REPORT_HEADER);
+        for (int id : methods) {
+            LatencyHistogram.Snapshot queue = QUEUE_HISTOGRAMS.get(id).snapshot();
+            LatencyHistogram.Snapshot exec = EXEC_HISTOGRAMS.get(id).snapshot();
+            report.append('"').append(MethodRegistry.getSignature(id).replace("\"", "\"\"")).append("\",")
+                  .append(exec.getCount()).append(",")
+                  .append(FAILURES.get(id)).append(",")
+                  .append(queue.getTotal()).append(",")
+                  .append(queue.getValueAtQuantile(0.5)).append(",")
+                  .append(queue.getValueAtQuantile(0.99)).append(",")
+                  .append(queue.getMax()).append(",")
+                  .append(exec.getTotal()).append(",")
+                  .append(exec.getValueAtQuantile(0.5)).append(",")
+                  .append(exec.getValueAtQuantile(0.99)).append(",")
+                  .append(exec.getMax()).append("\n");
+        }
+        writer.write(report.toString());
+    }
+
+    /**
+     * Marks tasks that are already wrapped, so resubmitting one does not wrap it twice.
+     */
+    interface TimedTask {
+    }
+
+    /**
+     * What a wrapped task carries from its submission to its run.
+     */
+    private static final class Context {
+        private final int origin;
+        private final long submitted = System.nanoTime();
+
+        Context(int origin) {
+            this.origin = origin;
+        }
+
+        private int begin() {
+            int[] current = CURRENT_ORIGIN.get();
+            if (current == null) {
+                current = new int[] {NO_ORIGIN};
+                CURRENT_ORIGIN.set(current);
+            }
+            int previous = current[0];
+            current[0] = origin;
+            return previous;
+        }
+
+        private void failed() {
+            FAILURES.incrementAndGet(origin);
+        }
+
+        private void end(int previous, long started) {
+            long now = System.nanoTime();
+            CURRENT_ORIGIN.get()[0] = previous;
+            record(origin, started - submitted, now - started);
+        }
+    }
+
+    /**
+     * Wraps the task argument of submissions in one method, passing the method's constant ID.
+     */
+    private static final class SubmissionVisitor extends MethodVisitor {
+        private final TypeDescription instrumentedType;
+        private final String name;
+        private final String descriptor;
+        private int methodId = NO_ORIGIN;
+
+        SubmissionVisitor(MethodVisitor methodVisitor, TypeDescription instrumentedType, String name,
+                          String descriptor) {
+            super(Opcodes.ASM9, methodVisitor);
+            this.instrumentedType = instrumentedType;
+            this.name = name;
+            this.descriptor = descriptor;
+        }
+
+        @Override
+        public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+            if (isSubmission(owner, name)) {
+                Type[] arguments = Type.getArgumentTypes(descriptor);
+                int last = arguments.length - 1;
+                if (last >= 0 && TASK_WRAPPERS.containsKey(arguments[last].getDescriptor())) {
+                    wrapTop(arguments[last].getDescriptor());
+                } else if (last >= 1 && TASK_WRAPPERS.containsKey(arguments[last - 1].getDescriptor())
+                        && arguments[last].getSort() == Type.OBJECT) {
+                    // Task followed by an executor or a result: swap it to the top and back
+                    super.visitInsn(Opcodes.SWAP);
+                    wrapTop(arguments[last - 1].getDescriptor());
+                    super.visitInsn(Opcodes.SWAP);
+                }
+            }
+            super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+        }
+
+        @Override
+        public void visitMaxs(int maxStack, int maxLocals) {
+            // The method ID constant on top of the task
+            super.visitMaxs(maxStack + 1, maxLocals);
+        }
+
+        private void wrapTop(String taskDescriptor) {
+            if (methodId == NO_ORIGIN) {
+                // Only methods that submit work take a registry slot
+                methodId = MethodRegistry.register(signature());
+            }
+            super.visitLdcInsn(methodId);
+            super.visitMethodInsn(Opcodes.INVOKESTATIC, HELPER, TASK_WRAPPERS.get(taskDescriptor),
+                    "(" + taskDescriptor + "I)" + taskDescriptor, false);
+        }
+
+        /**
+         * @return The signature the profiler uses for this method, if the type describes it
+         */
+        private String signature() {
+            MethodList<?> declared = instrumentedType.getDeclaredMethods()
+                    .filter(hasMethodName(name).and(hasDescriptor(descriptor)));
+            return declared.size() == 1 ? declared.getOnly().toString()
+                    : instrumentedType.getName() + "." + name + descriptor;
+        }
+
+        private static boolean isSubmission(String owner, String name) {
+            if (EXECUTOR_OWNERS.contains(owner)) {
+                return name.equals("execute") || name.equals("submit");
+            }
+            return FUTURE_OWNERS.contains(owner) && name.endsWith("Async");
+        }
+    }
+}
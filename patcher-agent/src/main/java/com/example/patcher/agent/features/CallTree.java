@@ -0,0 +1,255 @@
+package com.example.patcher.agent.features;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+
+/**
+ * Bounded call tree that separates each method's self time from the time spent in its children.
+ * <p>
+ * The profiler advice pushes and pops frames on a per-thread shadow stack. On exit, a frame's
+ * total time is added to its parent's child time, and {@code total - children} is the frame's self
+ * time. Frames are aggregated into call-tree nodes keyed by (parent node, method ID) in a lock-free
+ * open-addressing table with a fixed number of nodes; once the table is full, new paths are
+ * attributed to a single {@code <truncated>} node so memory stays bounded.
+ * <p>
+ * Enabled by default; disable with {@code -Dspeeddoctor.profiler.callTree=false}. Because the
+ * shadow stack needs every call, it is off by default when adaptive sampling is enabled.
+ */
+final class CallTree {
+    private static final Logger LOGGER = Logger.getLogger(CallTree.class.getName());
+
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty(
+            "speeddoctor.profiler.callTree", String.valueOf(!AdaptiveSampler.ENABLED)));
+    private static final int MAX_NODES = Math.max(16, Integer.parseInt(
+            System.getProperty("speeddoctor.profiler.callTree.maxNodes", "16384")));
+    private static final int MAX_DEPTH = 256;
+    private static final int ROOT = -1;
+    private static final int TRUNCATED_NODE = 0;
+    static final String TRUNCATED_FRAME = "<truncated>";
+    static final long NO_FRAME = Long.MIN_VALUE;
+
+    // Open-addressing index from (parent, method) to node, twice the node capacity to keep probes short
+    private static final int TABLE_MASK = Integer.highestOneBit(MAX_NODES * 2 - 1) * 2 - 1;
+    private static final AtomicLongArray KEYS = new AtomicLongArray(TABLE_MASK + 1);
+    private static final AtomicIntegerArray SLOT_NODES = new AtomicIntegerArray(TABLE_MASK + 1);
+
+    private static final int[] PARENTS = new int[MAX_NODES];
+    private static final int[] METHODS = new int[MAX_NODES];
+    private static final AtomicLongArray SELF_NANOS = new AtomicLongArray(MAX_NODES);
+    private static final AtomicInteger NEXT_NODE = new AtomicInteger(TRUNCATED_NODE + 1);
+
+    private static final ThreadLocal<ShadowStack> STACKS = ThreadLocal.withInitial(ShadowStack::new);
+
+    static {
+        PARENTS[TRUNCATED_NODE] = ROOT;
+        METHODS[TRUNCATED_NODE] = -1;
+    }
+
+    private CallTree() {
+    }
+
+    /**
+     * Push a frame for the current thread.
+     *
+     * @param methodId The {@link MethodRegistry} ID of the method being entered
+     * @param now The entry timestamp
+     */
+    static void push(int methodId, long now) {
+        ShadowStack stack = STACKS.get();
+        int depth = stack.depth++;
+        if (depth >= MAX_DEPTH) {
+            return;
+        }
+        if (depth == 0) {
+            stack.rootMethod = methodId;
+        } else if (depth == stack.nodes.length) {
+            stack.grow();
+        }
+        int parent = depth == 0 ? ROOT : stack.nodes[depth - 1];
+        stack.nodes[depth] = parent == TRUNCATED_NODE ? TRUNCATED_NODE : nodeFor(parent, methodId);
+        stack.starts[depth] = now;
+        stack.childNanos[depth] = 0;
+    }
+
+    /**
+     * Pop the current thread's top frame and account its total and self time.
+     *
+     * @param now The exit timestamp
+     */
+    static void pop(long now) {
+        ShadowStack stack = STACKS.get();
+        if (stack.depth == 0) {
+            // Entered before the advice was installed
+            return;
+        }
+        int depth = --stack.depth;
+        if (depth >= MAX_DEPTH) {
+            return;
+        }
+        long total = now - stack.starts[depth];
+        long self = total - stack.childNanos[depth];
+        if (depth > 0) {
+            stack.childNanos[depth - 1] += total;
+        }
+        int node = stack.nodes[depth];
+        SELF_NANOS.addAndGet(node, self);
+    }
+
+    /**
+     * Identify the current thread's outermost profiled invocation, e.g. to group the work done
+     * within one request.
+     *
+     * @return The entry timestamp of the outermost active frame, or {@link #NO_FRAME} if there is none
+     */
+    static long rootInvocation() {
+        ShadowStack stack = STACKS.get();
+        return stack.depth == 0 ? NO_FRAME : stack.starts[0];
+    }
+
+    /**
+     * @return The {@link MethodRegistry} ID of the current thread's outermost active frame, or -1 if there is none
+     */
+    static int rootMethod() {
+        ShadowStack stack = STACKS.get();
+        return stack.depth == 0 ? -1 : stack.rootMethod;
+    }
+
+    /**
+     * Find or create the node for a method called from a parent node.
+     */
+    private static int nodeFor(int parent, int methodId) {
+        long key = ((long) (parent + 1) << 32) | ((methodId + 1) & 0xFFFFFFFFL);
+        int slot = (int) mix(key) & TABLE_MASK;
+        for (int probes = 0; probes <= TABLE_MASK; probes++) {
+            long existing = KEYS.get(slot);
+            if (existing == key) {
+                return awaitNode(slot);
+            }
+            if (existing == 0) {
+                if (NEXT_NODE.get() >= MAX_NODES) {
+                    // Full: stop claiming slots so lookups of unknown paths stay short
+                    return TRUNCATED_NODE;
+                }
+                if (KEYS.compareAndSet(slot, 0, key)) {
+                    int node = NEXT_NODE.getAndIncrement();
+                    if (node >= MAX_NODES) {
+                        if (node == MAX_NODES) {
+                            LOGGER.warning("[Profiler] Call tree is full (" + MAX_NODES
+                                    + " nodes), new call paths are reported as " + TRUNCATED_FRAME);
+                        }
+                        node = TRUNCATED_NODE;
+                    } else {
+                        PARENTS[node] = parent;
+                        METHODS[node] = methodId;
+                    }
+                    // Publishing the node number makes the plain array writes above visible
+                    SLOT_NODES.set(slot, node + 1);
+                    return node;
+                }
+                continue;
+            }
+            slot = (slot + 1) & TABLE_MASK;
+        }
+        return TRUNCATED_NODE;
+    }
+
+    private static int awaitNode(int slot) {
+        int published;
+        while ((published = SLOT_NODES.get(slot)) == 0) {
+            Thread.onSpinWait();
+        }
+        return published - 1;
+    }
+
+    private static long mix(long key) {
+        key *= 0x9E3779B97F4A7C15L;
+        return key ^ (key >>> 29);
+    }
+
+    /**
+     * Per-method self time for every method in the tree, indexed by method ID.
+     */
+    static long[] getSelfNanosByMethod() {
+        long[] selfByMethod = new long[MethodRegistry.size()];
+        if (!ENABLED) {
+            return selfByMethod;
+        }
+        int nodes = Math.min(NEXT_NODE.get(), MAX_NODES);
+        for (int node = TRUNCATED_NODE + 1; node < nodes; node++) {
+            // Reading the counter first makes the node's method visible, see nodeFor()
+            long self = SELF_NANOS.get(node);
+            int methodId = METHODS[node];
+            if (self != 0 && methodId >= 0 && methodId < selfByMethod.length) {
+                selfByMethod[methodId] += self;
+            }
+        }
+        return selfByMethod;
+    }
+
+    /**
+     * Zero the self time of every node. The tree shape is kept, so threads inside a call are unaffected.
+     */
+    static void resetSelfTime() {
+        int nodes = Math.min(NEXT_NODE.get(), MAX_NODES);
+        for (int node = 0; node < nodes; node++) {
+            SELF_NANOS.set(node, 0);
+        }
+    }
+
+    /**
+     * Write the call tree in collapsed-stack format, one line per call path:
+     * {@code frame;frame;frame selfNanos}, as consumed by flame graph tools.
+     *
+     * @param writer The destination
+     */
+    static void writeCollapsedStacks(Writer writer) throws IOException {
+        int nodes = Math.min(NEXT_NODE.get(), MAX_NODES);
+        Deque<String> frames = new ArrayDeque<>();
+        StringBuilder line = new StringBuilder();
+        for (int node = TRUNCATED_NODE; node < nodes; node++) {
+            long self = SELF_NANOS.get(node);
+            if (self <= 0) {
+                continue;
+            }
+            frames.clear();
+            for (int current = node; current != ROOT; current = PARENTS[current]) {
+                frames.push(current == TRUNCATED_NODE ? TRUNCATED_FRAME : MethodRegistry.getFrameName(METHODS[current]));
+                if (current == TRUNCATED_NODE) {
+                    break;
+                }
+            }
+            line.setLength(0);
+            line.append(String.join(";", frames)).append(' ').append(self).append('\n');
+            writer.write(line.toString());
+        }
+    }
+
+    /**
+     * Per-thread stack of active profiled frames. It starts small and doubles up to
+     * {@link #MAX_DEPTH}, so millions of short-lived (virtual) threads with shallow profiled stacks
+     * stay cheap.
+     */
+    private static final class ShadowStack {
+        private static final int INITIAL_DEPTH = 8;
+
+        private int[] nodes = new int[INITIAL_DEPTH];
+        private long[] starts = new long[INITIAL_DEPTH];
+        private long[] childNanos = new long[INITIAL_DEPTH];
+        private int depth;
+        private int rootMethod;
+
+        private void grow() {
+            int capacity = Math.min(MAX_DEPTH, nodes.length * 2);
+            nodes = Arrays.copyOf(nodes, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            childNanos = Arrays.copyOf(childNanos, capacity);
+        }
+    }
+}
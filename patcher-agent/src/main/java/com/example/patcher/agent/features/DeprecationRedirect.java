@@ -0,0 +1,187 @@
+package com.example.patcher.agent.features;
+
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.asm.Advice;
+import net.bytebuddy.description.method.MethodDescription;
+import net.bytebuddy.description.method.ParameterDescription;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.dynamic.ClassFileLocator;
+import net.bytebuddy.implementation.Implementation;
+import net.bytebuddy.implementation.MethodCall;
+import net.bytebuddy.implementation.bytecode.assign.Assigner;
+import net.bytebuddy.pool.TypePool;
+
+import java.util.List;
+import java.util.logging.Logger;
+
+import static net.bytebuddy.matcher.ElementMatchers.is;
+
+/**
+ * Redirects a deprecated method to an arbitrary {@code targetClass#targetMethod} replacement by
+ * rewriting its body into a direct call, resolved once when the class is transformed.
+ * <p>
+ * The replacement is looked up by name among the target class's methods through the class loader
+ * of the deprecated method, so it does not need to be loaded. A method qualifies if it is visible to
+ * the deprecated method's class and takes its arguments in order:
+ * <ul>
+ *   <li>a static method taking all arguments,</li>
+ *   <li>an instance method called on the first argument of a static deprecated method, with the
+ *       remaining arguments,</li>
+ *   <li>an instance method called on {@code this} of an instance deprecated method whose class
+ *       inherits it, with all arguments.</li>
+ * </ul>
+ * Arguments and the return value are adapted by widening, boxing and unboxing, and casts where
+ * the types only match at runtime; a void replacement returns the default value. Among several
+ * overloads, the one needing the fewest casts wins. The generated code is a plain invoke
+ * instruction, with no reflection or lookup per call, so the JIT can inline the replacement into
+ * the caller. The call is wrapped by the
+ * {@link DeprecationRescueAdvice.Redirected} advice, which counts it like a shim invocation.
+ * A deprecated method without a qualifying replacement keeps its body and is logged.
+ */
+final class DeprecationRedirect {
+    private static final Logger LOGGER = Logger.getLogger(DeprecationRedirect.class.getName());
+
+    // Score of a replacement that cannot take the deprecated method's arguments
+    private static final int INCOMPATIBLE = Integer.MAX_VALUE;
+
+    private DeprecationRedirect() {
+    }
+
+    /**
+     * A transformer redirecting every non-abstract method of the given name to its replacement.
+     *
+     * @param sourceMethod The name of the deprecated method
+     * @param targetMapping The replacement as {@code targetClass#targetMethod}
+     * @return The transformer
+     */
+    static AgentBuilder.Transformer transformer(String sourceMethod, String targetMapping) {
+        int separator = targetMapping.indexOf('#');
+        String targetClass = targetMapping.substring(0, separator);
+        String targetMethod = targetMapping.substring(separator + 1);
+        Advice redirected = Advice.withCustomMapping()
+                .bind(DeprecationRescueAdvice.Replacement.class, targetMapping)
+                .to(DeprecationRescueAdvice.Redirected.class);
+        return (builder, typeDescription, classLoader, module, protectionDomain) -> {
+            TypePool.Resolution resolution = TypePoolCache.INSTANCE
+                    .typePool(ClassFileLocator.ForClassLoader.WeaklyReferenced.of(classLoader), classLoader)
+                    .describe(targetClass);
+            if (!resolution.isResolved()) {
+                LOGGER.warning("[DeprecationRescue] Target class " + targetClass + " of " + typeDescription.getName()
+                        + "." + sourceMethod + " not found, leaving it unchanged");
+                return builder;
+            }
+            TypeDescription target = resolution.resolve();
+            for (MethodDescription.InDefinedShape source : typeDescription.getDeclaredMethods()) {
+                if (!source.getName().equals(sourceMethod) || source.isAbstract() || source.isNative()) {
+                    continue;
+                }
+                MethodDescription replacement = resolve(source, typeDescription, target, targetMethod);
+                if (replacement == null) {
+                    LOGGER.warning("[DeprecationRescue] No " + targetMapping + " can replace "
+                            + source.toGenericString() + ", leaving it unchanged");
+                    continue;
+                }
+                LOGGER.fine("[DeprecationRescue] Redirecting " + source.toGenericString() + " to "
+                        + replacement.toGenericString());
+                builder = builder.method(is(source)).intercept(redirected.wrap(call(source, replacement)));
+            }
+            return builder;
+        };
+    }
+
+    /**
+     * Find the replacement that takes the deprecated method's arguments with the fewest casts.
+     *
+     * @param source The deprecated method
+     * @param instrumentedType The type declaring the deprecated method
+     * @param target The target class
+     * @param name The name of the replacement
+     * @return The replacement, or null if none qualifies
+     */
+    static MethodDescription resolve(MethodDescription source, TypeDescription instrumentedType, TypeDescription target,
+                                     String name) {
+        MethodDescription best = null;
+        int bestScore = INCOMPATIBLE;
+        for (MethodDescription candidate : target.getDeclaredMethods()) {
+            if (!candidate.getName().equals(name) || candidate.isSynthetic() || !candidate.isVisibleTo(instrumentedType)) {
+                continue;
+            }
+            int score = score(source, instrumentedType, candidate);
+            if (score < bestScore) {
+                best = candidate;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return The number of casts needed to call the candidate from the deprecated method, or
+     *         {@link #INCOMPATIBLE}
+     */
+    private static int score(MethodDescription source, TypeDescription instrumentedType, MethodDescription candidate) {
+        List<? extends ParameterDescription> arguments = source.getParameters();
+        int first = 0;
+        int score;
+        if (candidate.isStatic()) {
+            score = 0;
+        } else if (source.isStatic()) {
+            // Called on the first argument
+            if (arguments.isEmpty()) {
+                return INCOMPATIBLE;
+            }
+            score = assignment(arguments.get(0).getType(), candidate.getDeclaringType().asGenericType());
+            first = 1;
+        } else if (instrumentedType.isAssignableTo(candidate.getDeclaringType().asErasure())) {
+            score = 0;
+        } else {
+            return INCOMPATIBLE;
+        }
+        List<? extends ParameterDescription> parameters = candidate.getParameters();
+        if (arguments.size() - first != parameters.size()) {
+            return INCOMPATIBLE;
+        }
+        for (int i = 0; i < parameters.size() && score != INCOMPATIBLE; i++) {
+            score = add(score, assignment(arguments.get(first + i).getType(), parameters.get(i).getType()));
+        }
+        if (!source.getReturnType().represents(void.class) && !candidate.getReturnType().represents(void.class)) {
+            score = add(score, assignment(candidate.getReturnType(), source.getReturnType()));
+        }
+        return score;
+    }
+
+    /**
+     * @return 0 if a value of one type can be assigned to the other as is or by widening and boxing,
+     *         1 if it needs a cast, or {@link #INCOMPATIBLE}
+     */
+    private static int assignment(TypeDescription.Generic from, TypeDescription.Generic to) {
+        // Type variables are compared by their erasure, as the call site sees them
+        TypeDescription.Generic erasedFrom = from.asErasure().asGenericType();
+        TypeDescription.Generic erasedTo = to.asErasure().asGenericType();
+        if (Assigner.DEFAULT.assign(erasedFrom, erasedTo, Assigner.Typing.STATIC).isValid()) {
+            return 0;
+        }
+        return Assigner.DEFAULT.assign(erasedFrom, erasedTo, Assigner.Typing.DYNAMIC).isValid() ? 1 : INCOMPATIBLE;
+    }
+
+    private static int add(int score, int assignment) {
+        return score == INCOMPATIBLE || assignment == INCOMPATIBLE ? INCOMPATIBLE : score + assignment;
+    }
+
+    /**
+     * @return The direct call of the replacement with the deprecated method's arguments
+     */
+    private static Implementation call(MethodDescription source, MethodDescription replacement) {
+        MethodCall call;
+        if (!replacement.isStatic() && source.isStatic()) {
+            int[] arguments = new int[source.getParameters().size() - 1];
+            for (int i = 0; i < arguments.length; i++) {
+                arguments[i] = i + 1;
+            }
+            call = MethodCall.invoke(replacement).onArgument(0).withArgument(arguments);
+        } else {
+            call = MethodCall.invoke(replacement).withAllArguments();
+        }
+        return call.withAssigner(Assigner.DEFAULT, Assigner.Typing.DYNAMIC);
+    }
+}
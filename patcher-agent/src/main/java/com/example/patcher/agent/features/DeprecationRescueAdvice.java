@@ -1,14 +1,23 @@
 package com.example.patcher.agent.features;
 
+import net.bytebuddy.asm.Advice;
 import net.bytebuddy.implementation.bind.annotation.RuntimeType;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Logger;
 
 /**
  * Provides runtime fallback for deprecated API methods.
- * This class offers shims that delegate to newer API versions of common methods.
+ * This class offers shims that delegate to newer API versions of common methods. Mappings without a
+ * shim are redirected by a direct call generated by {@link DeprecationRedirect}, counted by the
+ * {@link Redirected} advice.
  */
 public class DeprecationRescueAdvice {
     private static final Logger LOGGER = Logger.getLogger(DeprecationRescueAdvice.class.getName());
+    private static final LongAdder INVOCATIONS = new LongAdder();
 
     /**
      * Example replacement for a deprecated Math utility method.
@@ -21,7 +30,13 @@ public class DeprecationRescueAdvice {
     @RuntimeType
     public static int legacySumShim(int a, int b) {
         LOGGER.fine("[DeprecationRescue] Redirecting legacy.MathUtil.sum to Math.addExact");
-        return Math.addExact(a, b);
+        AgentEvents.ShimInvoked event = new AgentEvents.ShimInvoked();
+        event.begin();
+        try {
+            return Math.addExact(a, b);
+        } finally {
+            commit(event, "legacySumShim", "java.lang.Math#addExact");
+        }
     }
     
     /**
@@ -33,11 +48,15 @@ public class DeprecationRescueAdvice {
     @RuntimeType
     public static boolean legacyFileDeleteShim(String path) {
         LOGGER.fine("[DeprecationRescue] Redirecting legacy file delete to Files.deleteIfExists");
+        AgentEvents.ShimInvoked event = new AgentEvents.ShimInvoked();
+        event.begin();
         try {
             return java.nio.file.Files.deleteIfExists(java.nio.file.Paths.get(path));
         } catch (Exception e) {
             LOGGER.warning("[DeprecationRescue] Error in file delete shim: " + e.getMessage());
             return false;
+        } finally {
+            commit(event, "legacyFileDeleteShim", "java.nio.file.Files#deleteIfExists");
         }
     }
     
@@ -50,11 +69,82 @@ public class DeprecationRescueAdvice {
     @RuntimeType
     public static String legacyUrlEncodeShim(String str) {
         LOGGER.fine("[DeprecationRescue] Redirecting legacy URL encoding to StandardCharsets");
+        AgentEvents.ShimInvoked event = new AgentEvents.ShimInvoked();
+        event.begin();
         try {
             return java.net.URLEncoder.encode(str, java.nio.charset.StandardCharsets.UTF_8.name());
         } catch (Exception e) {
             LOGGER.warning("[DeprecationRescue] Error in URL encoding shim: " + e.getMessage());
             return str;
+        } finally {
+            commit(event, "legacyUrlEncodeShim", "java.net.URLEncoder#encode");
+        }
+    }
+    
+    /**
+     * Binds the constant {@code targetClass#targetMethod} of a redirected method.
+     */
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target(ElementType.PARAMETER)
+    public @interface Replacement {
+    }
+
+    /**
+     * Wraps the direct call that replaces the body of a redirected deprecated method.
+     */
+    public static class Redirected {
+
+        @Advice.OnMethodEnter
+        public static Object enter() {
+            return DeprecationRescueAdvice.begin();
+        }
+
+        @Advice.OnMethodExit(onThrowable = Throwable.class)
+        public static void exit(@Advice.Enter Object event, @Advice.Origin("#t.#m") String shim,
+                                @Replacement String target) {
+            DeprecationRescueAdvice.end(event, shim, target);
+        }
+    }
+
+    /**
+     * Start timing a redirected call.
+     *
+     * @return The event to pass to {@link #end}
+     */
+    public static Object begin() {
+        AgentEvents.ShimInvoked event = new AgentEvents.ShimInvoked();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Count a redirected call and commit its event.
+     *
+     * @param event The event returned by {@link #begin}
+     * @param shim The redirected method
+     * @param target The method it was redirected to
+     */
+    public static void end(Object event, String shim, String target) {
+        commit((AgentEvents.ShimInvoked) event, shim, target);
+    }
+
+    /**
+     * @return Number of shim invocations since startup
+     */
+    static long getInvocationCount() {
+        return INVOCATIONS.sum();
+    }
+    
+    /**
+     * Count a shim invocation and commit its event if a JFR recording captures it.
+     */
+    private static void commit(AgentEvents.ShimInvoked event, String shim, String target) {
+        INVOCATIONS.increment();
+        event.end();
+        if (event.shouldCommit()) {
+            event.shim = shim;
+            event.target = target;
+            event.commit();
         }
     }
 } 
\ No newline at end of file
@@ -0,0 +1,465 @@
+package com.example.patcher.agent.features;
+
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.dynamic.DynamicType;
+import net.bytebuddy.utility.JavaModule;
+
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Every feature's type matching in one matcher and one transformer, so a class load is matched once
+ * instead of once per feature.
+ * <p>
+ * Features select types in three ways, each indexed for a single lookup per class: name prefixes in
+ * a character trie walked once along the class name, exact names in a hash map, and super types as a
+ * bit mask per class that is resolved once and memoized per class loader, so a hierarchy is walked
+ * once no matter how many features look for super types in it. The transformers of the selected
+ * features are applied in the order the features were added, as separate {@code builder.type(...)}
+ * calls would apply them.
+ * <p>
+ * Features are added before the dispatcher is installed and never afterwards. They belong to named
+ * groups, e.g. {@code profiler}, that can be disabled and enabled again at runtime, and the features
+ * added with {@link #forPackages} follow the profiled packages, which can be changed at runtime too.
+ * Both are kept in an immutable {@link Scope} that is swapped on every change, so a class load is
+ * always matched against one consistent configuration; the classes loaded before the change are
+ * retransformed by the caller, see {@link LoadedClassRetransformer#retransformChanged}.
+ */
+final class FeatureDispatcher implements AgentBuilder.RawMatcher, AgentBuilder.Transformer {
+
+    /**
+     * Super types are tracked as bits of a long.
+     */
+    static final int MAX_SUPER_TYPES = Long.SIZE;
+
+    private static final LongAdder MATCHES = new LongAdder();
+    private static final LongAdder MATCH_NANOS = new LongAdder();
+
+    private final List<Feature> features = new ArrayList<>();
+    private final Map<String, int[]> names = new HashMap<>();
+    private final Map<String, Integer> superTypeBits = new HashMap<>();
+    private final List<int[]> superTypeFeatures = new ArrayList<>();
+
+    // Super type bits per class name, per initiating class loader (null is the bootstrap loader)
+    private final Map<ClassLoader, Map<String, Long>> superTypes = Collections.synchronizedMap(new WeakHashMap<>());
+
+    // Group of the features added next
+    private String group = "";
+    private volatile Scope scope = new Scope(new PrefixNode(), Collections.emptyList(), new BitSet());
+
+    /**
+     * Add the features that follow to a group, which is enabled and disabled as a whole.
+     *
+     * @param group The group name
+     * @return This dispatcher
+     */
+    FeatureDispatcher inGroup(String group) {
+        this.group = group;
+        return this;
+    }
+
+    /**
+     * Apply a transformer to the types whose name starts with one of the prefixes.
+     *
+     * @param prefixes The name prefixes
+     * @param excludedPrefix Name prefix of the types to leave out even if they match, or null
+     * @param transformer The transformer
+     * @return This dispatcher
+     */
+    FeatureDispatcher forPrefixes(List<String> prefixes, String excludedPrefix, AgentBuilder.Transformer transformer) {
+        add(new Feature(transformer, group, false, List.copyOf(prefixes), false, excludedPrefix));
+        scope = new Scope(prefixes(scope.packages), scope.packages, scope.disabled);
+        return this;
+    }
+
+    /**
+     * Apply a transformer to the types in the profiled packages, as they are at the time of the class load.
+     *
+     * @param excludedPrefix Name prefix of the types to leave out even if they match, or null
+     * @param transformer The transformer
+     * @return This dispatcher
+     * @see #setPackages
+     */
+    FeatureDispatcher forPackages(String excludedPrefix, AgentBuilder.Transformer transformer) {
+        add(new Feature(transformer, group, false, null, true, excludedPrefix));
+        scope = new Scope(prefixes(scope.packages), scope.packages, scope.disabled);
+        return this;
+    }
+
+    /**
+     * Apply a transformer to the type of the given name.
+     *
+     * @param name The binary type name
+     * @param transformer The transformer
+     * @return This dispatcher
+     */
+    FeatureDispatcher forName(String name, AgentBuilder.Transformer transformer) {
+        int feature = add(new Feature(transformer, group, false, null, false, null));
+        names.merge(name, new int[]{feature}, (features, added) -> append(features, feature));
+        return this;
+    }
+
+    /**
+     * Apply a transformer to the types that are or inherit from the given type.
+     *
+     * @param name The binary name of the super type
+     * @param concreteOnly Whether to leave out interfaces
+     * @param transformer The transformer
+     * @return This dispatcher
+     */
+    FeatureDispatcher forSuperType(String name, boolean concreteOnly, AgentBuilder.Transformer transformer) {
+        int feature = add(new Feature(transformer, group, concreteOnly, null, false, null));
+        Integer bit = superTypeBits.get(name);
+        if (bit == null) {
+            if (superTypeBits.size() == MAX_SUPER_TYPES) {
+                throw new IllegalStateException("At most " + MAX_SUPER_TYPES + " super types can be matched");
+            }
+            bit = superTypeBits.size();
+            superTypeBits.put(name, bit);
+            superTypeFeatures.add(new int[0]);
+        }
+        superTypeFeatures.set(bit, append(superTypeFeatures.get(bit), feature));
+        return this;
+    }
+
+    private int add(Feature feature) {
+        features.add(feature);
+        return features.size() - 1;
+    }
+
+    /**
+     * Build the prefix trie of all features for the given profiled packages.
+     */
+    private PrefixNode prefixes(List<String> packages) {
+        PrefixNode root = new PrefixNode();
+        for (int feature = 0; feature < features.size(); feature++) {
+            Feature added = features.get(feature);
+            List<String> included = added.inPackages ? packages : added.prefixes;
+            if (included == null) {
+                continue;
+            }
+            for (String prefix : included) {
+                PrefixNode node = root.insert(prefix);
+                node.included = append(node.included, feature);
+            }
+            if (added.excludedPrefix != null) {
+                PrefixNode node = root.insert(added.excludedPrefix);
+                node.excluded = append(node.excluded, feature);
+            }
+        }
+        return root;
+    }
+
+    private static int[] append(int[] features, int feature) {
+        int[] appended = Arrays.copyOf(features, features.length + 1);
+        appended[features.length] = feature;
+        return appended;
+    }
+
+    /**
+     * @return Number of features added
+     */
+    int size() {
+        return features.size();
+    }
+
+    /**
+     * @return The current configuration, to compare against after changing it
+     */
+    Scope scope() {
+        return scope;
+    }
+
+    /**
+     * Change the packages that the features added with {@link #forPackages} apply to.
+     *
+     * @param packages The name prefixes of the profiled types
+     * @return The configuration before the change
+     */
+    synchronized Scope setPackages(List<String> packages) {
+        Scope previous = scope;
+        List<String> copy = List.copyOf(packages);
+        scope = new Scope(prefixes(copy), copy, previous.disabled);
+        return previous;
+    }
+
+    /**
+     * @return The packages that the features added with {@link #forPackages} apply to
+     */
+    List<String> packages() {
+        return scope.packages;
+    }
+
+    /**
+     * Enable or disable the features of a group.
+     *
+     * @param group The group name
+     * @param enabled Whether the group's features are applied to types
+     * @return The configuration before the change
+     * @throws IllegalArgumentException If no feature was added to the group
+     */
+    synchronized Scope setEnabled(String group, boolean enabled) {
+        Scope previous = scope;
+        BitSet disabled = (BitSet) previous.disabled.clone();
+        boolean found = false;
+        for (int feature = 0; feature < features.size(); feature++) {
+            if (features.get(feature).group.equals(group)) {
+                disabled.set(feature, !enabled);
+                found = true;
+            }
+        }
+        if (!found) {
+            throw new IllegalArgumentException("Unknown feature: " + group);
+        }
+        scope = new Scope(previous.prefixes, previous.packages, disabled);
+        return previous;
+    }
+
+    /**
+     * @return The groups in the order they were added, mapped to whether they are enabled
+     */
+    Map<String, Boolean> groups() {
+        BitSet disabled = scope.disabled;
+        Map<String, Boolean> groups = new LinkedHashMap<>();
+        for (int feature = 0; feature < features.size(); feature++) {
+            groups.merge(features.get(feature).group, !disabled.get(feature), Boolean::logicalAnd);
+        }
+        return groups;
+    }
+
+    @Override
+    public boolean matches(TypeDescription typeDescription, ClassLoader classLoader, JavaModule module,
+                           Class<?> classBeingRedefined, ProtectionDomain protectionDomain) {
+        long start = System.nanoTime();
+        boolean matches = !select(typeDescription, classLoader).isEmpty();
+        MATCH_NANOS.add(System.nanoTime() - start);
+        MATCHES.increment();
+        return matches;
+    }
+
+    /**
+     * @return Number of class loads matched against the features since startup
+     */
+    static long getMatchCount() {
+        return MATCHES.sum();
+    }
+
+    /**
+     * @return Time spent matching class loads against the features since startup
+     */
+    static long getMatchNanos() {
+        return MATCH_NANOS.sum();
+    }
+
+    @Override
+    public DynamicType.Builder<?> transform(DynamicType.Builder<?> builder, TypeDescription typeDescription,
+                                            ClassLoader classLoader, JavaModule module,
+                                            ProtectionDomain protectionDomain) {
+        BitSet selected = select(typeDescription, classLoader);
+        TransformCache.recordSelection(selected);
+        TransformationTelemetry.recordFeatures(groupsOf(selected));
+        for (int feature = selected.nextSetBit(0); feature >= 0; feature = selected.nextSetBit(feature + 1)) {
+            builder = features.get(feature).transformer.transform(builder, typeDescription, classLoader, module,
+                    protectionDomain);
+        }
+        return builder;
+    }
+
+    /**
+     * @return The groups of the selected features, each once
+     */
+    List<String> groupsOf(BitSet selected) {
+        List<String> groups = new ArrayList<>();
+        for (int feature = selected.nextSetBit(0); feature >= 0; feature = selected.nextSetBit(feature + 1)) {
+            String group = features.get(feature).group;
+            if (!groups.contains(group)) {
+                groups.add(group);
+            }
+        }
+        return groups;
+    }
+
+    /**
+     * @return The features that apply to the type
+     */
+    BitSet select(TypeDescription typeDescription, ClassLoader classLoader) {
+        return select(typeDescription, classLoader, scope);
+    }
+
+    /**
+     * @return The features that apply to the type in the given configuration
+     */
+    BitSet select(TypeDescription typeDescription, ClassLoader classLoader, Scope scope) {
+        String name = typeDescription.getName();
+        BitSet selected = new BitSet(features.size());
+        scope.prefixes.select(name, selected);
+        int[] named = names.get(name);
+        if (named != null) {
+            set(selected, named);
+        }
+        if (!superTypeBits.isEmpty()) {
+            long bits = superTypes(typeDescription, cache(classLoader));
+            boolean isInterface = typeDescription.isInterface();
+            for (; bits != 0; bits &= bits - 1) {
+                for (int feature : superTypeFeatures.get(Long.numberOfTrailingZeros(bits))) {
+                    if (!isInterface || !features.get(feature).concreteOnly) {
+                        selected.set(feature);
+                    }
+                }
+            }
+        }
+        selected.andNot(scope.disabled);
+        return selected;
+    }
+
+    private static void set(BitSet selected, int[] features) {
+        for (int feature : features) {
+            selected.set(feature);
+        }
+    }
+
+    private Map<String, Long> cache(ClassLoader classLoader) {
+        Map<String, Long> cache = superTypes.get(classLoader);
+        if (cache == null) {
+            synchronized (superTypes) {
+                cache = superTypes.computeIfAbsent(classLoader, ignored -> new ConcurrentHashMap<>());
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Resolve which of the tracked super types a type is or inherits from. Every type met on the
+     * way is memoized, so sibling classes stop at their shared super types.
+     */
+    private long superTypes(TypeDescription type, Map<String, Long> cache) {
+        String name = type.getName();
+        Long cached = cache.get(name);
+        if (cached != null) {
+            return cached;
+        }
+        Integer own = superTypeBits.get(name);
+        long bits = own == null ? 0L : 1L << own;
+        TypeDescription.Generic superClass = type.getSuperClass();
+        if (superClass != null) {
+            bits |= superTypes(superClass.asErasure(), cache);
+        }
+        for (TypeDescription.Generic anInterface : type.getInterfaces()) {
+            bits |= superTypes(anInterface.asErasure(), cache);
+        }
+        // Only cached once the whole hierarchy resolved, a missing super type is retried next time
+        cache.put(name, bits);
+        return bits;
+    }
+
+    /**
+     * A transformer and how it is selected.
+     */
+    private static final class Feature {
+        final AgentBuilder.Transformer transformer;
+        final String group;
+        final boolean concreteOnly;
+        // Name prefixes, or null if the feature is not selected by prefix
+        final List<String> prefixes;
+        final boolean inPackages;
+        final String excludedPrefix;
+
+        Feature(AgentBuilder.Transformer transformer, String group, boolean concreteOnly, List<String> prefixes,
+                boolean inPackages, String excludedPrefix) {
+            this.transformer = transformer;
+            this.group = group;
+            this.concreteOnly = concreteOnly;
+            this.prefixes = prefixes;
+            this.inPackages = inPackages;
+            this.excludedPrefix = excludedPrefix;
+        }
+    }
+
+    /**
+     * The runtime configuration: the prefix trie for the profiled packages and the disabled features.
+     * Never modified once published.
+     */
+    static final class Scope {
+        final PrefixNode prefixes;
+        final List<String> packages;
+        final BitSet disabled;
+
+        Scope(PrefixNode prefixes, List<String> packages, BitSet disabled) {
+            this.prefixes = prefixes;
+            this.packages = packages;
+            this.disabled = disabled;
+        }
+    }
+
+    /**
+     * Node of the name prefix trie, one character per level.
+     */
+    private static final class PrefixNode {
+        private static final int[] NONE = new int[0];
+
+        char[] characters = new char[0];
+        PrefixNode[] children = new PrefixNode[0];
+        int[] included = NONE;
+        int[] excluded = NONE;
+
+        PrefixNode insert(String prefix) {
+            PrefixNode node = this;
+            for (int i = 0; i < prefix.length(); i++) {
+                PrefixNode child = node.child(prefix.charAt(i));
+                if (child == null) {
+                    child = new PrefixNode();
+                    int size = node.characters.length;
+                    node.characters = Arrays.copyOf(node.characters, size + 1);
+                    node.children = Arrays.copyOf(node.children, size + 1);
+                    node.characters[size] = prefix.charAt(i);
+                    node.children[size] = child;
+                }
+                node = child;
+            }
+            return node;
+        }
+
+        PrefixNode child(char character) {
+            for (int i = 0; i < characters.length; i++) {
+                if (characters[i] == character) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Select the features of every prefix of the name, minus those excluded by any of its prefixes.
+         */
+        void select(String name, BitSet selected) {
+            BitSet excludedFeatures = null;
+            PrefixNode node = this;
+            for (int i = 0; ; i++) {
+                set(selected, node.included);
+                if (node.excluded.length > 0) {
+                    if (excludedFeatures == null) {
+                        excludedFeatures = new BitSet();
+                    }
+                    set(excludedFeatures, node.excluded);
+                }
+                if (i == name.length() || (node = node.child(name.charAt(i))) == null) {
+                    break;
+                }
+            }
+            if (excludedFeatures != null) {
+                selected.andNot(excludedFeatures);
+            }
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package com.example.patcher.agent.features;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Exposes the feature counters over JMX, e.g. for jconsole or a JMX exporter.
+ */
+public final class FeatureMetrics implements FeatureMetricsMXBean {
+    private static final Logger LOGGER = Logger.getLogger(FeatureMetrics.class.getName());
+
+    public static final String OBJECT_NAME = "com.example.patcher:type=Features";
+    private static final int TOP_HOTSPOTS = 10;
+
+    /**
+     * Register the MBean with the platform MBean server, once per JVM.
+     */
+    static synchronized void register() {
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new FeatureMetrics(), name);
+                LOGGER.info("Registered MBean " + OBJECT_NAME);
+            }
+        } catch (InstanceAlreadyExistsException e) {
+            // Registered concurrently by another agent instance
+        } catch (JMException e) {
+            LOGGER.log(Level.WARNING, "Failed to register MBean " + OBJECT_NAME, e);
+        }
+    }
+
+    @Override
+    public int getProfiledMethodCount() {
+        return TopKHotspots.ENABLED ? TopKHotspots.entries().size() : MethodRegistry.size() - 1;
+    }
+
+    @Override
+    public int getSlowMethodCount() {
+        return ProfilerAdvice.getSlowMethodCount();
+    }
+
+    @Override
+    public long getDroppedSlowCallEvents() {
+        return SlowCallReporter.getDroppedEvents();
+    }
+
+    @Override
+    public long getSqlSanitizedCount() {
+        return SecurityPatchAdvice.getSqlSanitizedCount();
+    }
+
+    @Override
+    public long getXssEscapedCount() {
+        return SecurityPatchAdvice.getXssEscapedCount();
+    }
+
+    @Override
+    public long getShimInvocationCount() {
+        return DeprecationRescueAdvice.getInvocationCount();
+    }
+
+    @Override
+    public long getTransformationCount() {
+        return FeatureTransformer.getTransformationCount();
+    }
+
+    @Override
+    public long getTransformationErrorCount() {
+        return FeatureTransformer.getTransformationErrorCount();
+    }
+
+    @Override
+    public long getTransformCacheHitCount() {
+        return TransformCache.getHitCount();
+    }
+
+    @Override
+    public long getTransformCacheMissCount() {
+        return TransformCache.getMissCount();
+    }
+
+    @Override
+    public double getTypePoolCacheHitRate() {
+        long hits = TypePoolCache.getHitCount();
+        long lookups = hits + TypePoolCache.getMissCount();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    @Override
+    public double getMatcherNanosPerClassLoad() {
+        long matches = FeatureDispatcher.getMatchCount();
+        return matches == 0 ? 0 : (double) FeatureDispatcher.getMatchNanos() / matches;
+    }
+
+    @Override
+    public long getIgnoredClassLoadCount() {
+        return IgnoredTypes.getIgnoredCount();
+    }
+
+    @Override
+    public long getRetransformedLoadedClassCount() {
+        return LoadedClassRetransformer.getRetransformedCount();
+    }
+
+    @Override
+    public long getRetransformFailureCount() {
+        return LoadedClassRetransformer.getFailedCount();
+    }
+
+    @Override
+    public long getRetransformTimeMs() {
+        return TimeUnit.NANOSECONDS.toMillis(LoadedClassRetransformer.getRetransformNanos());
+    }
+
+    @Override
+    public String[] getTopHotspots() {
+        List<HotspotStore.MethodStats> methods = ProfilerAdvice.collectMethodStats();
+        methods.sort((a, b) -> Long.compare(b.getHistogram().getTotal(), a.getHistogram().getTotal()));
+        String[] hotspots = new String[Math.min(TOP_HOTSPOTS, methods.size())];
+        for (int i = 0; i < hotspots.length; i++) {
+            HotspotStore.MethodStats method = methods.get(i);
+            hotspots[i] = String.format("%s %d %.3f", method.getSignature(), method.getHistogram().getCount(),
+                    method.getHistogram().getTotal() / 1e6);
+        }
+        return hotspots;
+    }
+
+    @Override
+    public long getTransformTimeMs() {
+        return TimeUnit.NANOSECONDS.toMillis(TransformationTelemetry.getNanos());
+    }
+
+    @Override
+    public long getTransformCpuTimeMs() {
+        return TimeUnit.NANOSECONDS.toMillis(TransformationTelemetry.getCpuNanos());
+    }
+
+    @Override
+    public long getTransformedBytesAdded() {
+        return TransformationTelemetry.getTransformedBytes() - TransformationTelemetry.getOriginalBytes();
+    }
+
+    @Override
+    public String[] getSlowestTransformations() {
+        List<TransformationTelemetry.Transformation> slowest = TransformationTelemetry.slowest();
+        String[] transformations = new String[Math.min(TOP_HOTSPOTS, slowest.size())];
+        for (int i = 0; i < transformations.length; i++) {
+            TransformationTelemetry.Transformation transformation = slowest.get(i);
+            transformations[i] = String.format("%s %s %.3f %d->%d", transformation.className, transformation.features,
+                    transformation.nanos / 1e6, transformation.originalBytes, transformation.transformedBytes);
+        }
+        return transformations;
+    }
+
+    @Override
+    public Map<String, Boolean> getFeatures() {
+        return FeatureTransformer.getFeatures();
+    }
+
+    @Override
+    public void setFeatureEnabled(String feature, boolean enabled) {
+        FeatureTransformer.setFeatureEnabled(feature, enabled);
+    }
+
+    @Override
+    public String getProfilerPackages() {
+        return String.join(",", FeatureTransformer.getProfilerPackages());
+    }
+
+    @Override
+    public void setProfilerPackages(String packages) {
+        FeatureTransformer.setProfilerPackages(Arrays.stream(packages.split(","))
+                .map(String::trim)
+                .filter(s -> !s.isEmpty())
+                .collect(Collectors.toList()));
+    }
+
+    @Override
+    public void resetProfilerData() {
+        ProfilerAdvice.reset();
+        LOGGER.info("[Profiler] Profiler data reset");
+    }
+
+    @Override
+    public void saveHotspotData() {
+        FeatureTransformer.saveHotspotData();
+    }
+}
@@ -0,0 +1,152 @@
+package com.example.patcher.agent.features;
+
+import java.util.Map;
+
+/**
+ * Management interface of the SpeedDoctor features, registered as
+ * {@value FeatureMetrics#OBJECT_NAME}. Attributes are read live on every access.
+ */
+public interface FeatureMetricsMXBean {
+
+    /**
+     * @return Number of methods registered by the profiler
+     */
+    int getProfiledMethodCount();
+
+    /**
+     * @return Number of distinct methods with at least one slow call
+     */
+    int getSlowMethodCount();
+
+    /**
+     * @return Number of slow-call events dropped because the reporter queue was full
+     */
+    long getDroppedSlowCallEvents();
+
+    /**
+     * @return Number of SQL statements sanitized by the security patches
+     */
+    long getSqlSanitizedCount();
+
+    /**
+     * @return Number of HTTP parameter values escaped by the security patches
+     */
+    long getXssEscapedCount();
+
+    /**
+     * @return Number of calls redirected through deprecation rescue shims
+     */
+    long getShimInvocationCount();
+
+    /**
+     * @return Number of classes transformed by the agent
+     */
+    long getTransformationCount();
+
+    /**
+     * @return Number of classes whose transformation failed
+     */
+    long getTransformationErrorCount();
+
+    /**
+     * @return Number of classes served from the transformed-bytecode cache instead of being transformed
+     */
+    long getTransformCacheHitCount();
+
+    /**
+     * @return Number of classes transformed and written to the transformed-bytecode cache
+     */
+    long getTransformCacheMissCount();
+
+    /**
+     * @return Share of type lookups during matching answered from the type pool cache, 0 to 1
+     */
+    double getTypePoolCacheHitRate();
+
+    /**
+     * @return Average time to match a class load against the features, in nanoseconds
+     */
+    double getMatcherNanosPerClassLoad();
+
+    /**
+     * @return Number of class loads skipped by the ignore matcher before any feature was matched
+     */
+    long getIgnoredClassLoadCount();
+
+    /**
+     * @return Number of already loaded classes retransformed at installation or on a feature change
+     */
+    long getRetransformedLoadedClassCount();
+
+    /**
+     * @return Number of already loaded classes that could not be retransformed
+     */
+    long getRetransformFailureCount();
+
+    /**
+     * @return Time spent inside {@code Instrumentation.retransformClasses} for already loaded classes, in milliseconds
+     */
+    long getRetransformTimeMs();
+
+    /**
+     * @return The heaviest methods by total time, one {@code "signature calls totalMs"} line each
+     */
+    String[] getTopHotspots();
+
+    /**
+     * @return Wall-clock time class loads spent in the agent's transformer, matching included, in milliseconds
+     */
+    long getTransformTimeMs();
+
+    /**
+     * @return CPU time class loads spent in the agent's transformer, in milliseconds
+     */
+    long getTransformCpuTimeMs();
+
+    /**
+     * @return Bytes added to the class files of the transformed classes
+     */
+    long getTransformedBytesAdded();
+
+    /**
+     * @return The slowest transformed classes, one {@code "class features ms originalBytes->transformedBytes"} line each
+     */
+    String[] getSlowestTransformations();
+
+    /**
+     * @return The installed features mapped to whether they are enabled
+     */
+    Map<String, Boolean> getFeatures();
+
+    /**
+     * Enable or disable a feature. The loaded classes it applies to are retransformed before this
+     * returns, so a disabled feature leaves their original bytecode behind.
+     *
+     * @param feature The feature name, a key of {@link #getFeatures()}
+     * @param enabled Whether the feature is applied
+     */
+    void setFeatureEnabled(String feature, boolean enabled);
+
+    /**
+     * @return Comma-separated packages the profiling features apply to
+     */
+    String getProfilerPackages();
+
+    /**
+     * Apply the profiling features to other packages. The loaded classes entering or leaving their
+     * scope are retransformed before this returns.
+     *
+     * @param packages Comma-separated packages, the default if empty
+     */
+    void setProfilerPackages(String packages);
+
+    /**
+     * Clear the profiler data recorded in this run.
+     */
+    void resetProfilerData();
+
+    /**
+     * Write the hotspot CSV and call tree to {@code profiler-data} now instead of at shutdown.
+     */
+    void saveHotspotData();
+}
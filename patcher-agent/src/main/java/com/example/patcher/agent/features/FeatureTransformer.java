@@ -6,6 +6,7 @@ import net.bytebuddy.agent.builder.AgentBuilder;
 import net.bytebuddy.asm.Advice;
 import net.bytebuddy.description.method.MethodDescription;
 import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.dynamic.DynamicType;
 import net.bytebuddy.implementation.MethodDelegation;
 import net.bytebuddy.matcher.ElementMatcher;
 import net.bytebuddy.matcher.ElementMatchers;
@@ -21,6 +22,9 @@ import java.nio.file.Paths;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
@@ -29,11 +33,28 @@ import static net.bytebuddy.matcher.ElementMatchers.*;
 
 /**
  * Main transformer class that applies all SpeedDoctor features.
+ * <p>
+ * Features can be enabled, disabled and re-scoped to other profiled packages at runtime, e.g. through
+ * the {@link FeatureMetrics} MBean. The loaded classes affected by a change are retransformed, so a
+ * disabled feature's advice is removed from the bytecode rather than skipped at every call.
  */
 public class FeatureTransformer {
     private static final Logger LOGGER = Logger.getLogger(FeatureTransformer.class.getName());
     private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
     
+    /** Feature name of the real-time profiler, including allocation and tiered profiling. */
+    public static final String PROFILER = "profiler";
+    /** Feature name of the deprecation rescue shims. */
+    public static final String DEPRECATION_RESCUE = "deprecationrescue";
+    /** Feature name of the security patches. */
+    public static final String SECURITY_PATCHES = "securitypatches";
+    /** Feature name of the JDBC statement profiler, installed unless {@code speeddoctor.jdbc} is {@code false}. */
+    public static final String JDBC = "jdbc";
+    /** Feature name of the lock contention profiler. */
+    public static final String LOCKS = "locks";
+    /** Feature name of the async task profiler, installed if {@code speeddoctor.profiler.async} is {@code true}. */
+    public static final String ASYNC = "async";
+    
     // Default security patterns if config file is not available
     private static final Map<String, String> DEFAULT_SECURITY_PATTERNS = Map.of(
         "SQL_INJECTION", "(?i)('\\s*or\\s*'\\s*=\\s*')|('\\s*or\\s*1\\s*=\\s*1)|(;\\s*drop\\s+table)|(;\\s*delete\\s+from)|(--\\s*$)|(\\bUNION\\b.*\\bSELECT\\b)|(\\bSELECT\\b.*\\bFROM\\b.*information_schema)",
@@ -42,6 +63,19 @@ public class FeatureTransformer {
     
     // Storage for deprecation mappings loaded from config file
     private static final Map<String, Map<String, String>> DEPRECATION_MAPPINGS = new HashMap<>();
+    
+    // Transformation outcomes, exposed through the FeatureMetrics MBean
+    private static final LongAdder TRANSFORMATIONS = new LongAdder();
+    private static final LongAdder TRANSFORMATION_ERRORS = new LongAdder();
+    
+    // The installed features, changed at runtime
+    private static volatile Instrumentation installedOn;
+    private static volatile FeatureDispatcher installed;
+    
+    // The features whose data is saved on exit, whether any of them is enabled, and whether the profiler's services run
+    private static final Set<String> PROFILING_FEATURES = Set.of(PROFILER, LOCKS, JDBC, ASYNC);
+    private static volatile boolean profilingEnabled;
+    private static boolean profilerStarted;
 
     /**
      * Install all transformers on the given instrumentation instance.
@@ -53,28 +87,262 @@ public class FeatureTransformer {
      */
     public static void install(Instrumentation inst, List<String> profilerPackages, 
                               String deprecationConfigPath, String securityPatternsPath) {
+        // Lock contention profiling is installed disabled, it can be enabled at runtime
+        install(inst, profilerPackages, deprecationConfigPath, securityPatternsPath, Set.of(LOCKS));
+    }
+    
+    /**
+     * Install all transformers on the given instrumentation instance.
+     * 
+     * @param inst Instrumentation instance
+     * @param profilerPackages List of package patterns to profile
+     * @param deprecationConfigPath Path to the deprecation mappings configuration file
+     * @param securityPatternsPath Path to the security patterns configuration file
+     * @param disabledFeatures Names of the features that are installed disabled, to be enabled at runtime
+     */
+    public static synchronized void install(Instrumentation inst, List<String> profilerPackages, 
+                              String deprecationConfigPath, String securityPatternsPath, Set<String> disabledFeatures) {
         LOGGER.info("Installing SpeedDoctor features");
         
         // Load configuration files
         loadDeprecationMappings(deprecationConfigPath);
         Map<String, String> securityPatterns = loadSecurityPatterns(securityPatternsPath);
         
-        // Create a base agent builder
+        // Create a base agent builder. Retransformation may only rewrite method bodies, so advice is
+        // inlined with visitors and no feature may add members to a class. Type descriptions are
+        // cached per class loader, which must then only be referenced weakly by the class file locators.
         AgentBuilder builder = new AgentBuilder.Default()
+                .disableClassFormatChanges()
                 .with(AgentBuilder.RedefinitionStrategy.RETRANSFORMATION)
-                .with(AgentBuilder.Listener.StreamWriting.toSystemOut().withTransformationsOnly());
+                // Already loaded classes are retransformed in batches by the LoadedClassRetransformer
+                .redefineOnly()
+                .with(TypePoolCache.INSTANCE)
+                .with(AgentBuilder.LocationStrategy.ForClassLoader.WEAK)
+                .with(new AgentBuilder.Listener.Compound(new TransformationCounter(), TransformationTelemetry.INSTANCE))
+                .ignore(IgnoredTypes.INSTANCE);
         
-        // Apply all features
-        builder = installProfiler(builder, profilerPackages);
-        builder = installDeprecationRescue(builder);
-        builder = installSecurityPatches(builder, securityPatterns);
+        // Apply all features, matched by a single dispatcher instead of one type matcher per feature
+        FeatureDispatcher dispatcher = new FeatureDispatcher();
+        dispatcher.setPackages(profiledPackages(profilerPackages));
+        installProfiler(dispatcher.inGroup(PROFILER), profilerPackages);
+        installDeprecationRescue(dispatcher.inGroup(DEPRECATION_RESCUE));
+        installSecurityPatches(dispatcher.inGroup(SECURITY_PATCHES), securityPatterns);
+        if (JdbcProfiler.ENABLED) {
+            installJdbcProfiler(dispatcher.inGroup(JDBC));
+        }
+        // Always installed, so that it can be enabled at runtime
+        installLockProfiler(dispatcher.inGroup(LOCKS), profilerPackages);
+        if (AsyncProfiler.ENABLED) {
+            installAsyncProfiler(dispatcher.inGroup(ASYNC), profilerPackages);
+        }
+        for (String feature : disabledFeatures) {
+            if (dispatcher.groups().containsKey(feature)) {
+                dispatcher.setEnabled(feature, false);
+            }
+        }
+        LOGGER.info("SpeedDoctor features: " + dispatcher.groups());
+        dispatcher.groups().forEach((feature, enabled) -> {
+            if (enabled) {
+                featureEnabled(feature);
+            }
+        });
+        
+        // Serve classes transformed by a previous run with the same configuration from disk
+        if (TransformCache.ENABLED) {
+            TransformCache cache = TransformCache.open(Paths.get(TransformCache.DIR),
+                    cacheConfiguration(profilerPackages, securityPatterns), dispatcher);
+            if (cache != null) {
+                builder = builder.with(cache);
+            }
+        }
+        
+        // Measures every class load, cache hits included, and records the slowest in a table
+        builder = builder.with((AgentBuilder.TransformerDecorator) TransformationTelemetry.INSTANCE);
         
         // Install the combined transformer
-        builder.installOn(inst);
+        builder.type(dispatcher).transform(dispatcher).installOn(inst);
+        LoadedClassRetransformer.retransformLoadedClasses(inst, IgnoredTypes.UNCOUNTED, dispatcher);
+        installedOn = inst;
+        installed = dispatcher;
+        TransformationTelemetry.start();
+        
+        // Tier changes retransform classes, so the controller starts once the transformer is installed
+        if (profilerStarted) {
+            TieredProfiler.start(inst);
+        }
         
+        FeatureMetrics.register();
         LOGGER.info("SpeedDoctor features successfully installed");
     }
     
+    /**
+     * @return Number of classes transformed since startup
+     */
+    static long getTransformationCount() {
+        return TRANSFORMATIONS.sum();
+    }
+    
+    /**
+     * @return Number of classes whose transformation failed since startup
+     */
+    static long getTransformationErrorCount() {
+        return TRANSFORMATION_ERRORS.sum();
+    }
+    
+    /**
+     * @return The installed features mapped to whether they are enabled, empty if none are installed
+     */
+    public static Map<String, Boolean> getFeatures() {
+        FeatureDispatcher dispatcher = installed;
+        return dispatcher == null ? Map.of() : dispatcher.groups();
+    }
+    
+    /**
+     * Enable or disable a feature, and retransform the loaded classes it applies to.
+     * 
+     * @param feature The feature name, e.g. {@value #PROFILER}
+     * @param enabled Whether the feature is applied
+     * @throws IllegalArgumentException If the feature is not installed
+     * @throws IllegalStateException If the features are not installed
+     */
+    public static synchronized void setFeatureEnabled(String feature, boolean enabled) {
+        FeatureDispatcher dispatcher = installed();
+        Boolean current = dispatcher.groups().get(feature);
+        if (current == null) {
+            throw new IllegalArgumentException("Unknown feature " + feature + ", installed are " + dispatcher.groups().keySet());
+        }
+        if (current == enabled) {
+            return;
+        }
+        LOGGER.info((enabled ? "Enabling" : "Disabling") + " feature " + feature);
+        if (enabled) {
+            featureEnabled(feature);
+        }
+        LoadedClassRetransformer.retransformChanged(installedOn, IgnoredTypes.UNCOUNTED, dispatcher,
+                dispatcher.setEnabled(feature, enabled));
+        if (enabled && PROFILER.equals(feature)) {
+            TieredProfiler.start(installedOn);
+        } else if (!enabled) {
+            // The advice is gone, so the services have nothing left to do
+            featureDisabled(feature, dispatcher);
+        }
+    }
+    
+    /**
+     * Note that a feature is enabled, and start the profiler's background services when the profiler
+     * is. A feature that is installed but disabled costs no threads and no files.
+     */
+    private static void featureEnabled(String feature) {
+        if (PROFILING_FEATURES.contains(feature)) {
+            profilingEnabled = true;
+        }
+        if (PROFILER.equals(feature) && !profilerStarted) {
+            profilerStarted = true;
+            createOutputDirectory("profiler-data");
+            startProfilerServices();
+        }
+    }
+    
+    /**
+     * Stop the profiler's background services when the profiler is disabled. Once no profiling feature
+     * is left enabled, the data recorded so far is saved, and nothing more is saved on exit.
+     */
+    private static void featureDisabled(String feature, FeatureDispatcher dispatcher) {
+        if (PROFILER.equals(feature) && profilerStarted) {
+            profilerStarted = false;
+            stopProfilerServices();
+        }
+        if (PROFILING_FEATURES.contains(feature) && profilingEnabled
+                && PROFILING_FEATURES.stream().noneMatch(name -> dispatcher.groups().getOrDefault(name, false))) {
+            saveHotspotData();
+            profilingEnabled = false;
+        }
+    }
+    
+    /**
+     * Start the profiler's background services, except the tier controller, which needs the
+     * transformer installed.
+     */
+    static void startProfilerServices() {
+        // Slow calls are logged from a background thread, off the application threads
+        SlowCallReporter.start();
+        StripedAccumulators.start();
+        AdaptiveSampler.start();
+        HotspotStore.start();
+        SharedCounters.start();
+        OutlierCapture.start();
+        // Only does something on JDK 21+, where the multi-release jar provides virtual-thread support
+        VirtualThreads.startPinningMonitor();
+    }
+    
+    /**
+     * Stop the profiler's background services, the tier controller included. The data they collected
+     * is kept and the mapped files hold their last state.
+     */
+    static void stopProfilerServices() {
+        TieredProfiler.stop();
+        VirtualThreads.stopPinningMonitor();
+        OutlierCapture.stop();
+        SharedCounters.stop();
+        HotspotStore.stop();
+        AdaptiveSampler.stop();
+        StripedAccumulators.stop();
+        SlowCallReporter.stop();
+    }
+    
+    /**
+     * @return The packages the profiling features apply to
+     * @throws IllegalStateException If the features are not installed
+     */
+    public static List<String> getProfilerPackages() {
+        return installed().packages();
+    }
+    
+    /**
+     * Apply the profiling features to other packages, and retransform the loaded classes that enter or
+     * leave their scope.
+     * 
+     * @param packages List of package patterns to profile, the default if empty
+     * @throws IllegalStateException If the features are not installed
+     */
+    public static synchronized void setProfilerPackages(List<String> packages) {
+        FeatureDispatcher dispatcher = installed();
+        List<String> profiledPackages = profiledPackages(packages);
+        if (profiledPackages.equals(dispatcher.packages())) {
+            return;
+        }
+        LOGGER.info("Profiling packages: " + String.join(", ", profiledPackages));
+        LoadedClassRetransformer.retransformChanged(installedOn, IgnoredTypes.UNCOUNTED, dispatcher,
+                dispatcher.setPackages(profiledPackages));
+    }
+    
+    private static FeatureDispatcher installed() {
+        FeatureDispatcher dispatcher = installed;
+        if (dispatcher == null) {
+            throw new IllegalStateException("SpeedDoctor features are not installed");
+        }
+        return dispatcher;
+    }
+    
+    /**
+     * Describe everything in the configuration that affects the transformed bytecode, for the
+     * {@link TransformCache} fingerprint. Features enabled, disabled or re-scoped at runtime change
+     * the selection that every cache hit is checked against instead.
+     */
+    private static String cacheConfiguration(List<String> profilerPackages, Map<String, String> securityPatterns) {
+        // Feature flags are read from speeddoctor.* properties all over the package, so all but the cache's own count
+        Map<String, String> properties = new TreeMap<>();
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("speeddoctor.") && !name.startsWith("speeddoctor.cache.")) {
+                properties.put(name, System.getProperty(name));
+            }
+        }
+        return "packages=" + profilerPackages
+                + "\ndeprecations=" + new TreeMap<>(DEPRECATION_MAPPINGS)
+                + "\nsecurity=" + new TreeMap<>(securityPatterns)
+                + "\nproperties=" + properties;
+    }
+    
     /**
      * Load deprecation mappings from the configuration file.
      * Format: { "className": { "methodName": "targetClass#targetMethod", ... }, ... }
@@ -139,27 +407,10 @@ public class FeatureTransformer {
     /**
      * Install the real-time lightweight profiler.
      */
-    private static AgentBuilder installProfiler(AgentBuilder builder, List<String> packages) {
+    private static void installProfiler(FeatureDispatcher dispatcher, List<String> packages) {
         LOGGER.info("Installing Real-Time Lightweight Profiler for packages: " + String.join(", ", packages));
         
-        // Create a directory for profiler output
-        createOutputDirectory("profiler-data");
-        
-        // Build the package matcher dynamically from the list of packages
-        ElementMatcher.Junction<TypeDescription> typeMatcher = null;
-        
-        for (String packageName : packages) {
-            if (typeMatcher == null) {
-                typeMatcher = nameStartsWith(packageName);
-            } else {
-                typeMatcher = typeMatcher.or(nameStartsWith(packageName));
-            }
-        }
-        
-        // If no packages were specified, use a sensible default
-        if (typeMatcher == null) {
-            typeMatcher = nameStartsWith("com.example");
-        }
+        // The background services only start once the profiler is enabled, see featureEnabled
         
         // Method matcher to exclude trivial methods and focus on business logic
         ElementMatcher<MethodDescription> methodMatcher = not(isConstructor())
@@ -167,16 +418,96 @@ public class FeatureTransformer {
                 .and(not(nameStartsWith("get").or(nameStartsWith("set"))))
                 .and(not(nameContains("toString").or(nameContains("equals").or(nameContains("hashCode")))));
         
-        return builder.type(typeMatcher)
-                .transform((builder1, typeDescription, classLoader, module, protectionDomain) ->
-                        builder1.method(methodMatcher)
-                                .intercept(Advice.to(ProfilerAdvice.class)));
+        // Each instrumented method gets a dense ID at transform time that is inlined into the advice
+        Advice profilerAdvice = Advice.withCustomMapping()
+                .bind(ProfilerAdvice.MethodId.class, MethodRegistry.METHOD_ID_MAPPING)
+                .to(ProfilerAdvice.class);
+        
+        if (TopKHotspots.ENABLED) {
+            // Methods are keyed by signature hash and only the heaviest ones are kept
+            TopKHotspots.logConfiguration();
+            Advice topKAdvice = Advice.withCustomMapping()
+                    .bind(ProfilerAdvice.MethodKey.class, TopKHotspots.METHOD_KEY_MAPPING)
+                    .to(ProfilerAdvice.TopK.class);
+            dispatcher.forPackages(null,
+                    (builder1, typeDescription, classLoader, module, protectionDomain) ->
+                            builder1.visit(topKAdvice.on(methodMatcher)));
+            return;
+        }
+        
+        // Allocations are measured by a second advice around the timed methods
+        Advice allocationAdvice = null;
+        if (AllocationProfiler.ENABLED) {
+            AllocationProfiler.logConfiguration();
+            allocationAdvice = Advice.withCustomMapping()
+                    .bind(ProfilerAdvice.MethodId.class, MethodRegistry.METHOD_ID_MAPPING)
+                    .to(ProfilerAdvice.Allocations.class);
+        }
+        Advice timedAllocationAdvice = allocationAdvice;
+        
+        if (TieredProfiler.ENABLED) {
+            // Only hot methods get the timing advice, the others just count calls until promoted
+            Advice counterAdvice = Advice.withCustomMapping()
+                    .bind(ProfilerAdvice.MethodId.class, MethodRegistry.METHOD_ID_MAPPING)
+                    .to(ProfilerAdvice.Counter.class);
+            dispatcher.forPackages(null,
+                    (builder1, typeDescription, classLoader, module, protectionDomain) ->
+                            visitAllocations(builder1, timedAllocationAdvice, TieredProfiler.timed(methodMatcher, classLoader))
+                                    .visit(profilerAdvice.on(TieredProfiler.timed(methodMatcher, classLoader)))
+                                    .visit(counterAdvice.on(TieredProfiler.counted(methodMatcher, classLoader))));
+            return;
+        }
+        
+        dispatcher.forPackages(null,
+                (builder1, typeDescription, classLoader, module, protectionDomain) ->
+                        visitAllocations(builder1, timedAllocationAdvice, methodMatcher)
+                                .visit(profilerAdvice.on(methodMatcher)));
+    }
+    
+    /**
+     * Apply the allocation advice, if allocation profiling is enabled.
+     */
+    private static DynamicType.Builder<?> visitAllocations(DynamicType.Builder<?> builder, Advice allocationAdvice,
+                                                          ElementMatcher<? super MethodDescription> methodMatcher) {
+        return allocationAdvice == null ? builder : builder.visit(allocationAdvice.on(methodMatcher));
+    }
+    
+    /**
+     * The name prefixes of the profiled types for a list of package patterns.
+     */
+    private static List<String> profiledPackages(List<String> packages) {
+        // If no packages were specified, use a sensible default
+        return packages.isEmpty() ? List.of("com.example") : packages;
+    }
+    
+    /**
+     * Install lock contention profiling in the profiled packages.
+     */
+    private static void installLockProfiler(FeatureDispatcher dispatcher, List<String> packages) {
+        LOGGER.info("Installing lock contention profiling for packages: " + String.join(", ", packages));
+        
+        // The agent's own lock sites must stay untouched, the helpers take the original locks themselves
+        dispatcher.forPackages("com.example.patcher.agent.",
+                (builder1, typeDescription, classLoader, module, protectionDomain) ->
+                        builder1.visit(LockContentionAdvice.VISITOR));
+    }
+    
+    /**
+     * Install async-aware profiling of the tasks submitted from the profiled packages.
+     */
+    private static void installAsyncProfiler(FeatureDispatcher dispatcher, List<String> packages) {
+        LOGGER.info("Installing async task profiling for packages: " + String.join(", ", packages));
+        
+        // The agent's own executors are not attributed to application methods
+        dispatcher.forPackages("com.example.patcher.agent.",
+                (builder1, typeDescription, classLoader, module, protectionDomain) ->
+                        builder1.visit(AsyncProfiler.VISITOR));
     }
     
     /**
      * Install the deprecation rescue transformers.
      */
-    private static AgentBuilder installDeprecationRescue(AgentBuilder builder) {
+    private static void installDeprecationRescue(FeatureDispatcher dispatcher) {
         LOGGER.info("Installing Instant Deprecation Rescue with " + DEPRECATION_MAPPINGS.size() + " class mappings");
         
         // Process each class mapping
@@ -200,7 +531,7 @@ public class FeatureTransformer {
                 LOGGER.info("Adding deprecation rescue: " + sourceClass + "." + sourceMethod + " -> " 
                         + targetClass + "." + targetMethod);
                 
-                // Determine which delegation method to use based on the target method
+                // Targets with a hand-written shim keep its conversions, e.g. String to Path for deleteIfExists
                 String delegationMethod;
                 if (targetMapping.equals("java.lang.Math#addExact")) {
                     delegationMethod = "legacySumShim";
@@ -209,28 +540,26 @@ public class FeatureTransformer {
                 } else if (targetMapping.equals("java.net.URLEncoder#encode")) {
                     delegationMethod = "legacyUrlEncodeShim";
                 } else {
-                    // For custom mappings, we'd need a more sophisticated approach
-                    LOGGER.warning("Unsupported target method, skipping: " + targetMapping);
+                    // Any other target is called directly, resolved when the class is transformed
+                    dispatcher.forName(sourceClass, DeprecationRedirect.transformer(sourceMethod, targetMapping));
                     continue;
                 }
                 
                 // Add the transformer
-                builder = builder.type(named(sourceClass))
-                        .transform((builder1, typeDescription, classLoader, module, protectionDomain) ->
+                dispatcher.forName(sourceClass,
+                        (builder1, typeDescription, classLoader, module, protectionDomain) ->
                                 builder1.method(named(sourceMethod))
                                         .intercept(MethodDelegation.withDefaultConfiguration()
                                                 .filter(named(delegationMethod))
                                                 .to(DeprecationRescueAdvice.class)));
             }
         }
-        
-        return builder;
     }
     
     /**
      * Install security patch transformers.
      */
-    private static AgentBuilder installSecurityPatches(AgentBuilder builder, Map<String, String> securityPatterns) {
+    private static void installSecurityPatches(FeatureDispatcher dispatcher, Map<String, String> securityPatterns) {
         LOGGER.info("Installing Zero-Downtime Security Patches with " + securityPatterns.size() + " patterns");
         
         // Update the SecurityPatchAdvice with the loaded patterns
@@ -243,30 +572,55 @@ public class FeatureTransformer {
         SecurityPatchAdvice.setXssPattern(Pattern.compile(xssPattern));
         
         // SQL injection protection
-        builder = builder.type(hasSuperType(named("java.sql.Statement")))
-                .transform((builder1, typeDescription, classLoader, module, protectionDomain) ->
-                        builder1.method(named("executeQuery").and(takesArguments(String.class)))
-                                .intercept(Advice.to(SecurityPatchAdvice.class)));
+        dispatcher.forSuperType("java.sql.Statement", false,
+                (builder1, typeDescription, classLoader, module, protectionDomain) ->
+                        builder1.visit(Advice.to(SecurityPatchAdvice.class)
+                                .on(named("executeQuery").and(takesArguments(String.class)))));
         
         // Add protection for executeUpdate as well
-        builder = builder.type(hasSuperType(named("java.sql.Statement")))
-                .transform((builder1, typeDescription, classLoader, module, protectionDomain) ->
-                        builder1.method(named("executeUpdate").and(takesArguments(String.class)))
-                                .intercept(Advice.to(SecurityPatchAdvice.class)));
+        dispatcher.forSuperType("java.sql.Statement", false,
+                (builder1, typeDescription, classLoader, module, protectionDomain) ->
+                        builder1.visit(Advice.to(SecurityPatchAdvice.class)
+                                .on(named("executeUpdate").and(takesArguments(String.class)))));
         
         // XSS protection
-        builder = builder.type(hasSuperType(named("javax.servlet.http.HttpServletRequest")))
-                .transform((builder1, typeDescription, classLoader, module, protectionDomain) ->
-                        builder1.method(named("getParameter").and(takesArguments(String.class)))
-                                .intercept(Advice.to(SecurityPatchAdvice.HttpSanitizer.class)));
+        dispatcher.forSuperType("javax.servlet.http.HttpServletRequest", false,
+                (builder1, typeDescription, classLoader, module, protectionDomain) ->
+                        builder1.visit(Advice.to(SecurityPatchAdvice.HttpSanitizer.class)
+                                .on(named("getParameter").and(takesArguments(String.class)))));
         
         // Add protection for getParameterValues
-        builder = builder.type(hasSuperType(named("javax.servlet.http.HttpServletRequest")))
-                .transform((builder1, typeDescription, classLoader, module, protectionDomain) ->
-                        builder1.method(named("getParameterValues").and(takesArguments(String.class)))
-                                .intercept(Advice.to(SecurityPatchAdvice.HttpArraySanitizer.class)));
+        dispatcher.forSuperType("javax.servlet.http.HttpServletRequest", false,
+                (builder1, typeDescription, classLoader, module, protectionDomain) ->
+                        builder1.visit(Advice.to(SecurityPatchAdvice.HttpArraySanitizer.class)
+                                .on(named("getParameterValues").and(takesArguments(String.class)))));
+    }
+    
+    /**
+     * Install JDBC statement timing on every driver and pool statement implementation.
+     */
+    private static void installJdbcProfiler(FeatureDispatcher dispatcher) {
+        LOGGER.info("Installing JDBC statement profiling");
+        
+        ElementMatcher.Junction<MethodDescription> executeMethods = namedOneOf(
+                "executeQuery", "executeUpdate", "execute", "executeLargeUpdate").and(not(isAbstract()));
+        ElementMatcher.Junction<MethodDescription> batchMethods = namedOneOf(
+                "executeBatch", "executeLargeBatch").and(not(isAbstract()));
         
-        return builder;
+        // Statements given their SQL, and prepared statements and batches executed without it
+        dispatcher.forSuperType("java.sql.Statement", true,
+                (builder1, typeDescription, classLoader, module, protectionDomain) ->
+                        builder1.visit(Advice.to(JdbcProfiler.Execute.class)
+                                        .on(executeMethods.and(takesArgument(0, String.class))))
+                                .visit(Advice.to(JdbcProfiler.ExecutePrepared.class)
+                                        .on(executeMethods.or(batchMethods).and(takesArguments(0)))));
+        
+        // Prepared statements only get their SQL from the connection
+        dispatcher.forSuperType("java.sql.Connection", true,
+                (builder1, typeDescription, classLoader, module, protectionDomain) ->
+                        builder1.visit(Advice.to(JdbcProfiler.Prepare.class)
+                                .on(namedOneOf("prepareStatement", "prepareCall")
+                                        .and(takesArgument(0, String.class)).and(not(isAbstract())))));
     }
     
     /**
@@ -287,9 +641,27 @@ public class FeatureTransformer {
     }
     
     /**
-     * Save hotspot data from the profiler to a CSV file for OpenRewrite recipes.
+     * Save the profiler data to {@code profiler-data}, if a profiling feature is enabled.
+     * <ul>
+     *   <li>{@code hotspots.csv} - Method latencies for OpenRewrite recipes, covering all runs in the
+     *       {@link HotspotStore} if it is enabled</li>
+     *   <li>{@code callstacks.collapsed} - Self-time call tree for flame graphs</li>
+     *   <li>{@code locks.csv} - Wait and hold times per lock site</li>
+     *   <li>{@code async.csv} - Queue and execution times of asynchronous tasks</li>
+     *   <li>{@code pinning.csv} - Sites where virtual threads blocked while pinned</li>
+     *   <li>{@code jdbc.csv} - Statement latencies per SQL fingerprint</li>
+     *   <li>{@code outliers.txt} - Stacks of latency outliers</li>
+     *   <li>{@code transformations.csv} - Transformation cost of the slowest classes</li>
+     * </ul>
+     * All but the hotspots and transformations are only written if their feature is enabled or has data.
      */
     public static void saveHotspotData() {
+        if (!profilingEnabled) {
+            LOGGER.fine("No profiling feature is enabled, no profiler data to save");
+            return;
+        }
+        LOGGER.info("Saving profiler data");
+        SlowCallReporter.flush();
         try {
             Path dir = Paths.get("profiler-data");
             if (!Files.exists(dir)) {
@@ -298,12 +670,97 @@ public class FeatureTransformer {
             
             Path file = dir.resolve("hotspots.csv");
             try (FileWriter writer = new FileWriter(file.toFile())) {
-                writer.write(ProfilerAdvice.getHotspotReport());
+                if (HotspotStore.ENABLED) {
+                    // The CSV is a view of the cumulative store, including previous runs
+                    HotspotStore.checkpoint();
+                    HotspotStore.writeCsv(HotspotStore.cumulative(), writer);
+                } else {
+                    writer.write(ProfilerAdvice.getHotspotReport());
+                }
             }
             
             LOGGER.info("Saved hotspot data to: " + file.toAbsolutePath());
+            
+            // Self-time call tree in collapsed-stack format for flame graphs
+            if (CallTree.ENABLED) {
+                Path stacks = dir.resolve("callstacks.collapsed");
+                try (FileWriter writer = new FileWriter(stacks.toFile())) {
+                    CallTree.writeCollapsedStacks(writer);
+                }
+                LOGGER.info("Saved call tree to: " + stacks.toAbsolutePath());
+            }
+            
+            // Wait versus hold time per lock site
+            if (LockContentionAdvice.siteCount() > 0) {
+                Path locks = dir.resolve("locks.csv");
+                try (FileWriter writer = new FileWriter(locks.toFile())) {
+                    LockContentionAdvice.writeReport(writer);
+                }
+                LockContentionAdvice.logTopContended(10);
+                LOGGER.info("Saved lock contention data to: " + locks.toAbsolutePath());
+            }
+            
+            // Queue and execution time of asynchronous work, apart from the synchronous latency
+            if (AsyncProfiler.ENABLED) {
+                Path async = dir.resolve("async.csv");
+                try (FileWriter writer = new FileWriter(async.toFile())) {
+                    AsyncProfiler.writeReport(writer);
+                }
+                LOGGER.info("Saved async task data to: " + async.toAbsolutePath());
+            }
+            
+            // Virtual threads that blocked while pinned to their carrier
+            if (!PinningSites.sites().isEmpty()) {
+                Path pinning = dir.resolve("pinning.csv");
+                try (FileWriter writer = new FileWriter(pinning.toFile())) {
+                    PinningSites.writeReport(writer);
+                }
+                LOGGER.info("Saved virtual thread pinning data to: " + pinning.toAbsolutePath());
+            }
+            
+            // Latency per SQL fingerprint and N+1 suspects
+            if (JdbcProfiler.ENABLED && !JdbcProfiler.fingerprints().isEmpty()) {
+                Path jdbc = dir.resolve("jdbc.csv");
+                try (FileWriter writer = new FileWriter(jdbc.toFile())) {
+                    JdbcProfiler.writeReport(writer);
+                }
+                LOGGER.info("Saved JDBC statement data to: " + jdbc.toAbsolutePath());
+            }
+            
+            // Transformation cost of the slowest classes
+            Path transformations = dir.resolve("transformations.csv");
+            try (FileWriter writer = new FileWriter(transformations.toFile())) {
+                TransformationTelemetry.writeReport(writer);
+            }
+            LOGGER.info("Saved transformation telemetry to: " + transformations.toAbsolutePath());
+            
+            // Stacks of latency outliers, deduplicated
+            if (OutlierCapture.ENABLED) {
+                Path outliers = dir.resolve("outliers.txt");
+                try (FileWriter writer = new FileWriter(outliers.toFile())) {
+                    OutlierCapture.writeReport(writer);
+                }
+                LOGGER.info("Saved outlier stacks to: " + outliers.toAbsolutePath());
+            }
         } catch (IOException e) {
             LOGGER.log(Level.SEVERE, "Failed to save hotspot data", e);
         }
     }
-}
\ No newline at end of file
+    
+    /**
+     * Counts transformation outcomes for the metrics.
+     */
+    private static final class TransformationCounter extends AgentBuilder.Listener.Adapter {
+        @Override
+        public void onTransformation(TypeDescription typeDescription, ClassLoader classLoader, JavaModule module,
+                                     boolean loaded, DynamicType dynamicType) {
+            TRANSFORMATIONS.increment();
+        }
+        
+        @Override
+        public void onError(String typeName, ClassLoader classLoader, JavaModule module, boolean loaded,
+                            Throwable throwable) {
+            TRANSFORMATION_ERRORS.increment();
+        }
+    }
+}
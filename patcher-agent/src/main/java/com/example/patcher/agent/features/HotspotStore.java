@@ -0,0 +1,488 @@
+package com.example.patcher.agent.features;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Crash-safe, memory-mapped store of cumulative profiler data.
+ * <p>
+ * Enabled with {@code -Dspeeddoctor.profiler.store=<file>}, for example
+ * {@code profiler-data/hotspots.bin}. The profiler then checkpoints into the file every
+ * {@code speeddoctor.profiler.checkpointIntervalMs}, so a {@code kill -9} or an OOM loses at most
+ * one interval. Data already in the store when the agent starts is kept as a baseline and merged
+ * with the current run, so the profile accumulates across restarts, and the CSV hotspot report is
+ * an export of the store instead of the current run only.
+ * <p>
+ * File layout (big-endian), a header page followed by two regions A and B of fixed-size records:
+ * <pre>
+ * header   0  int   magic 0x53444853 ("SDHS")
+ *          4  int   layout version (3)
+ *          8  int   record capacity of each region
+ *         12  int   histogram buckets per record
+ *         16  long  generation; the region holding the latest checkpoint is generation &amp; 1
+ *         24  long  time of the latest checkpoint, epoch millis
+ *         32  int   record count of region A     36  int  record count of region B
+ *         40  long  CRC32 of region A's records  48  long CRC32 of region B's records
+ * record   0  long  key, a 64-bit hash of the full signature
+ *          8  short signature length, then 502 bytes of UTF-8 signature
+ *        512  long  count, total_ns, min_ns, max_ns, slow hits, self_ns, alloc_bytes, alloc_samples
+ *        576  long[buckets] histogram bucket counts
+ * </pre>
+ * A checkpoint writes the inactive region, flushes it, and only then publishes it by bumping the
+ * generation. A torn checkpoint therefore never damages the previous one, and a reader falls back
+ * to the other region if the active one fails its checksum.
+ * <p>
+ * Longer signatures are truncated in the file. Records are merged by key, so a truncated
+ * signature still accumulates with the full one of the next run.
+ * <p>
+ * {@link #read(Path)} and {@link #main(String[])} need this class, {@link LatencyHistogram} and the
+ * signature hash of {@link TopKHotspots}, which in turn loads ByteBuddy. Tools such as the OpenRewrite
+ * recipes can therefore load the store from the agent jar without the agent running.
+ */
+public final class HotspotStore {
+    private static final Logger LOGGER = Logger.getLogger(HotspotStore.class.getName());
+
+    static final String PATH = System.getProperty("speeddoctor.profiler.store", "");
+    static final boolean ENABLED = !PATH.isEmpty();
+    private static final long CHECKPOINT_INTERVAL_MS = Long.parseLong(
+            System.getProperty("speeddoctor.profiler.checkpointIntervalMs", "10000"));
+    private static final int CAPACITY = Math.max(1, Integer.parseInt(
+            System.getProperty("speeddoctor.profiler.store.maxMethods", "4096")));
+
+    static final int MAGIC = 0x53444853;
+    static final int VERSION = 3;
+    static final int HEADER_SIZE = 4096;
+    private static final int SIGNATURE_BYTES = 502;
+    private static final int STATS_OFFSET = 512;
+    private static final int BUCKETS_OFFSET = STATS_OFFSET + 8 * Long.BYTES;
+    private static final int RECORD_SIZE = BUCKETS_OFFSET + LatencyHistogram.BUCKET_COUNT * Long.BYTES;
+    // A mapped buffer is indexed by int, which limits the whole file to 2 GB
+    static final int MAX_CAPACITY = (int) ((Integer.MAX_VALUE - HEADER_SIZE) / (2L * RECORD_SIZE));
+
+    private static final int GENERATION_OFFSET = 16;
+    private static final int TIME_OFFSET = 24;
+    private static final int COUNT_OFFSET = 32;
+    private static final int CRC_OFFSET = 40;
+
+    private static Map<Long, MethodStats> baseline = Collections.emptyMap();
+    private static boolean baselineLoaded;
+    private static MappedByteBuffer mapped;
+    private static ScheduledExecutorService checkpointer;
+
+    private HotspotStore() {
+    }
+
+    /**
+     * Load the data of previous runs and start periodic checkpoints if the store is enabled.
+     */
+    static synchronized void start() {
+        if (!ENABLED || checkpointer != null) {
+            return;
+        }
+        if (CAPACITY > MAX_CAPACITY) {
+            LOGGER.warning("[Profiler] Hotspot store disabled: speeddoctor.profiler.store.maxMethods=" + CAPACITY
+                    + " exceeds the 2 GB mapping limit of " + MAX_CAPACITY + " methods");
+            return;
+        }
+        Path path = Paths.get(PATH);
+        // Restarted in the same run, the file already holds this run's data on top of the baseline
+        if (!baselineLoaded && Files.exists(path)) {
+            try {
+                baseline = toMap(read(path));
+            } catch (IOException e) {
+                LOGGER.warning("[Profiler] Starting hotspot store " + path.toAbsolutePath()
+                        + " afresh, previous data unreadable: " + e.getMessage());
+            }
+        }
+        baselineLoaded = true;
+        try {
+            mapped = map(path, CAPACITY);
+            // Persist the baseline right away in case the existing file had to be re-laid out
+            checkpoint();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "[Profiler] Failed to open hotspot store " + path.toAbsolutePath(), e);
+            return;
+        }
+        checkpointer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "speeddoctor-profiler-checkpoint");
+            thread.setDaemon(true);
+            return thread;
+        });
+        checkpointer.scheduleAtFixedRate(() -> {
+            try {
+                checkpoint();
+            } catch (RuntimeException e) {
+                LOGGER.warning("[Profiler] Failed to checkpoint hotspot store: " + e.getMessage());
+            }
+        }, CHECKPOINT_INTERVAL_MS, CHECKPOINT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        LOGGER.info("[Profiler] Checkpointing hotspots to " + path.toAbsolutePath() + " every "
+                + CHECKPOINT_INTERVAL_MS + "ms, " + baseline.size() + " methods carried over from previous runs");
+    }
+
+    /**
+     * Stop the periodic checkpoints after a last one. {@link #cumulative()} still includes the baseline.
+     */
+    static synchronized void stop() {
+        if (checkpointer != null) {
+            checkpointer.shutdownNow();
+            checkpointer = null;
+            checkpoint();
+            mapped = null;
+        }
+    }
+
+    /**
+     * Write the cumulative data of all runs into the inactive region and publish it.
+     */
+    static synchronized void checkpoint() {
+        if (mapped == null) {
+            return;
+        }
+        write(mapped, cumulative());
+    }
+
+    /**
+     * Write a checkpoint into the inactive region of a mapped store and publish it.
+     *
+     * @param buffer A store mapped by {@link #map(Path, int)}
+     * @param methods The methods to store, heaviest first; only the first {@code capacity} are kept
+     */
+    static void write(MappedByteBuffer buffer, List<MethodStats> methods) {
+        int capacity = buffer.getInt(8);
+        if (methods.size() > capacity) {
+            methods = methods.subList(0, capacity);
+        }
+
+        long generation = buffer.getLong(GENERATION_OFFSET) + 1;
+        int region = (int) (generation & 1);
+        ByteBuffer records = regionSlice(buffer, region, capacity, capacity);
+        for (MethodStats method : methods) {
+            writeRecord(records, method);
+        }
+        long crc = crc(regionSlice(buffer, region, capacity, methods.size()));
+        buffer.force();
+
+        buffer.putInt(COUNT_OFFSET + region * Integer.BYTES, methods.size());
+        buffer.putLong(CRC_OFFSET + region * Long.BYTES, crc);
+        buffer.putLong(TIME_OFFSET, System.currentTimeMillis());
+        buffer.putLong(GENERATION_OFFSET, generation);
+        buffer.force();
+    }
+
+    /**
+     * @return The data of previous runs merged with the current one, heaviest first
+     */
+    static synchronized List<MethodStats> cumulative() {
+        Map<Long, MethodStats> merged = new LinkedHashMap<>(baseline);
+        for (MethodStats current : ProfilerAdvice.collectMethodStats()) {
+            merged.merge(current.key(), current, MethodStats::merge);
+        }
+        List<MethodStats> methods = new ArrayList<>(merged.values());
+        methods.sort(Comparator.comparingLong((MethodStats method) -> method.histogram.getTotal()).reversed());
+        return methods;
+    }
+
+    /**
+     * Read the latest complete checkpoint of a store file, without the agent running.
+     *
+     * @param path The store file
+     * @return The stored methods, heaviest first
+     * @throws IOException If the file cannot be read or no region is intact
+     */
+    public static List<MethodStats> read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException("Not a hotspot store: " + path);
+            }
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt(0) != MAGIC) {
+                throw new IOException("Not a hotspot store: " + path);
+            }
+            if (buffer.getInt(4) != VERSION || buffer.getInt(12) != LatencyHistogram.BUCKET_COUNT) {
+                throw new IOException("Unsupported hotspot store layout in " + path);
+            }
+            int capacity = buffer.getInt(8);
+            long generation = buffer.getLong(GENERATION_OFFSET);
+            if (generation == 0) {
+                return new ArrayList<>();
+            }
+            int active = (int) (generation & 1);
+            for (int region : new int[] {active, 1 - active}) {
+                int count = buffer.getInt(COUNT_OFFSET + region * Integer.BYTES);
+                if (count < 0 || count > capacity
+                        || HEADER_SIZE + (long) (region + 1) * capacity * RECORD_SIZE > channel.size()) {
+                    continue;
+                }
+                ByteBuffer records = regionSlice(buffer, region, capacity, count);
+                if (crc(records.duplicate()) != buffer.getLong(CRC_OFFSET + region * Long.BYTES)) {
+                    LOGGER.warning("[Profiler] Hotspot store region " + region + " is damaged, trying the other one");
+                    continue;
+                }
+                List<MethodStats> methods = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    methods.add(readRecord(records));
+                }
+                return methods;
+            }
+            throw new IOException("No intact checkpoint in " + path);
+        }
+    }
+
+    /**
+     * Write methods as a hotspot CSV with the same columns as {@link ProfilerAdvice#getHotspotReport()}.
+     */
+    public static void writeCsv(List<MethodStats> methods, Writer writer) throws IOException {
+        writer.write(ProfilerAdvice.REPORT_HEADER);
+        StringBuilder row = new StringBuilder();
+        for (MethodStats method : methods) {
+            LatencyHistogram.Snapshot snapshot = method.histogram;
+            double rankError = 1.96 * Math.sqrt(0.99 * 0.01 / Math.max(1, snapshot.getCount()));
+            row.setLength(0);
+            row.append('"').append(method.signature.replace("\"", "\"\"")).append("\",")
+               .append(method.slowHits).append(",")
+               .append(snapshot.getCount()).append(",")
+               .append(snapshot.getTotal()).append(",")
+               .append(snapshot.getMin()).append(",")
+               .append(snapshot.getMax()).append(",")
+               .append(snapshot.getValueAtQuantile(0.50)).append(",")
+               .append(snapshot.getValueAtQuantile(0.90)).append(",")
+               .append(snapshot.getValueAtQuantile(0.99)).append(",")
+               .append(snapshot.getValueAtQuantile(0.999)).append(",")
+               .append(snapshot.getCount()).append(",")
+               .append(0).append(",")
+               .append(snapshot.getValueAtQuantile(Math.max(0, 0.99 - rankError))).append(",")
+               .append(snapshot.getValueAtQuantile(Math.min(1, 0.99 + rankError))).append(",")
+               .append(method.selfNanos).append(",")
+               .append(0).append(",")
+               .append(method.getAllocatedBytesPerCall()).append(",")
+               .append(method.allocationSamples).append("\n");
+            writer.write(row.toString());
+        }
+    }
+
+    /**
+     * Export a store file as CSV to standard output:
+     * {@code java -cp patcher-agent.jar com.example.patcher.agent.features.HotspotStore [profiler-data/hotspots.bin]}
+     */
+    public static void main(String[] args) throws IOException {
+        Path path = Paths.get(args.length > 0 ? args[0] : "profiler-data/hotspots.bin");
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+        writeCsv(read(path), out);
+        out.flush();
+    }
+
+    /**
+     * Map a store file for writing, laying it out afresh if it is new or has a different layout.
+     *
+     * @throws IllegalArgumentException If the capacity exceeds {@link #MAX_CAPACITY}
+     */
+    static MappedByteBuffer map(Path path, int capacity) throws IOException {
+        if (capacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("Hotspot store capacity " + capacity
+                    + " exceeds the 2 GB mapping limit of " + MAX_CAPACITY + " methods");
+        }
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        long size = HEADER_SIZE + 2L * capacity * RECORD_SIZE;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            boolean compatible = channel.size() == size;
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            if (!compatible || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION
+                    || buffer.getInt(8) != capacity || buffer.getInt(12) != LatencyHistogram.BUCKET_COUNT) {
+                // New or differently sized store: start over, the old contents are already in the baseline
+                channel.truncate(size);
+                buffer.putLong(GENERATION_OFFSET, 0);
+                buffer.putInt(COUNT_OFFSET, 0);
+                buffer.putInt(COUNT_OFFSET + Integer.BYTES, 0);
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, VERSION);
+                buffer.putInt(8, capacity);
+                buffer.putInt(12, LatencyHistogram.BUCKET_COUNT);
+                buffer.force();
+            }
+            // The mapping stays valid after the channel is closed
+            return buffer;
+        }
+    }
+
+    private static ByteBuffer regionSlice(ByteBuffer buffer, int region, int capacity, int records) {
+        ByteBuffer slice = buffer.duplicate();
+        long start = HEADER_SIZE + (long) region * capacity * RECORD_SIZE;
+        slice.position(Math.toIntExact(start));
+        slice.limit(Math.toIntExact(start + (long) records * RECORD_SIZE));
+        return slice.slice();
+    }
+
+    private static long crc(ByteBuffer records) {
+        CRC32 crc = new CRC32();
+        crc.update(records);
+        return crc.getValue();
+    }
+
+    private static void writeRecord(ByteBuffer records, MethodStats method) {
+        int start = records.position();
+        byte[] signature = method.signature.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(signature.length, SIGNATURE_BYTES);
+        // Never cut a multi-byte character in half
+        while (length < signature.length && (signature[length] & 0xC0) == 0x80) {
+            length--;
+        }
+        records.putLong(method.key());
+        records.putShort((short) length);
+        records.put(signature, 0, length);
+        records.position(start + STATS_OFFSET);
+        LatencyHistogram.Snapshot snapshot = method.histogram;
+        records.putLong(snapshot.getCount())
+               .putLong(snapshot.getTotal())
+               .putLong(snapshot.getMin())
+               .putLong(snapshot.getMax())
+               .putLong(method.slowHits)
+               .putLong(method.selfNanos)
+               .putLong(method.allocatedBytes)
+               .putLong(method.allocationSamples);
+        for (int i = 0; i < LatencyHistogram.BUCKET_COUNT; i++) {
+            records.putLong(snapshot.getBucketCount(i));
+        }
+    }
+
+    private static MethodStats readRecord(ByteBuffer records) {
+        int start = records.position();
+        long key = records.getLong();
+        int length = Math.min(records.getShort() & 0xFFFF, SIGNATURE_BYTES);
+        byte[] signature = new byte[length];
+        records.get(signature);
+        records.position(start + STATS_OFFSET);
+        records.getLong(); // count, recomputed from the buckets
+        long total = records.getLong();
+        long min = records.getLong();
+        long max = records.getLong();
+        long slowHits = records.getLong();
+        long selfNanos = records.getLong();
+        long allocatedBytes = records.getLong();
+        long allocationSamples = records.getLong();
+        long[] buckets = new long[LatencyHistogram.BUCKET_COUNT];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = records.getLong();
+        }
+        return new MethodStats(new String(signature, StandardCharsets.UTF_8), key, slowHits, selfNanos,
+                LatencyHistogram.Snapshot.fromBuckets(buckets, total, min, max), allocatedBytes, allocationSamples);
+    }
+
+    private static Map<Long, MethodStats> toMap(List<MethodStats> methods) {
+        Map<Long, MethodStats> map = new LinkedHashMap<>();
+        for (MethodStats method : methods) {
+            map.merge(method.key(), method, MethodStats::merge);
+        }
+        return map;
+    }
+
+    /**
+     * Cumulative statistics of one method, as stored in a checkpoint.
+     */
+    public static final class MethodStats {
+        private final String signature;
+        // 0 until read from a store, then the hash of the signature before it was truncated
+        private final long key;
+        private final long slowHits;
+        private final long selfNanos;
+        private final LatencyHistogram.Snapshot histogram;
+        private final long allocatedBytes;
+        private final long allocationSamples;
+
+        MethodStats(String signature, long slowHits, long selfNanos, LatencyHistogram.Snapshot histogram) {
+            this(signature, slowHits, selfNanos, histogram, 0, 0);
+        }
+
+        MethodStats(String signature, long slowHits, long selfNanos, LatencyHistogram.Snapshot histogram,
+                    long allocatedBytes, long allocationSamples) {
+            this(signature, 0, slowHits, selfNanos, histogram, allocatedBytes, allocationSamples);
+        }
+
+        private MethodStats(String signature, long key, long slowHits, long selfNanos,
+                            LatencyHistogram.Snapshot histogram, long allocatedBytes, long allocationSamples) {
+            this.signature = signature;
+            this.key = key;
+            this.slowHits = slowHits;
+            this.selfNanos = selfNanos;
+            this.histogram = histogram;
+            this.allocatedBytes = allocatedBytes;
+            this.allocationSamples = allocationSamples;
+        }
+
+        public String getSignature() {
+            return signature;
+        }
+
+        public long getSlowHits() {
+            return slowHits;
+        }
+
+        public long getSelfNanos() {
+            return selfNanos;
+        }
+
+        public LatencyHistogram.Snapshot getHistogram() {
+            return histogram;
+        }
+
+        /**
+         * @return Bytes allocated by the sampled calls, including their callees
+         */
+        public long getAllocatedBytes() {
+            return allocatedBytes;
+        }
+
+        /**
+         * @return Number of calls whose allocations were measured
+         */
+        public long getAllocationSamples() {
+            return allocationSamples;
+        }
+
+        /**
+         * @return Mean bytes allocated per sampled call, or 0 without samples
+         */
+        public long getAllocatedBytesPerCall() {
+            return allocationSamples == 0 ? 0 : allocatedBytes / allocationSamples;
+        }
+
+        /**
+         * @return The key records of the same method are merged by
+         */
+        long key() {
+            return key != 0 ? key : TopKHotspots.keyOf(signature);
+        }
+
+        MethodStats merge(MethodStats other) {
+            // Keep the full signature if one of them was truncated
+            String longer = other.signature.length() > signature.length() ? other.signature : signature;
+            return new MethodStats(longer, key(), slowHits + other.slowHits, selfNanos + other.selfNanos,
+                    histogram.merge(other.histogram), allocatedBytes + other.allocatedBytes,
+                    allocationSamples + other.allocationSamples);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.example.patcher.agent.features;
+
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.utility.JavaModule;
+
+import java.security.ProtectionDomain;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The agent builder's ignore matcher: types that no feature may transform, decided from the class
+ * loader and the type name before anything is parsed.
+ * <p>
+ * This replaces Byte Buddy's default, which it includes: types of the bootstrap and platform loaders
+ * and of Byte Buddy itself, and synthetic types. On top of that it skips JDK internals defined by
+ * application loaders, the agent's own classes, and generated lambda and proxy classes, whose
+ * methods would otherwise be profiled a second time through the class they delegate to. Only the
+ * synthetic check needs the class file, and it runs last.
+ */
+final class IgnoredTypes implements AgentBuilder.RawMatcher {
+
+    static final IgnoredTypes INSTANCE = new IgnoredTypes();
+    /**
+     * The same decisions without counting, for scans of the already loaded classes, which are not class loads.
+     */
+    static final AgentBuilder.RawMatcher UNCOUNTED = (typeDescription, classLoader, module, classBeingRedefined,
+                                                      protectionDomain) -> isIgnored(typeDescription, classLoader);
+
+    private static final String[] PACKAGES = {
+            "java.", "jdk.", "sun.", "com.sun.proxy.", "net.bytebuddy.", "com.example.patcher.agent."
+    };
+
+    // Markers in the names of classes generated for lambdas and by proxy libraries
+    private static final String[] GENERATED = {
+            "$$Lambda", ".$Proxy", "$$EnhancerBy", "$$FastClassBy", "$$SpringCGLIB$$", "$ByteBuddy$",
+            "$HibernateProxy$", "_$$_jvst"
+    };
+
+    private static final LongAdder IGNORED = new LongAdder();
+
+    private IgnoredTypes() {
+    }
+
+    @Override
+    public boolean matches(TypeDescription typeDescription, ClassLoader classLoader, JavaModule module,
+                           Class<?> classBeingRedefined, ProtectionDomain protectionDomain) {
+        if (isIgnored(typeDescription, classLoader)) {
+            IGNORED.increment();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return Whether a type is ignored
+     */
+    static boolean isIgnored(TypeDescription typeDescription, ClassLoader classLoader) {
+        return isIgnored(typeDescription.getName(), classLoader) || typeDescription.isSynthetic();
+    }
+
+    /**
+     * @return Whether a type is ignored by its name and class loader alone
+     */
+    static boolean isIgnored(String name, ClassLoader classLoader) {
+        if (classLoader == null || classLoader == ClassLoader.getPlatformClassLoader()) {
+            return true;
+        }
+        for (String prefix : PACKAGES) {
+            if (name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        for (String marker : GENERATED) {
+            if (name.contains(marker)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return Number of class loads ignored since startup
+     */
+    static long getIgnoredCount() {
+        return IGNORED.sum();
+    }
+}
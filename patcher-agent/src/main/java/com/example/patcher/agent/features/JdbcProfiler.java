@@ -0,0 +1,474 @@
+package com.example.patcher.agent.features;
+
+import net.bytebuddy.asm.Advice;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * JDBC statement profiling: latency per SQL fingerprint and N+1 query detection.
+ * <p>
+ * Enabled by default; disable with {@code -Dspeeddoctor.jdbc=false}. Every {@code executeQuery},
+ * {@code executeUpdate}, {@code execute} and {@code executeBatch} of a {@code java.sql.Statement}
+ * implementation is timed. The SQL is normalized into a fingerprint: literals become {@code ?},
+ * lists of placeholders collapse into one, and comments and redundant whitespace are dropped, so
+ * queries that only differ in their parameters aggregate together. A {@code PreparedStatement}
+ * executes without its SQL, so the fingerprint computed when {@code Connection.prepareStatement}
+ * returned is kept in a small per-thread cache keyed by statement identity; statements missing
+ * from it, such as a plain {@code Statement.executeBatch()}, are reported as {@value #UNKNOWN_SQL}.
+ * Connection pools wrap the driver's statements, so only the outermost JDBC call on a thread is timed.
+ * <p>
+ * Fingerprints live in a lock-free open-addressing table of at most
+ * {@code speeddoctor.jdbc.maxFingerprints} entries; once it is full, new fingerprints are folded
+ * into {@value #OVERFLOW_SQL}.
+ * <p>
+ * N+1 detection relies on the {@link CallTree} shadow stack. Executions are counted per fingerprint
+ * within the outermost profiled invocation on the thread, typically a request handler, and a
+ * fingerprint that repeats {@code speeddoctor.jdbc.nPlusOneThreshold} times in one invocation is
+ * flagged: the usual cause is a query issued once per row of a previous result. Without the call
+ * tree, statements are still timed but nothing is flagged.
+ */
+public final class JdbcProfiler {
+    private static final Logger LOGGER = Logger.getLogger(JdbcProfiler.class.getName());
+
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("speeddoctor.jdbc", "true"));
+    private static final int MAX_FINGERPRINTS = Math.max(16, Integer.parseInt(System.getProperty(
+            "speeddoctor.jdbc.maxFingerprints", "1024")));
+    private static final int N_PLUS_ONE_THRESHOLD = Math.max(2, Integer.parseInt(System.getProperty(
+            "speeddoctor.jdbc.nPlusOneThreshold", "10")));
+    private static final int MAX_SQL_LENGTH = 4096;
+
+    static final long NOT_TIMED = Long.MIN_VALUE;
+    static final String UNKNOWN_SQL = "<unknown>";
+    static final String OVERFLOW_SQL = "<overflow>";
+    static final String REPORT_HEADER = "fingerprint,count,errors,total_ns,p50_ns,p99_ns,max_ns,"
+            + "n_plus_one,max_repeats,n_plus_one_caller\n";
+
+    // Twice the fingerprint capacity, so probes stay short
+    private static final int TABLE_MASK = Integer.highestOneBit(MAX_FINGERPRINTS * 2 - 1) * 2 - 1;
+    private static final AtomicLongArray KEYS = new AtomicLongArray(TABLE_MASK + 1);
+    private static final AtomicReferenceArray<Fingerprint> ENTRIES = new AtomicReferenceArray<>(TABLE_MASK + 1);
+    private static final AtomicInteger FINGERPRINT_COUNT = new AtomicInteger();
+    private static final Fingerprint UNKNOWN = new Fingerprint(UNKNOWN_SQL, 0);
+    private static final Fingerprint OVERFLOW = new Fingerprint(OVERFLOW_SQL, 0);
+
+    private static final Pattern PLACEHOLDER_LIST = Pattern.compile("\\( ?\\?(?: ?, ?\\?)+ ?\\)");
+    private static final Pattern PLACEHOLDER_ROWS = Pattern.compile("\\(\\?\\)(?: ?, ?\\(\\?\\))+");
+
+    private static final ThreadLocal<JdbcContext> CONTEXTS = ThreadLocal.withInitial(JdbcContext::new);
+
+    private JdbcProfiler() {
+    }
+
+    /**
+     * Times statements that carry their SQL as the first argument.
+     */
+    public static class Execute {
+        @Advice.OnMethodEnter
+        public static long start() {
+            return JdbcProfiler.enter();
+        }
+
+        @Advice.OnMethodExit(onThrowable = Throwable.class)
+        public static void end(@Advice.Argument(0) String sql, @Advice.Enter long start,
+                               @Advice.Thrown Throwable thrown) {
+            JdbcProfiler.exit(sql, start, thrown != null);
+        }
+    }
+
+    /**
+     * Times statements executed without SQL, i.e. prepared statements and batches.
+     */
+    public static class ExecutePrepared {
+        @Advice.OnMethodEnter
+        public static long start() {
+            return JdbcProfiler.enter();
+        }
+
+        @Advice.OnMethodExit(onThrowable = Throwable.class)
+        public static void end(@Advice.This Object statement, @Advice.Enter long start,
+                               @Advice.Thrown Throwable thrown) {
+            JdbcProfiler.exitPrepared(statement, start, thrown != null);
+        }
+    }
+
+    /**
+     * Remembers the fingerprint of a statement returned by {@code prepareStatement} or {@code prepareCall}.
+     */
+    public static class Prepare {
+        @Advice.OnMethodExit
+        public static void prepared(@Advice.Argument(0) String sql, @Advice.Return Object statement) {
+            JdbcProfiler.prepared(statement, sql);
+        }
+    }
+
+    /**
+     * Start timing a statement. Invoked from the inlined advice, so it must stay public.
+     *
+     * @return The start timestamp, or {@link #NOT_TIMED} if an outer JDBC call is already being timed
+     */
+    public static long enter() {
+        return CONTEXTS.get().depth++ == 0 ? System.nanoTime() : NOT_TIMED;
+    }
+
+    /**
+     * Finish timing a statement that was given its SQL. Invoked from the inlined advice, so it must stay public.
+     *
+     * @param sql The executed SQL
+     * @param start The value returned by {@link #enter()}
+     * @param failed Whether the statement threw
+     */
+    public static void exit(String sql, long start, boolean failed) {
+        JdbcContext context = CONTEXTS.get();
+        context.depth--;
+        if (start == NOT_TIMED) {
+            return;
+        }
+        long duration = System.nanoTime() - start;
+        record(context, sql == null ? UNKNOWN : context.fingerprint(sql), duration, failed);
+    }
+
+    /**
+     * Finish timing a statement executed without SQL. Invoked from the inlined advice, so it must stay public.
+     *
+     * @param statement The statement, looked up among the ones prepared on this thread
+     * @param start The value returned by {@link #enter()}
+     * @param failed Whether the statement threw
+     */
+    public static void exitPrepared(Object statement, long start, boolean failed) {
+        JdbcContext context = CONTEXTS.get();
+        context.depth--;
+        if (start == NOT_TIMED) {
+            return;
+        }
+        long duration = System.nanoTime() - start;
+        record(context, context.preparedFingerprint(statement), duration, failed);
+    }
+
+    /**
+     * Remember the fingerprint of a prepared statement. Invoked from the inlined advice, so it must stay public.
+     *
+     * @param statement The statement returned by the connection
+     * @param sql The SQL it was prepared with
+     */
+    public static void prepared(Object statement, String sql) {
+        if (statement != null && sql != null) {
+            JdbcContext context = CONTEXTS.get();
+            context.remember(statement, context.fingerprint(sql));
+        }
+    }
+
+    private static void record(JdbcContext context, Fingerprint fingerprint, long durationNanos, boolean failed) {
+        fingerprint.histogram.record(durationNanos);
+        if (failed) {
+            fingerprint.errors.incrementAndGet();
+        }
+        if (CallTree.ENABLED) {
+            countRepeat(context, fingerprint);
+        }
+    }
+
+    /**
+     * Count an execution within the current outermost invocation and flag the fingerprint once it
+     * repeats too often.
+     */
+    private static void countRepeat(JdbcContext context, Fingerprint fingerprint) {
+        long invocation = CallTree.rootInvocation();
+        if (invocation == CallTree.NO_FRAME || fingerprint == UNKNOWN || fingerprint == OVERFLOW) {
+            return;
+        }
+        int repeats = context.countRepeat(invocation, fingerprint);
+        if (repeats == N_PLUS_ONE_THRESHOLD) {
+            fingerprint.nPlusOneInvocations.incrementAndGet();
+            int caller = CallTree.rootMethod();
+            fingerprint.nPlusOneCaller = caller;
+            if (fingerprint.reported.compareAndSet(false, true)) {
+                LOGGER.warning("[JDBC] Possible N+1 query, executed " + N_PLUS_ONE_THRESHOLD
+                        + " times within one call of " + MethodRegistry.getSignature(caller) + ": " + fingerprint.sql);
+            }
+        }
+        long max;
+        while (repeats > (max = fingerprint.maxRepeats.get())) {
+            if (fingerprint.maxRepeats.compareAndSet(max, repeats)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Normalize SQL into its fingerprint: string and numeric literals become {@code ?}, comments
+     * are dropped, whitespace is collapsed and lists of placeholders such as {@code IN (?, ?, ?)}
+     * or multi-row {@code VALUES (?), (?)} collapse into a single one. Quoted identifiers are kept.
+     *
+     * @param sql The SQL text
+     * @return The fingerprint
+     */
+    static String normalize(String sql) {
+        int length = Math.min(sql.length(), MAX_SQL_LENGTH);
+        StringBuilder normalized = new StringBuilder(length);
+        int i = 0;
+        while (i < length) {
+            char c = sql.charAt(i);
+            char next = i + 1 < length ? sql.charAt(i + 1) : 0;
+            if (c == '\'') {
+                // String literal, '' is an escaped quote
+                i++;
+                while (i < length) {
+                    if (sql.charAt(i) == '\'') {
+                        if (i + 1 < length && sql.charAt(i + 1) == '\'') {
+                            i += 2;
+                            continue;
+                        }
+                        i++;
+                        break;
+                    }
+                    i++;
+                }
+                normalized.append('?');
+            } else if (c == '"' || c == '`') {
+                int end = sql.indexOf(c, i + 1);
+                end = end < 0 || end >= length ? length : end + 1;
+                normalized.append(sql, i, end);
+                i = end;
+            } else if (c == '-' && next == '-') {
+                int end = sql.indexOf('\n', i);
+                i = end < 0 ? length : end;
+            } else if (c == '/' && next == '*') {
+                int end = sql.indexOf("*/", i + 2);
+                i = end < 0 ? length : end + 2;
+                appendSpace(normalized);
+            } else if (Character.isWhitespace(c)) {
+                appendSpace(normalized);
+                i++;
+            } else if (Character.isDigit(c) && !endsWithIdentifier(normalized)) {
+                // Numeric literal, including decimals, exponents and hex
+                while (i < length && (Character.isLetterOrDigit(sql.charAt(i)) || sql.charAt(i) == '.')) {
+                    i++;
+                }
+                normalized.append('?');
+            } else {
+                normalized.append(c);
+                i++;
+            }
+        }
+        int end = normalized.length();
+        while (end > 0 && normalized.charAt(end - 1) == ' ') {
+            end--;
+        }
+        normalized.setLength(end);
+        String fingerprint = PLACEHOLDER_LIST.matcher(normalized).replaceAll("(?)");
+        return PLACEHOLDER_ROWS.matcher(fingerprint).replaceAll("(?)");
+    }
+
+    private static void appendSpace(StringBuilder normalized) {
+        if (normalized.length() > 0 && normalized.charAt(normalized.length() - 1) != ' ') {
+            normalized.append(' ');
+        }
+    }
+
+    private static boolean endsWithIdentifier(StringBuilder normalized) {
+        if (normalized.length() == 0) {
+            return false;
+        }
+        char last = normalized.charAt(normalized.length() - 1);
+        return Character.isLetterOrDigit(last) || last == '_' || last == '$';
+    }
+
+    /**
+     * Find or create the table entry of a fingerprint.
+     */
+    static Fingerprint lookup(String fingerprint) {
+        long key = TopKHotspots.keyOf(fingerprint);
+        int slot = (int) key & TABLE_MASK;
+        for (int probes = 0; probes <= TABLE_MASK; probes++) {
+            long existing = KEYS.get(slot);
+            if (existing == key) {
+                return awaitEntry(slot);
+            }
+            if (existing == 0) {
+                if (FINGERPRINT_COUNT.get() >= MAX_FINGERPRINTS) {
+                    // Full: stop claiming slots so lookups of unknown fingerprints stay short
+                    return OVERFLOW;
+                }
+                if (KEYS.compareAndSet(slot, 0, key)) {
+                    Fingerprint entry;
+                    int index = FINGERPRINT_COUNT.getAndIncrement();
+                    if (index >= MAX_FINGERPRINTS) {
+                        entry = OVERFLOW;
+                    } else {
+                        entry = new Fingerprint(fingerprint, key);
+                        if (index == MAX_FINGERPRINTS - 1) {
+                            LOGGER.warning("[JDBC] Fingerprint table is full (" + MAX_FINGERPRINTS
+                                    + " entries), new statements are reported as " + OVERFLOW_SQL);
+                        }
+                    }
+                    ENTRIES.set(slot, entry);
+                    return entry;
+                }
+                continue;
+            }
+            slot = (slot + 1) & TABLE_MASK;
+        }
+        return OVERFLOW;
+    }
+
+    private static Fingerprint awaitEntry(int slot) {
+        Fingerprint entry;
+        while ((entry = ENTRIES.get(slot)) == null) {
+            Thread.onSpinWait();
+        }
+        return entry;
+    }
+
+    /**
+     * @return Every fingerprint with at least one execution, slowest in total first
+     */
+    static List<Fingerprint> fingerprints() {
+        List<Fingerprint> fingerprints = new ArrayList<>();
+        for (int slot = 0; slot <= TABLE_MASK; slot++) {
+            Fingerprint entry = ENTRIES.get(slot);
+            if (entry != null && entry != OVERFLOW && entry.histogram.getCount() > 0) {
+                fingerprints.add(entry);
+            }
+        }
+        for (Fingerprint entry : new Fingerprint[] {UNKNOWN, OVERFLOW}) {
+            if (entry.histogram.getCount() > 0) {
+                fingerprints.add(entry);
+            }
+        }
+        fingerprints.sort(Comparator.comparingLong((Fingerprint entry) -> entry.histogram.getTotal()).reversed());
+        return fingerprints;
+    }
+
+    /**
+     * Write the statistics of every fingerprint as CSV.
+     *
+     * @param writer The destination
+     */
+    static void writeReport(Writer writer) throws IOException {
+        StringBuilder report = new StringBuilder(REPORT_HEADER);
+        for (Fingerprint entry : fingerprints()) {
+            LatencyHistogram.Snapshot snapshot = entry.histogram.snapshot();
+            int caller = entry.nPlusOneCaller;
+            report.append('"').append(entry.sql.replace("\"", "\"\"")).append("\",")
+                  .append(snapshot.getCount()).append(",")
+                  .append(entry.errors.get()).append(",")
+                  .append(snapshot.getTotal()).append(",")
+                  .append(snapshot.getValueAtQuantile(0.5)).append(",")
+                  .append(snapshot.getValueAtQuantile(0.99)).append(",")
+                  .append(snapshot.getMax()).append(",")
+                  .append(entry.nPlusOneInvocations.get()).append(",")
+                  .append(entry.maxRepeats.get()).append(",")
+                  .append('"').append(caller < 0 ? "" : MethodRegistry.getSignature(caller).replace("\"", "\"\""))
+                  .append("\"\n");
+        }
+        writer.write(report.toString());
+    }
+
+    /**
+     * Aggregated executions of one SQL fingerprint.
+     */
+    static final class Fingerprint {
+        final String sql;
+        final long key;
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong nPlusOneInvocations = new AtomicLong();
+        final AtomicLong maxRepeats = new AtomicLong();
+        private final AtomicBoolean reported = new AtomicBoolean();
+        volatile int nPlusOneCaller = -1;
+
+        Fingerprint(String sql, long key) {
+            this.sql = sql;
+            this.key = key;
+        }
+    }
+
+    /**
+     * Per-thread JDBC state: nesting depth, recent fingerprints and the repeat counts of the
+     * current outermost invocation. Every table is small and fixed in size.
+     */
+    private static final class JdbcContext {
+        private static final int SQL_CACHE_SIZE = 32;
+        private static final int PREPARED_CACHE_SIZE = 16;
+        private static final int REPEAT_SLOTS = 64;
+
+        private int depth;
+
+        // Direct-mapped by identity: applications mostly execute the same SQL string instances
+        private final String[] sqls = new String[SQL_CACHE_SIZE];
+        private final Fingerprint[] sqlFingerprints = new Fingerprint[SQL_CACHE_SIZE];
+
+        private final Object[] statements = new Object[PREPARED_CACHE_SIZE];
+        private final Fingerprint[] statementFingerprints = new Fingerprint[PREPARED_CACHE_SIZE];
+        private int nextStatement;
+
+        private long invocation = CallTree.NO_FRAME;
+        private final Fingerprint[] repeated = new Fingerprint[REPEAT_SLOTS];
+        private final int[] repeats = new int[REPEAT_SLOTS];
+
+        private Fingerprint fingerprint(String sql) {
+            int slot = System.identityHashCode(sql) & (SQL_CACHE_SIZE - 1);
+            if (sqls[slot] == sql) {
+                return sqlFingerprints[slot];
+            }
+            Fingerprint fingerprint = lookup(normalize(sql));
+            sqls[slot] = sql;
+            sqlFingerprints[slot] = fingerprint;
+            return fingerprint;
+        }
+
+        private void remember(Object statement, Fingerprint fingerprint) {
+            for (int i = 0; i < PREPARED_CACHE_SIZE; i++) {
+                if (statements[i] == statement) {
+                    statementFingerprints[i] = fingerprint;
+                    return;
+                }
+            }
+            statements[nextStatement] = statement;
+            statementFingerprints[nextStatement] = fingerprint;
+            nextStatement = (nextStatement + 1) % PREPARED_CACHE_SIZE;
+        }
+
+        private Fingerprint preparedFingerprint(Object statement) {
+            for (int i = 0; i < PREPARED_CACHE_SIZE; i++) {
+                if (statements[i] == statement) {
+                    return statementFingerprints[i];
+                }
+            }
+            return UNKNOWN;
+        }
+
+        private int countRepeat(long currentInvocation, Fingerprint fingerprint) {
+            if (currentInvocation != invocation) {
+                invocation = currentInvocation;
+                Arrays.fill(repeated, null);
+            }
+            int slot = (int) fingerprint.key & (REPEAT_SLOTS - 1);
+            for (int probes = 0; probes < REPEAT_SLOTS; probes++) {
+                if (repeated[slot] == fingerprint) {
+                    return ++repeats[slot];
+                }
+                if (repeated[slot] == null) {
+                    repeated[slot] = fingerprint;
+                    repeats[slot] = 1;
+                    return 1;
+                }
+                slot = (slot + 1) & (REPEAT_SLOTS - 1);
+            }
+            // Too many distinct statements in one invocation to track
+            return 0;
+        }
+    }
+}
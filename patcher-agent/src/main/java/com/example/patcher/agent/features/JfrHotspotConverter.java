@@ -0,0 +1,88 @@
+package com.example.patcher.agent.features;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Converts the {@code speeddoctor.SlowMethod} events of a JFR recording into the hotspot CSV format
+ * consumed by the OpenRewrite recipes.
+ * <p>
+ * Usage: {@code java -cp patcher-agent.jar com.example.patcher.agent.features.JfrHotspotConverter
+ * recording.jfr [hotspots.csv]}; without an output file the CSV goes to standard output. Only calls
+ * above the recording's {@code callThreshold} are in the recording, so counts and percentiles
+ * describe those calls; {@code hits} counts calls above the profiler's 50ms slow-call threshold.
+ */
+public final class JfrHotspotConverter {
+
+    private static final long SLOW_CALL_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private JfrHotspotConverter() {
+    }
+
+    /**
+     * Aggregate the slow-method events of a recording per method.
+     *
+     * @param recording The .jfr file
+     * @return One entry per method, heaviest first
+     * @throws IOException If the recording cannot be read
+     */
+    public static List<HotspotStore.MethodStats> convert(Path recording) throws IOException {
+        Map<String, LatencyHistogram> histograms = new LinkedHashMap<>();
+        Map<String, Long> slowHits = new LinkedHashMap<>();
+        try (RecordingFile file = new RecordingFile(recording)) {
+            while (file.hasMoreEvents()) {
+                RecordedEvent event = file.readEvent();
+                if (!AgentEvents.SLOW_METHOD.equals(event.getEventType().getName())) {
+                    continue;
+                }
+                String method = event.getString("method");
+                long duration = event.getLong("callDuration");
+                long weight = Math.max(1, event.getLong("weight"));
+                histograms.computeIfAbsent(method, key -> new LatencyHistogram()).record(duration, weight);
+                if (duration > SLOW_CALL_NANOS) {
+                    slowHits.merge(method, weight, Long::sum);
+                }
+            }
+        }
+
+        List<HotspotStore.MethodStats> methods = new ArrayList<>();
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            methods.add(new HotspotStore.MethodStats(entry.getKey(), slowHits.getOrDefault(entry.getKey(), 0L), 0,
+                    entry.getValue().snapshot()));
+        }
+        methods.sort(Comparator.comparingLong(
+                (HotspotStore.MethodStats method) -> method.getHistogram().getTotal()).reversed());
+        return methods;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: JfrHotspotConverter <recording.jfr> [hotspots.csv]");
+            System.exit(1);
+        }
+        List<HotspotStore.MethodStats> methods = convert(Paths.get(args[0]));
+        if (args.length > 1) {
+            try (Writer writer = Files.newBufferedWriter(Paths.get(args[1]), StandardCharsets.UTF_8)) {
+                HotspotStore.writeCsv(methods, writer);
+            }
+        } else {
+            Writer writer = new OutputStreamWriter(System.out, StandardCharsets.UTF_8);
+            HotspotStore.writeCsv(methods, writer);
+            writer.flush();
+        }
+    }
+}
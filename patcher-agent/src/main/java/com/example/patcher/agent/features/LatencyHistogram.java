@@ -0,0 +1,275 @@
+package com.example.patcher.agent.features;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free, log-bucketed latency histogram used by the profiler.
+ * <p>
+ * Values (nanoseconds) are placed into buckets that double in width every power of two,
+ * with {@value #SUB_BUCKETS} linear sub-buckets per power of two. That keeps the relative
+ * error of any reported percentile below 12.5% while the whole histogram fits in a few
+ * kilobytes. Recording is a single bucket increment plus a total add; min and max are only
+ * CAS-updated when they actually change, so the hot path never allocates and never blocks.
+ */
+public final class LatencyHistogram {
+
+    static final int SUB_BUCKET_BITS = 3;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Values of 2^44 ns (~4.9 hours) and above are clamped into the last bucket
+    static final int MAX_EXPONENT = 44;
+    static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+    private static final long MAX_VALUE = (1L << MAX_EXPONENT) - 1;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+    /**
+     * Record a single observation.
+     *
+     * @param nanos The observed duration in nanoseconds
+     */
+    public void record(long nanos) {
+        record(nanos, 1);
+    }
+
+    /**
+     * Record an observation that stands for {@code weight} calls, e.g. a sample taken with
+     * probability 1/weight. Counts, totals and percentiles then become estimates of the full population.
+     *
+     * @param nanos The observed duration in nanoseconds
+     * @param weight The number of calls this observation represents
+     */
+    public void record(long nanos, long weight) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        buckets.addAndGet(bucketIndex(nanos), weight);
+        total.addAndGet(nanos * weight);
+
+        long currentMin = min.get();
+        while (nanos < currentMin && !min.compareAndSet(currentMin, nanos)) {
+            currentMin = min.get();
+        }
+        long currentMax = max.get();
+        while (nanos > currentMax && !max.compareAndSet(currentMax, nanos)) {
+            currentMax = max.get();
+        }
+    }
+
+    /**
+     * Atomically move everything recorded so far into another histogram, leaving this one empty.
+     * Observations recorded concurrently are either moved now or left for the next drain, never lost.
+     *
+     * @param target The histogram that receives the observations
+     */
+    public void drainInto(LatencyHistogram target) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            if (buckets.get(i) != 0) {
+                long moved = buckets.getAndSet(i, 0);
+                if (moved != 0) {
+                    target.buckets.addAndGet(i, moved);
+                }
+            }
+        }
+        long movedTotal = total.getAndSet(0);
+        if (movedTotal != 0) {
+            target.total.addAndGet(movedTotal);
+        }
+
+        long movedMin = min.getAndSet(Long.MAX_VALUE);
+        long currentMin = target.min.get();
+        while (movedMin < currentMin && !target.min.compareAndSet(currentMin, movedMin)) {
+            currentMin = target.min.get();
+        }
+        long movedMax = max.getAndSet(Long.MIN_VALUE);
+        long currentMax = target.max.get();
+        while (movedMax > currentMax && !target.max.compareAndSet(currentMax, movedMax)) {
+            currentMax = target.max.get();
+        }
+    }
+
+    /**
+     * Clear all recorded observations.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets.set(i, 0);
+        }
+        total.set(0);
+        min.set(Long.MAX_VALUE);
+        max.set(Long.MIN_VALUE);
+    }
+
+    /**
+     * @return Number of recorded observations, read without copying the buckets
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += buckets.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @return Sum of all recorded observations in nanoseconds
+     */
+    public long getTotal() {
+        return total.get();
+    }
+
+    /**
+     * Take a point-in-time copy of the histogram for reporting.
+     * The buckets, total, min and max are read one after the other, so a recording that runs
+     * concurrently may be included in some of them and not in others: the count and percentiles
+     * always agree with each other, but the mean and extremes may briefly disagree with the count.
+     *
+     * @return An immutable snapshot
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKET_COUNT];
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = buckets.get(i);
+            count += counts[i];
+        }
+        return new Snapshot(counts, count, total.get(), min.get(), max.get());
+    }
+
+    /**
+     * Map a value to its bucket index.
+     */
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        if (value > MAX_VALUE) {
+            value = MAX_VALUE;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Smallest value that maps to the given bucket.
+     */
+    static long bucketLowerBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int subBucket = index % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + subBucket)) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    /**
+     * Largest value that maps to the given bucket.
+     */
+    static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        return bucketLowerBound(index) + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    /**
+     * Immutable view of a histogram at a point in time.
+     */
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long total;
+        private final long min;
+        private final long max;
+
+        Snapshot(long[] counts, long count, long total, long min, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.total = total;
+            this.min = count == 0 ? 0 : min;
+            this.max = count == 0 ? 0 : max;
+        }
+
+        /**
+         * Rebuild a snapshot from stored bucket counts, e.g. read back from a {@link HotspotStore}.
+         */
+        static Snapshot fromBuckets(long[] counts, long total, long min, long max) {
+            long count = 0;
+            for (long bucket : counts) {
+                count += bucket;
+            }
+            return new Snapshot(counts, count, total, min, max);
+        }
+
+        /**
+         * Combine two snapshots, as if all of their observations had been recorded into one histogram.
+         */
+        Snapshot merge(Snapshot other) {
+            if (other.count == 0) {
+                return this;
+            }
+            if (count == 0) {
+                return other;
+            }
+            long[] merged = new long[BUCKET_COUNT];
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                merged[i] = counts[i] + other.counts[i];
+            }
+            return new Snapshot(merged, count + other.count, total + other.total,
+                    Math.min(min, other.min), Math.max(max, other.max));
+        }
+
+        /**
+         * @return The number of observations in one bucket
+         */
+        long getBucketCount(int index) {
+            return counts[index];
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getTotal() {
+            return total;
+        }
+
+        public long getMin() {
+            return min;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * Estimate the value at the given quantile.
+         *
+         * @param quantile Quantile between 0.0 and 1.0, e.g. 0.99 for p99
+         * @return The estimated value in nanoseconds, clamped to the observed min/max
+         */
+        public long getValueAtQuantile(double quantile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(quantile * count);
+            if (rank < 1) {
+                rank = 1;
+            }
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    long mid = (bucketLowerBound(i) + bucketUpperBound(i)) / 2;
+                    return Math.max(min, Math.min(max, mid));
+                }
+            }
+            return max;
+        }
+    }
+}
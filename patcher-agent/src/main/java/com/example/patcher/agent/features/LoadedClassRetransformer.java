@@ -0,0 +1,251 @@
+package com.example.patcher.agent.features;
+
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.description.type.TypeDescription;
+
+import java.lang.instrument.Instrumentation;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiPredicate;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
+
+/**
+ * Retransforms the classes that were already loaded when the features were installed.
+ * <p>
+ * Byte Buddy would match and retransform all loaded classes serially in a single
+ * {@link Instrumentation#retransformClasses} call, which stalls the application for seconds when the
+ * agent is attached late to a JVM with tens of thousands of classes. Instead:
+ * <ul>
+ *   <li>the ignore matcher and the {@link FeatureDispatcher} are evaluated for the loaded classes in
+ *       parallel on {@code speeddoctor.retransform.threads} threads,</li>
+ *   <li>the matching classes are retransformed in batches of {@code speeddoctor.retransform.batchSize}
+ *       with a pause of {@code speeddoctor.retransform.pauseMs} between batches, so application threads
+ *       get to run between the safepoints,</li>
+ *   <li>a batch that fails is split in halves and retried, so one class that cannot be retransformed
+ *       only costs itself.</li>
+ * </ul>
+ * Every batch is logged with its progress and the time spent inside {@code retransformClasses}.
+ * <p>
+ * The same is done when features are enabled, disabled or re-scoped at runtime, for the loaded
+ * classes whose selected features changed. Retransformation starts from the original class file, so
+ * a class that no feature applies to any more gets its original bytecode back.
+ */
+final class LoadedClassRetransformer {
+    private static final Logger LOGGER = Logger.getLogger(LoadedClassRetransformer.class.getName());
+
+    static final int THREADS = Math.max(1, Integer.parseInt(System.getProperty("speeddoctor.retransform.threads",
+            String.valueOf(Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2))))));
+    static final int BATCH_SIZE = Math.max(1, Integer.parseInt(
+            System.getProperty("speeddoctor.retransform.batchSize", "500")));
+    static final long PAUSE_MS = Long.parseLong(System.getProperty("speeddoctor.retransform.pauseMs", "50"));
+
+    private static final LongAdder RETRANSFORMED = new LongAdder();
+    private static final LongAdder FAILED = new LongAdder();
+    private static final LongAdder RETRANSFORM_NANOS = new LongAdder();
+
+    private LoadedClassRetransformer() {
+    }
+
+    /**
+     * Retransform the loaded classes that any feature applies to.
+     *
+     * @param inst The instrumentation the features are installed on
+     * @param ignore The agent builder's ignore matcher, without counting
+     * @param dispatcher The agent builder's type matcher
+     */
+    static void retransformLoadedClasses(Instrumentation inst, AgentBuilder.RawMatcher ignore,
+                                         FeatureDispatcher dispatcher) {
+        if (!inst.isRetransformClassesSupported()) {
+            LOGGER.warning("[Retransform] Class retransformation is not supported, already loaded classes stay untransformed");
+            return;
+        }
+        // Selected directly, as the dispatcher's match statistics are about class loads
+        retransformMatching(inst, ignore, (type, typeDescription) ->
+                !dispatcher.select(typeDescription, type.getClassLoader()).isEmpty());
+    }
+
+    /**
+     * Retransform the loaded classes whose selected features differ from those of an earlier configuration.
+     *
+     * @param inst The instrumentation the features are installed on
+     * @param ignore The agent builder's ignore matcher, without counting
+     * @param dispatcher The dispatcher, already changed
+     * @param before The dispatcher's configuration before the change
+     */
+    static void retransformChanged(Instrumentation inst, AgentBuilder.RawMatcher ignore, FeatureDispatcher dispatcher,
+                                   FeatureDispatcher.Scope before) {
+        if (!inst.isRetransformClassesSupported()) {
+            LOGGER.warning("[Retransform] Class retransformation is not supported, loaded classes keep their features");
+            return;
+        }
+        FeatureDispatcher.Scope after = dispatcher.scope();
+        retransformMatching(inst, ignore, (type, typeDescription) ->
+                !dispatcher.select(typeDescription, type.getClassLoader(), before)
+                        .equals(dispatcher.select(typeDescription, type.getClassLoader(), after)));
+    }
+
+    private static void retransformMatching(Instrumentation inst, AgentBuilder.RawMatcher ignore,
+                                            BiPredicate<Class<?>, TypeDescription> matcher) {
+        long start = System.nanoTime();
+        Class<?>[] loaded = inst.getAllLoadedClasses();
+        List<Class<?>> matched = match(loaded, type -> {
+            if (!inst.isModifiableClass(type)) {
+                return false;
+            }
+            TypeDescription typeDescription = TypeDescription.ForLoadedType.of(type);
+            return !ignore.matches(typeDescription, type.getClassLoader(), null, type, type.getProtectionDomain())
+                    && matcher.test(type, typeDescription);
+        }, THREADS);
+        LOGGER.info("[Retransform] " + matched.size() + " of " + loaded.length + " loaded classes matched in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms on " + THREADS + " threads");
+        retransform(inst, matched, BATCH_SIZE, PAUSE_MS);
+    }
+
+    /**
+     * Select classes in parallel, keeping their order.
+     *
+     * @param classes The classes
+     * @param predicate Whether to select a class; a class it throws for is left out
+     * @param threads Number of threads to evaluate the predicate on
+     * @return The selected classes
+     */
+    static List<Class<?>> match(Class<?>[] classes, Predicate<Class<?>> predicate, int threads) {
+        int chunks = Math.min(threads, Math.max(1, classes.length));
+        int chunkSize = (classes.length + chunks - 1) / Math.max(1, chunks);
+        ExecutorService pool = Executors.newFixedThreadPool(chunks, runnable -> {
+            Thread thread = new Thread(runnable, "speeddoctor-retransform-matcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<List<Class<?>>>> futures = new ArrayList<>();
+            for (int from = 0; from < classes.length; from += chunkSize) {
+                int to = Math.min(classes.length, from + chunkSize);
+                int chunkStart = from;
+                futures.add(pool.submit(() -> {
+                    List<Class<?>> selected = new ArrayList<>();
+                    for (int i = chunkStart; i < to; i++) {
+                        try {
+                            if (predicate.test(classes[i])) {
+                                selected.add(classes[i]);
+                            }
+                        } catch (RuntimeException | LinkageError e) {
+                            // Classes whose dependencies cannot be resolved are not transformed at load either
+                        }
+                    }
+                    return selected;
+                }));
+            }
+            List<Class<?>> matched = new ArrayList<>();
+            for (Future<List<Class<?>>> future : futures) {
+                matched.addAll(future.get());
+            }
+            return matched;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Collections.emptyList();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Matching loaded classes failed", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Retransform classes in batches, pausing between batches.
+     *
+     * @param inst The instrumentation
+     * @param classes The classes to retransform
+     * @param batchSize Classes per {@code retransformClasses} call
+     * @param pauseMs Pause between batches
+     * @return Number of classes that could not be retransformed
+     */
+    static int retransform(Instrumentation inst, List<Class<?>> classes, int batchSize, long pauseMs) {
+        int batches = (classes.size() + batchSize - 1) / batchSize;
+        AtomicInteger failed = new AtomicInteger();
+        long start = System.nanoTime();
+        for (int batch = 0; batch < batches; batch++) {
+            if (batch > 0 && pauseMs > 0) {
+                try {
+                    Thread.sleep(pauseMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    LOGGER.warning("[Retransform] Interrupted, " + (classes.size() - batch * batchSize)
+                            + " loaded classes stay untransformed");
+                    break;
+                }
+            }
+            List<Class<?>> classesOfBatch = classes.subList(batch * batchSize, Math.min(classes.size(), (batch + 1) * batchSize));
+            long batchNanos = retransformIsolated(inst, classesOfBatch, failed);
+            LOGGER.info("[Retransform] Batch " + (batch + 1) + "/" + batches + ": " + classesOfBatch.size()
+                    + " classes in " + TimeUnit.NANOSECONDS.toMillis(batchNanos) + "ms, "
+                    + Math.min(classes.size(), (batch + 1) * batchSize) + "/" + classes.size() + " done");
+        }
+        if (batches > 0) {
+            LOGGER.info("[Retransform] Retransformed " + (classes.size() - failed.get()) + " loaded classes in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms, " + failed.get() + " failed");
+        }
+        return failed.get();
+    }
+
+    /**
+     * Retransform a batch, splitting it in halves if it fails until the failing classes are alone.
+     *
+     * @return Time spent inside {@code retransformClasses}
+     */
+    private static long retransformIsolated(Instrumentation inst, List<Class<?>> classes, AtomicInteger failed) {
+        long start = System.nanoTime();
+        Throwable failure = null;
+        try {
+            inst.retransformClasses(classes.toArray(new Class<?>[0]));
+        } catch (Exception | LinkageError e) {
+            failure = e;
+        }
+        long nanos = System.nanoTime() - start;
+        RETRANSFORM_NANOS.add(nanos);
+        if (failure == null) {
+            RETRANSFORMED.add(classes.size());
+            return nanos;
+        }
+        // A failed call retransforms none of its classes
+        if (classes.size() == 1) {
+            LOGGER.warning("[Retransform] Failed to retransform " + classes.get(0).getName() + ": " + failure);
+            failed.incrementAndGet();
+            FAILED.increment();
+            return nanos;
+        }
+        int half = classes.size() / 2;
+        return nanos + retransformIsolated(inst, classes.subList(0, half), failed)
+                + retransformIsolated(inst, classes.subList(half, classes.size()), failed);
+    }
+
+    /**
+     * @return Number of loaded classes retransformed since startup
+     */
+    static long getRetransformedCount() {
+        return RETRANSFORMED.sum();
+    }
+
+    /**
+     * @return Number of loaded classes that could not be retransformed
+     */
+    static long getFailedCount() {
+        return FAILED.sum();
+    }
+
+    /**
+     * @return Time spent inside {@code retransformClasses} for loaded classes since startup
+     */
+    static long getRetransformNanos() {
+        return RETRANSFORM_NANOS.sum();
+    }
+}
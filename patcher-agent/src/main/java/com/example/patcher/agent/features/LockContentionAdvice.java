@@ -0,0 +1,512 @@
+package com.example.patcher.agent.features;
+
+import net.bytebuddy.asm.AsmVisitorWrapper;
+import net.bytebuddy.jar.asm.Label;
+import net.bytebuddy.jar.asm.MethodVisitor;
+import net.bytebuddy.jar.asm.Opcodes;
+import net.bytebuddy.jar.asm.Type;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Logger;
+
+import static net.bytebuddy.matcher.ElementMatchers.any;
+
+/**
+ * Lock contention profiling: time spent waiting for a lock versus holding it, per lock site.
+ * <p>
+ * Enabled with {@code -Dspeeddoctor.locks=true}. Unlike {@link ProfilerAdvice}, which times whole
+ * methods, this feature rewrites the call sites inside the profiled packages:
+ * <ul>
+ *   <li>{@code lock()}, {@code lockInterruptibly()}, {@code tryLock(...)} and {@code unlock()} on
+ *       {@link Lock}, {@code ReentrantLock} and the {@code ReentrantReadWriteLock} read and write
+ *       locks are redirected to the static helpers of this class, which call the original method.</li>
+ *   <li>{@code synchronized} blocks get a helper call before and after {@code monitorenter} and
+ *       before {@code monitorexit}; the monitor itself is still entered by the original instruction.</li>
+ *   <li>{@code Object.wait(...)} is redirected to helpers that time the wait and exclude it from
+ *       the hold time, since the monitor is released while waiting.</li>
+ * </ul>
+ * {@code synchronized} methods are not covered: their monitor is entered before the first
+ * instruction, so the wait cannot be observed from inside; JFR's {@code jdk.JavaMonitorEnter}
+ * covers them. A lock site is the enclosing method, the operation and the source line; sites are
+ * assigned dense IDs at transform time like {@link MethodRegistry} IDs. Hold times are tracked with a
+ * per-thread stack of the last 64 locks acquired. A lock released outside the profiled packages
+ * only contributes its wait time; its entry goes stale and, once the stack is full, the oldest
+ * entries make room for new ones, so tracking never stops.
+ */
+public class LockContentionAdvice {
+    private static final Logger LOGGER = Logger.getLogger(LockContentionAdvice.class.getName());
+
+    private static final int CAPACITY = Math.max(2, Integer.parseInt(
+            System.getProperty("speeddoctor.locks.maxSites", "4096")));
+    // Waits shorter than this are uncontended acquisitions
+    private static final long CONTENDED_NANOS = Long.parseLong(
+            System.getProperty("speeddoctor.locks.contendedNanos", "1000"));
+    private static final int MAX_HELD = 64;
+
+    static final int OVERFLOW_SITE = 0;
+    static final String REPORT_HEADER = "site,acquisitions,contended,wait_ns,max_wait_ns,hold_ns,max_hold_ns,"
+            + "monitor_waits,monitor_wait_ns\n";
+
+    private static final Map<String, Integer> SITE_IDS = new ConcurrentHashMap<>();
+    private static final AtomicReferenceArray<String> SITES = new AtomicReferenceArray<>(CAPACITY);
+    private static final AtomicInteger NEXT_SITE = new AtomicInteger(OVERFLOW_SITE + 1);
+
+    private static final AtomicLongArray ACQUISITIONS = new AtomicLongArray(CAPACITY);
+    private static final AtomicLongArray CONTENDED = new AtomicLongArray(CAPACITY);
+    private static final AtomicLongArray WAIT_NANOS = new AtomicLongArray(CAPACITY);
+    private static final AtomicLongArray MAX_WAIT_NANOS = new AtomicLongArray(CAPACITY);
+    private static final AtomicLongArray HOLD_NANOS = new AtomicLongArray(CAPACITY);
+    private static final AtomicLongArray MAX_HOLD_NANOS = new AtomicLongArray(CAPACITY);
+    private static final AtomicLongArray MONITOR_WAITS = new AtomicLongArray(CAPACITY);
+    private static final AtomicLongArray MONITOR_WAIT_NANOS = new AtomicLongArray(CAPACITY);
+
+    private static final ThreadLocal<HeldLocks> HELD = ThreadLocal.withInitial(HeldLocks::new);
+
+    private static final String HELPER = Type.getInternalName(LockContentionAdvice.class);
+    private static final Set<String> LOCK_OWNERS = Set.of(
+            "java/util/concurrent/locks/Lock",
+            "java/util/concurrent/locks/ReentrantLock",
+            "java/util/concurrent/locks/ReentrantReadWriteLock$ReadLock",
+            "java/util/concurrent/locks/ReentrantReadWriteLock$WriteLock");
+    private static final String LOCK_DESCRIPTOR = Type.getDescriptor(Lock.class);
+
+    /**
+     * Rewrites the lock operations of every method of an instrumented type.
+     */
+    static final AsmVisitorWrapper VISITOR = new AsmVisitorWrapper.ForDeclaredMethods()
+            .invokable(any(), (instrumentedType, instrumentedMethod, methodVisitor, implementationContext,
+                               typePool, writerFlags, readerFlags) ->
+                    new LockSiteVisitor(methodVisitor, instrumentedMethod.toString()));
+
+    static {
+        SITES.set(OVERFLOW_SITE, "<overflow>");
+    }
+
+    /**
+     * Acquire a lock, timing the wait. Invoked from rewritten call sites, so it must stay public.
+     */
+    public static void lock(Lock lock, int site) {
+        long start = System.nanoTime();
+        lock.lock();
+        acquired(lock, site, start);
+    }
+
+    /**
+     * Acquire a lock interruptibly, timing the wait. Invoked from rewritten call sites, so it must stay public.
+     */
+    public static void lockInterruptibly(Lock lock, int site) throws InterruptedException {
+        long start = System.nanoTime();
+        lock.lockInterruptibly();
+        acquired(lock, site, start);
+    }
+
+    /**
+     * Try to acquire a lock without waiting. Invoked from rewritten call sites, so it must stay public.
+     */
+    public static boolean tryLock(Lock lock, int site) {
+        long start = System.nanoTime();
+        boolean locked = lock.tryLock();
+        if (locked) {
+            acquired(lock, site, start);
+        }
+        return locked;
+    }
+
+    /**
+     * Try to acquire a lock within a timeout, timing the wait. Invoked from rewritten call sites, so
+     * it must stay public.
+     */
+    public static boolean tryLock(Lock lock, long time, TimeUnit unit, int site) throws InterruptedException {
+        long start = System.nanoTime();
+        boolean locked = lock.tryLock(time, unit);
+        if (locked) {
+            acquired(lock, site, start);
+        } else {
+            recordWait(site, System.nanoTime() - start, false);
+        }
+        return locked;
+    }
+
+    /**
+     * Release a lock and record how long it was held. Invoked from rewritten call sites, so it must stay public.
+     */
+    public static void unlock(Lock lock) {
+        released(lock);
+        lock.unlock();
+    }
+
+    /**
+     * Called right before {@code monitorenter}. Invoked from rewritten code, so it must stay public.
+     */
+    public static void monitorEnter(Object monitor, int site) {
+        // Only pushed once entered, a null monitor throws before that
+        HELD.get().entering(monitor, site, System.nanoTime());
+    }
+
+    /**
+     * Called right after {@code monitorenter}. Invoked from rewritten code, so it must stay public.
+     */
+    public static void monitorEntered() {
+        HeldLocks held = HELD.get();
+        Object monitor = held.enteringMonitor;
+        if (monitor != null) {
+            held.enteringMonitor = null;
+            acquired(monitor, held.enteringSite, held.enteringStart);
+        }
+    }
+
+    /**
+     * Called right before {@code monitorexit}. Invoked from rewritten code, so it must stay public.
+     */
+    public static void monitorExit(Object monitor) {
+        released(monitor);
+    }
+
+    /**
+     * {@link Object#wait()} with the wait timed. Invoked from rewritten call sites, so it must stay public.
+     */
+    public static void monitorWait(Object monitor, int site) throws InterruptedException {
+        long start = System.nanoTime();
+        try {
+            monitor.wait();
+        } finally {
+            waited(monitor, site, start);
+        }
+    }
+
+    /**
+     * {@link Object#wait(long)} with the wait timed. Invoked from rewritten call sites, so it must stay public.
+     */
+    public static void monitorWait(Object monitor, long timeoutMillis, int site) throws InterruptedException {
+        long start = System.nanoTime();
+        try {
+            monitor.wait(timeoutMillis);
+        } finally {
+            waited(monitor, site, start);
+        }
+    }
+
+    /**
+     * {@link Object#wait(long, int)} with the wait timed. Invoked from rewritten call sites, so it must stay public.
+     */
+    public static void monitorWait(Object monitor, long timeoutMillis, int nanos, int site) throws InterruptedException {
+        long start = System.nanoTime();
+        try {
+            monitor.wait(timeoutMillis, nanos);
+        } finally {
+            waited(monitor, site, start);
+        }
+    }
+
+    private static void acquired(Object lock, int site, long start) {
+        long now = System.nanoTime();
+        recordWait(site, now - start, true);
+        HELD.get().push(lock, site, now);
+    }
+
+    private static void recordWait(int site, long waitNanos, boolean acquired) {
+        if (acquired) {
+            ACQUISITIONS.incrementAndGet(site);
+        }
+        if (waitNanos >= CONTENDED_NANOS) {
+            CONTENDED.incrementAndGet(site);
+            WAIT_NANOS.addAndGet(site, waitNanos);
+            updateMax(MAX_WAIT_NANOS, site, waitNanos);
+        }
+    }
+
+    private static void released(Object lock) {
+        HeldLocks held = HELD.get();
+        int index = held.indexOf(lock);
+        if (index < 0) {
+            // Acquired outside the profiled packages, or dropped from a full stack
+            return;
+        }
+        long holdNanos = System.nanoTime() - held.times[index];
+        int site = held.sites[index];
+        held.remove(index);
+        HOLD_NANOS.addAndGet(site, holdNanos);
+        updateMax(MAX_HOLD_NANOS, site, holdNanos);
+    }
+
+    private static void waited(Object monitor, int site, long start) {
+        long waitNanos = System.nanoTime() - start;
+        MONITOR_WAITS.incrementAndGet(site);
+        MONITOR_WAIT_NANOS.addAndGet(site, waitNanos);
+        // The monitor was released while waiting, so the wait does not count as hold time
+        HeldLocks held = HELD.get();
+        int index = held.indexOf(monitor);
+        if (index >= 0) {
+            held.times[index] += waitNanos;
+        }
+    }
+
+    private static void updateMax(AtomicLongArray maxima, int site, long value) {
+        long max;
+        while (value > (max = maxima.get(site))) {
+            if (maxima.compareAndSet(site, max, value)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Get or assign the ID of a lock site.
+     *
+     * @param site The enclosing method, operation and line
+     * @return The dense site ID, or {@link #OVERFLOW_SITE} if the table is full
+     */
+    static int registerSite(String site) {
+        Integer existing = SITE_IDS.get(site);
+        if (existing != null) {
+            TransformCache.recordSite(site, existing);
+            return existing;
+        }
+        Integer id = SITE_IDS.computeIfAbsent(site, key -> {
+            int next = NEXT_SITE.getAndIncrement();
+            if (next >= CAPACITY) {
+                return null;
+            }
+            SITES.set(next, key);
+            return next;
+        });
+        int assigned = id == null ? OVERFLOW_SITE : id;
+        TransformCache.recordSite(site, assigned);
+        return assigned;
+    }
+
+    /**
+     * @return Number of lock sites registered so far, excluding the overflow site
+     */
+    static int siteCount() {
+        return Math.min(NEXT_SITE.get(), CAPACITY) - 1;
+    }
+
+    /**
+     * @return Statistics of every site that was used, most contended first
+     */
+    static List<SiteStats> sites() {
+        List<SiteStats> sites = new ArrayList<>();
+        for (int id = 0; id < Math.min(NEXT_SITE.get(), CAPACITY); id++) {
+            long acquisitions = ACQUISITIONS.get(id);
+            long monitorWaits = MONITOR_WAITS.get(id);
+            if (acquisitions > 0 || monitorWaits > 0) {
+                sites.add(new SiteStats(SITES.get(id), acquisitions, CONTENDED.get(id), WAIT_NANOS.get(id),
+                        MAX_WAIT_NANOS.get(id), HOLD_NANOS.get(id), MAX_HOLD_NANOS.get(id), monitorWaits,
+                        MONITOR_WAIT_NANOS.get(id)));
+            }
+        }
+        sites.sort((a, b) -> Long.compare(b.waitNanos + b.monitorWaitNanos, a.waitNanos + a.monitorWaitNanos));
+        return sites;
+    }
+
+    /**
+     * Write all used lock sites as CSV, most contended first.
+     *
+     * @param writer The destination
+     */
+    static void writeReport(Writer writer) throws IOException {
+        StringBuilder report = new StringBuilder(REPORT_HEADER);
+        for (SiteStats site : sites()) {
+            report.append('"').append(site.site.replace("\"", "\"\"")).append("\",")
+                  .append(site.acquisitions).append(",")
+                  .append(site.contended).append(",")
+                  .append(site.waitNanos).append(",")
+                  .append(site.maxWaitNanos).append(",")
+                  .append(site.holdNanos).append(",")
+                  .append(site.maxHoldNanos).append(",")
+                  .append(site.monitorWaits).append(",")
+                  .append(site.monitorWaitNanos).append("\n");
+        }
+        writer.write(report.toString());
+    }
+
+    /**
+     * Log the most contended lock sites.
+     *
+     * @param limit Maximum number of sites to log
+     */
+    static void logTopContended(int limit) {
+        List<SiteStats> sites = sites();
+        StringBuilder summary = new StringBuilder("[Locks] Top contended lock sites:");
+        for (int i = 0; i < Math.min(limit, sites.size()); i++) {
+            SiteStats site = sites.get(i);
+            summary.append(String.format("%n  %s: %d/%d contended, wait %.2fms, hold %.2fms, monitor wait %.2fms",
+                    site.site, site.contended, site.acquisitions, site.waitNanos / 1e6, site.holdNanos / 1e6,
+                    site.monitorWaitNanos / 1e6));
+        }
+        LOGGER.info(summary.toString());
+    }
+
+    /**
+     * Point-in-time statistics of a lock site.
+     */
+    static final class SiteStats {
+        final String site;
+        final long acquisitions;
+        final long contended;
+        final long waitNanos;
+        final long maxWaitNanos;
+        final long holdNanos;
+        final long maxHoldNanos;
+        final long monitorWaits;
+        final long monitorWaitNanos;
+
+        SiteStats(String site, long acquisitions, long contended, long waitNanos, long maxWaitNanos,
+                  long holdNanos, long maxHoldNanos, long monitorWaits, long monitorWaitNanos) {
+            this.site = site;
+            this.acquisitions = acquisitions;
+            this.contended = contended;
+            this.waitNanos = waitNanos;
+            this.maxWaitNanos = maxWaitNanos;
+            this.holdNanos = holdNanos;
+            this.maxHoldNanos = maxHoldNanos;
+            this.monitorWaits = monitorWaits;
+            this.monitorWaitNanos = monitorWaitNanos;
+        }
+    }
+
+    /**
+     * Locks held by a thread with their site and acquisition time, innermost last.
+     */
+    private static final class HeldLocks {
+        private final Object[] locks = new Object[MAX_HELD];
+        private final int[] sites = new int[MAX_HELD];
+        private final long[] times = new long[MAX_HELD];
+        private int depth;
+
+        // The monitor between monitorEnter and monitorEntered
+        private Object enteringMonitor;
+        private int enteringSite;
+        private long enteringStart;
+
+        void entering(Object monitor, int site, long start) {
+            enteringMonitor = monitor;
+            enteringSite = site;
+            enteringStart = start;
+        }
+
+        void push(Object lock, int site, long time) {
+            if (depth == MAX_HELD) {
+                // Most likely released outside the profiled packages long ago
+                remove(0);
+            }
+            locks[depth] = lock;
+            sites[depth] = site;
+            times[depth] = time;
+            depth++;
+        }
+
+        int indexOf(Object lock) {
+            for (int i = depth - 1; i >= 0; i--) {
+                if (locks[i] == lock) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        void remove(int index) {
+            System.arraycopy(locks, index + 1, locks, index, depth - index - 1);
+            System.arraycopy(sites, index + 1, sites, index, depth - index - 1);
+            System.arraycopy(times, index + 1, times, index, depth - index - 1);
+            locks[depth - 1] = null;
+            depth--;
+        }
+    }
+
+    /**
+     * Redirects the lock operations of one method to the helpers, passing a constant site ID.
+     */
+    private static final class LockSiteVisitor extends MethodVisitor {
+        private final String method;
+        private int line = -1;
+
+        LockSiteVisitor(MethodVisitor methodVisitor, String method) {
+            super(Opcodes.ASM9, methodVisitor);
+            this.method = method;
+        }
+
+        @Override
+        public void visitLineNumber(int line, Label start) {
+            this.line = line;
+            super.visitLineNumber(line, start);
+        }
+
+        @Override
+        public void visitInsn(int opcode) {
+            if (opcode == Opcodes.MONITORENTER) {
+                super.visitInsn(Opcodes.DUP);
+                pushSite("synchronized");
+                super.visitMethodInsn(Opcodes.INVOKESTATIC, HELPER, "monitorEnter", "(Ljava/lang/Object;I)V", false);
+                super.visitInsn(opcode);
+                super.visitMethodInsn(Opcodes.INVOKESTATIC, HELPER, "monitorEntered", "()V", false);
+                return;
+            }
+            if (opcode == Opcodes.MONITOREXIT) {
+                super.visitInsn(Opcodes.DUP);
+                super.visitMethodInsn(Opcodes.INVOKESTATIC, HELPER, "monitorExit", "(Ljava/lang/Object;)V", false);
+            }
+            super.visitInsn(opcode);
+        }
+
+        @Override
+        public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+            if (opcode == Opcodes.INVOKEVIRTUAL && name.equals("wait") && isWaitDescriptor(descriptor)) {
+                // Object.wait is final, so every wait with these descriptors is the monitor wait
+                pushSite("wait");
+                super.visitMethodInsn(Opcodes.INVOKESTATIC, HELPER, "monitorWait",
+                        "(Ljava/lang/Object;" + descriptor.substring(1, descriptor.indexOf(')')) + "I)V", false);
+                return;
+            }
+            if ((opcode == Opcodes.INVOKEVIRTUAL || opcode == Opcodes.INVOKEINTERFACE) && LOCK_OWNERS.contains(owner)) {
+                String simpleName = owner.substring(owner.lastIndexOf('/') + 1);
+                switch (name + descriptor) {
+                    case "lock()V":
+                    case "lockInterruptibly()V":
+                    case "tryLock()Z":
+                        pushSite(simpleName + "." + name);
+                        super.visitMethodInsn(Opcodes.INVOKESTATIC, HELPER, name,
+                                "(" + LOCK_DESCRIPTOR + "I)" + descriptor.substring(descriptor.indexOf(')') + 1), false);
+                        return;
+                    case "tryLock(JLjava/util/concurrent/TimeUnit;)Z":
+                        pushSite(simpleName + "." + name);
+                        super.visitMethodInsn(Opcodes.INVOKESTATIC, HELPER, name,
+                                "(" + LOCK_DESCRIPTOR + "JLjava/util/concurrent/TimeUnit;I)Z", false);
+                        return;
+                    case "unlock()V":
+                        super.visitMethodInsn(Opcodes.INVOKESTATIC, HELPER, name, "(" + LOCK_DESCRIPTOR + ")V", false);
+                        return;
+                    default:
+                        break;
+                }
+            }
+            super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+        }
+
+        @Override
+        public void visitMaxs(int maxStack, int maxLocals) {
+            // DUP plus the site constant before monitorenter
+            super.visitMaxs(maxStack + 2, maxLocals);
+        }
+
+        private void pushSite(String operation) {
+            super.visitLdcInsn(registerSite(method + " " + operation + (line >= 0 ? ":" + line : "")));
+        }
+
+        private static boolean isWaitDescriptor(String descriptor) {
+            return descriptor.equals("()V") || descriptor.equals("(J)V") || descriptor.equals("(JI)V");
+        }
+    }
+}
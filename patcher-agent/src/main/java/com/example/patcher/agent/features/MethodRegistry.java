@@ -0,0 +1,147 @@
+package com.example.patcher.agent.features;
+
+import net.bytebuddy.asm.Advice;
+import net.bytebuddy.implementation.bytecode.constant.IntegerConstant;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Logger;
+
+/**
+ * Assigns dense integer IDs to instrumented methods at transform time.
+ * <p>
+ * The ID is inlined as a constant into the profiler advice, so the per-call hot path can index
+ * preallocated arrays instead of hashing a signature string. This class keeps the side table that
+ * maps an ID back to its signature for reporting. Registering the same signature twice (e.g. when
+ * a class is retransformed) returns the same ID.
+ * <p>
+ * Bytecode served from the {@link TransformCache} carries the IDs of the run that transformed it,
+ * so such methods ask for their previous ID. IDs are then no longer assigned strictly in order, and
+ * an ID below {@link #size()} may be unassigned.
+ */
+public final class MethodRegistry {
+    private static final Logger LOGGER = Logger.getLogger(MethodRegistry.class.getName());
+
+    /**
+     * ID shared by all methods registered after the registry is full.
+     */
+    public static final int OVERFLOW_ID = 0;
+    static final String OVERFLOW_SIGNATURE = "<overflow>";
+
+    private static final int CAPACITY = Math.max(2,
+            Integer.parseInt(System.getProperty("speeddoctor.profiler.maxMethods", "65536")));
+
+    private static final Map<String, Integer> IDS = new ConcurrentHashMap<>();
+    private static final AtomicReferenceArray<String> SIGNATURES = new AtomicReferenceArray<>(CAPACITY);
+    private static final AtomicInteger NEXT_ID = new AtomicInteger(OVERFLOW_ID + 1);
+    private static final AtomicInteger HIGHEST_PREFERRED_ID = new AtomicInteger(OVERFLOW_ID);
+    private static final AtomicBoolean OVERFLOW_LOGGED = new AtomicBoolean();
+
+    /**
+     * Binds {@link ProfilerAdvice.MethodId} parameters to the registered ID of the instrumented method.
+     */
+    static final Advice.OffsetMapping METHOD_ID_MAPPING = (instrumentedType, instrumentedMethod, assigner, argumentHandler, sort) ->
+            new Advice.OffsetMapping.Target.ForStackManipulation(
+                    IntegerConstant.forValue(register(instrumentedMethod.toString())));
+
+    static {
+        SIGNATURES.set(OVERFLOW_ID, OVERFLOW_SIGNATURE);
+    }
+
+    private MethodRegistry() {
+    }
+
+    /**
+     * Get or assign the ID for a method signature.
+     *
+     * @param signature The method signature, in the same format as {@code @Advice.Origin String}
+     * @return The dense method ID, or {@link #OVERFLOW_ID} if the registry is full
+     */
+    public static int register(String signature) {
+        return register(signature, OVERFLOW_ID);
+    }
+
+    /**
+     * Get or assign the ID for a method signature, preferring a given ID if the signature is new.
+     *
+     * @param signature The method signature, in the same format as {@code @Advice.Origin String}
+     * @param preferredId The ID to assign if it is still free, or {@link #OVERFLOW_ID} for the next free one
+     * @return The dense method ID, or {@link #OVERFLOW_ID} if the registry is full
+     */
+    static int register(String signature, int preferredId) {
+        Integer existing = IDS.get(signature);
+        if (existing != null) {
+            TransformCache.recordMethod(signature, existing);
+            return existing;
+        }
+        // Overflowing signatures are not stored, which keeps the side table bounded by the capacity
+        Integer id = IDS.computeIfAbsent(signature, key -> {
+            if (preferredId > OVERFLOW_ID && preferredId < CAPACITY && SIGNATURES.compareAndSet(preferredId, null, key)) {
+                HIGHEST_PREFERRED_ID.accumulateAndGet(preferredId, Math::max);
+                return preferredId;
+            }
+            // Slots taken by preferred IDs are skipped
+            for (int next = NEXT_ID.getAndIncrement(); next < CAPACITY; next = NEXT_ID.getAndIncrement()) {
+                if (SIGNATURES.compareAndSet(next, null, key)) {
+                    return next;
+                }
+            }
+            if (OVERFLOW_LOGGED.compareAndSet(false, true)) {
+                LOGGER.warning("[Profiler] Method registry full (" + CAPACITY
+                        + " methods), further methods are reported as " + OVERFLOW_SIGNATURE);
+            }
+            return null;
+        });
+        int assigned = id == null ? OVERFLOW_ID : id;
+        TransformCache.recordMethod(signature, assigned);
+        return assigned;
+    }
+
+    /**
+     * Get the signature registered for an ID.
+     *
+     * @param id The method ID
+     * @return The signature, or null if the ID has not been assigned
+     */
+    public static String getSignature(int id) {
+        return id >= 0 && id < CAPACITY ? SIGNATURES.get(id) : null;
+    }
+
+    /**
+     * Get a compact frame name for an ID, e.g. {@code com.example.Foo.bar(int)}, without modifiers,
+     * return type or throws clause.
+     *
+     * @param id The method ID
+     * @return The frame name, or the raw signature if it cannot be shortened
+     */
+    public static String getFrameName(int id) {
+        String signature = getSignature(id);
+        if (signature == null) {
+            return "<unknown>";
+        }
+        int open = signature.indexOf('(');
+        int close = signature.indexOf(')', open);
+        if (open < 0 || close < 0) {
+            return signature;
+        }
+        int start = signature.lastIndexOf(' ', open) + 1;
+        return signature.substring(start, close + 1);
+    }
+
+    /**
+     * @return One past the highest ID assigned so far
+     */
+    public static int size() {
+        return Math.min(Math.max(NEXT_ID.get(), HIGHEST_PREFERRED_ID.get() + 1), CAPACITY);
+    }
+
+    /**
+     * @return The maximum number of distinct IDs, including {@link #OVERFLOW_ID}
+     */
+    public static int capacity() {
+        return CAPACITY;
+    }
+}
@@ -0,0 +1,389 @@
+package com.example.patcher.agent.features;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Optional Prometheus endpoint serving the agent's counters in the text exposition format.
+ * <p>
+ * Enabled with {@code -Dspeeddoctor.metrics.port=N}, which serves {@code http://127.0.0.1:N/metrics}.
+ * The server binds to the loopback address only; it is meant for a local scraper or sidecar, not
+ * for exposure to the network. Scrapes are rendered into a reused byte buffer straight from the
+ * live counters and histograms, without snapshots or intermediate strings, so a scrape allocates
+ * nothing proportional to the number of profiled methods. Other components add their own samples
+ * with {@link #addCollector(Collector)}.
+ */
+public final class MetricsEndpoint {
+    private static final Logger LOGGER = Logger.getLogger(MetricsEndpoint.class.getName());
+
+    static final int PORT = Integer.parseInt(System.getProperty("speeddoctor.metrics.port", "0"));
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final List<Collector> COLLECTORS = new CopyOnWriteArrayList<>();
+    // Scrapes are served one at a time by the endpoint's single thread, which owns this buffer
+    private static final MetricsWriter WRITER = new MetricsWriter();
+
+    private static HttpServer server;
+    private static ExecutorService executor;
+
+    private MetricsEndpoint() {
+    }
+
+    /**
+     * Source of additional samples, rendered after the feature metrics on every scrape.
+     */
+    public interface Collector {
+        void collect(MetricsWriter writer);
+    }
+
+    /**
+     * Add samples to every scrape.
+     *
+     * @param collector The collector, called on the endpoint thread
+     */
+    public static void addCollector(Collector collector) {
+        COLLECTORS.add(collector);
+    }
+
+    /**
+     * Start the endpoint if {@code speeddoctor.metrics.port} is set. Does nothing if it already runs.
+     */
+    public static void start() {
+        if (PORT > 0) {
+            start(PORT);
+        }
+    }
+
+    /**
+     * Start the endpoint on a loopback port.
+     *
+     * @param port The port, or 0 for an ephemeral one
+     * @return The running server, or null if it could not be started
+     */
+    static synchronized HttpServer start(int port) {
+        if (server != null) {
+            return server;
+        }
+        ExecutorService started = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "speeddoctor-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            HttpServer created = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            created.createContext("/metrics", MetricsEndpoint::handle);
+            created.setExecutor(started);
+            // The dispatcher thread inherits the daemon flag of the thread that starts the server
+            started.submit(created::start).get();
+            server = created;
+            executor = started;
+            LOGGER.info("Serving metrics at http://" + created.getAddress().getHostString() + ":"
+                    + created.getAddress().getPort() + "/metrics");
+            return created;
+        } catch (IOException | ExecutionException e) {
+            LOGGER.log(Level.WARNING, "Failed to start metrics endpoint on port " + port, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        started.shutdownNow();
+        return null;
+    }
+
+    /**
+     * Stop the endpoint if it runs.
+     */
+    static synchronized void stop() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+            server = null;
+            executor = null;
+        }
+    }
+
+    private static void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            synchronized (WRITER) {
+                WRITER.reset();
+                render(WRITER);
+                exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+                exchange.sendResponseHeaders(200, WRITER.length);
+                try (OutputStream body = exchange.getResponseBody()) {
+                    body.write(WRITER.buffer, 0, WRITER.length);
+                }
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Render the feature metrics and all collectors.
+     */
+    static void render(MetricsWriter writer) {
+        writer.family("speeddoctor_profiled_methods", "gauge", "Methods registered by the profiler");
+        writer.sample("speeddoctor_profiled_methods", MethodRegistry.size() - 1);
+        writer.family("speeddoctor_slow_methods", "gauge", "Methods with at least one call above 50ms");
+        writer.sample("speeddoctor_slow_methods", ProfilerAdvice.getSlowMethodCount());
+        writer.family("speeddoctor_slow_call_events_dropped_total", "counter",
+                "Slow-call events dropped because the reporter queue was full");
+        writer.sample("speeddoctor_slow_call_events_dropped_total", SlowCallReporter.getDroppedEvents());
+        writer.family("speeddoctor_sql_sanitized_total", "counter", "SQL statements sanitized by the security patches");
+        writer.sample("speeddoctor_sql_sanitized_total", SecurityPatchAdvice.getSqlSanitizedCount());
+        writer.family("speeddoctor_xss_escaped_total", "counter", "HTTP parameter values escaped by the security patches");
+        writer.sample("speeddoctor_xss_escaped_total", SecurityPatchAdvice.getXssEscapedCount());
+        writer.family("speeddoctor_shim_invocations_total", "counter", "Calls redirected through deprecation shims");
+        writer.sample("speeddoctor_shim_invocations_total", DeprecationRescueAdvice.getInvocationCount());
+        writer.family("speeddoctor_transformations_total", "counter", "Classes transformed by the agent");
+        writer.sample("speeddoctor_transformations_total", FeatureTransformer.getTransformationCount());
+        writer.family("speeddoctor_transformation_errors_total", "counter", "Classes whose transformation failed");
+        writer.sample("speeddoctor_transformation_errors_total", FeatureTransformer.getTransformationErrorCount());
+        writer.family("speeddoctor_transform_nanoseconds_total", "counter", "Wall-clock time class loads spent in the agent's transformer");
+        writer.sample("speeddoctor_transform_nanoseconds_total", TransformationTelemetry.getNanos());
+        writer.family("speeddoctor_transform_cpu_nanoseconds_total", "counter", "CPU time class loads spent in the agent's transformer");
+        writer.sample("speeddoctor_transform_cpu_nanoseconds_total", TransformationTelemetry.getCpuNanos());
+        writer.family("speeddoctor_transformed_original_bytes_total", "counter", "Class file size of the transformed classes before transformation");
+        writer.sample("speeddoctor_transformed_original_bytes_total", TransformationTelemetry.getOriginalBytes());
+        writer.family("speeddoctor_transformed_bytes_total", "counter", "Class file size of the transformed classes after transformation");
+        writer.sample("speeddoctor_transformed_bytes_total", TransformationTelemetry.getTransformedBytes());
+        writer.family("speeddoctor_feature_enabled", "gauge", "Whether an installed feature is enabled, 1 or 0");
+        for (Map.Entry<String, Boolean> feature : FeatureTransformer.getFeatures().entrySet()) {
+            writer.sample("speeddoctor_feature_enabled", "feature", feature.getKey(), feature.getValue() ? 1 : 0);
+        }
+        writer.family("speeddoctor_type_pool_cache_hits_total", "counter", "Type lookups during matching answered from the type pool cache");
+        writer.sample("speeddoctor_type_pool_cache_hits_total", TypePoolCache.getHitCount());
+        writer.family("speeddoctor_type_pool_cache_misses_total", "counter", "Type lookups during matching that parsed a class file");
+        writer.sample("speeddoctor_type_pool_cache_misses_total", TypePoolCache.getMissCount());
+        writer.family("speeddoctor_matched_class_loads_total", "counter", "Class loads matched against the features");
+        writer.sample("speeddoctor_matched_class_loads_total", FeatureDispatcher.getMatchCount());
+        writer.family("speeddoctor_matcher_nanoseconds_total", "counter", "Time spent matching class loads against the features");
+        writer.sample("speeddoctor_matcher_nanoseconds_total", FeatureDispatcher.getMatchNanos());
+        writer.family("speeddoctor_ignored_class_loads_total", "counter", "Class loads skipped by the ignore matcher");
+        writer.sample("speeddoctor_ignored_class_loads_total", IgnoredTypes.getIgnoredCount());
+        writer.family("speeddoctor_retransformed_loaded_classes_total", "counter", "Already loaded classes retransformed at installation or on a feature change");
+        writer.sample("speeddoctor_retransformed_loaded_classes_total", LoadedClassRetransformer.getRetransformedCount());
+        writer.family("speeddoctor_retransform_failures_total", "counter", "Already loaded classes that could not be retransformed");
+        writer.sample("speeddoctor_retransform_failures_total", LoadedClassRetransformer.getFailedCount());
+        writer.family("speeddoctor_retransform_nanoseconds_total", "counter", "Time spent retransforming already loaded classes");
+        writer.sample("speeddoctor_retransform_nanoseconds_total", LoadedClassRetransformer.getRetransformNanos());
+        if (TransformCache.ENABLED) {
+            writer.family("speeddoctor_transform_cache_hits_total", "counter", "Classes served from the transformed-bytecode cache");
+            writer.sample("speeddoctor_transform_cache_hits_total", TransformCache.getHitCount());
+            writer.family("speeddoctor_transform_cache_misses_total", "counter", "Classes transformed and written to the transformed-bytecode cache");
+            writer.sample("speeddoctor_transform_cache_misses_total", TransformCache.getMissCount());
+            writer.family("speeddoctor_transform_cache_evictions_total", "counter", "Transformed-bytecode cache entries evicted by this JVM");
+            writer.sample("speeddoctor_transform_cache_evictions_total", TransformCache.getEvictionCount());
+        }
+
+        if (TopKHotspots.ENABLED) {
+            renderTopK(writer);
+        } else {
+            renderMethods(writer);
+        }
+        for (Collector collector : COLLECTORS) {
+            collector.collect(writer);
+        }
+    }
+
+    private static void renderMethods(MetricsWriter writer) {
+        if (StripedAccumulators.ENABLED) {
+            StripedAccumulators.merge();
+        }
+        // One pass per family, since the format requires the samples of a family to be contiguous
+        writer.family("speeddoctor_method_calls_total", "counter", "Profiled calls per method");
+        for (int id = 0; id < MethodRegistry.size(); id++) {
+            LatencyHistogram histogram = ProfilerAdvice.getHistogram(id);
+            if (histogram != null) {
+                writer.sample("speeddoctor_method_calls_total", "method", MethodRegistry.getSignature(id),
+                        histogram.getCount());
+            }
+        }
+        writer.family("speeddoctor_method_time_nanoseconds_total", "counter", "Time spent in profiled calls per method");
+        for (int id = 0; id < MethodRegistry.size(); id++) {
+            LatencyHistogram histogram = ProfilerAdvice.getHistogram(id);
+            if (histogram != null) {
+                writer.sample("speeddoctor_method_time_nanoseconds_total", "method", MethodRegistry.getSignature(id),
+                        histogram.getTotal());
+            }
+        }
+        writer.family("speeddoctor_method_slow_calls_total", "counter", "Calls above 50ms per method");
+        for (int id = 0; id < MethodRegistry.size(); id++) {
+            long slowHits = ProfilerAdvice.getSlowHits(id);
+            if (slowHits > 0) {
+                writer.sample("speeddoctor_method_slow_calls_total", "method", MethodRegistry.getSignature(id), slowHits);
+            }
+        }
+    }
+
+    private static void renderTopK(MetricsWriter writer) {
+        writer.family("speeddoctor_method_calls_total", "counter", "Profiled calls per tracked method");
+        for (int slot = 0; slot < TopKHotspots.slotCount(); slot++) {
+            TopKHotspots.Entry entry = TopKHotspots.entryAt(slot);
+            if (entry != null) {
+                writer.sample("speeddoctor_method_calls_total", "method", entry.signature, entry.histogram.getCount());
+            }
+        }
+        writer.family("speeddoctor_method_time_nanoseconds_total", "counter",
+                "Time spent in profiled calls per tracked method, overestimated by at most the error bound");
+        for (int slot = 0; slot < TopKHotspots.slotCount(); slot++) {
+            TopKHotspots.Entry entry = TopKHotspots.entryAt(slot);
+            if (entry != null) {
+                writer.sample("speeddoctor_method_time_nanoseconds_total", "method", entry.signature, entry.total.get());
+            }
+        }
+        writer.family("speeddoctor_method_slow_calls_total", "counter", "Calls above 50ms per tracked method");
+        for (int slot = 0; slot < TopKHotspots.slotCount(); slot++) {
+            TopKHotspots.Entry entry = TopKHotspots.entryAt(slot);
+            if (entry != null && entry.slowHits.get() > 0) {
+                writer.sample("speeddoctor_method_slow_calls_total", "method", entry.signature, entry.slowHits.get());
+            }
+        }
+    }
+
+    /**
+     * Appends samples in the Prometheus text format to a growable UTF-8 buffer that is reused
+     * across scrapes. Names and help texts must be ASCII; label values are escaped and encoded.
+     */
+    public static final class MetricsWriter {
+        private byte[] buffer = new byte[16 * 1024];
+        private int length;
+
+        /**
+         * Start a metric family. All samples of the family must follow before the next family.
+         *
+         * @param name The metric name
+         * @param type {@code counter} or {@code gauge}
+         * @param help A one-line description
+         */
+        public void family(String name, String type, String help) {
+            appendAscii("# HELP ");
+            appendAscii(name);
+            appendByte(' ');
+            appendAscii(help);
+            appendAscii("\n# TYPE ");
+            appendAscii(name);
+            appendByte(' ');
+            appendAscii(type);
+            appendByte('\n');
+        }
+
+        public void sample(String name, long value) {
+            appendAscii(name);
+            appendByte(' ');
+            appendLong(value);
+            appendByte('\n');
+        }
+
+        public void sample(String name, String label, String labelValue, long value) {
+            appendAscii(name);
+            appendByte('{');
+            appendAscii(label);
+            appendAscii("=\"");
+            appendLabelValue(labelValue);
+            appendAscii("\"} ");
+            appendLong(value);
+            appendByte('\n');
+        }
+
+        void reset() {
+            length = 0;
+        }
+
+        int capacity() {
+            return buffer.length;
+        }
+
+        @Override
+        public String toString() {
+            return new String(buffer, 0, length, StandardCharsets.UTF_8);
+        }
+
+        private void appendAscii(String text) {
+            ensureCapacity(text.length());
+            for (int i = 0; i < text.length(); i++) {
+                buffer[length++] = (byte) text.charAt(i);
+            }
+        }
+
+        private void appendLabelValue(String value) {
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '\\' || c == '"') {
+                    appendByte('\\');
+                    appendByte(c);
+                } else if (c == '\n') {
+                    appendByte('\\');
+                    appendByte('n');
+                } else if (c < 0x80) {
+                    appendByte(c);
+                } else if (c < 0x800) {
+                    appendByte(0xC0 | (c >> 6));
+                    appendByte(0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                        && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    appendByte(0xF0 | (codePoint >> 18));
+                    appendByte(0x80 | ((codePoint >> 12) & 0x3F));
+                    appendByte(0x80 | ((codePoint >> 6) & 0x3F));
+                    appendByte(0x80 | (codePoint & 0x3F));
+                } else {
+                    appendByte(0xE0 | (c >> 12));
+                    appendByte(0x80 | ((c >> 6) & 0x3F));
+                    appendByte(0x80 | (c & 0x3F));
+                }
+            }
+        }
+
+        private void appendLong(long value) {
+            if (value == Long.MIN_VALUE) {
+                appendAscii(Long.toString(value));
+                return;
+            }
+            if (value < 0) {
+                appendByte('-');
+                value = -value;
+            }
+            int digits = 1;
+            for (long rest = value / 10; rest > 0; rest /= 10) {
+                digits++;
+            }
+            ensureCapacity(digits);
+            for (int i = length + digits - 1; i >= length; i--) {
+                buffer[i] = (byte) ('0' + value % 10);
+                value /= 10;
+            }
+            length += digits;
+        }
+
+        private void appendByte(int b) {
+            ensureCapacity(1);
+            buffer[length++] = (byte) b;
+        }
+
+        private void ensureCapacity(int extra) {
+            if (length + extra > buffer.length) {
+                // Grows to the largest scrape seen so far, then stays that size
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+            }
+        }
+    }
+}
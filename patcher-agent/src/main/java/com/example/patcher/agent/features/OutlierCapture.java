@@ -0,0 +1,323 @@
+package com.example.patcher.agent.features;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+
+/**
+ * Captures the stack trace and thread state of calls that are far slower than usual for their method.
+ * <p>
+ * Every method gets a dynamic threshold, its p99 but at least
+ * {@code speeddoctor.profiler.outliers.minNanos}, which a background thread recomputes from the
+ * histograms once the method has {@code speeddoctor.profiler.outliers.minCalls} calls. Until then the
+ * threshold is {@link Long#MAX_VALUE}, so the only cost on an ordinary call is one array read and a
+ * compare. A call above its threshold is an outlier: at most
+ * {@code speeddoctor.profiler.outliers.perSecond} outliers per method and second walk the stack,
+ * and stacks are deduplicated by hash into a reservoir of
+ * {@code speeddoctor.profiler.outliers.reservoirSize} distinct stacks. Once the reservoir is full,
+ * it keeps the stacks whose hash-derived priority is lowest: a new stack replaces the highest one
+ * if its own priority is lower. The priority depends only on the stack, so a stack that was dropped
+ * is dropped again when it recurs, and every distinct stack seen has the same chance of being kept
+ * however often it recurs. {@link #writeReport(Writer)} exports the reservoir.
+ * <p>
+ * The thread state is read from the {@link ThreadMXBean} at capture time, i.e. on method exit; the
+ * blocked and waited counts and times are cumulative for the thread, the times only when thread
+ * contention monitoring is enabled.
+ */
+final class OutlierCapture {
+    private static final Logger LOGGER = Logger.getLogger(OutlierCapture.class.getName());
+
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty(
+            "speeddoctor.profiler.outliers", "true"));
+    private static final int PER_SECOND = Math.max(1, Integer.parseInt(System.getProperty(
+            "speeddoctor.profiler.outliers.perSecond", "1")));
+    private static final int RESERVOIR_SIZE = Math.max(1, Integer.parseInt(System.getProperty(
+            "speeddoctor.profiler.outliers.reservoirSize", "256")));
+    private static final long MIN_NANOS = Long.parseLong(System.getProperty(
+            "speeddoctor.profiler.outliers.minNanos", "1000000"));
+    private static final long MIN_CALLS = Long.parseLong(System.getProperty(
+            "speeddoctor.profiler.outliers.minCalls", "1000"));
+    private static final int MAX_DEPTH = Integer.parseInt(System.getProperty(
+            "speeddoctor.profiler.outliers.maxDepth", "64"));
+    private static final long INTERVAL_MS = 1000;
+
+    // Rate limit per method: the current second in the high bits, captures in it in the low 20 bits
+    private static final int COUNT_BITS = 20;
+    private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+
+    // Profiler frames between the instrumented method and the capture
+    private static final Set<String> PROFILER_CLASSES = Set.of(
+            OutlierCapture.class.getName(), ProfilerAdvice.class.getName());
+    private static final StackWalker WALKER = StackWalker.getInstance();
+
+    private static final AtomicLongArray THRESHOLDS = new AtomicLongArray(MethodRegistry.capacity());
+    private static final AtomicLongArray WINDOWS = new AtomicLongArray(MethodRegistry.capacity());
+    private static final AtomicLong CAPTURED = new AtomicLong();
+    private static final AtomicLong RATE_LIMITED = new AtomicLong();
+
+    // Captures are rate limited, so the reservoir is simply guarded by its own lock
+    private static final Outlier[] RESERVOIR = new Outlier[RESERVOIR_SIZE];
+    private static final Map<Long, Outlier> BY_HASH = new HashMap<>();
+    private static int reservoirCount;
+
+    private static ScheduledExecutorService updater;
+
+    static {
+        for (int id = 0; id < THRESHOLDS.length(); id++) {
+            THRESHOLDS.set(id, Long.MAX_VALUE);
+        }
+    }
+
+    private OutlierCapture() {
+    }
+
+    /**
+     * @return The duration above which a call of the method is an outlier
+     */
+    static long threshold(int methodId) {
+        return THRESHOLDS.get(methodId);
+    }
+
+    /**
+     * Start the thread that recomputes the thresholds, if outlier capture is enabled.
+     */
+    static synchronized void start() {
+        if (!ENABLED || updater != null) {
+            return;
+        }
+        updater = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "speeddoctor-profiler-outliers");
+            thread.setDaemon(true);
+            return thread;
+        });
+        updater.scheduleAtFixedRate(OutlierCapture::updateThresholds, INTERVAL_MS, INTERVAL_MS, TimeUnit.MILLISECONDS);
+        LOGGER.info("[Profiler] Capturing outlier stacks above p99 (at least " + MIN_NANOS + "ns), "
+                + PER_SECOND + " per method per second");
+    }
+
+    /**
+     * Stop the thread that recomputes the thresholds. The outliers captured so far are kept.
+     */
+    static synchronized void stop() {
+        if (updater != null) {
+            updater.shutdownNow();
+            updater = null;
+        }
+    }
+
+    /**
+     * Recompute every method's threshold from its histogram.
+     */
+    static void updateThresholds() {
+        for (int id = 0; id < MethodRegistry.size(); id++) {
+            LatencyHistogram histogram = ProfilerAdvice.getHistogram(id);
+            if (histogram == null || histogram.getCount() < MIN_CALLS) {
+                continue;
+            }
+            THRESHOLDS.set(id, Math.max(MIN_NANOS, histogram.snapshot().getValueAtQuantile(0.99)));
+        }
+    }
+
+    /**
+     * Capture an outlier call of a method, unless the method used up its captures for this second.
+     * Called on the application thread on method exit, after the call was found above its threshold.
+     *
+     * @param methodId The {@link MethodRegistry} ID of the method
+     * @param durationNanos The call duration
+     */
+    static void capture(int methodId, long durationNanos) {
+        if (!tryAcquire(methodId, System.nanoTime() / 1_000_000_000L)) {
+            RATE_LIMITED.incrementAndGet();
+            return;
+        }
+        CAPTURED.incrementAndGet();
+        StackTraceElement[] stack = WALKER.walk(frames -> frames
+                .dropWhile(frame -> PROFILER_CLASSES.contains(frame.getClassName()))
+                .limit(MAX_DEPTH)
+                .map(StackWalker.StackFrame::toStackTraceElement)
+                .toArray(StackTraceElement[]::new));
+        long hash = hash(methodId, stack);
+
+        Thread thread = Thread.currentThread();
+        ThreadInfo info = ManagementFactory.getThreadMXBean().getThreadInfo(thread.getId(), 0);
+        String threadState = info == null ? thread.getState().toString()
+                : info.getThreadState() + " blocked=" + info.getBlockedCount() + "/" + info.getBlockedTime()
+                + "ms waited=" + info.getWaitedCount() + "/" + info.getWaitedTime() + "ms";
+
+        synchronized (RESERVOIR) {
+            Outlier outlier = BY_HASH.get(hash);
+            if (outlier == null) {
+                int slot = reservoirCount;
+                if (slot < RESERVOIR_SIZE) {
+                    reservoirCount++;
+                } else {
+                    // Bottom-k sampling: the stacks with the lowest priorities stay
+                    slot = 0;
+                    for (int i = 1; i < RESERVOIR_SIZE; i++) {
+                        if (Long.compareUnsigned(priority(RESERVOIR[i].hash), priority(RESERVOIR[slot].hash)) > 0) {
+                            slot = i;
+                        }
+                    }
+                    if (Long.compareUnsigned(priority(hash), priority(RESERVOIR[slot].hash)) >= 0) {
+                        return;
+                    }
+                    BY_HASH.remove(RESERVOIR[slot].hash);
+                }
+                outlier = new Outlier(hash, methodId, stack);
+                RESERVOIR[slot] = outlier;
+                BY_HASH.put(hash, outlier);
+            }
+            outlier.record(durationNanos, THRESHOLDS.get(methodId), thread.getName(), threadState);
+        }
+    }
+
+    /**
+     * Empty the reservoir. Thresholds are kept, they are recomputed from the histograms anyway.
+     */
+    static void reset() {
+        synchronized (RESERVOIR) {
+            Arrays.fill(RESERVOIR, null);
+            BY_HASH.clear();
+            reservoirCount = 0;
+        }
+        CAPTURED.set(0);
+        RATE_LIMITED.set(0);
+    }
+
+    /**
+     * Take one of the method's captures for the given second.
+     */
+    static boolean tryAcquire(int methodId, long second) {
+        while (true) {
+            long window = WINDOWS.get(methodId);
+            long next = (window >>> COUNT_BITS) == second ? window + 1 : second << COUNT_BITS | 1;
+            if ((next & COUNT_MASK) > PER_SECOND) {
+                return false;
+            }
+            if (WINDOWS.compareAndSet(methodId, window, next)) {
+                return true;
+            }
+        }
+    }
+
+    private static long hash(int methodId, StackTraceElement[] stack) {
+        long hash = 0xcbf29ce484222325L ^ methodId;
+        for (StackTraceElement frame : stack) {
+            hash = (hash ^ frame.getClassName().hashCode()) * 0x100000001b3L;
+            hash = (hash ^ frame.getMethodName().hashCode()) * 0x100000001b3L;
+            hash = (hash ^ frame.getLineNumber()) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Spread the stack hash evenly, so the reservoir keeps a uniform sample of the distinct stacks.
+     */
+    static long priority(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * @return The outliers in the reservoir, most frequent first
+     */
+    static List<Outlier> outliers() {
+        List<Outlier> outliers = new ArrayList<>();
+        synchronized (RESERVOIR) {
+            for (Outlier outlier : RESERVOIR) {
+                if (outlier != null) {
+                    outliers.add(outlier);
+                }
+            }
+        }
+        outliers.sort((a, b) -> Long.compare(b.count, a.count));
+        return outliers;
+    }
+
+    static long getCaptured() {
+        return CAPTURED.get();
+    }
+
+    static long getRateLimited() {
+        return RATE_LIMITED.get();
+    }
+
+    /**
+     * Write the reservoir as text: one header line per distinct stack, followed by its frames.
+     *
+     * @param writer The destination
+     */
+    static void writeReport(Writer writer) throws IOException {
+        List<Outlier> outliers = outliers();
+        StringBuilder report = new StringBuilder();
+        report.append("# ").append(outliers.size()).append(" distinct stacks from ").append(CAPTURED.get())
+              .append(" captures, ").append(RATE_LIMITED.get()).append(" outliers rate-limited\n");
+        synchronized (RESERVOIR) {
+            for (Outlier outlier : outliers) {
+                report.append(MethodRegistry.getSignature(outlier.methodId))
+                      .append(" count=").append(outlier.count)
+                      .append(" max_ns=").append(outlier.maxNanos)
+                      .append(" total_ns=").append(outlier.totalNanos)
+                      .append(" threshold_ns=").append(outlier.thresholdNanos)
+                      .append(" thread=\"").append(outlier.threadName)
+                      .append("\" state=").append(outlier.threadState).append("\n");
+                for (StackTraceElement frame : outlier.stack) {
+                    report.append("\tat ").append(frame).append("\n");
+                }
+                report.append("\n");
+            }
+        }
+        writer.write(report.toString());
+    }
+
+    /**
+     * A distinct outlier stack of a method. Mutable fields are guarded by the reservoir lock.
+     */
+    static final class Outlier {
+        final long hash;
+        final int methodId;
+        final StackTraceElement[] stack;
+        long count;
+        long maxNanos;
+        long totalNanos;
+        long thresholdNanos;
+        String threadName;
+        String threadState;
+
+        Outlier(long hash, int methodId, StackTraceElement[] stack) {
+            this.hash = hash;
+            this.methodId = methodId;
+            this.stack = stack;
+        }
+
+        private void record(long durationNanos, long threshold, String thread, String state) {
+            count++;
+            totalNanos += durationNanos;
+            if (durationNanos >= maxNanos) {
+                // The header describes the slowest capture of this stack
+                maxNanos = durationNanos;
+                thresholdNanos = threshold;
+                threadName = thread;
+                threadState = state;
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.example.patcher.agent.features;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Virtual-thread pinning per call site: how often and how long a virtual thread blocked while
+ * pinned to its carrier thread.
+ * <p>
+ * A virtual thread that blocks inside a {@code synchronized} block or below a native frame
+ * cannot unmount and keeps its carrier thread busy, which starves the other virtual threads.
+ * On JDK 21+ {@link VirtualThreads} streams JFR's {@code jdk.VirtualThreadPinned} events above
+ * {@code speeddoctor.profiler.pinning.thresholdMs} into this table; on older JDKs there are no
+ * virtual threads and it stays empty. A site is the innermost application frame, i.e. the first
+ * frame outside the JDK, together with the JDK method it blocked in and, on JDKs that report
+ * it, the pinning reason. At most {@value #MAX_SITES} sites are kept, further ones are counted as
+ * {@value #OVERFLOW_SITE}. Events arrive on the single JFR stream thread, off the application threads.
+ */
+final class PinningSites {
+    private static final Logger LOGGER = Logger.getLogger(PinningSites.class.getName());
+
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty(
+            "speeddoctor.profiler.pinning", "false"));
+    static final long THRESHOLD_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(System.getProperty(
+            "speeddoctor.profiler.pinning.thresholdMs", "20")));
+
+    static final int MAX_SITES = 1024;
+    static final String OVERFLOW_SITE = "<overflow>";
+    static final String REPORT_HEADER = "site,blocked_in,reason,count,total_ns,max_ns\n";
+
+    private static final Map<String, Site> SITES = new ConcurrentHashMap<>();
+
+    private PinningSites() {
+    }
+
+    /**
+     * Record a pinned virtual thread.
+     *
+     * @param stack The stack of the pinned thread, innermost frame first
+     * @param durationNanos How long the thread was pinned
+     * @param reason Why the thread was pinned, or null if the JDK does not report it
+     */
+    static void record(StackTraceElement[] stack, long durationNanos, String reason) {
+        int application = 0;
+        while (application < stack.length && isJdkFrame(stack[application].getClassName())) {
+            application++;
+        }
+        String site;
+        String blockedIn;
+        if (application == stack.length) {
+            site = stack.length == 0 ? "<unknown>" : frame(stack[0]);
+            blockedIn = "";
+        } else {
+            site = frame(stack[application]);
+            blockedIn = application == 0 ? "" : stack[application - 1].getClassName() + "."
+                    + stack[application - 1].getMethodName();
+        }
+        String key = site + "\u0000" + blockedIn + "\u0000" + (reason == null ? "" : reason);
+
+        Site entry = SITES.get(key);
+        if (entry == null) {
+            if (SITES.size() >= MAX_SITES) {
+                entry = SITES.computeIfAbsent(OVERFLOW_SITE, ignored -> new Site(OVERFLOW_SITE, "", ""));
+            } else {
+                entry = SITES.computeIfAbsent(key, ignored -> new Site(site, blockedIn, reason == null ? "" : reason));
+                if (entry.count.get() == 0) {
+                    LOGGER.warning("[Profiler] Virtual thread pinned for "
+                            + TimeUnit.NANOSECONDS.toMillis(durationNanos) + "ms at " + site
+                            + (blockedIn.isEmpty() ? "" : " blocked in " + blockedIn)
+                            + (reason == null ? "" : " (" + reason + ")"));
+                }
+            }
+        }
+        entry.count.incrementAndGet();
+        entry.totalNanos.addAndGet(durationNanos);
+        long max;
+        while (durationNanos > (max = entry.maxNanos.get())) {
+            if (entry.maxNanos.compareAndSet(max, durationNanos)) {
+                break;
+            }
+        }
+    }
+
+    private static boolean isJdkFrame(String className) {
+        return className.startsWith("java.") || className.startsWith("jdk.") || className.startsWith("sun.")
+                || className.startsWith("com.sun.");
+    }
+
+    private static String frame(StackTraceElement frame) {
+        return frame.getClassName() + "." + frame.getMethodName()
+                + (frame.getLineNumber() >= 0 ? ":" + frame.getLineNumber() : "");
+    }
+
+    /**
+     * @return Every pinning site, longest pinned in total first
+     */
+    static List<Site> sites() {
+        List<Site> sites = new ArrayList<>(SITES.values());
+        sites.sort((a, b) -> Long.compare(b.totalNanos.get(), a.totalNanos.get()));
+        return sites;
+    }
+
+    /**
+     * Write every pinning site as CSV.
+     *
+     * @param writer The destination
+     */
+    static void writeReport(Writer writer) throws IOException {
+        StringBuilder report = new StringBuilder(REPORT_HEADER);
+        for (Site site : sites()) {
+            report.append('"').append(site.site.replace("\"", "\"\"")).append("\",")
+                  .append('"').append(site.blockedIn).append("\",")
+                  .append('"').append(site.reason.replace("\"", "\"\"")).append("\",")
+                  .append(site.count.get()).append(",")
+                  .append(site.totalNanos.get()).append(",")
+                  .append(site.maxNanos.get()).append("\n");
+        }
+        writer.write(report.toString());
+    }
+
+    /**
+     * Pinning statistics of one call site.
+     */
+    static final class Site {
+        final String site;
+        final String blockedIn;
+        final String reason;
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong totalNanos = new AtomicLong();
+        final AtomicLong maxNanos = new AtomicLong();
+
+        Site(String site, String blockedIn, String reason) {
+            this.site = site;
+            this.blockedIn = blockedIn;
+            this.reason = reason;
+        }
+    }
+}
@@ -1,78 +1,455 @@
 package com.example.patcher.agent.features;
 
 import net.bytebuddy.asm.Advice;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.logging.Logger;
-import java.util.concurrent.atomic.AtomicLong;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Advice for measuring method execution time and identifying performance hotspots.
+ * <p>
+ * Every profiled call is recorded into a per-method {@link LatencyHistogram}; calls slower than
+ * the reporting threshold are additionally counted and handed to the {@link SlowCallReporter}.
+ * Methods are identified by the dense ID that {@link MethodRegistry} assigns at transform time,
+ * so the per-call cost is a {@code nanoTime} plus an array-indexed histogram update.
  */
 public class ProfilerAdvice {
-    
-    private static final Logger LOGGER = Logger.getLogger(ProfilerAdvice.class.getName());
-    private static final Map<String, AtomicLong> SLOW_METHODS = new ConcurrentHashMap<>();
+
+    private static final AtomicReferenceArray<LatencyHistogram> HISTOGRAMS =
+            new AtomicReferenceArray<>(MethodRegistry.capacity());
+    private static final AtomicLongArray SLOW_HITS = new AtomicLongArray(MethodRegistry.capacity());
+    private static final AtomicInteger SLOW_METHOD_COUNT = new AtomicInteger();
     private static final long REPORTING_THRESHOLD_MS = 50; // Only report methods that take longer than 50ms
-    
+    private static final long REPORTING_THRESHOLD_NANOS = REPORTING_THRESHOLD_MS * 1_000_000;
+
+    static final String REPORT_HEADER = "method,hits,count,total_ns,min_ns,max_ns,p50_ns,p90_ns,p99_ns,p999_ns,"
+            + "samples,count_err,p99_lo_ns,p99_hi_ns,self_ns,total_err_ns,alloc_bytes_per_call,alloc_samples\n";
+
+    /**
+     * Binds the constant {@link MethodRegistry} ID of the instrumented method.
+     */
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target(ElementType.PARAMETER)
+    public @interface MethodId {
+    }
+
+    /**
+     * Binds the constant signature hash of the instrumented method, see {@link TopKHotspots}.
+     */
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target(ElementType.PARAMETER)
+    public @interface MethodKey {
+    }
+
     /**
      * Called before the intercepted method is executed.
      */
     @Advice.OnMethodEnter
-    public static long start() {
-        return System.nanoTime();
+    public static long start(@MethodId int methodId) {
+        return ProfilerAdvice.enter(methodId);
     }
-    
+
     /**
      * Called after the intercepted method is executed.
      */
     @Advice.OnMethodExit(onThrowable = Throwable.class)
-    public static void end(@Advice.Origin String signature, @Advice.Enter long start) {
+    public static void end(@MethodId int methodId, @Advice.Enter long start) {
+        ProfilerAdvice.exit(methodId, start);
+    }
+
+    /**
+     * Start timing a call. Invoked from the inlined enter advice, so it must stay public.
+     *
+     * @param methodId The {@link MethodRegistry} ID of the method
+     * @return The start timestamp, or {@link AdaptiveSampler#NOT_SAMPLED} if this call is not timed
+     */
+    public static long enter(int methodId) {
+        boolean sampled = !AdaptiveSampler.ENABLED || AdaptiveSampler.shouldSample(methodId);
+        if (!sampled && !CallTree.ENABLED) {
+            return AdaptiveSampler.NOT_SAMPLED;
+        }
+        long now = System.nanoTime();
+        if (CallTree.ENABLED) {
+            CallTree.push(methodId, now);
+        }
+        return sampled ? now : AdaptiveSampler.NOT_SAMPLED;
+    }
+
+    /**
+     * Finish timing a call. Invoked from the inlined exit advice, so it must stay public.
+     *
+     * @param methodId The {@link MethodRegistry} ID of the method
+     * @param start The value returned by {@link #enter(int)}
+     */
+    public static void exit(int methodId, long start) {
+        if (start == AdaptiveSampler.NOT_SAMPLED && !CallTree.ENABLED) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (CallTree.ENABLED) {
+            CallTree.pop(now);
+        }
+        if (start != AdaptiveSampler.NOT_SAMPLED) {
+            record(methodId, now - start, AdaptiveSampler.ENABLED ? AdaptiveSampler.onSample(methodId) : 1);
+        }
+    }
+
+    /**
+     * Count a call in the cheap tier. Invoked from the inlined {@link Counter} advice, so it must stay public.
+     *
+     * @param methodId The {@link MethodRegistry} ID of the method
+     * @return The start timestamp if the call's latency is sampled, {@link AdaptiveSampler#NOT_SAMPLED} otherwise
+     */
+    public static long countEnter(int methodId) {
+        return TieredProfiler.count(methodId);
+    }
+
+    /**
+     * Finish a call in the cheap tier. Invoked from the inlined {@link Counter} advice, so it must stay public.
+     *
+     * @param methodId The {@link MethodRegistry} ID of the method
+     * @param start The value returned by {@link #countEnter(int)}
+     */
+    public static void countExit(int methodId, long start) {
+        TieredProfiler.countExit(methodId, start);
+    }
+
+    /**
+     * Start measuring a call's allocations. Invoked from the inlined {@link Allocations} advice, so it must stay public.
+     *
+     * @return The thread's allocated bytes if the call is sampled, {@link AllocationProfiler#NOT_SAMPLED} otherwise
+     */
+    public static long allocationEnter() {
+        return AllocationProfiler.enter();
+    }
+
+    /**
+     * Finish measuring a call's allocations. Invoked from the inlined {@link Allocations} advice, so it must stay public.
+     *
+     * @param methodId The {@link MethodRegistry} ID of the method
+     * @param start The value returned by {@link #allocationEnter()}
+     */
+    public static void allocationExit(int methodId, long start) {
+        AllocationProfiler.exit(methodId, start);
+    }
+
+    /**
+     * Record a call in top-K mode. Invoked from the inlined {@link TopK} advice, so it must stay public.
+     *
+     * @param methodKey The signature hash of the method
+     * @param signature The method signature
+     * @param start The {@code nanoTime} at method entry
+     */
+    public static void recordTopK(long methodKey, String signature, long start) {
         long durationNanos = System.nanoTime() - start;
-        long durationMs = durationNanos / 1_000_000;
-        
-        if (durationMs > REPORTING_THRESHOLD_MS) {
-            SLOW_METHODS.computeIfAbsent(signature, k -> new AtomicLong()).incrementAndGet();
-            LOGGER.info("[Profiler] " + signature + " took " + durationMs + "ms");
-            
-            // Periodically output the top slow methods for analysis
-            if (SLOW_METHODS.size() % 10 == 0) {
-                logHotspots();
+        AgentEvents.slowMethod(signature, durationNanos, 1);
+        TopKHotspots.record(methodKey, signature, durationNanos, durationNanos > REPORTING_THRESHOLD_NANOS);
+    }
+
+    /**
+     * Record a single profiled call.
+     *
+     * @param methodId The {@link MethodRegistry} ID of the method
+     * @param durationNanos The call duration in nanoseconds
+     */
+    public static void record(int methodId, long durationNanos) {
+        record(methodId, durationNanos, 1);
+    }
+
+    /**
+     * Record a profiled call that stands for {@code weight} calls when sampling.
+     */
+    private static void record(int methodId, long durationNanos, int weight) {
+        LatencyHistogram histogram = StripedAccumulators.ENABLED
+                ? StripedAccumulators.histogramFor(methodId)
+                : globalHistogram(methodId);
+        histogram.record(durationNanos, weight);
+        if (OutlierCapture.ENABLED && durationNanos > OutlierCapture.threshold(methodId)) {
+            // Only calls above the method's p99 pay for a stack walk, and only a few per second
+            OutlierCapture.capture(methodId, durationNanos);
+        }
+
+        // Recorded into JFR's thread-local buffers when a recording asks for slow methods
+        AgentEvents.slowMethod(MethodRegistry.getSignature(methodId), durationNanos, weight);
+        if (durationNanos > REPORTING_THRESHOLD_NANOS) {
+            if (SLOW_HITS.getAndAdd(methodId, weight) == 0) {
+                SLOW_METHOD_COUNT.incrementAndGet();
             }
+            // Logging and hotspot summaries happen on the reporter thread, off the application thread
+            SlowCallReporter.submit(methodId, durationNanos);
         }
     }
-    
+
     /**
-     * Log the current hotspots to help identify performance issues.
+     * Get the global histogram of a method, creating it on first use.
      */
-    private static void logHotspots() {
-        StringBuilder sb = new StringBuilder("\n==== PERFORMANCE HOTSPOTS ====\n");
-        
-        SLOW_METHODS.entrySet().stream()
-            .sorted((e1, e2) -> Long.compare(e2.getValue().get(), e1.getValue().get()))
-            .limit(5)
-            .forEach(entry -> {
-                sb.append(entry.getKey()).append(": ")
-                  .append(entry.getValue().get()).append(" hits\n");
-            });
-        
-        sb.append("===============================");
-        LOGGER.info(sb.toString());
+    static LatencyHistogram globalHistogram(int methodId) {
+        LatencyHistogram histogram = HISTOGRAMS.get(methodId);
+        return histogram != null ? histogram : createHistogram(methodId);
+    }
+
+    /**
+     * Lazily create the histogram for a method on its first call.
+     */
+    private static LatencyHistogram createHistogram(int methodId) {
+        LatencyHistogram created = new LatencyHistogram();
+        if (HISTOGRAMS.compareAndSet(methodId, null, created)) {
+            return created;
+        }
+        return HISTOGRAMS.get(methodId);
+    }
+
+    /**
+     * @return The global histogram of a method, or null if it has not been called yet
+     */
+    static LatencyHistogram getHistogram(int methodId) {
+        return HISTOGRAMS.get(methodId);
+    }
+
+    /**
+     * Clear the data recorded in this run: histograms, slow-call counts, call-tree self time, the
+     * top-K table, captured outliers and allocations. Method IDs stay registered, and runs already in the {@link HotspotStore} are kept.
+     */
+    static void reset() {
+        if (StripedAccumulators.ENABLED) {
+            // Pending stripes are drained first so they cannot resurface after the reset
+            StripedAccumulators.merge();
+        }
+        for (int id = 0; id < MethodRegistry.size(); id++) {
+            LatencyHistogram histogram = HISTOGRAMS.get(id);
+            if (histogram != null) {
+                histogram.reset();
+            }
+            SLOW_HITS.set(id, 0);
+        }
+        SLOW_METHOD_COUNT.set(0);
+        CallTree.resetSelfTime();
+        TopKHotspots.reset();
+        OutlierCapture.reset();
+        AllocationProfiler.reset();
     }
-    
+
+    /**
+     * @return Number of calls to the method that exceeded the slow-call threshold
+     */
+    static long getSlowHits(int methodId) {
+        return SLOW_HITS.get(methodId);
+    }
+
+    /**
+     * @return Number of distinct methods with at least one slow call
+     */
+    static int getSlowMethodCount() {
+        return SLOW_METHOD_COUNT.get();
+    }
+
     /**
      * Get a CSV report of the detected hotspots for OpenRewrite recipes.
+     * <p>
+     * One row per profiled method, ordered by total time spent. The method signature is quoted, as
+     * it contains commas when the method has several parameters. {@code hits} is the number of calls
+     * above the slow-call threshold; all other columns cover every recorded call, in nanoseconds.
+     * <p>
+     * With adaptive sampling enabled, counts, totals and percentiles are estimates scaled up from
+     * {@code samples} timed calls. {@code count_err} is the 95% error bound of {@code count}, and
+     * {@code p99_lo_ns}/{@code p99_hi_ns} bound p99 from the rank uncertainty of the sample size.
+     * <p>
+     * {@code self_ns} is the time spent in the method itself, excluding profiled callees, taken from
+     * the {@link CallTree}; it is 0 when the call tree is disabled.
+     * <p>
+     * {@code alloc_bytes_per_call} is the mean number of bytes a call allocates, callees included,
+     * measured on {@code alloc_samples} sampled calls by the {@link AllocationProfiler}; both are 0
+     * when allocation profiling is disabled.
+     * <p>
+     * In {@link TopKHotspots} mode only the tracked methods are listed. A method's true total lies in
+     * {@code [total_ns - total_err_ns, total_ns]}, and a final {@code <untracked>} row holds the time
+     * of all other methods, with the sketch error bound as its {@code total_err_ns}.
      */
     public static String getHotspotReport() {
-        StringBuilder report = new StringBuilder("method,hits\n");
-        
-        SLOW_METHODS.entrySet().stream()
-            .sorted((e1, e2) -> Long.compare(e2.getValue().get(), e1.getValue().get()))
+        if (StripedAccumulators.ENABLED) {
+            StripedAccumulators.merge();
+        }
+
+        StringBuilder report = new StringBuilder(REPORT_HEADER);
+        if (TopKHotspots.ENABLED) {
+            appendTopKRows(report);
+            return report.toString();
+        }
+
+        long[] selfNanos = CallTree.getSelfNanosByMethod();
+        List<MethodSnapshot> snapshots = new ArrayList<>();
+        for (int id = 0; id < MethodRegistry.size(); id++) {
+            LatencyHistogram histogram = HISTOGRAMS.get(id);
+            if (histogram != null) {
+                LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+                if (snapshot.getCount() > 0) {
+                    snapshots.add(new MethodSnapshot(id, snapshot));
+                }
+            }
+        }
+
+        snapshots.stream()
+            .sorted(Comparator.comparingLong((MethodSnapshot entry) -> entry.histogram.getTotal()).reversed())
             .forEach(entry -> {
-                report.append(entry.getKey()).append(",")
-                      .append(entry.getValue().get()).append("\n");
+                LatencyHistogram.Snapshot snapshot = entry.histogram;
+                report.append('"').append(MethodRegistry.getSignature(entry.methodId).replace("\"", "\"\"")).append("\",")
+                      .append(SLOW_HITS.get(entry.methodId)).append(",")
+                      .append(snapshot.getCount()).append(",")
+                      .append(snapshot.getTotal()).append(",")
+                      .append(snapshot.getMin()).append(",")
+                      .append(snapshot.getMax()).append(",")
+                      .append(snapshot.getValueAtQuantile(0.50)).append(",")
+                      .append(snapshot.getValueAtQuantile(0.90)).append(",")
+                      .append(snapshot.getValueAtQuantile(0.99)).append(",")
+                      .append(snapshot.getValueAtQuantile(0.999)).append(",");
+
+                long samples = AdaptiveSampler.ENABLED ? AdaptiveSampler.getSamples(entry.methodId) : snapshot.getCount();
+                double rankError = 1.96 * Math.sqrt(0.99 * 0.01 / Math.max(1, samples));
+                report.append(samples).append(",")
+                      .append(AdaptiveSampler.ENABLED ? AdaptiveSampler.getCountErrorBound(entry.methodId) : 0).append(",")
+                      .append(snapshot.getValueAtQuantile(Math.max(0, 0.99 - rankError))).append(",")
+                      .append(snapshot.getValueAtQuantile(Math.min(1, 0.99 + rankError))).append(",")
+                      .append(entry.methodId < selfNanos.length ? selfNanos[entry.methodId] : 0).append(",")
+                      .append(0).append(",");
+                long allocationSamples = AllocationProfiler.getSamples(entry.methodId);
+                report.append(allocationSamples == 0 ? 0 : AllocationProfiler.getBytes(entry.methodId) / allocationSamples)
+                      .append(",")
+                      .append(allocationSamples).append("\n");
             });
-        
+
         return report.toString();
     }
-} 
\ No newline at end of file
+
+    /**
+     * Cheap tier of {@link TieredProfiler}: counts invocations and only occasionally times a call.
+     */
+    public static class Counter {
+
+        @Advice.OnMethodEnter
+        public static long start(@MethodId int methodId) {
+            return ProfilerAdvice.countEnter(methodId);
+        }
+
+        @Advice.OnMethodExit(onThrowable = Throwable.class)
+        public static void end(@MethodId int methodId, @Advice.Enter long start) {
+            ProfilerAdvice.countExit(methodId, start);
+        }
+    }
+
+    /**
+     * Allocation advice of {@link AllocationProfiler}, applied next to the timing advice.
+     */
+    public static class Allocations {
+
+        @Advice.OnMethodEnter
+        public static long start() {
+            return ProfilerAdvice.allocationEnter();
+        }
+
+        @Advice.OnMethodExit(onThrowable = Throwable.class)
+        public static void end(@MethodId int methodId, @Advice.Enter long start) {
+            ProfilerAdvice.allocationExit(methodId, start);
+        }
+    }
+
+    /**
+     * Collect the statistics of every method profiled in this run, for the {@link HotspotStore}.
+     */
+    static List<HotspotStore.MethodStats> collectMethodStats() {
+        List<HotspotStore.MethodStats> methods = new ArrayList<>();
+        if (TopKHotspots.ENABLED) {
+            for (TopKHotspots.Entry entry : TopKHotspots.entries()) {
+                methods.add(new HotspotStore.MethodStats(entry.signature, entry.slowHits.get(), 0,
+                        entry.histogram.snapshot()));
+            }
+            return methods;
+        }
+        if (StripedAccumulators.ENABLED) {
+            StripedAccumulators.merge();
+        }
+        long[] selfNanos = CallTree.getSelfNanosByMethod();
+        for (int id = 0; id < MethodRegistry.size(); id++) {
+            LatencyHistogram histogram = HISTOGRAMS.get(id);
+            if (histogram != null) {
+                LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+                if (snapshot.getCount() > 0) {
+                    methods.add(new HotspotStore.MethodStats(MethodRegistry.getSignature(id), SLOW_HITS.get(id),
+                            id < selfNanos.length ? selfNanos[id] : 0, snapshot,
+                            AllocationProfiler.getBytes(id), AllocationProfiler.getSamples(id)));
+                }
+            }
+        }
+        return methods;
+    }
+
+    /**
+     * Append the rows of the top-K table, followed by the {@code <untracked>} remainder.
+     */
+    private static void appendTopKRows(StringBuilder report) {
+        long tracked = 0;
+        for (TopKHotspots.Entry entry : TopKHotspots.entries()) {
+            LatencyHistogram.Snapshot snapshot = entry.histogram.snapshot();
+            long total = entry.total.get();
+            tracked += total - entry.error;
+            double rankError = 1.96 * Math.sqrt(0.99 * 0.01 / Math.max(1, snapshot.getCount()));
+            report.append('"').append(entry.signature.replace("\"", "\"\"")).append("\",")
+                  .append(entry.slowHits.get()).append(",")
+                  .append(snapshot.getCount()).append(",")
+                  .append(total).append(",")
+                  .append(snapshot.getMin()).append(",")
+                  .append(snapshot.getMax()).append(",")
+                  .append(snapshot.getValueAtQuantile(0.50)).append(",")
+                  .append(snapshot.getValueAtQuantile(0.90)).append(",")
+                  .append(snapshot.getValueAtQuantile(0.99)).append(",")
+                  .append(snapshot.getValueAtQuantile(0.999)).append(",")
+                  .append(snapshot.getCount()).append(",")
+                  .append(0).append(",")
+                  .append(snapshot.getValueAtQuantile(Math.max(0, 0.99 - rankError))).append(",")
+                  .append(snapshot.getValueAtQuantile(Math.min(1, 0.99 + rankError))).append(",")
+                  .append(0).append(",")
+                  .append(entry.error).append(",0,0\n");
+        }
+        report.append('"').append(TopKHotspots.UNTRACKED_SIGNATURE).append("\",0,0,")
+              .append(Math.max(0, TopKHotspots.totalNanos() - tracked))
+              .append(",0,0,0,0,0,0,0,0,0,0,0,")
+              .append(TopKHotspots.sketchErrorBound()).append(",0,0\n");
+    }
+
+    /**
+     * Timing advice for {@link TopKHotspots} mode, which identifies methods by signature hash instead
+     * of a registered ID so that memory stays fixed however many methods are instrumented.
+     */
+    public static class TopK {
+
+        @Advice.OnMethodEnter
+        public static long start() {
+            return System.nanoTime();
+        }
+
+        @Advice.OnMethodExit(onThrowable = Throwable.class)
+        public static void end(@MethodKey long methodKey, @Advice.Origin String signature,
+                               @Advice.Enter long start) {
+            ProfilerAdvice.recordTopK(methodKey, signature, start);
+        }
+    }
+
+    /**
+     * A method ID paired with a histogram snapshot, used while building reports.
+     */
+    private static final class MethodSnapshot {
+        private final int methodId;
+        private final LatencyHistogram.Snapshot histogram;
+
+        MethodSnapshot(int methodId, LatencyHistogram.Snapshot histogram) {
+            this.methodId = methodId;
+            this.histogram = histogram;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.example.patcher.agent.features;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded, lock-free multi-producer single-consumer ring buffer of profiler events.
+ * <p>
+ * Each slot carries a sequence number (Vyukov-style) so producers only contend on the tail
+ * counter and never block: {@link #offer} fails fast when the ring is full. Event payloads are
+ * stored in primitive arrays, so publishing an event does not allocate.
+ */
+final class ProfilerEventQueue {
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final int[] methodIds;
+    private final long[] durations;
+    private final AtomicLong tail = new AtomicLong();
+    // Only ever touched by the single consumer thread
+    private long head;
+
+    /**
+     * @param requestedCapacity Minimum capacity, rounded up to a power of two
+     */
+    ProfilerEventQueue(int requestedCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(1, requestedCapacity - 1)) << 1;
+        this.mask = capacity - 1;
+        this.sequences = new AtomicLongArray(capacity);
+        this.methodIds = new int[capacity];
+        this.durations = new long[capacity];
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Publish an event. Safe to call from any number of threads.
+     *
+     * @return false if the ring is full and the event was not published
+     */
+    boolean offer(int methodId, long durationNanos) {
+        long position = tail.get();
+        for (;;) {
+            int index = (int) (position & mask);
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    methodIds[index] = methodId;
+                    durations[index] = durationNanos;
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Remove up to {@code max} events, handing each to the consumer. Must only be called from one thread.
+     *
+     * @return The number of events drained
+     */
+    int drain(Consumer consumer, int max) {
+        int drained = 0;
+        while (drained < max) {
+            int index = (int) (head & mask);
+            if (sequences.get(index) != head + 1) {
+                break;
+            }
+            int methodId = methodIds[index];
+            long duration = durations[index];
+            sequences.set(index, head + mask + 1);
+            head++;
+            drained++;
+            consumer.accept(methodId, duration);
+        }
+        return drained;
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Receives drained events.
+     */
+    interface Consumer {
+        void accept(int methodId, long durationNanos);
+    }
+}
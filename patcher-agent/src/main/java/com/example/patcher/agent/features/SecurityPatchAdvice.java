@@ -1,6 +1,8 @@
 package com.example.patcher.agent.features;
 
 import net.bytebuddy.asm.Advice;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
 
@@ -20,6 +22,16 @@ public class SecurityPatchAdvice {
     private static volatile Pattern XSS_PATTERN = 
             Pattern.compile("<script>|<\\/script>|javascript:|onerror=|onclick=|onload=");
     
+    // Number of fixes applied, exposed through the agent's MBean and metrics endpoint
+    private static final LongAdder SQL_SANITIZED_COUNT = new LongAdder();
+    private static final LongAdder XSS_ESCAPED_COUNT = new LongAdder();
+    
+    // Findings are always logged, but at most this many of each kind per second
+    private static final int WARNINGS_PER_SECOND = Math.max(1, Integer.parseInt(System.getProperty(
+            "speeddoctor.security.warningsPerSecond", "10")));
+    private static final WarningLimit SQL_WARNINGS = new WarningLimit();
+    private static final WarningLimit XSS_WARNINGS = new WarningLimit();
+    
     /**
      * Update the SQL injection pattern at runtime.
      * 
@@ -43,19 +55,7 @@ public class SecurityPatchAdvice {
      */
     @Advice.OnMethodEnter
     public static void sanitizeSql(@Advice.Argument(value = 0, readOnly = false) String sql) {
-        if (sql == null) {
-            return;
-        }
-        
-        if (SQL_INJECTION_PATTERN.matcher(sql).find()) {
-            LOGGER.warning("[SecurityPatch] Potential SQL injection detected: " + sql);
-            
-            // Sanitize by replacing dangerous patterns
-            String sanitized = SQL_INJECTION_PATTERN.matcher(sql).replaceAll("");
-            
-            // Update the argument with sanitized version
-            sql = sanitized;
-        }
+        sql = SecurityPatchAdvice.sanitizeSqlArgument(sql);
     }
     
     /**
@@ -64,19 +64,7 @@ public class SecurityPatchAdvice {
     public static class HttpSanitizer {
         @Advice.OnMethodEnter
         public static void sanitizeParam(@Advice.Argument(value = 0, readOnly = false) String parameter) {
-            if (parameter == null) {
-                return;
-            }
-            
-            if (XSS_PATTERN.matcher(parameter).find()) {
-                LOGGER.warning("[SecurityPatch] Potential XSS attack detected: " + parameter);
-                
-                // Sanitize by escaping HTML
-                String sanitized = escapeHtml(parameter);
-                
-                // Replace the original parameter with sanitized version
-                parameter = sanitized;
-            }
+            parameter = SecurityPatchAdvice.sanitizeParameter(parameter, -1);
         }
     }
     
@@ -86,29 +74,126 @@ public class SecurityPatchAdvice {
     public static class HttpArraySanitizer {
         @Advice.OnMethodExit
         public static void sanitizeParamArray(@Advice.Return(readOnly = false) String[] values) {
-            if (values == null || values.length == 0) {
-                return;
+            SecurityPatchAdvice.sanitizeParameterValues(values);
+        }
+    }
+    
+    /**
+     * Remove injection patterns from a SQL argument. Invoked from the inlined advice, so it must
+     * stay public; the advice itself cannot touch this class's private members.
+     * 
+     * @param sql The SQL passed to the patched method
+     * @return The sanitized SQL, or the argument itself if it is clean
+     */
+    public static String sanitizeSqlArgument(String sql) {
+        if (sql == null || !SQL_INJECTION_PATTERN.matcher(sql).find()) {
+            return sql;
+        }
+        
+        // Sanitize by replacing dangerous patterns
+        String sanitized = SQL_INJECTION_PATTERN.matcher(sql).replaceAll("");
+        SQL_SANITIZED_COUNT.increment();
+        
+        SQL_WARNINGS.warn("[SecurityPatch] Potential SQL injection detected: " + sql);
+        AgentEvents.sqlSanitized(sql, sanitized);
+        return sanitized;
+    }
+    
+    /**
+     * Escape an HTTP parameter that matches the XSS pattern. Invoked from the inlined advice, so it
+     * must stay public.
+     * 
+     * @param parameter The parameter value
+     * @param index The index in a parameter array, or -1 for a single parameter
+     * @return The escaped value, or the value itself if it is clean
+     */
+    public static String sanitizeParameter(String parameter, int index) {
+        if (parameter == null || !XSS_PATTERN.matcher(parameter).find()) {
+            return parameter;
+        }
+        
+        XSS_ESCAPED_COUNT.increment();
+        if (index < 0) {
+            XSS_WARNINGS.warn("[SecurityPatch] Potential XSS attack detected: " + parameter);
+        } else {
+            XSS_WARNINGS.warn("[SecurityPatch] Potential XSS attack detected in parameter array: " + parameter);
+        }
+        AgentEvents.xssEscaped(parameter, index);
+        
+        // Sanitize by escaping HTML
+        return escapeHtml(parameter);
+    }
+    
+    /**
+     * Escape, in place, every value of a parameter array that matches the XSS pattern. Invoked from
+     * the inlined advice, so it must stay public.
+     * 
+     * @param values The parameter values
+     */
+    public static void sanitizeParameterValues(String[] values) {
+        if (values == null || values.length == 0) {
+            return;
+        }
+        
+        boolean modified = false;
+        
+        for (int i = 0; i < values.length; i++) {
+            String sanitized = sanitizeParameter(values[i], i);
+            if (sanitized != values[i]) {
+                values[i] = sanitized;
+                modified = true;
             }
-            
-            boolean modified = false;
-            
-            for (int i = 0; i < values.length; i++) {
-                String value = values[i];
-                if (value != null && XSS_PATTERN.matcher(value).find()) {
-                    LOGGER.warning("[SecurityPatch] Potential XSS attack detected in parameter array: " + value);
-                    
-                    // Sanitize by escaping HTML
-                    values[i] = escapeHtml(value);
-                    modified = true;
+        }
+        
+        if (modified) {
+            LOGGER.info("[SecurityPatch] Sanitized parameter array values");
+        }
+    }
+    
+    /**
+     * Rate limit of one kind of security warning. Warnings over the limit are counted and the count
+     * is appended to the next warning logged.
+     */
+    private static final class WarningLimit {
+        // The current second in the high bits, warnings logged in it in the low 20 bits
+        private static final int COUNT_BITS = 20;
+        private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+        
+        private final AtomicLong window = new AtomicLong();
+        private final LongAdder suppressed = new LongAdder();
+        
+        void warn(String message) {
+            long second = System.nanoTime() / 1_000_000_000L;
+            while (true) {
+                long current = window.get();
+                long next = (current >>> COUNT_BITS) == second ? current + 1 : second << COUNT_BITS | 1;
+                if ((next & COUNT_MASK) > WARNINGS_PER_SECOND) {
+                    suppressed.increment();
+                    return;
+                }
+                if (window.compareAndSet(current, next)) {
+                    break;
                 }
             }
-            
-            if (modified) {
-                LOGGER.info("[SecurityPatch] Sanitized parameter array values");
-            }
+            long skipped = suppressed.sumThenReset();
+            LOGGER.warning(skipped == 0 ? message : message + " (" + skipped + " similar warnings suppressed)");
         }
     }
     
+    /**
+     * @return Number of SQL statements sanitized since startup
+     */
+    static long getSqlSanitizedCount() {
+        return SQL_SANITIZED_COUNT.sum();
+    }
+    
+    /**
+     * @return Number of HTTP parameter values escaped since startup
+     */
+    static long getXssEscapedCount() {
+        return XSS_ESCAPED_COUNT.sum();
+    }
+    
     /**
      * Escape HTML special characters to prevent XSS attacks.
      * 
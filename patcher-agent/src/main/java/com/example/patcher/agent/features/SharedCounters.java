@@ -0,0 +1,305 @@
+package com.example.patcher.agent.features;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Profiler counters and histograms published to a memory-mapped file for out-of-process readers.
+ * <p>
+ * Enabled with {@code -Dspeeddoctor.profiler.sharedMemory=path/to/file}. Much like
+ * {@code hsperfdata} for {@code jstat}, a sidecar can map the file and poll it without JMX, HTTP or
+ * any other round-trip into the profiled JVM. A publisher thread rewrites the file every
+ * {@code speeddoctor.profiler.sharedMemory.intervalMs} with the heaviest methods first.
+ * <p>
+ * File layout (big-endian, all longs 8-byte aligned):
+ * <pre>
+ * header   0  int   magic 0x53445348 ("SDSH")
+ *          4  int   layout version (1)
+ *          8  int   record capacity
+ *         12  int   histogram buckets per record
+ *         16  long  header sequence (seqlock)
+ *         24  int   number of valid records
+ *         28  int   reserved
+ *         32  long  time of the last publish, epoch millis
+ *         40  long  publish interval, millis
+ * record   0  long  record sequence (seqlock)
+ *          8  short signature length, then 254 bytes of UTF-8 signature
+ *        264  long  count, total_ns, min_ns, max_ns, slow hits, p50_ns, p90_ns, p99_ns, p999_ns
+ *        336  long[buckets] histogram bucket counts, see {@link LatencyHistogram}
+ * </pre>
+ * Records start at byte 64 and are {@value #RECORD_SIZE} bytes each. Every sequence is odd while
+ * its data is being written and is incremented to the next even value afterwards. A reader reads
+ * the sequence, the data, then the sequence again, and retries if it was odd or has changed; readers
+ * never block the writer. {@link #main(String[])} is a reader CLI that prints the top hotspots.
+ */
+public final class SharedCounters {
+    private static final Logger LOGGER = Logger.getLogger(SharedCounters.class.getName());
+
+    static final String PATH = System.getProperty("speeddoctor.profiler.sharedMemory", "");
+    static final boolean ENABLED = !PATH.isEmpty();
+    private static final long INTERVAL_MS = Long.parseLong(
+            System.getProperty("speeddoctor.profiler.sharedMemory.intervalMs", "1000"));
+    private static final int CAPACITY = Math.max(1, Integer.parseInt(
+            System.getProperty("speeddoctor.profiler.sharedMemory.maxMethods", "1024")));
+
+    static final int MAGIC = 0x53445348;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    private static final int SIGNATURE_OFFSET = 8;
+    private static final int SIGNATURE_BYTES = 254;
+    private static final int STATS_OFFSET = 264;
+    private static final int BUCKETS_OFFSET = STATS_OFFSET + 9 * Long.BYTES;
+    static final int RECORD_SIZE = BUCKETS_OFFSET + LatencyHistogram.BUCKET_COUNT * Long.BYTES;
+
+    private static final int HEADER_SEQUENCE_OFFSET = 16;
+    private static final int COUNT_OFFSET = 24;
+    private static final int TIME_OFFSET = 32;
+    private static final int INTERVAL_OFFSET = 40;
+    private static final int MAX_READ_ATTEMPTS = 100;
+
+    // Ordered access to the sequence words of the mapped file
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    private static MappedByteBuffer mapped;
+    private static ScheduledExecutorService publisher;
+
+    private SharedCounters() {
+    }
+
+    /**
+     * Map the shared file and start the publisher thread if shared memory is enabled.
+     */
+    static synchronized void start() {
+        if (!ENABLED || publisher != null) {
+            return;
+        }
+        Path path = Paths.get(PATH);
+        try {
+            mapped = map(path, CAPACITY);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "[Profiler] Failed to map shared counters " + path.toAbsolutePath(), e);
+            return;
+        }
+        publisher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "speeddoctor-profiler-publisher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        MappedByteBuffer buffer = mapped;
+        publisher.scheduleAtFixedRate(() -> {
+            try {
+                publish(buffer, ProfilerAdvice.collectMethodStats());
+            } catch (RuntimeException e) {
+                LOGGER.warning("[Profiler] Failed to publish shared counters: " + e.getMessage());
+            }
+        }, INTERVAL_MS, INTERVAL_MS, TimeUnit.MILLISECONDS);
+        LOGGER.info("[Profiler] Publishing counters to " + path.toAbsolutePath() + " every " + INTERVAL_MS + "ms");
+    }
+
+    /**
+     * Stop the publisher thread. The file keeps the last published counters.
+     */
+    static synchronized void stop() {
+        if (publisher != null) {
+            publisher.shutdownNow();
+            publisher = null;
+            mapped = null;
+        }
+    }
+
+    /**
+     * Create (or re-create) a shared counters file and map it for writing.
+     */
+    static MappedByteBuffer map(Path path, int capacity) throws IOException {
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        long size = HEADER_SIZE + (long) capacity * RECORD_SIZE;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            channel.truncate(size);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            // Start from even sequences so stale values of a previous process are never mistaken as current
+            LONGS.setRelease(buffer, HEADER_SEQUENCE_OFFSET, 0L);
+            buffer.putInt(COUNT_OFFSET, 0);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putInt(8, capacity);
+            buffer.putInt(12, LatencyHistogram.BUCKET_COUNT);
+            buffer.putLong(INTERVAL_OFFSET, INTERVAL_MS);
+            return buffer;
+        }
+    }
+
+    /**
+     * Publish methods into a mapped file, heaviest first. Only one thread may publish at a time.
+     *
+     * @param buffer A file mapped by {@link #map(Path, int)}
+     * @param methods The methods to publish
+     */
+    static void publish(ByteBuffer buffer, List<HotspotStore.MethodStats> methods) {
+        List<HotspotStore.MethodStats> sorted = new ArrayList<>(methods);
+        sorted.sort((a, b) -> Long.compare(b.getHistogram().getTotal(), a.getHistogram().getTotal()));
+        int capacity = buffer.getInt(8);
+        int count = Math.min(capacity, sorted.size());
+
+        for (int i = 0; i < count; i++) {
+            int record = HEADER_SIZE + i * RECORD_SIZE;
+            long sequence = (long) LONGS.getOpaque(buffer, record);
+            LONGS.setOpaque(buffer, record, sequence | 1);
+            VarHandle.storeStoreFence();
+            writeRecord(buffer, record, sorted.get(i));
+            LONGS.setRelease(buffer, record, (sequence | 1) + 1);
+        }
+
+        long sequence = (long) LONGS.getOpaque(buffer, HEADER_SEQUENCE_OFFSET);
+        LONGS.setOpaque(buffer, HEADER_SEQUENCE_OFFSET, sequence | 1);
+        VarHandle.storeStoreFence();
+        buffer.putInt(COUNT_OFFSET, count);
+        buffer.putLong(TIME_OFFSET, System.currentTimeMillis());
+        LONGS.setRelease(buffer, HEADER_SEQUENCE_OFFSET, (sequence | 1) + 1);
+    }
+
+    /**
+     * Read a consistent snapshot of every published record. Safe to call from another process
+     * while the profiled JVM keeps publishing.
+     *
+     * @param buffer The mapped shared counters file
+     * @return The published methods, heaviest first
+     * @throws IOException If the buffer is not a shared counters file
+     */
+    public static List<HotspotStore.MethodStats> read(ByteBuffer buffer) throws IOException {
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a shared counters file");
+        }
+        if (buffer.getInt(4) != VERSION || buffer.getInt(12) != LatencyHistogram.BUCKET_COUNT) {
+            throw new IOException("Unsupported shared counters layout");
+        }
+        int capacity = buffer.getInt(8);
+        int count = -1;
+        for (int attempt = 0; attempt < MAX_READ_ATTEMPTS && count < 0; attempt++) {
+            long before = (long) LONGS.getAcquire(buffer, HEADER_SEQUENCE_OFFSET);
+            int candidate = buffer.getInt(COUNT_OFFSET);
+            VarHandle.loadLoadFence();
+            long after = (long) LONGS.getOpaque(buffer, HEADER_SEQUENCE_OFFSET);
+            if ((before & 1) == 0 && before == after) {
+                count = candidate;
+            }
+        }
+        count = Math.max(0, Math.min(capacity, count));
+
+        List<HotspotStore.MethodStats> methods = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int record = HEADER_SIZE + i * RECORD_SIZE;
+            for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+                long before = (long) LONGS.getAcquire(buffer, record);
+                if ((before & 1) != 0) {
+                    Thread.onSpinWait();
+                    continue;
+                }
+                HotspotStore.MethodStats method = readRecord(buffer, record);
+                VarHandle.loadLoadFence();
+                if ((long) LONGS.getOpaque(buffer, record) == before) {
+                    methods.add(method);
+                    break;
+                }
+            }
+        }
+        return methods;
+    }
+
+    /**
+     * Print the top hotspots of a shared counters file:
+     * {@code java -cp patcher-agent.jar com.example.patcher.agent.features.SharedCounters <file> [top] [intervalSeconds]}.
+     * With an interval, the file is polled and printed until the reader is stopped.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1) {
+            System.err.println("Usage: SharedCounters <file> [top] [intervalSeconds]");
+            System.exit(1);
+        }
+        Path path = Paths.get(args[0]);
+        int top = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        long intervalSeconds = args.length > 2 ? Long.parseLong(args[2]) : 0;
+
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        do {
+            List<HotspotStore.MethodStats> methods = read(buffer);
+            System.out.println(String.format("%-12s %12s %14s %10s %10s  %s", "total_ms", "count", "hits",
+                    "p50_us", "p99_us", "method"));
+            for (HotspotStore.MethodStats method : methods.subList(0, Math.min(top, methods.size()))) {
+                LatencyHistogram.Snapshot snapshot = method.getHistogram();
+                System.out.println(String.format("%-12.1f %12d %14d %10.1f %10.1f  %s",
+                        snapshot.getTotal() / 1_000_000.0, snapshot.getCount(), method.getSlowHits(),
+                        snapshot.getValueAtQuantile(0.50) / 1_000.0, snapshot.getValueAtQuantile(0.99) / 1_000.0,
+                        method.getSignature()));
+            }
+            if (intervalSeconds > 0) {
+                System.out.println();
+                Thread.sleep(intervalSeconds * 1_000);
+            }
+        } while (intervalSeconds > 0);
+    }
+
+    private static void writeRecord(ByteBuffer buffer, int record, HotspotStore.MethodStats method) {
+        byte[] signature = method.getSignature().getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(signature.length, SIGNATURE_BYTES);
+        buffer.putShort(record + SIGNATURE_OFFSET, (short) length);
+        for (int i = 0; i < length; i++) {
+            buffer.put(record + SIGNATURE_OFFSET + 2 + i, signature[i]);
+        }
+        LatencyHistogram.Snapshot snapshot = method.getHistogram();
+        int stats = record + STATS_OFFSET;
+        buffer.putLong(stats, snapshot.getCount());
+        buffer.putLong(stats + 8, snapshot.getTotal());
+        buffer.putLong(stats + 16, snapshot.getMin());
+        buffer.putLong(stats + 24, snapshot.getMax());
+        buffer.putLong(stats + 32, method.getSlowHits());
+        buffer.putLong(stats + 40, snapshot.getValueAtQuantile(0.50));
+        buffer.putLong(stats + 48, snapshot.getValueAtQuantile(0.90));
+        buffer.putLong(stats + 56, snapshot.getValueAtQuantile(0.99));
+        buffer.putLong(stats + 64, snapshot.getValueAtQuantile(0.999));
+        for (int i = 0; i < LatencyHistogram.BUCKET_COUNT; i++) {
+            buffer.putLong(record + BUCKETS_OFFSET + i * Long.BYTES, snapshot.getBucketCount(i));
+        }
+    }
+
+    private static HotspotStore.MethodStats readRecord(ByteBuffer buffer, int record) {
+        int length = Math.max(0, Math.min(buffer.getShort(record + SIGNATURE_OFFSET) & 0xFFFF, SIGNATURE_BYTES));
+        byte[] signature = new byte[length];
+        for (int i = 0; i < length; i++) {
+            signature[i] = buffer.get(record + SIGNATURE_OFFSET + 2 + i);
+        }
+        int stats = record + STATS_OFFSET;
+        long total = buffer.getLong(stats + 8);
+        long min = buffer.getLong(stats + 16);
+        long max = buffer.getLong(stats + 24);
+        long slowHits = buffer.getLong(stats + 32);
+        long[] buckets = new long[LatencyHistogram.BUCKET_COUNT];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = buffer.getLong(record + BUCKETS_OFFSET + i * Long.BYTES);
+        }
+        return new HotspotStore.MethodStats(new String(signature, StandardCharsets.UTF_8), slowHits, 0,
+                LatencyHistogram.Snapshot.fromBuckets(buckets, total, min, max));
+    }
+}
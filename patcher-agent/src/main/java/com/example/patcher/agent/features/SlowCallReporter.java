@@ -0,0 +1,175 @@
+package com.example.patcher.agent.features;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/**
+ * Reports slow profiled calls from a background thread.
+ * <p>
+ * Application threads only publish a (method ID, duration) pair into a bounded lock-free
+ * {@link ProfilerEventQueue}. A single daemon thread drains the queue, logs slow calls in batches
+ * and periodically logs the hotspot summary, so no string formatting, logging or sorting happens
+ * on the application thread. When the queue is full, events are either dropped and counted
+ * ({@code -Dspeeddoctor.profiler.dropOnFull=true}, the default) or logged synchronously by the
+ * calling thread.
+ */
+final class SlowCallReporter {
+    private static final Logger LOGGER = Logger.getLogger(SlowCallReporter.class.getName());
+
+    private static final int QUEUE_SIZE = Integer.parseInt(
+            System.getProperty("speeddoctor.profiler.eventQueueSize", "8192"));
+    private static final boolean DROP_ON_FULL = Boolean.parseBoolean(
+            System.getProperty("speeddoctor.profiler.dropOnFull", "true"));
+    private static final int BATCH_SIZE = 256;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private static final ProfilerEventQueue QUEUE = new ProfilerEventQueue(QUEUE_SIZE);
+    private static final AtomicLong DROPPED_EVENTS = new AtomicLong();
+
+    // Consumer-side state, guarded by DRAIN_LOCK
+    private static final Object DRAIN_LOCK = new Object();
+    private static final StringBuilder BATCH = new StringBuilder();
+    private static int batchSize;
+    private static int lastSummarizedSlowMethods;
+    private static long lastReportedDrops;
+    private static final ProfilerEventQueue.Consumer BATCH_APPENDER = (methodId, durationNanos) -> {
+        BATCH.append("\n  ").append(MethodRegistry.getSignature(methodId))
+             .append(" took ").append(durationNanos / 1_000_000).append("ms");
+        batchSize++;
+    };
+
+    private static Thread drainThread;
+
+    private SlowCallReporter() {
+    }
+
+    /**
+     * Hand a slow call to the background reporter. Called on the application thread.
+     *
+     * @param methodId The {@link MethodRegistry} ID of the method
+     * @param durationNanos The call duration in nanoseconds
+     */
+    static void submit(int methodId, long durationNanos) {
+        if (QUEUE.offer(methodId, durationNanos)) {
+            return;
+        }
+        if (DROP_ON_FULL) {
+            DROPPED_EVENTS.incrementAndGet();
+        } else {
+            LOGGER.info("[Profiler] " + MethodRegistry.getSignature(methodId) + " took "
+                    + (durationNanos / 1_000_000) + "ms");
+        }
+    }
+
+    /**
+     * Start the background drain thread if it is not already running.
+     */
+    static synchronized void start() {
+        if (drainThread != null) {
+            return;
+        }
+        drainThread = new Thread(SlowCallReporter::run, "speeddoctor-profiler-events");
+        drainThread.setDaemon(true);
+        drainThread.start();
+        LOGGER.info("[Profiler] Slow-call reporter started (queue capacity " + QUEUE.capacity()
+                + ", " + (DROP_ON_FULL ? "drop" : "log inline") + " when full)");
+    }
+
+    /**
+     * Stop the background drain thread and log what is left in the queue.
+     */
+    static synchronized void stop() {
+        if (drainThread != null) {
+            drainThread.interrupt();
+            drainThread = null;
+            flush();
+        }
+    }
+
+    /**
+     * Drain and log everything currently queued, e.g. before shutdown.
+     */
+    static void flush() {
+        while (drainBatch() > 0) {
+            // keep draining until the queue is empty
+        }
+    }
+
+    /**
+     * @return Number of slow-call events dropped because the queue was full
+     */
+    static long getDroppedEvents() {
+        return DROPPED_EVENTS.get();
+    }
+
+    private static void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                if (drainBatch() == 0) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+            } catch (RuntimeException e) {
+                LOGGER.warning("[Profiler] Slow-call reporter error: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Drain one batch, log it as a single record and emit the hotspot summary if due.
+     *
+     * @return The number of events drained
+     */
+    private static int drainBatch() {
+        synchronized (DRAIN_LOCK) {
+            BATCH.setLength(0);
+            batchSize = 0;
+            int drained = QUEUE.drain(BATCH_APPENDER, BATCH_SIZE);
+            if (drained > 0) {
+                LOGGER.info("[Profiler] " + batchSize + " slow call(s):" + BATCH);
+            }
+
+            long dropped = DROPPED_EVENTS.get();
+            if (dropped != lastReportedDrops) {
+                LOGGER.warning("[Profiler] " + (dropped - lastReportedDrops)
+                        + " slow-call event(s) dropped, queue full (" + dropped + " total)");
+                lastReportedDrops = dropped;
+            }
+
+            // Periodically output the top slow methods for analysis
+            int slowMethods = ProfilerAdvice.getSlowMethodCount();
+            if (slowMethods / 10 > lastSummarizedSlowMethods / 10) {
+                lastSummarizedSlowMethods = slowMethods;
+                logHotspots();
+            }
+            return drained;
+        }
+    }
+
+    /**
+     * Log the current hotspots to help identify performance issues.
+     */
+    private static void logHotspots() {
+        StringBuilder sb = new StringBuilder("\n==== PERFORMANCE HOTSPOTS ====\n");
+
+        List<Integer> slowIds = new ArrayList<>();
+        for (int id = 0; id < MethodRegistry.size(); id++) {
+            if (ProfilerAdvice.getSlowHits(id) > 0) {
+                slowIds.add(id);
+            }
+        }
+        slowIds.stream()
+            .sorted((id1, id2) -> Long.compare(ProfilerAdvice.getSlowHits(id2), ProfilerAdvice.getSlowHits(id1)))
+            .limit(5)
+            .forEach(id -> {
+                sb.append(MethodRegistry.getSignature(id)).append(": ")
+                  .append(ProfilerAdvice.getSlowHits(id)).append(" hits\n");
+            });
+
+        sb.append("===============================");
+        LOGGER.info(sb.toString());
+    }
+}
@@ -0,0 +1,146 @@
+package com.example.patcher.agent.features;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Logger;
+
+/**
+ * Striped, LongAdder-style profiler accumulators with a periodic merge into the global histograms.
+ * <p>
+ * Enabled with {@code -Dspeeddoctor.profiler.accumulation=striped}. Each method gets one histogram
+ * per stripe and a thread always records into the stripe selected by hashing its thread ID, so
+ * hundreds of threads hammering the same method spread their writes over separate cache lines
+ * instead of fighting over one. A background merger folds the stripes into the global histograms
+ * every {@code speeddoctor.profiler.mergeIntervalMs}.
+ * <p>
+ * Stripes are not owned by threads: a thread that dies simply stops writing, and whatever it
+ * recorded is picked up by the next merge. The number of stripes is fixed, so millions of
+ * short-lived virtual threads cost no more memory than a handful of platform threads.
+ */
+final class StripedAccumulators {
+    private static final Logger LOGGER = Logger.getLogger(StripedAccumulators.class.getName());
+
+    static final boolean ENABLED = "striped".equalsIgnoreCase(
+            System.getProperty("speeddoctor.profiler.accumulation", "shared"));
+    private static final long MERGE_INTERVAL_MS = Long.parseLong(
+            System.getProperty("speeddoctor.profiler.mergeIntervalMs", "1000"));
+    private static final int STRIPE_BITS = stripeBits(Integer.parseInt(System.getProperty(
+            "speeddoctor.profiler.stripes",
+            String.valueOf(Math.min(16, Runtime.getRuntime().availableProcessors())))));
+    private static final int STRIPES = 1 << STRIPE_BITS;
+
+    private static final AtomicReferenceArray<AtomicReferenceArray<LatencyHistogram>> LOCAL =
+            new AtomicReferenceArray<>(MethodRegistry.capacity());
+
+    private static ScheduledExecutorService merger;
+
+    private StripedAccumulators() {
+    }
+
+    /**
+     * Get the histogram the current thread should record into for a method.
+     *
+     * @param methodId The {@link MethodRegistry} ID of the method
+     * @return The stripe-local histogram
+     */
+    static LatencyHistogram histogramFor(int methodId) {
+        AtomicReferenceArray<LatencyHistogram> stripes = LOCAL.get(methodId);
+        if (stripes == null) {
+            stripes = createStripes(methodId);
+        }
+        int stripe = stripeIndex(Thread.currentThread().getId());
+        LatencyHistogram histogram = stripes.get(stripe);
+        if (histogram == null) {
+            histogram = createHistogram(stripes, stripe);
+        }
+        return histogram;
+    }
+
+    /**
+     * Fold all stripes into the global histograms owned by {@link ProfilerAdvice}.
+     */
+    static synchronized void merge() {
+        int size = MethodRegistry.size();
+        for (int id = 0; id < size; id++) {
+            AtomicReferenceArray<LatencyHistogram> stripes = LOCAL.get(id);
+            if (stripes == null) {
+                continue;
+            }
+            LatencyHistogram global = ProfilerAdvice.globalHistogram(id);
+            for (int stripe = 0; stripe < STRIPES; stripe++) {
+                LatencyHistogram local = stripes.get(stripe);
+                if (local != null) {
+                    local.drainInto(global);
+                }
+            }
+        }
+    }
+
+    /**
+     * Start the background merger if striped accumulation is enabled.
+     */
+    static synchronized void start() {
+        if (!ENABLED || merger != null) {
+            return;
+        }
+        merger = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "speeddoctor-profiler-merger");
+            thread.setDaemon(true);
+            return thread;
+        });
+        merger.scheduleAtFixedRate(() -> {
+            try {
+                merge();
+            } catch (RuntimeException e) {
+                LOGGER.warning("[Profiler] Failed to merge striped accumulators: " + e.getMessage());
+            }
+        }, MERGE_INTERVAL_MS, MERGE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        LOGGER.info("[Profiler] Striped accumulation enabled with " + STRIPES + " stripes, merging every "
+                + MERGE_INTERVAL_MS + "ms");
+    }
+
+    /**
+     * Stop the background merger, folding what the stripes still hold into the global histograms.
+     */
+    static synchronized void stop() {
+        if (merger != null) {
+            merger.shutdownNow();
+            merger = null;
+            merge();
+        }
+    }
+
+    /**
+     * Map a thread ID onto a stripe using Fibonacci hashing, which spreads sequential IDs evenly.
+     */
+    static int stripeIndex(long threadId) {
+        return STRIPE_BITS == 0 ? 0 : (int) ((threadId * 0x9E3779B97F4A7C15L) >>> (64 - STRIPE_BITS));
+    }
+
+    static int stripeCount() {
+        return STRIPES;
+    }
+
+    private static int stripeBits(int requestedStripes) {
+        int stripes = Math.max(1, Math.min(64, requestedStripes));
+        return 32 - Integer.numberOfLeadingZeros(stripes - 1);
+    }
+
+    private static AtomicReferenceArray<LatencyHistogram> createStripes(int methodId) {
+        AtomicReferenceArray<LatencyHistogram> created = new AtomicReferenceArray<>(STRIPES);
+        if (LOCAL.compareAndSet(methodId, null, created)) {
+            return created;
+        }
+        return LOCAL.get(methodId);
+    }
+
+    private static LatencyHistogram createHistogram(AtomicReferenceArray<LatencyHistogram> stripes, int stripe) {
+        LatencyHistogram created = new LatencyHistogram();
+        if (stripes.compareAndSet(stripe, null, created)) {
+            return created;
+        }
+        return stripes.get(stripe);
+    }
+}
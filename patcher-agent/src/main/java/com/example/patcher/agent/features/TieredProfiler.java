@@ -0,0 +1,333 @@
+package com.example.patcher.agent.features;
+
+import net.bytebuddy.description.method.MethodDescription;
+import net.bytebuddy.matcher.ElementMatcher;
+
+import java.lang.instrument.Instrumentation;
+import java.lang.ref.WeakReference;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Logger;
+
+/**
+ * Two-tier profiler instrumentation that only pays for full timing on methods that matter.
+ * <p>
+ * Enabled with {@code -Dspeeddoctor.profiler.tiered=true}. At class load every matched method only
+ * gets {@link ProfilerAdvice.Counter}, a cheap invocation counter that also times one call in
+ * {@code speeddoctor.profiler.tier.latencySampleEvery}. Once per interval a controller promotes
+ * methods that were called at least {@code tier.promoteCalls} times, or whose sampled latency
+ * reached {@code tier.promoteNanos}, and retransforms their classes so those methods get the full
+ * {@link ProfilerAdvice}. Methods that stay timed for {@code tier.demoteAfterIntervals} intervals
+ * with a p99 below {@code tier.demoteNanos} are demoted back to the counter for good, so trivial
+ * methods neither keep the timing code nor flap between tiers.
+ * <p>
+ * Retransformation only rewrites existing method bodies, so the tiers are applied with advice
+ * visitors rather than intercepted implementations that would add members to the class.
+ */
+final class TieredProfiler {
+    private static final Logger LOGGER = Logger.getLogger(TieredProfiler.class.getName());
+
+    static final boolean ENABLED = Boolean.parseBoolean(
+            System.getProperty("speeddoctor.profiler.tiered", "false"));
+    private static final long INTERVAL_MS = Long.parseLong(
+            System.getProperty("speeddoctor.profiler.tier.intervalMs", "1000"));
+    private static final long PROMOTE_CALLS = Long.parseLong(
+            System.getProperty("speeddoctor.profiler.tier.promoteCalls", "1000"));
+    private static final long PROMOTE_NANOS = Long.parseLong(
+            System.getProperty("speeddoctor.profiler.tier.promoteNanos", "1000000"));
+    private static final long DEMOTE_NANOS = Long.parseLong(
+            System.getProperty("speeddoctor.profiler.tier.demoteNanos", "2000"));
+    private static final int DEMOTE_AFTER_INTERVALS = Integer.parseInt(
+            System.getProperty("speeddoctor.profiler.tier.demoteAfterIntervals", "30"));
+    private static final long LATENCY_SAMPLE_MASK = latencySampleMask(Integer.parseInt(
+            System.getProperty("speeddoctor.profiler.tier.latencySampleEvery", "1024")));
+
+    /**
+     * Returned by the counter's enter advice when the call's latency is not sampled.
+     */
+    static final long NOT_SAMPLED = AdaptiveSampler.NOT_SAMPLED;
+
+    static final int COUNTING = 0;
+    static final int TIMED = 1;
+    static final int DEMOTED = 2;
+
+    private static final AtomicIntegerArray TIERS = new AtomicIntegerArray(MethodRegistry.capacity());
+    private static final AtomicLongArray INVOCATIONS = new AtomicLongArray(MethodRegistry.capacity());
+    private static final AtomicLongArray MAX_SAMPLED_NANOS = new AtomicLongArray(MethodRegistry.capacity());
+    private static final AtomicReferenceArray<DeclaringClass> CLASSES =
+            new AtomicReferenceArray<>(MethodRegistry.capacity());
+
+    // Controller state, only touched by the controller thread
+    private static long[] lastInvocations = new long[0];
+    private static int[] timedIntervals = new int[0];
+    private static ScheduledExecutorService controller;
+
+    private TieredProfiler() {
+    }
+
+    /**
+     * Count a call in the cheap tier.
+     *
+     * @param methodId The {@link MethodRegistry} ID of the method
+     * @return The start timestamp if this call's latency is sampled, {@link #NOT_SAMPLED} otherwise
+     */
+    static long count(int methodId) {
+        long calls = INVOCATIONS.incrementAndGet(methodId);
+        // The first call is always sampled so that rarely called slow methods get promoted too
+        return ((calls - 1) & LATENCY_SAMPLE_MASK) == 0 ? System.nanoTime() : NOT_SAMPLED;
+    }
+
+    /**
+     * Finish a call in the cheap tier.
+     *
+     * @param methodId The {@link MethodRegistry} ID of the method
+     * @param start The value returned by {@link #count(int)}
+     */
+    static void countExit(int methodId, long start) {
+        if (start == NOT_SAMPLED) {
+            return;
+        }
+        long duration = System.nanoTime() - start;
+        long max;
+        while (duration > (max = MAX_SAMPLED_NANOS.get(methodId))) {
+            if (MAX_SAMPLED_NANOS.compareAndSet(methodId, max, duration)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return The current tier of a method: {@link #COUNTING}, {@link #TIMED} or {@link #DEMOTED}
+     */
+    static int getTier(int methodId) {
+        return TIERS.get(methodId);
+    }
+
+    /**
+     * @return Number of calls counted while the method was in the cheap tier
+     */
+    static long getInvocations(int methodId) {
+        return INVOCATIONS.get(methodId);
+    }
+
+    /**
+     * Matcher for the methods that currently get the full timing advice.
+     *
+     * @param methodMatcher The profiler's method matcher
+     * @param classLoader The loader of the class being transformed, remembered for retransformation
+     */
+    static ElementMatcher<MethodDescription> timed(ElementMatcher<? super MethodDescription> methodMatcher,
+                                                   ClassLoader classLoader) {
+        return new TierMatcher(methodMatcher, classLoader, true);
+    }
+
+    /**
+     * Matcher for the methods that currently get only the invocation counter.
+     *
+     * @param methodMatcher The profiler's method matcher
+     * @param classLoader The loader of the class being transformed, remembered for retransformation
+     */
+    static ElementMatcher<MethodDescription> counted(ElementMatcher<? super MethodDescription> methodMatcher,
+                                                     ClassLoader classLoader) {
+        return new TierMatcher(methodMatcher, classLoader, false);
+    }
+
+    /**
+     * Start the tier controller if tiered instrumentation is enabled.
+     *
+     * @param inst The instrumentation used to retransform classes whose methods change tier
+     */
+    static synchronized void start(Instrumentation inst) {
+        if (!ENABLED || controller != null) {
+            return;
+        }
+        if (!inst.isRetransformClassesSupported()) {
+            LOGGER.warning("[Profiler] Tiered instrumentation needs class retransformation, "
+                    + "methods stay in the counting tier");
+            return;
+        }
+        controller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "speeddoctor-profiler-tiers");
+            thread.setDaemon(true);
+            return thread;
+        });
+        controller.scheduleAtFixedRate(() -> {
+            try {
+                adjustTiers(inst);
+            } catch (RuntimeException e) {
+                LOGGER.warning("[Profiler] Failed to adjust instrumentation tiers: " + e.getMessage());
+            }
+        }, INTERVAL_MS, INTERVAL_MS, TimeUnit.MILLISECONDS);
+        LOGGER.info("[Profiler] Tiered instrumentation enabled: promoting after " + PROMOTE_CALLS
+                + " calls or " + PROMOTE_NANOS + "ns per " + INTERVAL_MS + "ms interval");
+    }
+
+    /**
+     * Stop the tier controller. Methods stay in their current tier.
+     */
+    static synchronized void stop() {
+        if (controller != null) {
+            controller.shutdownNow();
+            controller = null;
+        }
+    }
+
+    /**
+     * Promote and demote methods based on the last interval, then retransform the affected classes.
+     *
+     * @return Number of classes that were retransformed
+     */
+    static synchronized int adjustTiers(Instrumentation inst) {
+        int size = MethodRegistry.size();
+        if (lastInvocations.length < size) {
+            long[] grownInvocations = new long[size];
+            System.arraycopy(lastInvocations, 0, grownInvocations, 0, lastInvocations.length);
+            lastInvocations = grownInvocations;
+            int[] grownIntervals = new int[size];
+            System.arraycopy(timedIntervals, 0, grownIntervals, 0, timedIntervals.length);
+            timedIntervals = grownIntervals;
+        }
+
+        Set<DeclaringClass> changed = new LinkedHashSet<>();
+        int promoted = 0;
+        int demoted = 0;
+        for (int id = 0; id < size; id++) {
+            DeclaringClass declaringClass = CLASSES.get(id);
+            if (declaringClass == null) {
+                continue;
+            }
+            long invocations = INVOCATIONS.get(id);
+            long calls = invocations - lastInvocations[id];
+            lastInvocations[id] = invocations;
+
+            int tier = TIERS.get(id);
+            if (tier == COUNTING) {
+                if (calls >= PROMOTE_CALLS || MAX_SAMPLED_NANOS.get(id) >= PROMOTE_NANOS) {
+                    TIERS.set(id, TIMED);
+                    timedIntervals[id] = 0;
+                    changed.add(declaringClass);
+                    promoted++;
+                }
+            } else if (tier == TIMED && ++timedIntervals[id] >= DEMOTE_AFTER_INTERVALS && isTrivial(id)) {
+                TIERS.set(id, DEMOTED);
+                changed.add(declaringClass);
+                demoted++;
+            }
+        }
+        if (changed.isEmpty()) {
+            return 0;
+        }
+
+        int retransformed = 0;
+        for (DeclaringClass declaringClass : changed) {
+            Class<?> type = declaringClass.resolve();
+            if (type == null) {
+                continue;
+            }
+            try {
+                inst.retransformClasses(type);
+                retransformed++;
+            } catch (Exception | LinkageError e) {
+                LOGGER.warning("[Profiler] Failed to retransform " + declaringClass.name + ": " + e);
+            }
+        }
+        LOGGER.info("[Profiler] Promoted " + promoted + " and demoted " + demoted + " methods, retransformed "
+                + retransformed + " classes");
+        return retransformed;
+    }
+
+    /**
+     * A timed method is trivial when nearly all of its calls finish below the demotion threshold.
+     */
+    private static boolean isTrivial(int methodId) {
+        LatencyHistogram.Snapshot snapshot = ProfilerAdvice.globalHistogram(methodId).snapshot();
+        return snapshot.getCount() > 0 && snapshot.getValueAtQuantile(0.99) < DEMOTE_NANOS;
+    }
+
+    /**
+     * Remember the class declaring a profiled method, so that a tier change can retransform it.
+     */
+    static void track(int methodId, String className, ClassLoader classLoader) {
+        if (methodId != MethodRegistry.OVERFLOW_ID && CLASSES.get(methodId) == null) {
+            CLASSES.compareAndSet(methodId, null, new DeclaringClass(className, classLoader));
+        }
+    }
+
+    private static long latencySampleMask(int requestedEvery) {
+        int every = Math.max(1, requestedEvery);
+        return Integer.highestOneBit(every * 2 - 1) - 1L;
+    }
+
+    /**
+     * Selects the profiled methods of one tier, registering them and their class along the way.
+     */
+    private static final class TierMatcher extends ElementMatcher.Junction.AbstractBase<MethodDescription> {
+        private final ElementMatcher<? super MethodDescription> methodMatcher;
+        private final ClassLoader classLoader;
+        private final boolean timed;
+
+        TierMatcher(ElementMatcher<? super MethodDescription> methodMatcher, ClassLoader classLoader, boolean timed) {
+            this.methodMatcher = methodMatcher;
+            this.classLoader = classLoader;
+            this.timed = timed;
+        }
+
+        @Override
+        public boolean matches(MethodDescription target) {
+            if (!methodMatcher.matches(target)) {
+                return false;
+            }
+            int methodId = MethodRegistry.register(target.toString());
+            track(methodId, target.getDeclaringType().asErasure().getName(), classLoader);
+            TransformCache.recordTier(methodId, TIERS.get(methodId));
+            return (TIERS.get(methodId) == TIMED) == timed;
+        }
+    }
+
+    /**
+     * A class that declares profiled methods, held weakly so tracking it never pins its loader.
+     */
+    private static final class DeclaringClass {
+        private final String name;
+        private final WeakReference<ClassLoader> classLoader;
+        private final boolean bootstrap;
+
+        DeclaringClass(String name, ClassLoader classLoader) {
+            this.name = name;
+            this.classLoader = new WeakReference<>(classLoader);
+            this.bootstrap = classLoader == null;
+        }
+
+        Class<?> resolve() {
+            ClassLoader loader = classLoader.get();
+            if (loader == null && !bootstrap) {
+                return null;
+            }
+            try {
+                return Class.forName(name, false, loader);
+            } catch (ClassNotFoundException | LinkageError e) {
+                return null;
+            }
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof DeclaringClass)) {
+                return false;
+            }
+            DeclaringClass that = (DeclaringClass) other;
+            return name.equals(that.name) && classLoader.get() == that.classLoader.get();
+        }
+
+        @Override
+        public int hashCode() {
+            return name.hashCode();
+        }
+    }
+}
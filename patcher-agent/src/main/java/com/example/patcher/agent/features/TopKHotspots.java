@@ -0,0 +1,269 @@
+package com.example.patcher.agent.features;
+
+import net.bytebuddy.asm.Advice;
+import net.bytebuddy.implementation.bytecode.constant.LongConstant;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Fixed-memory top-K hotspot table for applications with an unbounded number of distinct methods.
+ * <p>
+ * Enabled with {@code -Dspeeddoctor.profiler.topK=N}. Instead of registering every method in the
+ * {@link MethodRegistry}, each method is identified by a 64-bit hash of its signature that is
+ * inlined at transform time. Only the K heaviest methods by total time own a histogram; everything
+ * else is folded into a count-min sketch of total time. The table is a 4-way set-associative
+ * space-saving structure: a method that misses the table replaces the lightest entry of its set once
+ * its sketch estimate exceeds that entry's total, and inherits the estimate as its starting total.
+ * An evicted entry's own time is added back into the sketch, so the sketch never underestimates a
+ * method's time outside the table.
+ * <p>
+ * Error guarantees: a tracked method's true total lies in {@code [total - total_err, total]}, where
+ * {@code total_err} is the estimate it was admitted with. With a sketch of width w and depth d, each
+ * estimate exceeds the true value by at most {@code e/w} of all recorded time with probability
+ * {@code 1 - e^-d}. Histogram columns (count, percentiles) cover the calls since the method
+ * entered the table. Memory is fixed by K and the sketch size regardless of the number of methods.
+ */
+final class TopKHotspots {
+    private static final Logger LOGGER = Logger.getLogger(TopKHotspots.class.getName());
+
+    static final int K = Integer.parseInt(System.getProperty("speeddoctor.profiler.topK", "0"));
+    static final boolean ENABLED = K > 0;
+    private static final int WAYS = 4;
+    private static final int SETS = Integer.highestOneBit(Math.max(1, (Math.max(K, WAYS) + WAYS - 1) / WAYS * 2 - 1));
+    private static final int SLOT_COUNT = SETS * WAYS;
+    private static final int SKETCH_DEPTH = 4;
+    private static final int SKETCH_WIDTH = Integer.highestOneBit(Math.max(64, Integer.parseInt(
+            System.getProperty("speeddoctor.profiler.topK.sketchWidth", "16384")) * 2 - 1));
+
+    static final String UNTRACKED_SIGNATURE = "<untracked>";
+
+    private static final AtomicLongArray KEYS = new AtomicLongArray(SLOT_COUNT);
+    private static final AtomicReferenceArray<Entry> ENTRIES = new AtomicReferenceArray<>(SLOT_COUNT);
+    private static final AtomicLongArray SKETCH = new AtomicLongArray(SKETCH_DEPTH * SKETCH_WIDTH);
+    private static final LongAdder TOTAL_NANOS = new LongAdder();
+    private static final Object[] LOCKS = new Object[SETS];
+
+    static {
+        for (int set = 0; set < SETS; set++) {
+            LOCKS[set] = new Object();
+        }
+    }
+
+    /**
+     * Binds {@link ProfilerAdvice.MethodKey} parameters to the signature hash of the instrumented method.
+     */
+    static final Advice.OffsetMapping METHOD_KEY_MAPPING = (instrumentedType, instrumentedMethod, assigner, argumentHandler, sort) ->
+            new Advice.OffsetMapping.Target.ForStackManipulation(
+                    LongConstant.forValue(keyOf(instrumentedMethod.toString())));
+
+    private TopKHotspots() {
+    }
+
+    /**
+     * Record a call of a method identified by its signature hash.
+     *
+     * @param key The value of {@link #keyOf(String)} for the signature
+     * @param signature The method signature, only retained while the method is in the table
+     * @param durationNanos The call duration in nanoseconds
+     * @param slow Whether the call exceeded the slow-call threshold
+     */
+    static void record(long key, String signature, long durationNanos, boolean slow) {
+        TOTAL_NANOS.add(durationNanos);
+        int base = setIndex(key) * WAYS;
+        for (int way = 0; way < WAYS; way++) {
+            if (KEYS.get(base + way) == key) {
+                Entry entry = ENTRIES.get(base + way);
+                if (entry != null && entry.key == key) {
+                    entry.record(durationNanos, slow);
+                    return;
+                }
+            }
+        }
+
+        long estimate = addToSketch(key, durationNanos);
+        if (estimate <= lightestTotal(base)) {
+            return;
+        }
+        // Admission is rare once the table has settled, so a lock per set keeps replacement simple
+        synchronized (LOCKS[base / WAYS]) {
+            int victim = -1;
+            long victimTotal = Long.MAX_VALUE;
+            for (int way = 0; way < WAYS; way++) {
+                if (KEYS.get(base + way) == key) {
+                    // Admitted concurrently, this call stays in the sketch
+                    return;
+                }
+                Entry entry = ENTRIES.get(base + way);
+                long total = entry == null ? 0 : entry.total.get();
+                if (total < victimTotal) {
+                    victim = base + way;
+                    victimTotal = total;
+                }
+            }
+            if (estimate <= victimTotal) {
+                return;
+            }
+            Entry previous = ENTRIES.get(victim);
+            // The call itself is already part of the estimate
+            Entry admitted = new Entry(key, signature, estimate - durationNanos, estimate - durationNanos);
+            admitted.record(durationNanos, slow);
+            ENTRIES.set(victim, admitted);
+            KEYS.set(victim, key);
+            if (previous != null) {
+                // Hand the evicted method's tracked time back to the sketch so re-admission sees it
+                addToSketch(previous.key, previous.total.get() - previous.error);
+            }
+        }
+    }
+
+    private static long lightestTotal(int base) {
+        long lightest = Long.MAX_VALUE;
+        for (int way = 0; way < WAYS; way++) {
+            Entry entry = ENTRIES.get(base + way);
+            lightest = Math.min(lightest, entry == null ? 0 : entry.total.get());
+        }
+        return lightest;
+    }
+
+    /**
+     * Hash a method signature into its table key. Never returns 0, which marks an empty slot.
+     */
+    static long keyOf(String signature) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < signature.length(); i++) {
+            hash ^= signature.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash = mix(hash);
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * @return Maximum overestimate of any sketch estimate, with probability {@link #sketchConfidence()}
+     */
+    static long sketchErrorBound() {
+        return (long) Math.ceil(Math.E / SKETCH_WIDTH * TOTAL_NANOS.sum());
+    }
+
+    static double sketchConfidence() {
+        return 1 - Math.exp(-SKETCH_DEPTH);
+    }
+
+    static int slotCount() {
+        return SLOT_COUNT;
+    }
+
+    /**
+     * @return Snapshot of the tracked methods, heaviest first
+     */
+    static List<Entry> entries() {
+        List<Entry> entries = new ArrayList<>();
+        for (int slot = 0; slot < SLOT_COUNT; slot++) {
+            Entry entry = ENTRIES.get(slot);
+            if (entry != null) {
+                entries.add(entry);
+            }
+        }
+        entries.sort(Comparator.comparingLong((Entry entry) -> entry.total.get()).reversed());
+        return entries;
+    }
+
+    /**
+     * @return Total time of all recorded calls, tracked or not
+     */
+    static long totalNanos() {
+        return TOTAL_NANOS.sum();
+    }
+
+    /**
+     * @return The entry in a table slot, or null if the slot is empty
+     */
+    static Entry entryAt(int slot) {
+        return ENTRIES.get(slot);
+    }
+
+    /**
+     * Empty the table and the sketch.
+     */
+    static void reset() {
+        for (int set = 0; set < SETS; set++) {
+            synchronized (LOCKS[set]) {
+                for (int way = 0; way < WAYS; way++) {
+                    KEYS.set(set * WAYS + way, 0);
+                    ENTRIES.set(set * WAYS + way, null);
+                }
+            }
+        }
+        for (int i = 0; i < SKETCH.length(); i++) {
+            SKETCH.set(i, 0);
+        }
+        TOTAL_NANOS.reset();
+    }
+
+    static void logConfiguration() {
+        LOGGER.info(String.format("[Profiler] Top-K hotspot tracking enabled: %d slots, sketch %dx%d, "
+                + "estimates within %.4f%% of total time with %.1f%% confidence",
+                SLOT_COUNT, SKETCH_DEPTH, SKETCH_WIDTH, 100 * Math.E / SKETCH_WIDTH, 100 * sketchConfidence()));
+    }
+
+    private static long addToSketch(long key, long nanos) {
+        long min = Long.MAX_VALUE;
+        for (int row = 0; row < SKETCH_DEPTH; row++) {
+            min = Math.min(min, SKETCH.addAndGet(sketchIndex(key, row), nanos));
+        }
+        return min;
+    }
+
+    private static int setIndex(long key) {
+        return (int) (key >>> 40) & (SETS - 1);
+    }
+
+    private static int sketchIndex(long key, int row) {
+        long hash = mix(key + row * 0x9E3779B97F4A7C15L);
+        return row * SKETCH_WIDTH + ((int) hash & (SKETCH_WIDTH - 1));
+    }
+
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * A method currently tracked by the table.
+     */
+    static final class Entry {
+        private final long key;
+        final String signature;
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final AtomicLong total;
+        final AtomicLong slowHits = new AtomicLong();
+        /**
+         * Time attributed to the method before it entered the table, an upper bound on the overcount.
+         */
+        final long error;
+
+        Entry(long key, String signature, long total, long error) {
+            this.key = key;
+            this.signature = signature;
+            this.total = new AtomicLong(total);
+            this.error = error;
+        }
+
+        private void record(long durationNanos, boolean slow) {
+            histogram.record(durationNanos);
+            total.addAndGet(durationNanos);
+            if (slow) {
+                slowHits.incrementAndGet();
+            }
+        }
+    }
+}
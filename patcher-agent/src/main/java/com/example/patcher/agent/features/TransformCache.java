@@ -0,0 +1,657 @@
+package com.example.patcher.agent.features;
+
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.agent.builder.ResettableClassFileTransformer;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.dynamic.ClassFileLocator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.instrument.IllegalClassFormatException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * On-disk cache of transformed bytecode, so that a restart serves the classes transformed by a
+ * previous run instead of instrumenting them again.
+ * <p>
+ * Enabled with {@code -Dspeeddoctor.cache.dir=path}. An entry is keyed by the SHA-256 of a
+ * fingerprint, the class name and the original class bytes. The fingerprint covers the agent
+ * configuration (profiled packages, deprecation mappings, security patterns and every
+ * {@code speeddoctor.*} property), the agent build (a hash of the agent jar's contents) and the Java
+ * version, so changing any of them simply stops old entries from being found; they age out through
+ * eviction.
+ * <p>
+ * A cached class is only served if it would still be transformed the same way:
+ * <ul>
+ *   <li>the {@link FeatureDispatcher} must select the same features, since super types resolved
+ *       through the class loader may have changed while the class itself did not,</li>
+ *   <li>the method IDs and lock sites inlined into the bytecode are registered again under the IDs
+ *       they had, see {@link MethodRegistry#register(String, int)}, and profiled methods must be in
+ *       the same {@link TieredProfiler} tier.</li>
+ * </ul>
+ * Otherwise the class is transformed as usual and its entry rewritten. Retransformations, e.g. for
+ * tier changes, always bypass the cache.
+ * <p>
+ * Entry layout (big-endian):
+ * <pre>
+ * int    magic 0x53445443 ("SDTC")       int  layout version (1)
+ * byte[32] fingerprint                   UTF  internal class name
+ * int    selected feature words, then a long per word
+ * int    method count, then per method: UTF signature, int ID, int tier or -1
+ * int    lock site count, then per site: UTF site, int ID
+ * int    transformed length, then the transformed bytes
+ * long   CRC32 of everything above
+ * </pre>
+ * Several JVMs may share the directory: entries are written to a temporary file and atomically
+ * renamed into place, and a torn or corrupt entry fails its checksum and is deleted. The directory
+ * is kept under {@code speeddoctor.cache.maxBytes} by deleting the least recently used entries; a hit
+ * refreshes the entry's modification time. Each JVM only counts its own writes between scans of the
+ * directory, so the bound is approximate while several JVMs write at once.
+ */
+final class TransformCache implements AgentBuilder.TransformerDecorator {
+    private static final Logger LOGGER = Logger.getLogger(TransformCache.class.getName());
+
+    static final String DIR = System.getProperty("speeddoctor.cache.dir", "none");
+    static final boolean ENABLED = !DIR.isEmpty() && !"none".equalsIgnoreCase(DIR);
+    static final long MAX_BYTES = Long.parseLong(System.getProperty("speeddoctor.cache.maxBytes", "268435456"));
+
+    static final int MAGIC = 0x53445443;
+    static final int VERSION = 1;
+    private static final int FINGERPRINT_BYTES = 32;
+    private static final String SUFFIX = ".bin";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final long STALE_TEMP_MILLIS = 10 * 60 * 1000L;
+    private static final int NO_TIER = -1;
+
+    // The registrations and feature selection of the class being transformed on this thread
+    private static final ThreadLocal<Journal> JOURNAL = new ThreadLocal<>();
+
+    private static final LongAdder HITS = new LongAdder();
+    private static final LongAdder MISSES = new LongAdder();
+    private static final LongAdder EVICTIONS = new LongAdder();
+
+    private final Path directory;
+    private final byte[] fingerprint;
+    private final FeatureDispatcher dispatcher;
+    private final long maxBytes;
+    private final Set<String> keys = ConcurrentHashMap.newKeySet();
+    private final AtomicLong size = new AtomicLong();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    TransformCache(Path directory, byte[] fingerprint, FeatureDispatcher dispatcher, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.fingerprint = fingerprint;
+        this.dispatcher = dispatcher;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(directory);
+        long total = 0;
+        for (CachedFile file : scan()) {
+            keys.add(file.key);
+            total += file.size;
+        }
+        size.set(total);
+    }
+
+    /**
+     * Open the cache directory for the given agent configuration.
+     *
+     * @param directory The cache directory, shared with other JVMs
+     * @param configuration Everything in the agent configuration that affects the transformed bytecode
+     * @param dispatcher The dispatcher whose feature selection is checked on every hit
+     * @return The cache, or null if the directory cannot be used
+     */
+    static TransformCache open(Path directory, String configuration, FeatureDispatcher dispatcher) {
+        try {
+            TransformCache cache = new TransformCache(directory, fingerprint(configuration), dispatcher, MAX_BYTES);
+            LOGGER.info("[TransformCache] Serving transformed classes from " + directory.toAbsolutePath() + ", "
+                    + cache.keys.size() + " entries, " + cache.size.get() + " of " + MAX_BYTES + " bytes");
+            cache.evictIfFull();
+            return cache;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "[TransformCache] Failed to open " + directory.toAbsolutePath()
+                    + ", classes are transformed without the cache", e);
+            return null;
+        }
+    }
+
+    /**
+     * Hash the configuration together with the agent build and the Java version.
+     */
+    static byte[] fingerprint(String configuration) throws IOException {
+        MessageDigest digest = sha256();
+        digest.update(configuration.getBytes(StandardCharsets.UTF_8));
+        digest.update(("\n" + agentVersion() + "\n" + System.getProperty("java.specification.version")
+                + "\n" + VERSION).getBytes(StandardCharsets.UTF_8));
+        return digest.digest();
+    }
+
+    /**
+     * Identify the agent build by the contents of the jar or class directory it was loaded from, so
+     * that a rebuild invalidates the cache even if the version number did not change.
+     */
+    private static String agentVersion() throws IOException {
+        String version = TransformCache.class.getPackage().getImplementationVersion();
+        CodeSource codeSource = TransformCache.class.getProtectionDomain().getCodeSource();
+        if (codeSource == null || codeSource.getLocation() == null) {
+            return String.valueOf(version);
+        }
+        Path location;
+        try {
+            location = Paths.get(codeSource.getLocation().toURI());
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            return version + "@" + codeSource.getLocation();
+        }
+        MessageDigest digest = sha256();
+        if (Files.isDirectory(location)) {
+            try (Stream<Path> files = Files.walk(location)) {
+                for (Path file : files.filter(Files::isRegularFile).sorted().collect(Collectors.toList())) {
+                    digest.update(location.relativize(file).toString().getBytes(StandardCharsets.UTF_8));
+                    digest.update(Files.readAllBytes(file));
+                }
+            }
+        } else {
+            digest.update(Files.readAllBytes(location));
+        }
+        return version + "@" + toHex(digest.digest());
+    }
+
+    @Override
+    public ResettableClassFileTransformer decorate(ResettableClassFileTransformer classFileTransformer) {
+        return new Caching(classFileTransformer);
+    }
+
+    /**
+     * Serve a class from the cache, or transform it and cache the result.
+     *
+     * @param classLoader The defining class loader
+     * @param internalName The internal name of the class, e.g. {@code com/example/Foo}
+     * @param classBeingRedefined The class if it is retransformed, or null if it is loaded
+     * @param classFileBuffer The original class bytes
+     * @param transformation Transforms the class if it is not served from the cache
+     * @return The transformed bytes, or null if the class is not transformed
+     */
+    byte[] transform(ClassLoader classLoader, String internalName, Class<?> classBeingRedefined,
+                     byte[] classFileBuffer, Transformation transformation) throws IllegalClassFormatException {
+        // The agent builder ignores the bootstrap and platform loaders, so their classes are never cached
+        if (classBeingRedefined != null || internalName == null || classFileBuffer == null
+                || classLoader == null || classLoader == ClassLoader.getPlatformClassLoader()) {
+            return transformation.apply();
+        }
+        String key = key(internalName, classFileBuffer);
+        if (keys.contains(key)) {
+            byte[] cached = lookup(key, classLoader, internalName, classFileBuffer);
+            if (cached != null) {
+                HITS.increment();
+                TransformationTelemetry.recordCacheHit();
+                return cached;
+            }
+        }
+        Journal previous = JOURNAL.get();
+        Journal journal = new Journal();
+        JOURNAL.set(journal);
+        byte[] transformed;
+        try {
+            transformed = transformation.apply();
+        } finally {
+            JOURNAL.set(previous);
+        }
+        // Classes without a selected feature are left alone by the dispatcher and have nothing to cache
+        if (transformed != null && journal.selection != null) {
+            MISSES.increment();
+            store(key, internalName, journal, transformed);
+        }
+        return transformed;
+    }
+
+    private String key(String internalName, byte[] classFileBuffer) {
+        MessageDigest digest = sha256();
+        digest.update(fingerprint);
+        digest.update(internalName.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(classFileBuffer);
+        return toHex(digest.digest());
+    }
+
+    private byte[] lookup(String key, ClassLoader classLoader, String internalName, byte[] classFileBuffer) {
+        Path file = directory.resolve(key + SUFFIX);
+        byte[] data;
+        try {
+            data = Files.readAllBytes(file);
+        } catch (NoSuchFileException e) {
+            // Evicted, possibly by another JVM
+            keys.remove(key);
+            return null;
+        } catch (IOException e) {
+            return null;
+        }
+        Entry entry = Entry.decode(data);
+        if (entry == null) {
+            LOGGER.warning("[TransformCache] Deleting corrupt entry " + file);
+            delete(key);
+            return null;
+        }
+        if (!Arrays.equals(entry.fingerprint, fingerprint) || !entry.internalName.equals(internalName)
+                || !Arrays.equals(selection(classLoader, internalName, classFileBuffer), entry.journal.selection)
+                || !entry.journal.replay(internalName.replace('/', '.'), classLoader)) {
+            return null;
+        }
+        try {
+            // Least recently used entries are evicted first
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // Evicted meanwhile, the bytes are still good
+        }
+        return entry.transformed;
+    }
+
+    /**
+     * @return The features the dispatcher selects for the class, or null if it cannot be described
+     */
+    private long[] selection(ClassLoader classLoader, String internalName, byte[] classFileBuffer) {
+        String name = internalName.replace('/', '.');
+        try {
+            // Described like the agent builder does, from the bytes and lazily through the class loader's cached pool
+            TypeDescription typeDescription = TypePoolCache.INSTANCE.typePool(
+                    new ClassFileLocator.Compound(ClassFileLocator.Simple.of(name, classFileBuffer),
+                            ClassFileLocator.ForClassLoader.WeaklyReferenced.of(classLoader)), classLoader)
+                    .describe(name)
+                    .resolve();
+            return dispatcher.select(typeDescription, classLoader).toLongArray();
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private void store(String key, String internalName, Journal journal, byte[] transformed) {
+        byte[] data = Entry.encode(fingerprint, internalName, journal, transformed);
+        Path file = directory.resolve(key + SUFFIX);
+        Path temp = directory.resolve(key + "." + ProcessHandle.current().pid() + "."
+                + Thread.currentThread().getId() + TEMP_SUFFIX);
+        try {
+            Files.write(temp, data);
+            try {
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "[TransformCache] Failed to write " + file, e);
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException ignored) {
+                // Cleaned up as a stale temporary file by a later eviction
+            }
+            return;
+        }
+        keys.add(key);
+        size.addAndGet(data.length);
+        evictIfFull();
+    }
+
+    /**
+     * Delete the least recently used entries until the directory is at 90% of its bound. Only one
+     * thread per JVM evicts at a time; the others carry on.
+     */
+    void evictIfFull() {
+        if (size.get() <= maxBytes || !evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            List<CachedFile> files = scan();
+            long total = 0;
+            for (CachedFile file : files) {
+                total += file.size;
+            }
+            long target = maxBytes / 10 * 9;
+            files.sort(Comparator.comparingLong(file -> file.lastModified));
+            for (CachedFile file : files) {
+                if (total <= target) {
+                    break;
+                }
+                delete(file.key);
+                EVICTIONS.increment();
+                total -= file.size;
+            }
+            size.set(total);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "[TransformCache] Failed to evict entries from " + directory, e);
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    private void delete(String key) {
+        keys.remove(key);
+        try {
+            Files.deleteIfExists(directory.resolve(key + SUFFIX));
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "[TransformCache] Failed to delete entry " + key, e);
+        }
+    }
+
+    /**
+     * List the entries, deleting temporary files left behind by JVMs that died while writing.
+     */
+    private List<CachedFile> scan() throws IOException {
+        List<CachedFile> files = new ArrayList<>();
+        long staleBefore = System.currentTimeMillis() - STALE_TEMP_MILLIS;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                try {
+                    BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                    if (name.endsWith(SUFFIX)) {
+                        files.add(new CachedFile(name.substring(0, name.length() - SUFFIX.length()),
+                                attributes.size(), attributes.lastModifiedTime().toMillis()));
+                    } else if (name.endsWith(TEMP_SUFFIX) && attributes.lastModifiedTime().toMillis() < staleBefore) {
+                        Files.deleteIfExists(path);
+                    }
+                } catch (NoSuchFileException e) {
+                    // Deleted by another JVM while listing
+                }
+            }
+        }
+        return files;
+    }
+
+    /**
+     * @return Number of classes served from the cache since startup
+     */
+    static long getHitCount() {
+        return HITS.sum();
+    }
+
+    /**
+     * @return Number of classes transformed and written to the cache since startup
+     */
+    static long getMissCount() {
+        return MISSES.sum();
+    }
+
+    /**
+     * @return Number of entries evicted by this JVM since startup
+     */
+    static long getEvictionCount() {
+        return EVICTIONS.sum();
+    }
+
+    /**
+     * @return Number of entries this JVM knows of
+     */
+    int entryCount() {
+        return keys.size();
+    }
+
+    /**
+     * Record the ID a method was registered under while a class is transformed on this thread.
+     */
+    static void recordMethod(String signature, int methodId) {
+        Journal journal = JOURNAL.get();
+        if (journal != null) {
+            journal.methods.put(signature, methodId);
+        }
+    }
+
+    /**
+     * Record the tier a profiled method was instrumented for.
+     */
+    static void recordTier(int methodId, int tier) {
+        Journal journal = JOURNAL.get();
+        if (journal != null) {
+            journal.tiers.put(methodId, tier);
+        }
+    }
+
+    /**
+     * Record the ID a lock site was registered under.
+     */
+    static void recordSite(String site, int siteId) {
+        Journal journal = JOURNAL.get();
+        if (journal != null) {
+            journal.sites.put(site, siteId);
+        }
+    }
+
+    /**
+     * Record the features the dispatcher applied.
+     */
+    static void recordSelection(BitSet selected) {
+        Journal journal = JOURNAL.get();
+        if (journal != null) {
+            journal.selection = selected.toLongArray();
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is required on every Java platform", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Transforms a class that is not served from the cache.
+     */
+    interface Transformation {
+        byte[] apply() throws IllegalClassFormatException;
+    }
+
+    /**
+     * Everything registered while a class was transformed that its bytecode depends on.
+     */
+    private static final class Journal {
+        final Map<String, Integer> methods = new LinkedHashMap<>();
+        final Map<Integer, Integer> tiers = new HashMap<>();
+        final Map<String, Integer> sites = new LinkedHashMap<>();
+        long[] selection;
+
+        /**
+         * Register the methods and lock sites of a cached class again.
+         *
+         * @return Whether they all got the IDs and tiers inlined into the cached bytecode
+         */
+        boolean replay(String className, ClassLoader classLoader) {
+            for (Map.Entry<String, Integer> method : methods.entrySet()) {
+                int methodId = method.getValue();
+                if (MethodRegistry.register(method.getKey(), methodId) != methodId) {
+                    return false;
+                }
+                Integer tier = tiers.get(methodId);
+                if (tier != null) {
+                    TieredProfiler.track(methodId, className, classLoader);
+                    if (TieredProfiler.getTier(methodId) != tier) {
+                        return false;
+                    }
+                }
+            }
+            for (Map.Entry<String, Integer> site : sites.entrySet()) {
+                if (LockContentionAdvice.registerSite(site.getKey()) != site.getValue()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A decoded cache entry.
+     */
+    private static final class Entry {
+        final byte[] fingerprint;
+        final String internalName;
+        final Journal journal;
+        final byte[] transformed;
+
+        Entry(byte[] fingerprint, String internalName, Journal journal, byte[] transformed) {
+            this.fingerprint = fingerprint;
+            this.internalName = internalName;
+            this.journal = journal;
+            this.transformed = transformed;
+        }
+
+        static byte[] encode(byte[] fingerprint, String internalName, Journal journal, byte[] transformed) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(transformed.length + 512);
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.write(fingerprint);
+                out.writeUTF(internalName);
+                out.writeInt(journal.selection.length);
+                for (long word : journal.selection) {
+                    out.writeLong(word);
+                }
+                out.writeInt(journal.methods.size());
+                for (Map.Entry<String, Integer> method : journal.methods.entrySet()) {
+                    out.writeUTF(method.getKey());
+                    out.writeInt(method.getValue());
+                    out.writeInt(journal.tiers.getOrDefault(method.getValue(), NO_TIER));
+                }
+                out.writeInt(journal.sites.size());
+                for (Map.Entry<String, Integer> site : journal.sites.entrySet()) {
+                    out.writeUTF(site.getKey());
+                    out.writeInt(site.getValue());
+                }
+                out.writeInt(transformed.length);
+                out.write(transformed);
+                CRC32 crc = new CRC32();
+                crc.update(bytes.toByteArray());
+                out.writeLong(crc.getValue());
+            } catch (IOException e) {
+                throw new IllegalStateException("In-memory stream failed", e);
+            }
+            return bytes.toByteArray();
+        }
+
+        /**
+         * @return The entry, or null if it is truncated, corrupt or of another layout version
+         */
+        static Entry decode(byte[] data) {
+            if (data.length < 2 * Integer.BYTES + FINGERPRINT_BYTES + Long.BYTES) {
+                return null;
+            }
+            int length = data.length - Long.BYTES;
+            CRC32 crc = new CRC32();
+            crc.update(data, 0, length);
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 0, length))) {
+                long expected = new DataInputStream(new ByteArrayInputStream(data, length, Long.BYTES)).readLong();
+                if (crc.getValue() != expected || in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    return null;
+                }
+                byte[] fingerprint = new byte[FINGERPRINT_BYTES];
+                in.readFully(fingerprint);
+                String internalName = in.readUTF();
+                Journal journal = new Journal();
+                journal.selection = new long[in.readInt()];
+                for (int i = 0; i < journal.selection.length; i++) {
+                    journal.selection[i] = in.readLong();
+                }
+                int methods = in.readInt();
+                for (int i = 0; i < methods; i++) {
+                    String signature = in.readUTF();
+                    int methodId = in.readInt();
+                    int tier = in.readInt();
+                    journal.methods.put(signature, methodId);
+                    if (tier != NO_TIER) {
+                        journal.tiers.put(methodId, tier);
+                    }
+                }
+                int sites = in.readInt();
+                for (int i = 0; i < sites; i++) {
+                    journal.sites.put(in.readUTF(), in.readInt());
+                }
+                byte[] transformed = new byte[in.readInt()];
+                in.readFully(transformed);
+                return new Entry(fingerprint, internalName, journal, transformed);
+            } catch (IOException | RuntimeException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * An entry file found in the directory.
+     */
+    private static final class CachedFile {
+        final String key;
+        final long size;
+        final long lastModified;
+
+        CachedFile(String key, long size, long lastModified) {
+            this.key = key;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * Puts the cache in front of the agent builder's class file transformer.
+     */
+    private final class Caching extends ResettableClassFileTransformer.WithDelegation {
+
+        Caching(ResettableClassFileTransformer classFileTransformer) {
+            super(classFileTransformer);
+        }
+
+        @Override
+        public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+                                ProtectionDomain protectionDomain, byte[] classfileBuffer)
+                throws IllegalClassFormatException {
+            return TransformCache.this.transform(loader, className, classBeingRedefined, classfileBuffer,
+                    () -> classFileTransformer.transform(loader, className, classBeingRedefined, protectionDomain,
+                            classfileBuffer));
+        }
+
+        @Override
+        public byte[] transform(Module module, ClassLoader loader, String className, Class<?> classBeingRedefined,
+                                ProtectionDomain protectionDomain, byte[] classfileBuffer)
+                throws IllegalClassFormatException {
+            return TransformCache.this.transform(loader, className, classBeingRedefined, classfileBuffer,
+                    () -> classFileTransformer.transform(module, loader, className, classBeingRedefined,
+                            protectionDomain, classfileBuffer));
+        }
+    }
+}
@@ -0,0 +1,333 @@
+package com.example.patcher.agent.features;
+
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.agent.builder.ResettableClassFileTransformer;
+import net.bytebuddy.utility.JavaModule;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.instrument.IllegalClassFormatException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Per-class transformation telemetry, in place of a line on standard out per transformed class.
+ * <p>
+ * Wraps the agent's class file transformer to measure every class load that passes through it, in
+ * wall-clock and CPU time and class file size, and listens for the errors Byte Buddy reports. The
+ * totals cover every class load; the table keeps the {@code speeddoctor.transformations.maxEntries}
+ * slowest classes that were transformed or failed, with the features applied to them. The table is
+ * written to {@code profiler-data/transformations.csv} with the hotspot data. A summary is logged
+ * when the features are installed and again {@code speeddoctor.transformations.summaryDelayMs}
+ * later, once the application has started.
+ */
+final class TransformationTelemetry extends AgentBuilder.Listener.Adapter
+        implements AgentBuilder.TransformerDecorator {
+    private static final Logger LOGGER = Logger.getLogger(TransformationTelemetry.class.getName());
+
+    static final int MAX_ENTRIES = Math.max(1, Integer.parseInt(
+            System.getProperty("speeddoctor.transformations.maxEntries", "1024")));
+    static final long SUMMARY_DELAY_MS = Long.parseLong(
+            System.getProperty("speeddoctor.transformations.summaryDelayMs", "60000"));
+
+    static final String REPORT_HEADER = "class,retransformed,cached,features,transform_ns,cpu_ns,original_bytes,"
+            + "transformed_bytes,error\n";
+
+    static final TransformationTelemetry INSTANCE = new TransformationTelemetry();
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final boolean CPU_TIME = THREADS.isCurrentThreadCpuTimeSupported() && THREADS.isThreadCpuTimeEnabled();
+
+    private static final LongAdder CLASS_LOADS = new LongAdder();
+    private static final LongAdder NANOS = new LongAdder();
+    private static final LongAdder CPU_NANOS = new LongAdder();
+    private static final LongAdder TRANSFORMED = new LongAdder();
+    private static final LongAdder FAILED = new LongAdder();
+    private static final LongAdder ORIGINAL_BYTES = new LongAdder();
+    private static final LongAdder TRANSFORMED_BYTES = new LongAdder();
+
+    // The class being transformed on this thread
+    private static final ThreadLocal<Transformation> CURRENT = new ThreadLocal<>();
+
+    // The slowest entries, the fastest of them on top to be replaced first
+    private static final PriorityQueue<Transformation> SLOWEST =
+            new PriorityQueue<>(Comparator.comparingLong(transformation -> transformation.nanos));
+
+    private static ScheduledExecutorService summarizer;
+
+    private TransformationTelemetry() {
+    }
+
+    @Override
+    public ResettableClassFileTransformer decorate(ResettableClassFileTransformer classFileTransformer) {
+        return new Measuring(classFileTransformer);
+    }
+
+    @Override
+    public void onError(String typeName, ClassLoader classLoader, JavaModule module, boolean loaded,
+                        Throwable throwable) {
+        Transformation current = CURRENT.get();
+        if (current != null) {
+            current.error = throwable.toString();
+        }
+        LOGGER.warning("[Transformations] Failed to transform " + typeName + ": " + throwable);
+    }
+
+    /**
+     * Measure a class load.
+     *
+     * @param internalName The internal name of the class, e.g. {@code com/example/Foo}
+     * @param classBeingRedefined The class if it is retransformed, or null if it is loaded
+     * @param classFileBuffer The original class bytes
+     * @param transformation Transforms the class
+     * @return The transformed bytes, or null if the class is not transformed
+     */
+    static byte[] measure(String internalName, Class<?> classBeingRedefined, byte[] classFileBuffer,
+                          TransformCache.Transformation transformation) throws IllegalClassFormatException {
+        Transformation previous = CURRENT.get();
+        Transformation current = new Transformation(internalName, classBeingRedefined != null);
+        CURRENT.set(current);
+        long cpuStart = cpuTime();
+        long start = System.nanoTime();
+        byte[] transformed = null;
+        try {
+            transformed = transformation.apply();
+            return transformed;
+        } finally {
+            current.nanos = System.nanoTime() - start;
+            current.cpuNanos = cpuTime() - cpuStart;
+            CURRENT.set(previous);
+            record(current, classFileBuffer, transformed);
+        }
+    }
+
+    private static long cpuTime() {
+        return CPU_TIME ? THREADS.getCurrentThreadCpuTime() : 0L;
+    }
+
+    private static void record(Transformation transformation, byte[] classFileBuffer, byte[] transformed) {
+        CLASS_LOADS.increment();
+        NANOS.add(transformation.nanos);
+        CPU_NANOS.add(transformation.cpuNanos);
+        if (transformed == null && transformation.error == null) {
+            return;
+        }
+        transformation.originalBytes = classFileBuffer == null ? 0 : classFileBuffer.length;
+        if (transformation.error != null) {
+            FAILED.increment();
+        } else {
+            TRANSFORMED.increment();
+            transformation.transformedBytes = transformed.length;
+            ORIGINAL_BYTES.add(transformation.originalBytes);
+            TRANSFORMED_BYTES.add(transformation.transformedBytes);
+        }
+        synchronized (SLOWEST) {
+            if (SLOWEST.size() < MAX_ENTRIES) {
+                SLOWEST.add(transformation);
+            } else if (SLOWEST.peek().nanos < transformation.nanos) {
+                SLOWEST.poll();
+                SLOWEST.add(transformation);
+            }
+        }
+    }
+
+    /**
+     * Record the features applied to the class being transformed.
+     */
+    static void recordFeatures(List<String> features) {
+        Transformation current = CURRENT.get();
+        if (current != null) {
+            current.features = String.join(" ", features);
+        }
+    }
+
+    /**
+     * Record that the class being transformed was served from the {@link TransformCache}.
+     */
+    static void recordCacheHit() {
+        Transformation current = CURRENT.get();
+        if (current != null) {
+            current.cached = true;
+        }
+    }
+
+    /**
+     * Log a summary now, and once more after the summary delay.
+     */
+    static synchronized void start() {
+        logSummary("at installation");
+        if (SUMMARY_DELAY_MS <= 0 || summarizer != null) {
+            return;
+        }
+        summarizer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "speeddoctor-transformations-summary");
+            thread.setDaemon(true);
+            return thread;
+        });
+        summarizer.schedule(() -> logSummary(SUMMARY_DELAY_MS + "ms after installation"),
+                SUMMARY_DELAY_MS, TimeUnit.MILLISECONDS);
+        summarizer.shutdown();
+    }
+
+    private static void logSummary(String when) {
+        StringBuilder summary = new StringBuilder("[Transformations] ").append(summary()).append(", ").append(when);
+        List<Transformation> slowest = slowest();
+        for (int i = 0; i < Math.min(5, slowest.size()); i++) {
+            Transformation transformation = slowest.get(i);
+            summary.append("\n  ").append(transformation.className).append(' ')
+                   .append(String.format("%.3f", transformation.nanos / 1e6)).append("ms");
+        }
+        LOGGER.info(summary.toString());
+    }
+
+    /**
+     * @return The totals in one line
+     */
+    static String summary() {
+        return String.format("%d classes transformed, %d failed, of %d class loads; %.1fms in transformers "
+                        + "(%.1fms CPU); %d bytes of class files grown by %d bytes",
+                getTransformedCount(), getFailedCount(), getClassLoadCount(), getNanos() / 1e6, getCpuNanos() / 1e6,
+                getOriginalBytes(), getTransformedBytes() - getOriginalBytes());
+    }
+
+    /**
+     * @return The slowest transformed or failed classes, slowest first
+     */
+    static List<Transformation> slowest() {
+        List<Transformation> slowest;
+        synchronized (SLOWEST) {
+            slowest = new ArrayList<>(SLOWEST);
+        }
+        slowest.sort(Comparator.comparingLong((Transformation transformation) -> transformation.nanos).reversed());
+        return slowest;
+    }
+
+    /**
+     * Write the slowest transformed or failed classes as CSV, slowest first.
+     *
+     * @param writer The writer
+     */
+    static void writeReport(Writer writer) throws IOException {
+        StringBuilder report = new StringBuilder(REPORT_HEADER);
+        for (Transformation transformation : slowest()) {
+            report.append(transformation.className).append(",")
+                  .append(transformation.retransformed).append(",")
+                  .append(transformation.cached).append(",")
+                  .append(transformation.features).append(",")
+                  .append(transformation.nanos).append(",")
+                  .append(transformation.cpuNanos).append(",")
+                  .append(transformation.originalBytes).append(",")
+                  .append(transformation.transformedBytes).append(",")
+                  .append('"').append(transformation.error == null ? "" : transformation.error.replace("\"", "\"\""))
+                  .append("\"\n");
+        }
+        writer.write(report.toString());
+    }
+
+    /**
+     * @return Number of class loads and retransformations that passed through the agent since startup
+     */
+    static long getClassLoadCount() {
+        return CLASS_LOADS.sum();
+    }
+
+    /**
+     * @return Wall-clock time spent in the agent's transformer since startup, matching included
+     */
+    static long getNanos() {
+        return NANOS.sum();
+    }
+
+    /**
+     * @return CPU time spent in the agent's transformer since startup, 0 if thread CPU time is unavailable
+     */
+    static long getCpuNanos() {
+        return CPU_NANOS.sum();
+    }
+
+    /**
+     * @return Number of classes transformed since startup
+     */
+    static long getTransformedCount() {
+        return TRANSFORMED.sum();
+    }
+
+    /**
+     * @return Number of classes whose transformation failed since startup
+     */
+    static long getFailedCount() {
+        return FAILED.sum();
+    }
+
+    /**
+     * @return Size of the transformed classes' original class files
+     */
+    static long getOriginalBytes() {
+        return ORIGINAL_BYTES.sum();
+    }
+
+    /**
+     * @return Size of the transformed classes' class files after transformation
+     */
+    static long getTransformedBytes() {
+        return TRANSFORMED_BYTES.sum();
+    }
+
+    /**
+     * One class load that was transformed or failed.
+     */
+    static final class Transformation {
+        final String className;
+        final boolean retransformed;
+        boolean cached;
+        String features = "";
+        long nanos;
+        long cpuNanos;
+        int originalBytes;
+        int transformedBytes;
+        String error;
+
+        Transformation(String internalName, boolean retransformed) {
+            this.className = internalName == null ? "<unnamed>" : internalName.replace('/', '.');
+            this.retransformed = retransformed;
+        }
+    }
+
+    /**
+     * Measures the decorated transformer.
+     */
+    private static final class Measuring extends ResettableClassFileTransformer.WithDelegation {
+
+        Measuring(ResettableClassFileTransformer classFileTransformer) {
+            super(classFileTransformer);
+        }
+
+        @Override
+        public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+                                ProtectionDomain protectionDomain, byte[] classfileBuffer)
+                throws IllegalClassFormatException {
+            return measure(className, classBeingRedefined, classfileBuffer,
+                    () -> classFileTransformer.transform(loader, className, classBeingRedefined, protectionDomain,
+                            classfileBuffer));
+        }
+
+        @Override
+        public byte[] transform(Module module, ClassLoader loader, String className, Class<?> classBeingRedefined,
+                                ProtectionDomain protectionDomain, byte[] classfileBuffer)
+                throws IllegalClassFormatException {
+            return measure(className, classBeingRedefined, classfileBuffer,
+                    () -> classFileTransformer.transform(module, loader, className, classBeingRedefined,
+                            protectionDomain, classfileBuffer));
+        }
+    }
+}
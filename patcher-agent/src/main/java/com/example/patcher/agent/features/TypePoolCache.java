@@ -0,0 +1,114 @@
+package com.example.patcher.agent.features;
+
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.pool.TypePool;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Type pool strategy that keeps the type descriptions parsed for matching, per class loader.
+ * <p>
+ * Without it the agent builder parses every class file it needs afresh on each class load,
+ * including the super types that the {@link FeatureDispatcher} walks for the JDBC and servlet
+ * features. The descriptions are cached per class loader, weakly keyed so that an undeployed
+ * application's loader can still be collected, and each loader's cache keeps at most
+ * {@code speeddoctor.typePool.maxEntries} types, least recently used first out. Hits and misses are
+ * counted for {@link FeatureMetrics}.
+ * <p>
+ * Cached descriptions refer to their class loader only through the class file locator, so the agent
+ * builder must locate class files with {@link AgentBuilder.LocationStrategy.ForClassLoader#WEAK}.
+ */
+final class TypePoolCache extends AgentBuilder.PoolStrategy.WithTypePoolCache {
+
+    static final int MAX_ENTRIES = Math.max(16, Integer.parseInt(
+            System.getProperty("speeddoctor.typePool.maxEntries", "2048")));
+
+    /**
+     * The strategy shared by the agent builder and the {@link TransformCache}.
+     */
+    static final TypePoolCache INSTANCE = new TypePoolCache(MAX_ENTRIES);
+
+    private static final LongAdder HITS = new LongAdder();
+    private static final LongAdder MISSES = new LongAdder();
+
+    private final int maxEntries;
+
+    // Cache per class loader, null is the bootstrap loader
+    private final Map<ClassLoader, Bounded> caches = Collections.synchronizedMap(new WeakHashMap<>());
+
+    TypePoolCache(int maxEntries) {
+        super(TypePool.Default.ReaderMode.FAST);
+        this.maxEntries = maxEntries;
+    }
+
+    @Override
+    protected TypePool.CacheProvider locate(ClassLoader classLoader) {
+        Bounded cache = caches.get(classLoader);
+        if (cache == null) {
+            synchronized (caches) {
+                cache = caches.computeIfAbsent(classLoader, ignored -> new Bounded(maxEntries));
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * @return Number of type lookups answered from the cache since startup
+     */
+    static long getHitCount() {
+        return HITS.sum();
+    }
+
+    /**
+     * @return Number of type lookups that had to parse a class file since startup
+     */
+    static long getMissCount() {
+        return MISSES.sum();
+    }
+
+    /**
+     * Least recently used cache of the types of one class loader.
+     */
+    static final class Bounded implements TypePool.CacheProvider {
+        private final Map<String, TypePool.Resolution> resolutions;
+
+        Bounded(int maxEntries) {
+            resolutions = new LinkedHashMap<String, TypePool.Resolution>(64, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, TypePool.Resolution> eldest) {
+                    return size() > maxEntries;
+                }
+            };
+        }
+
+        @Override
+        public synchronized TypePool.Resolution find(String name) {
+            TypePool.Resolution resolution = resolutions.get(name);
+            if (resolution == null) {
+                MISSES.increment();
+            } else {
+                HITS.increment();
+            }
+            return resolution;
+        }
+
+        @Override
+        public synchronized TypePool.Resolution register(String name, TypePool.Resolution resolution) {
+            TypePool.Resolution existing = resolutions.putIfAbsent(name, resolution);
+            return existing == null ? resolution : existing;
+        }
+
+        @Override
+        public synchronized void clear() {
+            resolutions.clear();
+        }
+
+        synchronized int size() {
+            return resolutions.size();
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.example.patcher.agent.features;
+
+/**
+ * Virtual-thread support, JDK 11 to 20 version: there are no virtual threads to detect and no
+ * pinning to monitor.
+ * <p>
+ * The agent jar is a multi-release jar: on JDK 21+ the class of the same name under
+ * {@code META-INF/versions/21} replaces this one, built from {@code src/main/java21} with a JDK 21
+ * toolchain on every build. Both versions must keep the same members.
+ */
+final class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @return Whether the thread is a virtual thread
+     */
+    static boolean isVirtual(Thread thread) {
+        return false;
+    }
+
+    /**
+     * Start streaming pinned virtual threads into {@link PinningSites}, if enabled.
+     */
+    static void startPinningMonitor() {
+    }
+
+    /**
+     * Stop the pinning monitor.
+     */
+    static void stopPinningMonitor() {
+    }
+
+    /**
+     * @return Whether the pinning monitor runs
+     */
+    static boolean isPinningMonitorRunning() {
+        return false;
+    }
+}
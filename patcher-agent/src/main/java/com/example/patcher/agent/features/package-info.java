@@ -3,8 +3,8 @@
  * <p>
  * This package contains three powerful ByteBuddy-based features:
  * <ul>
- *   <li><strong>Real-Time Lightweight Profiler</strong>: Adds timing counters to methods to identify 
- *       performance hotspots with minimal overhead.</li>
+ *   <li><strong>Real-Time Lightweight Profiler</strong>: Records every call into a lock-free per-method 
+ *       latency histogram to identify performance hotspots with minimal overhead.</li>
  *   <li><strong>Instant Deprecation Rescue</strong>: Provides runtime fallbacks for deprecated APIs, 
  *       allowing safe upgrades of dependencies without breaking changes.</li>
  *   <li><strong>Zero-Downtime Security Patches</strong>: Adds runtime sanitization to vulnerable methods 
@@ -16,13 +16,77 @@
  *   <li><code>-Dspeeddoctor.profiler=true|false</code> (default: true)</li>
  *   <li><code>-Dspeeddoctor.deprecationrescue=true|false</code> (default: true)</li>
  *   <li><code>-Dspeeddoctor.securitypatches=true|false</code> (default: true)</li>
+ *   <li><code>-Dspeeddoctor.locks=true|false</code> - Lock contention profiling in the profiled packages, written to <code>profiler-data/locks.csv</code> (default: false)</li>
  * </ul>
  * <p>
+ * These set the state at startup. The <code>com.example.patcher:type=Features</code> MBean lists the installed
+ * features by name (<code>profiler</code>, <code>deprecationrescue</code>, <code>securitypatches</code>,
+ * <code>locks</code>, and <code>jdbc</code> and <code>async</code> when enabled below), enables and disables them
+ * with <code>setFeatureEnabled</code>, and changes the profiled packages through its <code>ProfilerPackages</code>
+ * attribute. The loaded classes affected by a change are retransformed, so a disabled feature leaves the original
+ * bytecode behind. With <code>speeddoctor.profiler=false</code> the <code>jdbc</code> and <code>async</code> features
+ * start disabled as well. The profiler's background threads and files are only active while it is enabled, and
+ * <code>profiler-data</code> is only written on exit while a profiling feature is enabled; disabling the last one
+ * writes it right away.
+ * <p>
  * Additional configuration options:
  * <ul>
  *   <li><code>-Dspeeddoctor.profiler.packages=com.example,org.springframework</code> - Comma-separated list of packages to profile (default: com.example,org.springframework,com.company)</li>
+ *   <li><code>-Dspeeddoctor.profiler.maxMethods=65536</code> - Maximum number of distinct profiled methods; further methods are reported as <code>&lt;overflow&gt;</code> (default: 65536)</li>
+ *   <li><code>-Dspeeddoctor.profiler.eventQueueSize=8192</code> - Capacity of the ring buffer handing slow calls to the background reporter thread (default: 8192)</li>
+ *   <li><code>-Dspeeddoctor.profiler.dropOnFull=true|false</code> - Drop and count slow-call events when the ring buffer is full, or log them on the calling thread instead (default: true)</li>
+ *   <li><code>-Dspeeddoctor.profiler.accumulation=shared|striped</code> - Record into shared histograms, or into striped per-thread-hash accumulators merged in the background to avoid cache-line contention (default: shared)</li>
+ *   <li><code>-Dspeeddoctor.profiler.mergeIntervalMs=1000</code> - How often striped accumulators are merged into the global histograms (default: 1000)</li>
+ *   <li><code>-Dspeeddoctor.profiler.stripes=N</code> - Number of accumulator stripes, rounded up to a power of two (default: available processors, at most 16)</li>
+ *   <li><code>-Dspeeddoctor.profiler.overheadBudget=0.01</code> - Enable adaptive sampling that keeps profiler overhead under the given fraction of CPU; reported counts and percentiles become estimates with error bounds (default: 0, every call is timed)</li>
+ *   <li><code>-Dspeeddoctor.profiler.samplingIntervalMs=1000</code> - How often sampling periods are re-computed from observed call rates (default: 1000)</li>
+ *   <li><code>-Dspeeddoctor.profiler.sampleCostNanos=N</code> - Cost of one timed call used for the budget; calibrated at startup when not set</li>
+ *   <li><code>-Dspeeddoctor.profiler.callTree=true|false</code> - Track a per-thread shadow stack to separate self time from callee time and write <code>profiler-data/callstacks.collapsed</code> for flame graphs (default: true, false when sampling)</li>
+ *   <li><code>-Dspeeddoctor.profiler.callTree.maxNodes=16384</code> - Maximum number of call-tree nodes; further call paths are reported as <code>&lt;truncated&gt;</code> (default: 16384)</li>
+ *   <li><code>-Dspeeddoctor.profiler.tiered=true|false</code> - Instrument methods with a cheap invocation counter first and retransform classes to add full timing only to hot or slow methods (default: false)</li>
+ *   <li><code>-Dspeeddoctor.profiler.tier.intervalMs=1000</code> - How often methods are promoted or demoted between tiers (default: 1000)</li>
+ *   <li><code>-Dspeeddoctor.profiler.tier.promoteCalls=1000</code> - Calls per interval that promote a method to full timing (default: 1000)</li>
+ *   <li><code>-Dspeeddoctor.profiler.tier.promoteNanos=1000000</code> - Sampled call latency that promotes a method to full timing (default: 1000000)</li>
+ *   <li><code>-Dspeeddoctor.profiler.tier.latencySampleEvery=1024</code> - Time one call in this many in the counting tier, rounded up to a power of two (default: 1024)</li>
+ *   <li><code>-Dspeeddoctor.profiler.tier.demoteNanos=2000</code> - p99 below which a timed method is considered trivial and demoted back to counting (default: 2000)</li>
+ *   <li><code>-Dspeeddoctor.profiler.tier.demoteAfterIntervals=30</code> - Intervals a method stays timed before it can be demoted (default: 30)</li>
+ *   <li><code>-Dspeeddoctor.profiler.topK=N</code> - Track only the N heaviest methods by total time in fixed memory, keyed by signature hash, with per-row error bounds in the report (default: 0, every method is tracked)</li>
+ *   <li><code>-Dspeeddoctor.profiler.topK.sketchWidth=16384</code> - Width of the count-min sketch that estimates the time of untracked methods, rounded up to a power of two (default: 16384)</li>
+ *   <li><code>-Dspeeddoctor.profiler.store=profiler-data/hotspots.bin</code> - Crash-safe memory-mapped store that is checkpointed periodically and accumulates data across restarts; <code>hotspots.csv</code> then covers all runs in the store (default: disabled)</li>
+ *   <li><code>-Dspeeddoctor.profiler.checkpointIntervalMs=10000</code> - How often the hotspot store is checkpointed (default: 10000)</li>
+ *   <li><code>-Dspeeddoctor.profiler.store.maxMethods=4096</code> - Number of methods kept in the hotspot store, heaviest first; the store is disabled if this does not fit into a 2 GB file, about 330,000 methods (default: 4096)</li>
+ *   <li><code>-Dspeeddoctor.profiler.sharedMemory=path/to/file</code> - Publish counters and histograms to a memory-mapped file that sidecars can poll lock-free, see <code>SharedCounters</code> for the layout and reader CLI (default: disabled)</li>
+ *   <li><code>-Dspeeddoctor.profiler.sharedMemory.intervalMs=1000</code> - How often the shared counters are republished (default: 1000)</li>
+ *   <li><code>-Dspeeddoctor.profiler.sharedMemory.maxMethods=1024</code> - Number of methods published, heaviest first (default: 1024)</li>
+ *   <li><code>-Dspeeddoctor.profiler.outliers=true|false</code> - Capture the stack and thread state of calls above their method's p99 and write them, deduplicated by stack, to <code>profiler-data/outliers.txt</code> (default: true)</li>
+ *   <li><code>-Dspeeddoctor.profiler.outliers.minNanos=1000000</code> - Lower bound of the outlier threshold, so fast methods never pay for a stack walk (default: 1000000)</li>
+ *   <li><code>-Dspeeddoctor.profiler.outliers.minCalls=1000</code> - Calls a method needs before its p99 is trusted as a threshold (default: 1000)</li>
+ *   <li><code>-Dspeeddoctor.profiler.outliers.perSecond=1</code> - Outlier captures per method per second (default: 1)</li>
+ *   <li><code>-Dspeeddoctor.profiler.outliers.reservoirSize=256</code> - Distinct outlier stacks kept, reservoir-sampled once full (default: 256)</li>
+ *   <li><code>-Dspeeddoctor.profiler.outliers.maxDepth=64</code> - Frames kept per outlier stack (default: 64)</li>
+ *   <li><code>-Dspeeddoctor.profiler.allocations=true|false</code> - Measure the bytes allocated per call of the profiled methods from the per-thread allocation counter, reported as <code>alloc_bytes_per_call</code> next to the latency columns (default: false)</li>
+ *   <li><code>-Dspeeddoctor.profiler.allocations.sampleEvery=16</code> - Measure the allocations of one call in this many, rounded to a power of two (default: 16)</li>
+ *   <li><code>-Dspeeddoctor.profiler.pinning=true|false</code> - On JDK 21+, report virtual threads that block while pinned to their carrier, per call site, in <code>profiler-data/pinning.csv</code>; streams JFR events in-process while the profiler is enabled (default: false)</li>
+ *   <li><code>-Dspeeddoctor.profiler.pinning.thresholdMs=20</code> - Pinned duration above which a virtual thread is reported (default: 20)</li>
+ *   <li><code>-Dspeeddoctor.profiler.async=true|false</code> - Wrap the tasks that the profiled packages submit to executors and <code>CompletableFuture</code> <code>*Async</code> methods, and report their queue and execution time per originating method in <code>profiler-data/async.csv</code> (default: false)</li>
+ *   <li><code>-Dspeeddoctor.jdbc=true|false</code> - Time JDBC statements per SQL fingerprint, literals stripped, and flag N+1 queries; written to <code>profiler-data/jdbc.csv</code> (default: true)</li>
+ *   <li><code>-Dspeeddoctor.jdbc.maxFingerprints=1024</code> - Distinct SQL fingerprints tracked; further ones are reported as <code>&lt;overflow&gt;</code> (default: 1024)</li>
+ *   <li><code>-Dspeeddoctor.jdbc.nPlusOneThreshold=10</code> - Executions of one fingerprint within one outermost profiled call that flag it as an N+1 query (default: 10)</li>
+ *   <li><code>-Dspeeddoctor.locks.maxSites=4096</code> - Maximum number of distinct lock sites; further sites are reported as <code>&lt;overflow&gt;</code> (default: 4096)</li>
+ *   <li><code>-Dspeeddoctor.locks.contendedNanos=1000</code> - Wait above which a lock acquisition counts as contended (default: 1000)</li>
+ *   <li><code>-Dspeeddoctor.jfr.slowMethodThresholdMs=50</code> - Default <code>callThreshold</code> of the <code>speeddoctor.SlowMethod</code> JFR event; the agent's events are disabled unless a recording enables them, see <code>AgentEvents</code> for all events and <code>JfrHotspotConverter</code> to turn a recording into a hotspot CSV (default: 50)</li>
+ *   <li><code>-Dspeeddoctor.metrics.port=N</code> - Serve Prometheus metrics at <code>http://127.0.0.1:N/metrics</code>; the same counters are always available over JMX as <code>com.example.patcher:type=Features</code> and <code>com.example.patcher:type=PatcherAgent</code> (default: 0, disabled)</li>
+ *   <li><code>-Dspeeddoctor.retransform.threads=N</code> - Threads that match the classes already loaded when the agent is installed, e.g. when attached late (default: half the available processors, at most 4)</li>
+ *   <li><code>-Dspeeddoctor.retransform.batchSize=500</code> - Already loaded classes retransformed per <code>retransformClasses</code> call; a failing batch is split until the failing classes are isolated (default: 500)</li>
+ *   <li><code>-Dspeeddoctor.retransform.pauseMs=50</code> - Pause between retransformation batches, so the application keeps running (default: 50)</li>
+ *   <li><code>-Dspeeddoctor.transformations.maxEntries=1024</code> - Slowest transformed classes kept with their time, class file sizes and features, exported to <code>profiler-data/transformations.csv</code>; totals cover every class load (default: 1024)</li>
+ *   <li><code>-Dspeeddoctor.transformations.summaryDelayMs=60000</code> - Delay after installation at which the transformation totals are logged a second time, once the application has started; 0 logs them only at installation (default: 60000)</li>
+ *   <li><code>-Dspeeddoctor.typePool.maxEntries=2048</code> - Type descriptions cached per class loader for matching, least recently used first out (default: 2048)</li>
+ *   <li><code>-Dspeeddoctor.cache.dir=path/to/dir</code> - Cache transformed bytecode on disk across restarts, keyed by the class bytes and a fingerprint of the agent build and configuration; the directory may be shared by several JVMs, see <code>TransformCache</code> (default: none, disabled)</li>
+ *   <li><code>-Dspeeddoctor.cache.maxBytes=268435456</code> - Size bound of the cache directory, least recently used entries are evicted first (default: 268435456)</li>
  *   <li><code>-Dspeeddoctor.deprecation.config=path/to/deprecation-mappings.json</code> - Path to JSON file with deprecation mappings (default: config/deprecation-mappings.json)</li>
  *   <li><code>-Dspeeddoctor.security.patterns=path/to/security-patterns.json</code> - Path to JSON file with security patterns (default: config/security-patterns.json)</li>
+ *   <li><code>-Dspeeddoctor.security.warningsPerSecond=10</code> - Security findings logged per second and kind; further ones are counted into the next warning, the <code>speeddoctor.SqlSanitized</code> and <code>speeddoctor.XssEscaped</code> JFR events are emitted for all of them (default: 10)</li>
  * </ul>
  * <p>
  * To use these features, add the SpeedDoctor agent to your application startup:
@@ -44,6 +108,11 @@
  *   }
  * }
  * </pre>
+ * Any <code>targetClass#targetMethod</code> works: when the deprecated class is loaded, its method is rewritten
+ * into a direct call of the overload that takes its arguments, as a static call, on the first argument, or on
+ * <code>this</code>, with boxing and casts as needed; see <code>DeprecationRedirect</code>. The targets of
+ * <code>Math#addExact</code>, <code>Files#deleteIfExists</code> and <code>URLEncoder#encode</code> keep their
+ * hand-written shims.
  * 
  * <h4>Security Patterns (JSON)</h4>
  * <pre>
@@ -0,0 +1,90 @@
+package com.example.patcher.agent.features;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingStream;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Virtual-thread support, JDK 21+ version, loaded from {@code META-INF/versions/21} of the
+ * multi-release agent jar in place of the JDK 11 version.
+ * <p>
+ * Pinning is observed through JFR's {@code jdk.VirtualThreadPinned} event, which the JVM emits
+ * when a virtual thread blocks while pinned for longer than the threshold. An in-process
+ * {@link RecordingStream} delivers the events with their stack traces to {@link PinningSites}. The
+ * stream explicitly disables the {@link AgentEvents}, so it never records events it has no handler
+ * for.
+ */
+final class VirtualThreads {
+    private static final Logger LOGGER = Logger.getLogger(VirtualThreads.class.getName());
+
+    private static final String PINNED_EVENT = "jdk.VirtualThreadPinned";
+
+    private static RecordingStream pinningStream;
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @return Whether the thread is a virtual thread
+     */
+    static boolean isVirtual(Thread thread) {
+        return thread.isVirtual();
+    }
+
+    /**
+     * Start streaming pinned virtual threads into {@link PinningSites}, if enabled.
+     */
+    static synchronized void startPinningMonitor() {
+        if (!PinningSites.ENABLED || pinningStream != null) {
+            return;
+        }
+        RecordingStream stream = new RecordingStream();
+        // Any running recording may switch on events it does not name, keep the agent's own out of this one
+        for (String name : AgentEvents.NAMES) {
+            stream.disable(name);
+        }
+        stream.enable(PINNED_EVENT).withThreshold(Duration.ofNanos(PinningSites.THRESHOLD_NANOS)).withStackTrace();
+        stream.onEvent(PINNED_EVENT, VirtualThreads::onPinned);
+        stream.startAsync();
+        pinningStream = stream;
+        LOGGER.info("[Profiler] Reporting virtual threads pinned for more than "
+                + TimeUnit.NANOSECONDS.toMillis(PinningSites.THRESHOLD_NANOS) + "ms");
+    }
+
+    /**
+     * Stop the pinning monitor.
+     */
+    static synchronized void stopPinningMonitor() {
+        if (pinningStream != null) {
+            pinningStream.close();
+            pinningStream = null;
+        }
+    }
+
+    /**
+     * @return Whether the pinning monitor runs
+     */
+    static synchronized boolean isPinningMonitorRunning() {
+        return pinningStream != null;
+    }
+
+    private static void onPinned(RecordedEvent event) {
+        RecordedStackTrace stackTrace = event.getStackTrace();
+        List<RecordedFrame> frames = stackTrace == null ? List.of() : stackTrace.getFrames();
+        StackTraceElement[] stack = new StackTraceElement[frames.size()];
+        for (int i = 0; i < stack.length; i++) {
+            RecordedFrame frame = frames.get(i);
+            stack[i] = new StackTraceElement(frame.getMethod().getType().getName(), frame.getMethod().getName(),
+                    null, frame.getLineNumber());
+        }
+        // Newer JDKs say whether a monitor or a native frame pinned the thread
+        String reason = event.hasField("pinnedReason") ? event.getString("pinnedReason") : null;
+        PinningSites.record(stack, event.getDuration().toNanos(), reason);
+    }
+}
@@ -0,0 +1,53 @@
+package com.example.patcher.agent.features;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the budget split and the estimates produced by adaptive sampling.
+ */
+public class AdaptiveSamplerTest {
+
+    @Test
+    public void testBudgetIsWaterFilled() {
+        double[] rates = {1_000_000, 10, 1_000};
+        int[] periods = AdaptiveSampler.computePeriods(rates, 10_000);
+
+        // Cold methods are timed on every call, the hot one absorbs what is left of the budget
+        assertEquals(1, periods[1]);
+        assertEquals(1, periods[2]);
+        assertEquals(112, periods[0]);
+
+        double samplesPerSecond = 0;
+        for (int i = 0; i < rates.length; i++) {
+            samplesPerSecond += rates[i] / periods[i];
+        }
+        assertTrue(samplesPerSecond <= 10_000);
+    }
+
+    @Test
+    public void testEverythingSampledWhenBudgetSuffices() {
+        int[] periods = AdaptiveSampler.computePeriods(new double[] {100, 200}, 1_000);
+        assertArrayEquals(new int[] {1, 1}, periods);
+    }
+
+    @Test
+    public void testWeightedSamplesEstimatePopulation() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        int period = 64;
+        int calls = 640_000;
+        for (int i = 0; i < calls; i++) {
+            if (ThreadLocalRandom.current().nextInt(period) == 0) {
+                histogram.record(1_000 + (i % 1_000), period);
+            }
+        }
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        // 95% bound for the estimated count is 1.96 * sqrt(samples * period * (period - 1))
+        double bound = 1.96 * Math.sqrt(calls / (double) period * period * (period - 1));
+        assertEquals(calls, snapshot.getCount(), 2 * bound);
+        assertEquals(1_500, snapshot.getValueAtQuantile(0.5), 1_500 * 0.125);
+    }
+}
@@ -0,0 +1,105 @@
+package com.example.patcher.agent.features;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests the custom JFR events and the conversion of a recording into the hotspot CSV format.
+ */
+public class AgentEventsTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testEventsAreRecordedAndConverted() throws Exception {
+        Path file = tempDir.resolve("agent.jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable(AgentEvents.SLOW_METHOD).with("callThreshold", "1 ms");
+            recording.enable(AgentEvents.SQL_SANITIZED);
+            recording.enable(AgentEvents.XSS_ESCAPED);
+            recording.start();
+
+            AgentEvents.slowMethod("void com.example.Foo.bar()", 2_000_000, 1);
+            AgentEvents.slowMethod("void com.example.Foo.bar()", 80_000_000, 4);
+            // Below the recording's threshold
+            AgentEvents.slowMethod("void com.example.Foo.fast()", 10_000, 1);
+
+            String sql = "SELECT * FROM users WHERE name = 'x' OR 1=1";
+            assertFalse(SecurityPatchAdvice.sanitizeSqlArgument(sql).contains("1=1"));
+            assertEquals("&lt;script&gt;", SecurityPatchAdvice.sanitizeParameter("<script>", -1));
+            assertEquals("clean", SecurityPatchAdvice.sanitizeParameter("clean", -1));
+
+            recording.stop();
+            recording.dump(file);
+        }
+
+        List<String> types = RecordingFile.readAllEvents(file).stream()
+                .map(RecordedEvent::getEventType)
+                .map(type -> type.getName())
+                .collect(Collectors.toList());
+        assertTrue(types.contains(AgentEvents.SQL_SANITIZED));
+        assertTrue(types.contains(AgentEvents.XSS_ESCAPED));
+
+        List<HotspotStore.MethodStats> methods = JfrHotspotConverter.convert(file);
+        assertEquals(1, methods.size());
+        HotspotStore.MethodStats method = methods.get(0);
+        assertEquals("void com.example.Foo.bar()", method.getSignature());
+        assertEquals(5, method.getHistogram().getCount());
+        assertEquals(2_000_000 + 4 * 80_000_000L, method.getHistogram().getTotal());
+        assertEquals(4, method.getSlowHits());
+    }
+
+    @Test
+    public void testSecurityFindingsAreLoggedWhileRecorded() {
+        List<String> warnings = new ArrayList<>();
+        Handler handler = new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+                warnings.add(record.getMessage());
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        Logger logger = Logger.getLogger(SecurityPatchAdvice.class.getName());
+        logger.addHandler(handler);
+        try (Recording recording = new Recording()) {
+            recording.enable(AgentEvents.SQL_SANITIZED);
+            recording.start();
+            for (int i = 0; i < 1_000; i++) {
+                SecurityPatchAdvice.sanitizeSqlArgument("SELECT * FROM users WHERE name = 'user" + i + "' OR 1=1");
+            }
+        } finally {
+            logger.removeHandler(handler);
+        }
+        // Logged even though the recording captures the event, but rate limited
+        assertFalse(warnings.isEmpty());
+        assertTrue(warnings.size() < 1_000, "Not rate limited: " + warnings.size());
+        assertTrue(warnings.get(0).startsWith("[SecurityPatch] Potential SQL injection detected: "));
+    }
+
+    @Test
+    public void testThresholdParsing() {
+        assertEquals(20_000_000, AgentEvents.CallThresholdSetting.parseNanos("20 ms"));
+        assertEquals(500, AgentEvents.CallThresholdSetting.parseNanos("500 ns"));
+        assertEquals(3_000_000_000L, AgentEvents.CallThresholdSetting.parseNanos("3 s"));
+    }
+}
@@ -0,0 +1,85 @@
+package com.example.patcher.agent.features;
+
+import static net.bytebuddy.matcher.ElementMatchers.named;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
+import net.bytebuddy.ByteBuddy;
+import net.bytebuddy.asm.Advice;
+import net.bytebuddy.dynamic.loading.ClassLoadingStrategy;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that sampled allocations are measured per call and exported next to the latency columns.
+ */
+public class AllocationProfilerTest {
+
+    /**
+     * Class that gets instrumented by the tests.
+     */
+    public static class Allocating {
+        public int allocate(int size) {
+            return new byte[size].length;
+        }
+    }
+
+    @Test
+    public void testAllocationAdviceMeasuresSampledCalls() throws Exception {
+        Advice advice = Advice.withCustomMapping()
+                .bind(ProfilerAdvice.MethodId.class, MethodRegistry.METHOD_ID_MAPPING)
+                .to(ProfilerAdvice.Allocations.class);
+
+        Class<?> profiled = new ByteBuddy()
+                .redefine(Allocating.class)
+                .name(Allocating.class.getName() + "$Profiled")
+                .visit(advice.on(named("allocate")))
+                .make()
+                .load(getClass().getClassLoader(), ClassLoadingStrategy.Default.WRAPPER)
+                .getLoaded();
+
+        Object instance = profiled.getDeclaredConstructor().newInstance();
+        Method allocate = profiled.getMethod("allocate", int.class);
+        for (int i = 0; i < 2_000; i++) {
+            assertEquals(64 * 1024, allocate.invoke(instance, 64 * 1024));
+        }
+
+        int methodId = MethodRegistry.register("public int " + profiled.getName() + ".allocate(int)");
+        long samples = AllocationProfiler.getSamples(methodId);
+        // One call in 16 is sampled
+        assertTrue(samples > 0 && samples < 2_000, "Samples " + samples);
+        assertTrue(AllocationProfiler.getBytes(methodId) / samples >= 64 * 1024,
+                "Bytes per call " + AllocationProfiler.getBytes(methodId) / samples);
+        assertTrue(AllocationProfiler.getMaxBytes(methodId) >= 64 * 1024);
+    }
+
+    @Test
+    public void testAllocationsAreReportedNextToLatency() {
+        String signature = "void com.example.Allocations.build()";
+        int id = MethodRegistry.register(signature);
+        ProfilerAdvice.record(id, 1_000);
+        AllocationProfiler.record(id, 1_000);
+        AllocationProfiler.record(id, 3_000);
+        AllocationProfiler.record(id, -1);
+
+        String report = ProfilerAdvice.getHotspotReport();
+        List<String> header = Arrays.asList(report.lines().findFirst().orElseThrow().split(","));
+        String row = report.lines()
+                .filter(line -> line.startsWith("\"" + signature + "\","))
+                .findFirst()
+                .orElseThrow(() -> new AssertionError("No report row for " + signature));
+        String[] values = row.substring(signature.length() + 3).split(",");
+        assertEquals(header.size() - 1, values.length);
+        assertEquals("2000", values[header.indexOf("alloc_bytes_per_call") - 1]);
+        assertEquals("2", values[header.indexOf("alloc_samples") - 1]);
+
+        HotspotStore.MethodStats stats = ProfilerAdvice.collectMethodStats().stream()
+                .filter(method -> method.getSignature().equals(signature))
+                .findFirst()
+                .orElseThrow();
+        assertEquals(4_000, stats.getAllocatedBytes());
+        assertEquals(2, stats.getAllocationSamples());
+        assertEquals(2_000, stats.getAllocatedBytesPerCall());
+    }
+}
@@ -0,0 +1,100 @@
+package com.example.patcher.agent.features;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.StringWriter;
+import java.lang.reflect.Method;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import net.bytebuddy.ByteBuddy;
+import net.bytebuddy.description.method.MethodDescription;
+import net.bytebuddy.dynamic.loading.ClassLoadingStrategy;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that submitted tasks are timed and attributed to the method that started them.
+ */
+public class AsyncProfilerTest {
+
+    /**
+     * Task submitter whose rewritten copy is loaded in its own class loader.
+     */
+    public static class Worker {
+        public CompletableFuture<Integer> compute(ExecutorService executor, long millis) {
+            return CompletableFuture.supplyAsync(() -> {
+                pause(millis);
+                return 41;
+            }, executor).thenApplyAsync(value -> value + 1, executor);
+        }
+
+        public Future<?> chain(ExecutorService executor, CountDownLatch done) {
+            return executor.submit(() -> executor.execute(done::countDown));
+        }
+
+        private static void pause(long millis) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Test
+    public void testTasksAreAttributedToTheirOrigin() throws Exception {
+        Class<?> type = new ByteBuddy()
+                .redefine(Worker.class)
+                .visit(AsyncProfiler.VISITOR)
+                .make()
+                .load(getClass().getClassLoader(), ClassLoadingStrategy.Default.CHILD_FIRST)
+                .getLoaded();
+        Object worker = type.getConstructor().newInstance();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // Keep the only thread busy so the first stage has to queue
+            CountDownLatch release = new CountDownLatch(1);
+            executor.execute(() -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            Method compute = type.getMethod("compute", ExecutorService.class, long.class);
+            CompletableFuture<?> result = (CompletableFuture<?>) compute.invoke(worker, executor, 30L);
+            Thread.sleep(50);
+            release.countDown();
+            assertEquals(42, result.get(5, TimeUnit.SECONDS));
+
+            Method chain = type.getMethod("chain", ExecutorService.class, CountDownLatch.class);
+            CountDownLatch done = new CountDownLatch(1);
+            ((Future<?>) chain.invoke(worker, executor, done)).get(5, TimeUnit.SECONDS);
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            // The stage records its times once it returns, just after completing the future
+            executor.submit(() -> { }).get(5, TimeUnit.SECONDS);
+
+            int computeId = MethodRegistry.register(new MethodDescription.ForLoadedMethod(compute).toString());
+            LatencyHistogram.Snapshot queue = AsyncProfiler.getQueueHistogram(computeId).snapshot();
+            LatencyHistogram.Snapshot exec = AsyncProfiler.getExecHistogram(computeId).snapshot();
+            assertEquals(2, exec.getCount());
+            assertTrue(queue.getMax() >= 40_000_000, "Queue " + queue.getMax());
+            assertTrue(exec.getMax() >= 30_000_000, "Exec " + exec.getMax());
+            assertEquals(0, AsyncProfiler.getFailures(computeId));
+
+            // The task submitted from inside the first one inherits its origin
+            int chainId = MethodRegistry.register(new MethodDescription.ForLoadedMethod(chain).toString());
+            assertEquals(2, AsyncProfiler.getExecHistogram(chainId).getCount());
+
+            StringWriter report = new StringWriter();
+            AsyncProfiler.writeReport(report);
+            assertTrue(report.toString().startsWith(AsyncProfiler.REPORT_HEADER));
+            assertTrue(report.toString().contains(".compute(java.util.concurrent.ExecutorService,long)\",2,0,"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.example.patcher.agent.features;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.StringWriter;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests self-time accounting and the collapsed-stack export of the call tree.
+ */
+public class CallTreeTest {
+
+    @Test
+    public void testSelfTimeExcludesChildren() throws Exception {
+        int controller = MethodRegistry.register("public void calltree.Controller.handle(java.lang.String)");
+        int service = MethodRegistry.register("public int calltree.Service.load()");
+        int repository = MethodRegistry.register("private int calltree.Repository.query(int) throws java.io.IOException");
+
+        // handle: 0..1000, load: 100..900, query: 200..700, second query: 750..850
+        CallTree.push(controller, 0);
+        CallTree.push(service, 100);
+        CallTree.push(repository, 200);
+        CallTree.pop(700);
+        CallTree.push(repository, 750);
+        CallTree.pop(850);
+        CallTree.pop(900);
+        CallTree.pop(1_000);
+
+        long[] self = CallTree.getSelfNanosByMethod();
+        assertEquals(200, self[controller]);
+        assertEquals(200, self[service]);
+        assertEquals(600, self[repository]);
+
+        StringWriter collapsed = new StringWriter();
+        CallTree.writeCollapsedStacks(collapsed);
+        String output = collapsed.toString();
+        assertTrue(output.contains("calltree.Controller.handle(java.lang.String) 200\n"), output);
+        assertTrue(output.contains("calltree.Controller.handle(java.lang.String);calltree.Service.load() 200\n"), output);
+        assertTrue(output.contains(
+                "calltree.Controller.handle(java.lang.String);calltree.Service.load();calltree.Repository.query(int) 600\n"),
+                output);
+    }
+
+    @Test
+    public void testUnbalancedPopIsIgnored() {
+        int method = MethodRegistry.register("public void calltree.Late.attached()");
+        CallTree.pop(100);
+        CallTree.push(method, 0);
+        CallTree.pop(50);
+        assertEquals(50, CallTree.getSelfNanosByMethod()[method]);
+    }
+}
@@ -0,0 +1,105 @@
+package com.example.patcher.agent.features;
+
+import static net.bytebuddy.matcher.ElementMatchers.named;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.lang.instrument.Instrumentation;
+import java.util.ArrayList;
+import net.bytebuddy.agent.ByteBuddyAgent;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.agent.builder.ResettableClassFileTransformer;
+import net.bytebuddy.description.method.MethodDescription;
+import net.bytebuddy.description.type.TypeDescription;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that deprecated methods are redirected to arbitrary replacements by direct calls.
+ */
+public class DeprecationRedirectTest {
+
+    /**
+     * Deprecated static methods.
+     */
+    public static class LegacyUtil {
+        public static int multiply(int a, int b) {
+            return -1;
+        }
+
+        public static boolean isEmpty(String value) {
+            return false;
+        }
+
+        public static Integer parse(String value) {
+            return null;
+        }
+
+        public static int missing(int value) {
+            return value;
+        }
+    }
+
+    /**
+     * Deprecated instance method, replaced by an inherited one.
+     */
+    public static class LegacyList extends ArrayList<String> {
+        public int count() {
+            return -1;
+        }
+    }
+
+    @Test
+    public void testReplacementNeedingTheFewestCastsIsResolved() throws Exception {
+        TypeDescription legacy = TypeDescription.ForLoadedType.of(LegacyUtil.class);
+        MethodDescription multiply = new MethodDescription.ForLoadedMethod(
+                LegacyUtil.class.getMethod("multiply", int.class, int.class));
+        assertEquals(new MethodDescription.ForLoadedMethod(Math.class.getMethod("multiplyExact", int.class, int.class)),
+                DeprecationRedirect.resolve(multiply, legacy, TypeDescription.ForLoadedType.of(Math.class), "multiplyExact"));
+
+        // The long overload would need a narrowing of its result
+        assertNull(DeprecationRedirect.resolve(multiply, legacy, TypeDescription.ForLoadedType.of(Math.class), "absExact"));
+    }
+
+    @Test
+    public void testDeprecatedMethodsAreRedirected() {
+        Instrumentation inst = ByteBuddyAgent.install();
+        ResettableClassFileTransformer transformer = new AgentBuilder.Default()
+                .disableClassFormatChanges()
+                .with(AgentBuilder.RedefinitionStrategy.RETRANSFORMATION)
+                .type(named(LegacyUtil.class.getName()))
+                .transform(DeprecationRedirect.transformer("multiply", "java.lang.Math#multiplyExact"))
+                .transform(DeprecationRedirect.transformer("isEmpty", "java.lang.String#isEmpty"))
+                .transform(DeprecationRedirect.transformer("parse", "java.lang.Integer#parseInt"))
+                .transform(DeprecationRedirect.transformer("missing", "java.lang.Math#noSuchMethod"))
+                .type(named(LegacyList.class.getName()))
+                .transform(DeprecationRedirect.transformer("count", "java.util.ArrayList#size"))
+                .installOn(inst);
+        try {
+            long invocations = DeprecationRescueAdvice.getInvocationCount();
+
+            // Static replacement
+            assertEquals(12, LegacyUtil.multiply(3, 4));
+            assertThrows(ArithmeticException.class, () -> LegacyUtil.multiply(Integer.MAX_VALUE, 2));
+
+            // Instance replacement called on the first argument
+            assertTrue(LegacyUtil.isEmpty(""));
+            assertFalse(LegacyUtil.isEmpty("x"));
+
+            // Boxed result
+            assertEquals(Integer.valueOf(42), LegacyUtil.parse("42"));
+
+            // Inherited instance replacement called on this
+            LegacyList list = new LegacyList();
+            list.add("a");
+            list.add("b");
+            assertEquals(2, list.count());
+
+            // Without a replacement the body is left alone
+            assertEquals(7, LegacyUtil.missing(7));
+
+            assertEquals(invocations + 6, DeprecationRescueAdvice.getInvocationCount());
+        } finally {
+            transformer.reset(inst, AgentBuilder.RedefinitionStrategy.RETRANSFORMATION);
+        }
+        assertEquals(-1, LegacyUtil.multiply(3, 4));
+    }
+}
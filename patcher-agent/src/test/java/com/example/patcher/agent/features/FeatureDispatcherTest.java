@@ -0,0 +1,108 @@
+package com.example.patcher.agent.features;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.description.type.TypeDescription;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that the dispatcher selects the same features as one type matcher per feature would, in order.
+ */
+public class FeatureDispatcherTest {
+
+    /**
+     * Statement interface of a driver.
+     */
+    public interface DriverStatement extends Statement {
+    }
+
+    /**
+     * Statement implementation, two levels below {@link Statement}.
+     */
+    public abstract static class PooledStatement implements DriverStatement {
+    }
+
+    private final List<String> applied = new ArrayList<>();
+
+    private AgentBuilder.Transformer record(String feature) {
+        return (builder, typeDescription, classLoader, module, protectionDomain) -> {
+            applied.add(feature);
+            return builder;
+        };
+    }
+
+    private List<String> dispatch(FeatureDispatcher dispatcher, Class<?> type) {
+        applied.clear();
+        TypeDescription typeDescription = TypeDescription.ForLoadedType.of(type);
+        if (dispatcher.matches(typeDescription, type.getClassLoader(), null, null, null)) {
+            dispatcher.transform(null, typeDescription, type.getClassLoader(), null, null);
+        }
+        return new ArrayList<>(applied);
+    }
+
+    @Test
+    public void testFeaturesAreSelectedByPrefixNameAndSuperType() {
+        FeatureDispatcher dispatcher = new FeatureDispatcher()
+                .forPrefixes(List.of("com.example.patcher", "java.util.concurrent."), null, record("profiler"))
+                .forName(ArrayList.class.getName(), record("rescue"))
+                .forSuperType(Statement.class.getName(), false, record("security"))
+                .forSuperType(Statement.class.getName(), true, record("jdbc"))
+                .forPrefixes(List.of("com.example"), FeatureDispatcherTest.class.getName() + "$", record("locks"))
+                .forSuperType(Runnable.class.getName(), false, record("tasks"));
+        assertEquals(6, dispatcher.size());
+
+        assertEquals(List.of("profiler", "security", "jdbc"), dispatch(dispatcher, PooledStatement.class));
+        assertEquals(List.of("profiler", "security"), dispatch(dispatcher, DriverStatement.class));
+        assertEquals(List.of("security"), dispatch(dispatcher, Statement.class));
+        assertEquals(List.of("rescue"), dispatch(dispatcher, ArrayList.class));
+        assertEquals(List.of("profiler", "tasks"), dispatch(dispatcher, java.util.concurrent.FutureTask.class));
+        assertEquals(List.of("profiler", "locks"), dispatch(dispatcher, com.example.patcher.agent.PatchEntry.class));
+        assertEquals(List.of(), dispatch(dispatcher, String.class));
+        assertFalse(dispatcher.matches(TypeDescription.ForLoadedType.of(String.class), null, null, null, null));
+
+        // Memoized hierarchies give the same answer
+        assertEquals(List.of("profiler", "security", "jdbc"), dispatch(dispatcher, PooledStatement.class));
+    }
+
+    @Test
+    public void testFeaturesAreToggledAndRescopedAtRuntime() {
+        FeatureDispatcher dispatcher = new FeatureDispatcher()
+                .inGroup("profiler")
+                .forPackages(null, record("profiler"))
+                .inGroup("locks")
+                .forPackages(FeatureDispatcherTest.class.getName() + "$", record("locks"))
+                .inGroup("security")
+                .forSuperType(Statement.class.getName(), false, record("security"));
+        assertEquals(Map.of("profiler", true, "locks", true, "security", true), dispatcher.groups());
+
+        // No packages are profiled until they are set
+        assertEquals(List.of("security"), dispatch(dispatcher, PooledStatement.class));
+        FeatureDispatcher.Scope before = dispatcher.setPackages(List.of("com.example.patcher"));
+        assertEquals(List.of("profiler", "security"), dispatch(dispatcher, PooledStatement.class));
+        assertEquals(List.of("profiler", "locks"), dispatch(dispatcher, com.example.patcher.agent.PatchEntry.class));
+        assertEquals(List.of(), dispatch(dispatcher, ArrayList.class));
+
+        // The earlier configuration is still available to compare against
+        TypeDescription pooled = TypeDescription.ForLoadedType.of(PooledStatement.class);
+        assertNotEquals(dispatcher.select(pooled, null, before), dispatcher.select(pooled, null, dispatcher.scope()));
+
+        dispatcher.setEnabled("security", false);
+        dispatcher.setEnabled("profiler", false);
+        assertEquals(Map.of("profiler", false, "locks", true, "security", false), dispatcher.groups());
+        assertEquals(List.of(), dispatch(dispatcher, PooledStatement.class));
+        assertEquals(List.of("locks"), dispatch(dispatcher, com.example.patcher.agent.PatchEntry.class));
+
+        dispatcher.setPackages(List.of("java.util."));
+        dispatcher.setEnabled("profiler", true);
+        assertEquals(List.of("java.util."), dispatcher.packages());
+        assertEquals(List.of("profiler", "locks"), dispatch(dispatcher, ArrayList.class));
+        assertEquals(List.of(), dispatch(dispatcher, com.example.patcher.agent.PatchEntry.class));
+
+        assertThrows(IllegalArgumentException.class, () -> dispatcher.setEnabled("jdbc", true));
+    }
+}
@@ -0,0 +1,49 @@
+package com.example.patcher.agent.features;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that the profiler's background services only run while the profiler is enabled.
+ */
+public class FeatureTransformerTest {
+
+    @Test
+    public void testProfilerServicesStopWhenDisabled() throws Exception {
+        FeatureTransformer.startProfilerServices();
+        try {
+            assertTrue(profilerThreads().contains("speeddoctor-profiler-events"), "Not started: " + profilerThreads());
+        } finally {
+            FeatureTransformer.stopProfilerServices();
+        }
+
+        // Stopped executors let their threads finish on their own
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!profilerThreads().isEmpty() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(List.of(), profilerThreads());
+        assertFalse(VirtualThreads.isPinningMonitorRunning());
+
+        // Enabled again, the services start again
+        FeatureTransformer.startProfilerServices();
+        try {
+            assertTrue(profilerThreads().contains("speeddoctor-profiler-events"));
+        } finally {
+            FeatureTransformer.stopProfilerServices();
+        }
+    }
+
+    static List<String> profilerThreads() {
+        return Thread.getAllStackTraces().keySet().stream()
+                .filter(Thread::isAlive)
+                .map(Thread::getName)
+                .filter(name -> name.startsWith("speeddoctor-profiler-"))
+                .sorted()
+                .collect(Collectors.toList());
+    }
+}
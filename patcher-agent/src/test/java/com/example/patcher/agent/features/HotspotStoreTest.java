@@ -0,0 +1,112 @@
+package com.example.patcher.agent.features;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.StringWriter;
+import java.nio.MappedByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests checkpointing into the memory-mapped hotspot store and reading it back without the agent.
+ */
+public class HotspotStoreTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testCheckpointRoundTripAndTornWriteFallback() throws Exception {
+        Path path = tempDir.resolve("hotspots.bin");
+        MappedByteBuffer buffer = HotspotStore.map(path, 16);
+
+        HotspotStore.write(buffer, Arrays.asList(stats("void com.example.Foo.bar()", 1_000, 10)));
+        HotspotStore.write(buffer, Arrays.asList(
+                stats("void com.example.Foo.bar()", 1_000, 20),
+                stats("void com.example.Foo.baz(int)", 500, 5)));
+
+        List<HotspotStore.MethodStats> methods = HotspotStore.read(path);
+        assertEquals(2, methods.size());
+        assertEquals("void com.example.Foo.bar()", methods.get(0).getSignature());
+        assertEquals(20, methods.get(0).getHistogram().getCount());
+        assertEquals(20_000, methods.get(0).getHistogram().getTotal());
+        assertEquals(1_000, methods.get(0).getHistogram().getValueAtQuantile(0.5), 125);
+
+        // Damage the latest checkpoint: the reader must fall back to the previous one
+        long generation = buffer.getLong(16);
+        int region = (int) (generation & 1);
+        buffer.put(HotspotStore.HEADER_SIZE + region * 16 * recordSize() + 600, (byte) 0x7F);
+        buffer.force();
+        methods = HotspotStore.read(path);
+        assertEquals(1, methods.size());
+        assertEquals(10, methods.get(0).getHistogram().getCount());
+
+        StringWriter csv = new StringWriter();
+        HotspotStore.writeCsv(methods, csv);
+        assertTrue(csv.toString().startsWith(ProfilerAdvice.REPORT_HEADER));
+        assertTrue(csv.toString().contains("\"void com.example.Foo.bar()\",0,10,10000,"));
+    }
+
+    @Test
+    public void testMergeAcrossRuns() {
+        HotspotStore.MethodStats previous = stats("void com.example.Foo.bar()", 100, 3);
+        HotspotStore.MethodStats current = stats("void com.example.Foo.bar()", 10_000, 1);
+        HotspotStore.MethodStats merged = previous.merge(current);
+        assertEquals(4, merged.getHistogram().getCount());
+        assertEquals(10_300, merged.getHistogram().getTotal());
+        assertEquals(100, merged.getHistogram().getMin());
+        assertEquals(10_000, merged.getHistogram().getMax());
+    }
+
+    @Test
+    public void testTruncatedSignatureMergesWithFullOne() throws Exception {
+        StringBuilder parameters = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            parameters.append(i == 0 ? "" : ",").append("java.lang.String");
+        }
+        String signature = "void com.example.Foo.wide(" + parameters + ")";
+        MappedByteBuffer buffer = HotspotStore.map(tempDir.resolve("wide.bin"), 4);
+        HotspotStore.write(buffer, Arrays.asList(stats(signature, 1_000, 2)));
+
+        HotspotStore.MethodStats stored = HotspotStore.read(tempDir.resolve("wide.bin")).get(0);
+        assertTrue(signature.startsWith(stored.getSignature()));
+        assertTrue(stored.getSignature().length() < signature.length());
+
+        HotspotStore.MethodStats current = stats(signature, 1_000, 1);
+        assertEquals(current.key(), stored.key());
+        HotspotStore.MethodStats merged = stored.merge(current);
+        assertEquals(signature, merged.getSignature());
+        assertEquals(3, merged.getHistogram().getCount());
+    }
+
+    @Test
+    public void testRejectsForeignFile() throws Exception {
+        Path path = tempDir.resolve("other.bin");
+        Files.write(path, new byte[HotspotStore.HEADER_SIZE]);
+        assertThrows(java.io.IOException.class, () -> HotspotStore.read(path));
+    }
+
+    @Test
+    public void testRejectsCapacityBeyondMappingLimit() {
+        assertTrue((long) HotspotStore.HEADER_SIZE + 2L * HotspotStore.MAX_CAPACITY * recordSize() <= Integer.MAX_VALUE);
+        Path path = tempDir.resolve("huge.bin");
+        assertThrows(IllegalArgumentException.class, () -> HotspotStore.map(path, HotspotStore.MAX_CAPACITY + 1));
+        assertFalse(Files.exists(path));
+    }
+
+    private static HotspotStore.MethodStats stats(String signature, long nanos, int calls) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < calls; i++) {
+            histogram.record(nanos);
+        }
+        return new HotspotStore.MethodStats(signature, 0, 0, histogram.snapshot());
+    }
+
+    private static int recordSize() {
+        return 512 + 8 * Long.BYTES + LatencyHistogram.BUCKET_COUNT * Long.BYTES;
+    }
+}
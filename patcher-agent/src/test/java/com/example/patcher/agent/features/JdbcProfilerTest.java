@@ -0,0 +1,116 @@
+package com.example.patcher.agent.features;
+
+import static net.bytebuddy.matcher.ElementMatchers.named;
+import static net.bytebuddy.matcher.ElementMatchers.takesArguments;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.StringWriter;
+import java.lang.reflect.Method;
+import net.bytebuddy.ByteBuddy;
+import net.bytebuddy.asm.Advice;
+import net.bytebuddy.dynamic.loading.ClassLoadingStrategy;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests SQL fingerprinting, statement timing through the advice and N+1 detection.
+ */
+public class JdbcProfilerTest {
+
+    /**
+     * Stands in for a driver's statement, the advice only needs the method shapes.
+     */
+    public static class Statement {
+        public int executeQuery(String sql) {
+            return sql.length();
+        }
+
+        public int executeQuery() {
+            return 0;
+        }
+    }
+
+    /**
+     * Stands in for a driver's connection.
+     */
+    public static class Connection {
+        public Object prepareStatement(String sql) {
+            return new Object();
+        }
+    }
+
+    @Test
+    public void testNormalizeStripsLiterals() {
+        assertEquals("SELECT * FROM users WHERE id = ? AND name = ?",
+                JdbcProfiler.normalize("SELECT *\n  FROM users WHERE id = 42 AND name = 'O''Brien'"));
+        assertEquals("select * from t1 where x in (?) and y > ?",
+                JdbcProfiler.normalize("select * from t1 where x in (1, 2, 3) and y > -- comment\n 1.5e3"));
+        assertEquals("insert into \"Order 2\" (a, b) values (?)",
+                JdbcProfiler.normalize("insert into \"Order 2\" (a, b) values (?, ?) /* batch */"));
+        assertEquals("insert into t values (?)", JdbcProfiler.normalize("insert into t values (1), (2), (3)"));
+    }
+
+    @Test
+    public void testStatementsAreTimedPerFingerprint() throws Exception {
+        Class<?> statementType = new ByteBuddy()
+                .redefine(Statement.class)
+                .name(Statement.class.getName() + "$Profiled")
+                .visit(Advice.to(JdbcProfiler.Execute.class).on(named("executeQuery").and(takesArguments(1))))
+                .visit(Advice.to(JdbcProfiler.ExecutePrepared.class).on(named("executeQuery").and(takesArguments(0))))
+                .make()
+                .load(getClass().getClassLoader(), ClassLoadingStrategy.Default.WRAPPER)
+                .getLoaded();
+        Class<?> connectionType = new ByteBuddy()
+                .redefine(Connection.class)
+                .name(Connection.class.getName() + "$Profiled")
+                .visit(Advice.to(JdbcProfiler.Prepare.class).on(named("prepareStatement")))
+                .make()
+                .load(getClass().getClassLoader(), ClassLoadingStrategy.Default.WRAPPER)
+                .getLoaded();
+
+        Object statement = statementType.getDeclaredConstructor().newInstance();
+        Method executeSql = statementType.getMethod("executeQuery", String.class);
+        for (int id = 0; id < 5; id++) {
+            executeSql.invoke(statement, "select name from timed_accounts where id = " + id);
+        }
+        JdbcProfiler.Fingerprint fingerprint = JdbcProfiler.lookup("select name from timed_accounts where id = ?");
+        assertEquals(5, fingerprint.histogram.getCount());
+
+        // The prepared SQL comes from the connection, the execution itself has none
+        Object connection = connectionType.getDeclaredConstructor().newInstance();
+        Object prepared = connectionType.getMethod("prepareStatement", String.class)
+                .invoke(connection, "select * from timed_orders where account = ?");
+        JdbcProfiler.exitPrepared(prepared, JdbcProfiler.enter(), false);
+        assertEquals(1, JdbcProfiler.lookup("select * from timed_orders where account = ?").histogram.getCount());
+
+        StringWriter report = new StringWriter();
+        JdbcProfiler.writeReport(report);
+        assertTrue(report.toString().startsWith(JdbcProfiler.REPORT_HEADER));
+        assertTrue(report.toString().contains("\"select name from timed_accounts where id = ?\",5,0,"));
+    }
+
+    @Test
+    public void testRepeatedQueriesInOneInvocationAreFlagged() {
+        assertTrue(CallTree.ENABLED, "N+1 detection needs the call tree");
+        int handler = MethodRegistry.register("void com.example.Orders.list()");
+        String sql = "select * from n_plus_one_items where order_id = ";
+
+        long start = ProfilerAdvice.enter(handler);
+        for (int order = 0; order < 25; order++) {
+            JdbcProfiler.exit(sql + order, JdbcProfiler.enter(), false);
+        }
+        ProfilerAdvice.exit(handler, start);
+
+        // A new invocation starts counting from zero
+        start = ProfilerAdvice.enter(handler);
+        for (int order = 0; order < 3; order++) {
+            JdbcProfiler.exit(sql + order, JdbcProfiler.enter(), false);
+        }
+        ProfilerAdvice.exit(handler, start);
+
+        JdbcProfiler.Fingerprint fingerprint = JdbcProfiler.lookup(JdbcProfiler.normalize(sql + 1));
+        assertEquals(28, fingerprint.histogram.getCount());
+        assertEquals(1, fingerprint.nPlusOneInvocations.get());
+        assertEquals(25, fingerprint.maxRepeats.get());
+        assertEquals(handler, fingerprint.nPlusOneCaller);
+    }
+}
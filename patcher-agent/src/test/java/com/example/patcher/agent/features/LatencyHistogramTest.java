@@ -0,0 +1,121 @@
+package com.example.patcher.agent.features;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the lock-free latency histogram used by the profiler.
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBucketBoundsAreContiguous() {
+        for (int i = 1; i < LatencyHistogram.BUCKET_COUNT; i++) {
+            assertEquals(LatencyHistogram.bucketUpperBound(i - 1) + 1, LatencyHistogram.bucketLowerBound(i),
+                    "Gap between buckets " + (i - 1) + " and " + i);
+        }
+        for (long value : new long[] {0, 7, 8, 15, 16, 1_000, 123_456_789, 1L << 43}) {
+            int index = LatencyHistogram.bucketIndex(value);
+            assertTrue(LatencyHistogram.bucketLowerBound(index) <= value);
+            assertTrue(LatencyHistogram.bucketUpperBound(index) >= value);
+        }
+    }
+
+    @Test
+    public void testPercentilesWithinRelativeError() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 100_000; i++) {
+            histogram.record(i * 1_000);
+        }
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(100_000, snapshot.getCount());
+        assertEquals(1_000, snapshot.getMin());
+        assertEquals(100_000_000, snapshot.getMax());
+        assertEquals(5_000_050_000_000L, snapshot.getTotal());
+
+        assertWithin(50_000_000, snapshot.getValueAtQuantile(0.50));
+        assertWithin(90_000_000, snapshot.getValueAtQuantile(0.90));
+        assertWithin(99_000_000, snapshot.getValueAtQuantile(0.99));
+        assertWithin(99_900_000, snapshot.getValueAtQuantile(0.999));
+    }
+
+    @Test
+    public void testConcurrentRecordingLosesNothing() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        int threads = 8;
+        int perThread = 50_000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+
+        for (int t = 0; t < threads; t++) {
+            executor.execute(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                for (int i = 0; i < perThread; i++) {
+                    histogram.record(100);
+                }
+            });
+        }
+        start.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals((long) threads * perThread, snapshot.getCount());
+        assertEquals(100L * threads * perThread, snapshot.getTotal());
+    }
+
+    @Test
+    public void testDrainIntoWhileRecordingLosesNothing() throws Exception {
+        LatencyHistogram stripe = new LatencyHistogram();
+        LatencyHistogram global = new LatencyHistogram();
+        int threads = 4;
+        int perThread = 50_000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        for (int t = 0; t < threads; t++) {
+            long value = 1_000L * (t + 1);
+            executor.execute(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    stripe.record(value);
+                }
+            });
+        }
+        executor.shutdown();
+        while (!executor.awaitTermination(1, TimeUnit.MILLISECONDS)) {
+            stripe.drainInto(global);
+        }
+        stripe.drainInto(global);
+
+        assertEquals(0, stripe.snapshot().getCount());
+        LatencyHistogram.Snapshot snapshot = global.snapshot();
+        assertEquals((long) threads * perThread, snapshot.getCount());
+        assertEquals(1_000L * perThread * (1 + 2 + 3 + 4), snapshot.getTotal());
+        assertEquals(1_000, snapshot.getMin());
+        assertEquals(4_000, snapshot.getMax());
+    }
+
+    @Test
+    public void testEmptySnapshot() {
+        LatencyHistogram.Snapshot snapshot = new LatencyHistogram().snapshot();
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getMin());
+        assertEquals(0, snapshot.getMax());
+        assertEquals(0, snapshot.getValueAtQuantile(0.99));
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        double error = Math.abs(actual - expected) / (double) expected;
+        assertTrue(error <= 0.125, "Expected ~" + expected + " but was " + actual);
+    }
+}
@@ -0,0 +1,151 @@
+package com.example.patcher.agent.features;
+
+import static net.bytebuddy.matcher.ElementMatchers.named;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import net.bytebuddy.agent.ByteBuddyAgent;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.agent.builder.ResettableClassFileTransformer;
+import net.bytebuddy.asm.Advice;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests parallel matching of loaded classes, batched retransformation with failure isolation, and
+ * retransformation when features change at runtime.
+ */
+public class LoadedClassRetransformerTest {
+
+    /**
+     * Loaded classes to retransform.
+     */
+    public static class First {
+    }
+
+    public static class Second {
+    }
+
+    public static class Third {
+    }
+
+    /**
+     * Loaded class whose feature is enabled and disabled at runtime.
+     */
+    public static class Greeter {
+        public String greet() {
+            return "hello";
+        }
+    }
+
+    /**
+     * The feature, changing the greeting.
+     */
+    public static class Shout {
+        @Advice.OnMethodExit
+        static void exit(@Advice.Return(readOnly = false) String greeting) {
+            greeting = greeting.toUpperCase();
+        }
+    }
+
+    @Test
+    public void testMatchingKeepsOrderAndSkipsFailingClasses() {
+        Class<?>[] classes = {First.class, String.class, Second.class, Integer.class, Third.class};
+        List<Class<?>> matched = LoadedClassRetransformer.match(classes, type -> {
+            if (type == Integer.class) {
+                throw new NoClassDefFoundError("missing dependency");
+            }
+            return type != String.class;
+        }, 3);
+        assertEquals(Arrays.asList(First.class, Second.class, Third.class), matched);
+        assertEquals(Collections.emptyList(), LoadedClassRetransformer.match(new Class<?>[0], type -> true, 2));
+    }
+
+    @Test
+    public void testScanOfLoadedClassesIsNotCountedAsClassLoads() {
+        Instrumentation inst = ByteBuddyAgent.install();
+        FeatureDispatcher dispatcher = new FeatureDispatcher()
+                .inGroup("none")
+                .forPackages(null, (builder, typeDescription, classLoader, module, protectionDomain) -> builder);
+        dispatcher.setPackages(List.of("com.example.unloaded."));
+        long ignored = IgnoredTypes.getIgnoredCount();
+        long matches = FeatureDispatcher.getMatchCount();
+
+        LoadedClassRetransformer.retransformLoadedClasses(inst, IgnoredTypes.UNCOUNTED, dispatcher);
+        LoadedClassRetransformer.retransformChanged(inst, IgnoredTypes.UNCOUNTED, dispatcher,
+                dispatcher.setEnabled("none", false));
+
+        assertEquals(ignored, IgnoredTypes.getIgnoredCount());
+        assertEquals(matches, FeatureDispatcher.getMatchCount());
+    }
+
+    @Test
+    public void testFeatureChangesRetransformLoadedClasses() {
+        Instrumentation inst = ByteBuddyAgent.install();
+        Greeter greeter = new Greeter();
+        FeatureDispatcher dispatcher = new FeatureDispatcher()
+                .inGroup("shout")
+                .forPackages(null, (builder, typeDescription, classLoader, module, protectionDomain) ->
+                        builder.visit(Advice.to(Shout.class).on(named("greet"))));
+        AgentBuilder.RawMatcher ignore = (typeDescription, classLoader, module, classBeingRedefined, protectionDomain) ->
+                !typeDescription.getName().equals(Greeter.class.getName());
+        ResettableClassFileTransformer transformer = new AgentBuilder.Default()
+                .disableClassFormatChanges()
+                .with(AgentBuilder.RedefinitionStrategy.RETRANSFORMATION)
+                .ignore(ignore)
+                .type(dispatcher)
+                .transform(dispatcher)
+                .installOn(inst);
+        try {
+            assertEquals("hello", greeter.greet());
+
+            // The class enters the profiled packages
+            LoadedClassRetransformer.retransformChanged(inst, ignore, dispatcher,
+                    dispatcher.setPackages(List.of(Greeter.class.getName())));
+            assertEquals("HELLO", greeter.greet());
+
+            // Disabled, the original bytecode is back
+            LoadedClassRetransformer.retransformChanged(inst, ignore, dispatcher, dispatcher.setEnabled("shout", false));
+            assertEquals("hello", greeter.greet());
+
+            LoadedClassRetransformer.retransformChanged(inst, ignore, dispatcher, dispatcher.setEnabled("shout", true));
+            assertEquals("HELLO", greeter.greet());
+        } finally {
+            inst.removeTransformer(transformer);
+        }
+    }
+
+    @Test
+    public void testFailingClassIsIsolatedFromItsBatch() {
+        Instrumentation inst = ByteBuddyAgent.install();
+        List<Class<?>> retransformed = Collections.synchronizedList(new ArrayList<>());
+        ClassFileTransformer recorder = new ClassFileTransformer() {
+            @Override
+            public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+                                    ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+                if (classBeingRedefined != null) {
+                    retransformed.add(classBeingRedefined);
+                }
+                return null;
+            }
+        };
+        inst.addTransformer(recorder, true);
+        try {
+            long failures = LoadedClassRetransformer.getFailedCount();
+            // Primitive classes cannot be retransformed, so the batch holding int fails as a whole
+            int failed = LoadedClassRetransformer.retransform(inst,
+                    Arrays.asList(First.class, int.class, Second.class, Third.class), 3, 1);
+            assertEquals(1, failed);
+            assertEquals(failures + 1, LoadedClassRetransformer.getFailedCount());
+            assertTrue(retransformed.containsAll(Arrays.asList(First.class, Second.class, Third.class)));
+            assertTrue(LoadedClassRetransformer.getRetransformNanos() > 0);
+        } finally {
+            inst.removeTransformer(recorder);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.example.patcher.agent.features;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.StringWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.ReentrantLock;
+import net.bytebuddy.ByteBuddy;
+import net.bytebuddy.dynamic.loading.ClassLoadingStrategy;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that rewritten lock sites separate wait time from hold time.
+ */
+public class LockContentionAdviceTest {
+
+    /**
+     * Lock user whose rewritten copy is loaded in its own class loader.
+     */
+    public static class Worker {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Object monitor = new Object();
+
+        public void holdLock(CountDownLatch acquired, long millis) throws InterruptedException {
+            lock.lock();
+            try {
+                acquired.countDown();
+                Thread.sleep(millis);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public void holdMonitor(CountDownLatch acquired, long millis) throws InterruptedException {
+            synchronized (monitor) {
+                acquired.countDown();
+                Thread.sleep(millis);
+            }
+        }
+
+        public void waitOnMonitor(long millis) throws InterruptedException {
+            synchronized (monitor) {
+                monitor.wait(millis);
+            }
+        }
+
+        public void leakLock(ReentrantLock leaked) {
+            // Released by the caller, outside the rewritten code
+            leaked.lock();
+        }
+
+        public void enterNull(Object missing) {
+            synchronized (missing) {
+                leakLock(lock);
+            }
+        }
+
+        public void holdBriefly(long millis) throws InterruptedException {
+            synchronized (monitor) {
+                Thread.sleep(millis);
+            }
+        }
+    }
+
+    @Test
+    public void testSeparatesWaitFromHoldTime() throws Exception {
+        Class<?> type = new ByteBuddy()
+                .redefine(Worker.class)
+                .visit(LockContentionAdvice.VISITOR)
+                .make()
+                .load(getClass().getClassLoader(), ClassLoadingStrategy.Default.CHILD_FIRST)
+                .getLoaded();
+        Object worker = type.getConstructor().newInstance();
+
+        contend(worker, type.getMethod("holdLock", CountDownLatch.class, long.class));
+        contend(worker, type.getMethod("holdMonitor", CountDownLatch.class, long.class));
+        type.getMethod("waitOnMonitor", long.class).invoke(worker, 50L);
+
+        List<LockContentionAdvice.SiteStats> sites = LockContentionAdvice.sites();
+        LockContentionAdvice.SiteStats lock = site(sites, "holdLock", "ReentrantLock.lock");
+        assertEquals(2, lock.acquisitions);
+        assertTrue(lock.contended >= 1);
+        assertTrue(lock.maxWaitNanos >= 50_000_000, "Wait " + lock.maxWaitNanos);
+        assertTrue(lock.maxHoldNanos >= 100_000_000, "Hold " + lock.maxHoldNanos);
+
+        LockContentionAdvice.SiteStats monitor = site(sites, "holdMonitor", "synchronized");
+        assertEquals(2, monitor.acquisitions);
+        assertTrue(monitor.maxWaitNanos >= 50_000_000, "Wait " + monitor.maxWaitNanos);
+        assertTrue(monitor.maxHoldNanos >= 100_000_000, "Hold " + monitor.maxHoldNanos);
+
+        LockContentionAdvice.SiteStats wait = site(sites, "waitOnMonitor", "wait");
+        assertEquals(1, wait.monitorWaits);
+        assertTrue(wait.monitorWaitNanos >= 40_000_000);
+        // The monitor is released while waiting, so the wait is not hold time
+        LockContentionAdvice.SiteStats waitMonitor = site(sites, "waitOnMonitor", "synchronized");
+        assertTrue(waitMonitor.maxHoldNanos < 40_000_000, "Hold " + waitMonitor.maxHoldNanos);
+
+        StringWriter report = new StringWriter();
+        LockContentionAdvice.writeReport(report);
+        assertTrue(report.toString().startsWith(LockContentionAdvice.REPORT_HEADER));
+        assertTrue(report.toString().contains("LockContentionAdviceTest$Worker.holdLock"));
+    }
+
+    @Test
+    public void testKeepsTrackingAfterLeakedEntries() throws Exception {
+        Class<?> type = new ByteBuddy()
+                .redefine(Worker.class)
+                .visit(LockContentionAdvice.VISITOR)
+                .make()
+                .load(getClass().getClassLoader(), ClassLoadingStrategy.Default.CHILD_FIRST)
+                .getLoaded();
+        Object worker = type.getConstructor().newInstance();
+
+        ReentrantLock leaked = new ReentrantLock();
+        Method leakLock = type.getMethod("leakLock", ReentrantLock.class);
+        Method enterNull = type.getMethod("enterNull", Object.class);
+        for (int i = 0; i < 100; i++) {
+            leakLock.invoke(worker, leaked);
+            InvocationTargetException thrown = assertThrows(InvocationTargetException.class,
+                    () -> enterNull.invoke(worker, (Object) null));
+            assertTrue(thrown.getCause() instanceof NullPointerException);
+        }
+        while (leaked.isHeldByCurrentThread()) {
+            leaked.unlock();
+        }
+
+        // Far more leaked entries than the held-lock stack holds, yet the next lock is still timed
+        type.getMethod("holdBriefly", long.class).invoke(worker, 20L);
+        LockContentionAdvice.SiteStats brief = site(LockContentionAdvice.sites(), "holdBriefly", "synchronized");
+        assertEquals(1, brief.acquisitions);
+        assertTrue(brief.maxHoldNanos >= 20_000_000, "Hold " + brief.maxHoldNanos);
+    }
+
+    private static void contend(Object worker, Method method) throws Exception {
+        CountDownLatch acquired = new CountDownLatch(1);
+        Thread holder = new Thread(() -> {
+            try {
+                method.invoke(worker, acquired, 150L);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        holder.start();
+        acquired.await();
+        method.invoke(worker, new CountDownLatch(1), 100L);
+        holder.join();
+    }
+
+    private static LockContentionAdvice.SiteStats site(List<LockContentionAdvice.SiteStats> sites, String method,
+                                                       String operation) {
+        return sites.stream()
+                .filter(site -> site.site.contains("LockContentionAdviceTest$Worker." + method + "(") && site.site.contains(" " + operation + ":"))
+                .findFirst()
+                .orElseThrow(() -> new AssertionError("No site for " + method + " " + operation + " in " + sites.size()));
+    }
+}
@@ -0,0 +1,84 @@
+package com.example.patcher.agent.features;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the Prometheus rendering, the loopback endpoint and the features MBean.
+ */
+public class MetricsEndpointTest {
+
+    @Test
+    public void testRendersMethodsWithoutGrowingGarbage() {
+        for (int i = 0; i < 500; i++) {
+            int id = MethodRegistry.register("void com.example.Metrics.method" + i + "(java.lang.String)");
+            ProfilerAdvice.record(id, 1_000 + i);
+        }
+        int quoted = MethodRegistry.register("void com.example.Metrics.\"quoted\"()");
+        ProfilerAdvice.record(quoted, 60_000_000);
+
+        MetricsEndpoint.MetricsWriter writer = new MetricsEndpoint.MetricsWriter();
+        MetricsEndpoint.render(writer);
+        String text = writer.toString();
+        assertTrue(text.contains("# TYPE speeddoctor_method_calls_total counter\n"));
+        assertTrue(text.contains("speeddoctor_method_calls_total{method=\"void com.example.Metrics.method7(java.lang.String)\"} 1\n"));
+        assertTrue(text.contains("speeddoctor_method_time_nanoseconds_total{method=\"void com.example.Metrics.method7(java.lang.String)\"} 1007\n"));
+        assertTrue(text.contains("speeddoctor_method_slow_calls_total{method=\"void com.example.Metrics.\\\"quoted\\\"()\"} 1\n"));
+
+        // Once the buffer has grown to the scrape size, later scrapes reuse it
+        int capacity = writer.capacity();
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        for (int scrape = 0; scrape < 10; scrape++) {
+            writer.reset();
+            MetricsEndpoint.render(writer);
+        }
+        long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+        assertEquals(capacity, writer.capacity());
+        assertTrue(allocated < 10 * 1024, "Allocated " + allocated + " bytes for 10 scrapes");
+    }
+
+    @Test
+    public void testServesMetricsOnLoopback() throws Exception {
+        HttpServer server = MetricsEndpoint.start(0);
+        assertNotNull(server);
+        try {
+            assertTrue(server.getAddress().getAddress().isLoopbackAddress());
+            URL url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/metrics");
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            assertEquals(200, connection.getResponseCode());
+            assertTrue(connection.getContentType().startsWith("text/plain; version=0.0.4"));
+            try (InputStream body = connection.getInputStream()) {
+                String text = new String(body.readAllBytes(), StandardCharsets.UTF_8);
+                assertTrue(text.contains("speeddoctor_transformations_total "));
+            }
+        } finally {
+            MetricsEndpoint.stop();
+        }
+    }
+
+    @Test
+    public void testMBeanExposesCountersAndReset() throws Exception {
+        FeatureMetrics.register();
+        MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(FeatureMetrics.OBJECT_NAME);
+
+        SecurityPatchAdvice.sanitizeParameter("<script>alert(1)</script>", -1);
+        assertTrue((Long) mbeans.getAttribute(name, "XssEscapedCount") >= 1);
+
+        int id = MethodRegistry.register("void com.example.Metrics.resetMe()");
+        ProfilerAdvice.record(id, 5_000);
+        assertTrue(((String[]) mbeans.getAttribute(name, "TopHotspots")).length > 0);
+        mbeans.invoke(name, "resetProfilerData", null, null);
+        assertEquals(0, ProfilerAdvice.getHistogram(id).getCount());
+    }
+}
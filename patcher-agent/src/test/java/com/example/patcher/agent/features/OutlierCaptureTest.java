@@ -0,0 +1,100 @@
+package com.example.patcher.agent.features;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.StringWriter;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that only calls above a method's p99 are captured, rate limited and deduplicated by stack.
+ */
+public class OutlierCaptureTest {
+
+    @Test
+    public void testCapturesRateLimitedOutliers() throws Exception {
+        int id = MethodRegistry.register("void com.example.Outliers.handle()");
+        for (int i = 0; i < 2_000; i++) {
+            ProfilerAdvice.record(id, 2_000_000);
+        }
+        OutlierCapture.updateThresholds();
+        long threshold = OutlierCapture.threshold(id);
+        assertTrue(threshold >= 2_000_000 && threshold < 3_000_000, "Threshold " + threshold);
+
+        long captured = OutlierCapture.getCaptured();
+        ProfilerAdvice.record(id, 2_000_000);
+        assertEquals(captured, OutlierCapture.getCaptured(), "Ordinary call was captured");
+
+        long rateLimited = OutlierCapture.getRateLimited();
+        for (int i = 0; i < 5; i++) {
+            slowCall(id);
+        }
+        // Unless the second rolled over, one capture is allowed and the rest are rate limited
+        long taken = OutlierCapture.getCaptured() - captured;
+        assertTrue(taken >= 1 && taken <= 2, "Captured " + taken);
+        assertEquals(5, taken + OutlierCapture.getRateLimited() - rateLimited);
+
+        List<OutlierCapture.Outlier> outliers = OutlierCapture.outliers();
+        OutlierCapture.Outlier outlier = outliers.stream().filter(o -> o.methodId == id).findFirst().orElseThrow();
+        assertEquals(taken, outlier.count, "Same stack was not deduplicated");
+        assertEquals("slowCall", outlier.stack[0].getMethodName());
+        assertEquals(100_000_000, outlier.maxNanos);
+
+        StringWriter report = new StringWriter();
+        OutlierCapture.writeReport(report);
+        assertTrue(report.toString().contains("void com.example.Outliers.handle() count=" + taken + " max_ns=100000000"));
+        assertTrue(report.toString().contains("\tat " + OutlierCaptureTest.class.getName() + ".slowCall("));
+    }
+
+    @Test
+    public void testRateLimitResetsEverySecond() {
+        int id = MethodRegistry.register("void com.example.Outliers.limited()");
+        assertTrue(OutlierCapture.tryAcquire(id, 10));
+        assertFalse(OutlierCapture.tryAcquire(id, 10));
+        assertTrue(OutlierCapture.tryAcquire(id, 11));
+    }
+
+    @Test
+    public void testDroppedStacksStayDroppedWhenTheyRecur() throws Exception {
+        OutlierCapture.reset();
+        int[] ids = new int[1_000];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = MethodRegistry.register("void com.example.Outliers.recurring" + i + "()");
+        }
+        Set<Long> kept = null;
+        for (int pass = 0; pass < 2; pass++) {
+            // Same call site in both passes, so every stack recurs
+            captureAll(ids);
+            Set<Long> hashes = OutlierCapture.outliers().stream().map(outlier -> outlier.hash).collect(Collectors.toSet());
+            if (kept == null) {
+                kept = hashes;
+                assertTrue(kept.size() < ids.length);
+                // Wait for the rate limit to roll over
+                long second = System.nanoTime() / 1_000_000_000L;
+                while (System.nanoTime() / 1_000_000_000L == second) {
+                    TimeUnit.MILLISECONDS.sleep(10);
+                }
+            } else {
+                assertTrue(kept.equals(hashes), "Recurring stacks changed the reservoir");
+            }
+        }
+        for (OutlierCapture.Outlier outlier : OutlierCapture.outliers()) {
+            assertEquals(2, outlier.count);
+        }
+        // Leave room for the stacks of other tests
+        OutlierCapture.reset();
+    }
+
+    private static void captureAll(int[] ids) {
+        for (int id : ids) {
+            OutlierCapture.capture(id, 10_000_000);
+        }
+    }
+
+    private static void slowCall(int id) {
+        ProfilerAdvice.record(id, 100_000_000);
+    }
+}
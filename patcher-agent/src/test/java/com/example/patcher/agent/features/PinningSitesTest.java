@@ -0,0 +1,46 @@
+package com.example.patcher.agent.features;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.StringWriter;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that pinned virtual threads are aggregated per application call site.
+ */
+public class PinningSitesTest {
+
+    @Test
+    public void testAggregatesPerApplicationFrame() throws Exception {
+        StackTraceElement[] stack = {
+                new StackTraceElement("jdk.internal.misc.Unsafe", "park", null, -1),
+                new StackTraceElement("java.lang.Thread", "sleep", null, 500),
+                new StackTraceElement("com.example.pinning.Cache", "refresh", null, 42),
+                new StackTraceElement("com.example.pinning.Handler", "handle", null, 7),
+        };
+        PinningSites.record(stack, 30_000_000, null);
+        PinningSites.record(stack, 50_000_000, null);
+        PinningSites.record(stack, 25_000_000, "Native or VM frame on stack");
+
+        PinningSites.Site site = PinningSites.sites().stream()
+                .filter(s -> s.site.equals("com.example.pinning.Cache.refresh:42") && s.reason.isEmpty())
+                .findFirst()
+                .orElseThrow();
+        assertEquals("java.lang.Thread.sleep", site.blockedIn);
+        assertEquals(2, site.count.get());
+        assertEquals(80_000_000, site.totalNanos.get());
+        assertEquals(50_000_000, site.maxNanos.get());
+
+        StringWriter report = new StringWriter();
+        PinningSites.writeReport(report);
+        assertTrue(report.toString().startsWith(PinningSites.REPORT_HEADER));
+        assertTrue(report.toString().contains(
+                "\"com.example.pinning.Cache.refresh:42\",\"java.lang.Thread.sleep\",\"Native or VM frame on stack\",1,"));
+    }
+
+    @Test
+    public void testPlatformThreadsAreNotVirtual() {
+        // Tests run from the class directories, which always hold the JDK 11 version
+        assertFalse(VirtualThreads.isVirtual(Thread.currentThread()));
+    }
+}
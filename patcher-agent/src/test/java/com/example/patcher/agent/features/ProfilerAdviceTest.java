@@ -0,0 +1,65 @@
+package com.example.patcher.agent.features;
+
+import static net.bytebuddy.matcher.ElementMatchers.named;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
+import net.bytebuddy.ByteBuddy;
+import net.bytebuddy.asm.Advice;
+import net.bytebuddy.dynamic.loading.ClassLoadingStrategy;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the profiler advice end to end on a class instrumented with ByteBuddy.
+ */
+public class ProfilerAdviceTest {
+
+    /**
+     * Class that gets instrumented by the tests.
+     */
+    public static class Sample {
+        public int work(int value, String unit) {
+            return value * 2;
+        }
+    }
+
+    @Test
+    public void testMethodIdIsInlinedAndRecorded() throws Exception {
+        Advice advice = Advice.withCustomMapping()
+                .bind(ProfilerAdvice.MethodId.class, MethodRegistry.METHOD_ID_MAPPING)
+                .to(ProfilerAdvice.class);
+
+        Class<?> profiled = new ByteBuddy()
+                .redefine(Sample.class)
+                .name(Sample.class.getName() + "$Profiled")
+                .visit(advice.on(named("work")))
+                .make()
+                .load(getClass().getClassLoader(), ClassLoadingStrategy.Default.WRAPPER)
+                .getLoaded();
+
+        Object instance = profiled.getDeclaredConstructor().newInstance();
+        Method work = profiled.getMethod("work", int.class, String.class);
+        for (int i = 0; i < 1_000; i++) {
+            assertEquals(i * 2, work.invoke(instance, i, "ms"));
+        }
+
+        String signature = "public int " + profiled.getName() + ".work(int,java.lang.String)";
+        int methodId = MethodRegistry.register(signature);
+        assertNotEquals(MethodRegistry.OVERFLOW_ID, methodId);
+        assertEquals(signature, MethodRegistry.getSignature(methodId));
+
+        String report = ProfilerAdvice.getHotspotReport();
+        List<String> header = Arrays.asList(report.lines().findFirst().orElseThrow().split(","));
+        String row = report.lines()
+                .filter(line -> line.startsWith("\"" + signature + "\","))
+                .findFirst()
+                .orElseThrow(() -> new AssertionError("No report row for " + signature));
+        // The signature itself is the first column, quoted as it contains a comma
+        String[] values = row.substring(signature.length() + 3).split(",");
+        assertEquals(header.size() - 1, values.length);
+        assertEquals("1000", values[header.indexOf("count") - 1]);
+        assertEquals("0", values[header.indexOf("hits") - 1]);
+    }
+}
@@ -0,0 +1,73 @@
+package com.example.patcher.agent.features;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the MPSC ring buffer that carries slow-call events to the reporter thread.
+ */
+public class ProfilerEventQueueTest {
+
+    @Test
+    public void testRejectsWhenFullAndPreservesOrder() {
+        ProfilerEventQueue queue = new ProfilerEventQueue(4);
+        assertEquals(4, queue.capacity());
+
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.offer(i, i * 10L));
+        }
+        assertFalse(queue.offer(99, 990));
+
+        List<Long> drained = new ArrayList<>();
+        assertEquals(3, queue.drain((methodId, durationNanos) -> drained.add(durationNanos), 3));
+        assertTrue(queue.offer(4, 40));
+        assertEquals(2, queue.drain((methodId, durationNanos) -> drained.add(durationNanos), 10));
+        assertEquals(List.of(0L, 10L, 20L, 30L, 40L), drained);
+        assertEquals(0, queue.drain((methodId, durationNanos) -> fail("queue should be empty"), 10));
+    }
+
+    @Test
+    public void testConcurrentProducersWithSingleConsumer() throws Exception {
+        ProfilerEventQueue queue = new ProfilerEventQueue(1024);
+        int producers = 4;
+        int perProducer = 20_000;
+        ExecutorService executor = Executors.newFixedThreadPool(producers);
+        CountDownLatch done = new CountDownLatch(producers);
+        long[] sums = new long[producers];
+
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+            executor.execute(() -> {
+                for (int i = 1; i <= perProducer; i++) {
+                    while (!queue.offer(producer, i)) {
+                        Thread.onSpinWait();
+                    }
+                }
+                done.countDown();
+            });
+        }
+
+        AtomicInteger received = new AtomicInteger();
+        while (received.get() < producers * perProducer) {
+            queue.drain((methodId, durationNanos) -> {
+                sums[methodId] += durationNanos;
+                received.incrementAndGet();
+            }, 256);
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        executor.shutdown();
+
+        long expected = (long) perProducer * (perProducer + 1) / 2;
+        for (long sum : sums) {
+            assertEquals(expected, sum);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.example.patcher.agent.features;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests the shared-memory counters layout with a writer and an independent read-only mapping.
+ */
+public class SharedCountersTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testReaderSeesPublishedHotspots() throws Exception {
+        Path path = tempDir.resolve("counters");
+        MappedByteBuffer writer = SharedCounters.map(path, 8);
+        SharedCounters.publish(writer, Arrays.asList(
+                stats("void com.example.Cold.run()", 1_000, 1),
+                stats("void com.example.Hot.run()", 1_000_000, 50)));
+
+        List<HotspotStore.MethodStats> methods = SharedCounters.read(mapReadOnly(path));
+        assertEquals(2, methods.size());
+        assertEquals("void com.example.Hot.run()", methods.get(0).getSignature());
+        assertEquals(50, methods.get(0).getHistogram().getCount());
+        assertEquals(50_000_000, methods.get(0).getHistogram().getTotal());
+    }
+
+    @Test
+    public void testReadsAreNeverTorn() throws Exception {
+        Path path = tempDir.resolve("counters");
+        MappedByteBuffer writer = SharedCounters.map(path, 4);
+        ByteBuffer reader = mapReadOnly(path);
+        AtomicBoolean running = new AtomicBoolean(true);
+        SharedCounters.publish(writer, Arrays.asList(stats("void com.example.Foo.bar()", 1_000, 1)));
+
+        Thread publisher = new Thread(() -> {
+            for (int calls = 1; running.get(); calls++) {
+                SharedCounters.publish(writer, Arrays.asList(stats("void com.example.Foo.bar()", 1_000, calls % 500 + 1)));
+            }
+        });
+        publisher.start();
+        try {
+            int consistent = 0;
+            // A reader gives up after a bounded number of retries, so keep reading until one succeeds
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            for (int i = 0; i < 2_000 || consistent == 0 && System.nanoTime() < deadline; i++) {
+                for (HotspotStore.MethodStats method : SharedCounters.read(reader)) {
+                    LatencyHistogram.Snapshot snapshot = method.getHistogram();
+                    // Every published record has total == 1000 * count, a torn read would break that
+                    assertEquals(1_000 * snapshot.getCount(), snapshot.getTotal());
+                    consistent++;
+                }
+            }
+            assertTrue(consistent > 0);
+        } finally {
+            running.set(false);
+            publisher.join();
+        }
+    }
+
+    private static ByteBuffer mapReadOnly(Path path) throws Exception {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    private static HotspotStore.MethodStats stats(String signature, long nanos, int calls) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < calls; i++) {
+            histogram.record(nanos);
+        }
+        return new HotspotStore.MethodStats(signature, 0, 0, histogram.snapshot());
+    }
+}
@@ -0,0 +1,51 @@
+package com.example.patcher.agent.features;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the stripe selection and the merge of striped accumulators into the global histograms.
+ */
+public class StripedAccumulatorsTest {
+
+    @Test
+    public void testStripeIndexInRange() {
+        int stripes = StripedAccumulators.stripeCount();
+        boolean[] used = new boolean[stripes];
+        for (long threadId = 1; threadId <= 1_000; threadId++) {
+            int stripe = StripedAccumulators.stripeIndex(threadId);
+            assertTrue(stripe >= 0 && stripe < stripes);
+            used[stripe] = true;
+        }
+        for (boolean stripeUsed : used) {
+            assertTrue(stripeUsed);
+        }
+    }
+
+    @Test
+    public void testMergeFoldsEveryStripe() throws Exception {
+        int methodId = MethodRegistry.register("void com.example.Striped.method()");
+        int threads = 8;
+        int perThread = 10_000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            executor.execute(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    StripedAccumulators.histogramFor(methodId).record(1_000);
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+
+        StripedAccumulators.merge();
+        LatencyHistogram.Snapshot snapshot = ProfilerAdvice.globalHistogram(methodId).snapshot();
+        assertEquals((long) threads * perThread, snapshot.getCount());
+        assertEquals(1_000L * threads * perThread, snapshot.getTotal());
+        assertEquals(0, StripedAccumulators.histogramFor(methodId).snapshot().getCount());
+    }
+}
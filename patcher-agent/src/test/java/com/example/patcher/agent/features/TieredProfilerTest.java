@@ -0,0 +1,69 @@
+package com.example.patcher.agent.features;
+
+import static net.bytebuddy.matcher.ElementMatchers.named;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.lang.instrument.Instrumentation;
+import net.bytebuddy.agent.ByteBuddyAgent;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.agent.builder.ResettableClassFileTransformer;
+import net.bytebuddy.asm.Advice;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests promotion from the counting tier to full timing through a real retransformation.
+ */
+public class TieredProfilerTest {
+
+    /**
+     * Class that gets instrumented by the test, loaded only after the transformer is installed.
+     */
+    public static class Worker {
+        public int compute(int value) {
+            return value + 1;
+        }
+    }
+
+    @Test
+    public void testHotMethodIsPromotedToTiming() {
+        Instrumentation inst = ByteBuddyAgent.install();
+        Advice profilerAdvice = Advice.withCustomMapping()
+                .bind(ProfilerAdvice.MethodId.class, MethodRegistry.METHOD_ID_MAPPING)
+                .to(ProfilerAdvice.class);
+        Advice counterAdvice = Advice.withCustomMapping()
+                .bind(ProfilerAdvice.MethodId.class, MethodRegistry.METHOD_ID_MAPPING)
+                .to(ProfilerAdvice.Counter.class);
+
+        ResettableClassFileTransformer transformer = new AgentBuilder.Default()
+                .disableClassFormatChanges()
+                .with(AgentBuilder.RedefinitionStrategy.RETRANSFORMATION)
+                .type(named(Worker.class.getName()))
+                .transform((builder, typeDescription, classLoader, module, protectionDomain) ->
+                        builder.visit(profilerAdvice.on(TieredProfiler.timed(named("compute"), classLoader)))
+                                .visit(counterAdvice.on(TieredProfiler.counted(named("compute"), classLoader))))
+                .installOn(inst);
+        try {
+            Worker worker = new Worker();
+            int methodId = MethodRegistry.register("public int " + Worker.class.getName() + ".compute(int)");
+
+            for (int i = 0; i < 5_000; i++) {
+                assertEquals(i + 1, worker.compute(i));
+            }
+            assertEquals(TieredProfiler.COUNTING, TieredProfiler.getTier(methodId));
+            assertEquals(5_000, TieredProfiler.getInvocations(methodId));
+            assertEquals(0, ProfilerAdvice.globalHistogram(methodId).snapshot().getCount());
+
+            assertEquals(1, TieredProfiler.adjustTiers(inst));
+            assertEquals(TieredProfiler.TIMED, TieredProfiler.getTier(methodId));
+
+            for (int i = 0; i < 300; i++) {
+                assertEquals(i + 1, worker.compute(i));
+            }
+            // The counter is gone from the retransformed method, only the timing advice remains
+            assertEquals(5_000, TieredProfiler.getInvocations(methodId));
+            assertEquals(300, ProfilerAdvice.globalHistogram(methodId).snapshot().getCount());
+        } finally {
+            transformer.reset(inst, AgentBuilder.RedefinitionStrategy.RETRANSFORMATION);
+        }
+    }
+}
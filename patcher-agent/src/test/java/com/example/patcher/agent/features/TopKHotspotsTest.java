@@ -0,0 +1,48 @@
+package com.example.patcher.agent.features;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that the top-K table keeps the heaviest methods among many cold ones within its error bounds.
+ */
+public class TopKHotspotsTest {
+
+    @Test
+    public void testHeavyMethodsSurviveColdChurn() {
+        int heavyMethods = TopKHotspots.slotCount() - 1;
+        long heavyCallNanos = 10_000;
+        int heavyCalls = 1_000;
+        int coldMethods = 20_000;
+
+        int cold = 0;
+        for (int call = 0; call < heavyCalls; call++) {
+            for (int heavy = 0; heavy < heavyMethods; heavy++) {
+                String signature = "void com.example.Heavy.method" + heavy + "()";
+                TopKHotspots.record(TopKHotspots.keyOf(signature), signature, heavyCallNanos, false);
+            }
+            for (int i = 0; i < coldMethods / heavyCalls; i++, cold++) {
+                String signature = "void com.example.Generated$$Proxy" + cold + ".call()";
+                TopKHotspots.record(TopKHotspots.keyOf(signature), signature, 100, false);
+            }
+        }
+
+        List<TopKHotspots.Entry> entries = TopKHotspots.entries();
+        assertTrue(entries.size() <= TopKHotspots.slotCount());
+        List<String> top = entries.subList(0, heavyMethods).stream()
+                .map(entry -> entry.signature)
+                .collect(Collectors.toList());
+        long trueTotal = heavyCallNanos * heavyCalls;
+        for (int heavy = 0; heavy < heavyMethods; heavy++) {
+            assertTrue(top.contains("void com.example.Heavy.method" + heavy + "()"), "Missing heavy method " + heavy);
+        }
+        for (TopKHotspots.Entry entry : entries.subList(0, heavyMethods)) {
+            long total = entry.total.get();
+            assertTrue(total - entry.error <= trueTotal && trueTotal <= total,
+                    entry.signature + ": " + trueTotal + " not in [" + (total - entry.error) + ", " + total + "]");
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.example.patcher.agent.features;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.dynamic.ClassFileLocator;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests that transformed classes are served across cache instances, as after a restart, and only
+ * while the configuration, the feature selection and the entry itself are unchanged.
+ */
+public class TransformCacheTest {
+
+    /**
+     * The class being "transformed".
+     */
+    public static class Sample {
+    }
+
+    private static final String SIGNATURE = "public void " + Sample.class.getName() + ".run()";
+    private static final byte[] TRANSFORMED = "transformed".getBytes(StandardCharsets.UTF_8);
+
+    @TempDir
+    Path tempDir;
+
+    private final AtomicInteger transformations = new AtomicInteger();
+
+    private byte[] transform(TransformCache cache, FeatureDispatcher dispatcher) throws Exception {
+        byte[] original = ClassFileLocator.ForClassLoader.read(Sample.class);
+        return cache.transform(Sample.class.getClassLoader(), Sample.class.getName().replace('.', '/'), null,
+                original, () -> {
+                    transformations.incrementAndGet();
+                    MethodRegistry.register(SIGNATURE);
+                    dispatcher.transform(null, TypeDescription.ForLoadedType.of(Sample.class),
+                            Sample.class.getClassLoader(), null, null);
+                    return TRANSFORMED;
+                });
+    }
+
+    private static FeatureDispatcher dispatcher(String name) {
+        return new FeatureDispatcher().forName(name, (builder, typeDescription, classLoader, module, domain) -> builder);
+    }
+
+    private List<Path> entries() throws Exception {
+        try (Stream<Path> files = Files.list(tempDir)) {
+            return files.collect(Collectors.toList());
+        }
+    }
+
+    @Test
+    public void testEntriesAreServedAcrossRestartsUntilTheyNoLongerApply() throws Exception {
+        byte[] fingerprint = TransformCache.fingerprint("packages=[com.example]");
+        FeatureDispatcher dispatcher = dispatcher(Sample.class.getName());
+
+        long misses = TransformCache.getMissCount();
+        assertArrayEquals(TRANSFORMED, transform(new TransformCache(tempDir, fingerprint, dispatcher, 1 << 20), dispatcher));
+        assertEquals(1, transformations.get());
+        assertEquals(misses + 1, TransformCache.getMissCount());
+        assertEquals(1, entries().size());
+
+        // A new instance over the same directory serves the stored bytes without transforming
+        long hits = TransformCache.getHitCount();
+        TransformCache restarted = new TransformCache(tempDir, fingerprint, dispatcher, 1 << 20);
+        assertEquals(1, restarted.entryCount());
+        assertArrayEquals(TRANSFORMED, transform(restarted, dispatcher));
+        assertEquals(1, transformations.get());
+        assertEquals(hits + 1, TransformCache.getHitCount());
+
+        // Another configuration does not find the entry
+        byte[] otherFingerprint = TransformCache.fingerprint("packages=[org.example]");
+        assertFalse(Arrays.equals(fingerprint, otherFingerprint));
+        transform(new TransformCache(tempDir, otherFingerprint, dispatcher, 1 << 20), dispatcher);
+        assertEquals(2, transformations.get());
+
+        // Nor does a dispatcher that would select other features for the class
+        FeatureDispatcher other = new FeatureDispatcher()
+                .forName(Sample.class.getName(), (builder, typeDescription, classLoader, module, domain) -> builder)
+                .forPrefixes(List.of("com.example"), null, (builder, typeDescription, classLoader, module, domain) -> builder);
+        transform(new TransformCache(tempDir, fingerprint, other, 1 << 20), other);
+        assertEquals(3, transformations.get());
+
+        // Retransformations always bypass the cache
+        new TransformCache(tempDir, fingerprint, dispatcher, 1 << 20).transform(Sample.class.getClassLoader(),
+                "x", Sample.class, new byte[0], () -> {
+                    transformations.incrementAndGet();
+                    return null;
+                });
+        assertEquals(4, transformations.get());
+    }
+
+    @Test
+    public void testCorruptEntriesAreReplaced() throws Exception {
+        byte[] fingerprint = TransformCache.fingerprint("corrupt");
+        FeatureDispatcher dispatcher = dispatcher(Sample.class.getName());
+        transform(new TransformCache(tempDir, fingerprint, dispatcher, 1 << 20), dispatcher);
+
+        Path entry = entries().get(0);
+        byte[] data = Files.readAllBytes(entry);
+        data[data.length / 2] ^= 0x7F;
+        Files.write(entry, data);
+
+        assertArrayEquals(TRANSFORMED, transform(new TransformCache(tempDir, fingerprint, dispatcher, 1 << 20), dispatcher));
+        assertEquals(2, transformations.get());
+        assertArrayEquals(TRANSFORMED, transform(new TransformCache(tempDir, fingerprint, dispatcher, 1 << 20), dispatcher));
+        assertEquals(2, transformations.get());
+    }
+
+    @Test
+    public void testDirectoryIsBoundedAndStaleEntriesAreEvicted() throws Exception {
+        FeatureDispatcher dispatcher = dispatcher(Sample.class.getName());
+        long evictions = TransformCache.getEvictionCount();
+        TransformCache cache = new TransformCache(tempDir, TransformCache.fingerprint("small"), dispatcher, 64);
+        transform(cache, dispatcher);
+        assertEquals(0, cache.entryCount());
+        assertTrue(entries().isEmpty());
+        assertEquals(evictions + 1, TransformCache.getEvictionCount());
+    }
+
+    @Test
+    public void testPreferredMethodIds() {
+        int free = MethodRegistry.size() + 5;
+        String signature = "public void com.example.Preferred.run()";
+        assertEquals(free, MethodRegistry.register(signature, free));
+        assertEquals(free, MethodRegistry.register(signature));
+        assertEquals(signature, MethodRegistry.getSignature(free));
+        assertEquals(free + 1, MethodRegistry.size());
+
+        // A taken ID is not handed out twice, and the gap below it is still filled
+        assertNotEquals(free, MethodRegistry.register("public void com.example.Preferred.other()", free));
+    }
+}
@@ -0,0 +1,93 @@
+package com.example.patcher.agent.features;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.StringWriter;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the per-class transformation table and its totals.
+ */
+public class TransformationTelemetryTest {
+
+    @Test
+    public void testTransformationsAndErrorsAreRecorded() throws Exception {
+        long classLoads = TransformationTelemetry.getClassLoadCount();
+        long transformed = TransformationTelemetry.getTransformedCount();
+        long failed = TransformationTelemetry.getFailedCount();
+        long added = TransformationTelemetry.getTransformedBytes() - TransformationTelemetry.getOriginalBytes();
+
+        byte[] result = TransformationTelemetry.measure("telemetry/Transformed", null, new byte[100], () -> {
+            TransformationTelemetry.recordFeatures(List.of("profiler", "locks"));
+            pause(5_000_000);
+            return new byte[160];
+        });
+        assertEquals(160, result.length);
+        assertNull(TransformationTelemetry.measure("telemetry/Untouched", null, new byte[50], () -> null));
+        TransformationTelemetry.measure("telemetry/Failed", String.class, new byte[70], () -> {
+            TransformationTelemetry.INSTANCE.onError("telemetry.Failed", null, null, true,
+                    new IllegalStateException("broken, \"badly\""));
+            pause(5_000_000);
+            return null;
+        });
+
+        assertEquals(classLoads + 3, TransformationTelemetry.getClassLoadCount());
+        assertEquals(transformed + 1, TransformationTelemetry.getTransformedCount());
+        assertEquals(failed + 1, TransformationTelemetry.getFailedCount());
+        assertEquals(added + 60, TransformationTelemetry.getTransformedBytes() - TransformationTelemetry.getOriginalBytes());
+        assertTrue(TransformationTelemetry.getNanos() >= 5_000_000);
+
+        // Only transformed and failed classes make it into the table
+        TransformationTelemetry.Transformation entry = find("telemetry.Transformed");
+        assertEquals("profiler locks", entry.features);
+        assertEquals(100, entry.originalBytes);
+        assertEquals(160, entry.transformedBytes);
+        assertFalse(entry.retransformed);
+        assertTrue(entry.nanos >= 5_000_000);
+        assertNull(find("telemetry.Untouched"));
+        assertTrue(find("telemetry.Failed").retransformed);
+
+        StringWriter report = new StringWriter();
+        TransformationTelemetry.writeReport(report);
+        String csv = report.toString();
+        assertTrue(csv.startsWith(TransformationTelemetry.REPORT_HEADER));
+        assertTrue(csv.contains("telemetry.Transformed,false,false,profiler locks,"));
+        assertTrue(csv.contains(",70,0,\"java.lang.IllegalStateException: broken, \"\"badly\"\"\"\n"));
+        assertTrue(TransformationTelemetry.summary().contains("classes transformed"));
+    }
+
+    @Test
+    public void testTableKeepsTheSlowest() throws Exception {
+        for (int i = 0; i < TransformationTelemetry.MAX_ENTRIES + 10; i++) {
+            TransformationTelemetry.measure("telemetry/Fast" + i, null, new byte[1], () -> new byte[2]);
+        }
+        TransformationTelemetry.measure("telemetry/Slow", null, new byte[1], () -> {
+            pause(20_000_000);
+            return new byte[2];
+        });
+        List<TransformationTelemetry.Transformation> slowest = TransformationTelemetry.slowest();
+        assertEquals(TransformationTelemetry.MAX_ENTRIES, slowest.size());
+        assertNotNull(find("telemetry.Slow"));
+        for (int i = 1; i < slowest.size(); i++) {
+            assertTrue(slowest.get(i - 1).nanos >= slowest.get(i).nanos);
+        }
+    }
+
+    private static void pause(long nanos) {
+        long deadline = System.nanoTime() + nanos;
+        while (System.nanoTime() < deadline) {
+            LockSupport.parkNanos(deadline - System.nanoTime());
+        }
+    }
+
+    private static TransformationTelemetry.Transformation find(String className) {
+        for (TransformationTelemetry.Transformation transformation : TransformationTelemetry.slowest()) {
+            if (transformation.className.equals(className)) {
+                return transformation;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,71 @@
+package com.example.patcher.agent.features;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.sql.Statement;
+import net.bytebuddy.dynamic.ClassFileLocator;
+import net.bytebuddy.pool.TypePool;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the per-class-loader type pool cache and the name-based ignore matcher.
+ */
+public class TypePoolCacheTest {
+
+    /**
+     * Statement implementation whose super types are resolved through the pool.
+     */
+    public abstract static class DriverStatement implements Statement {
+    }
+
+    @Test
+    public void testDescriptionsAreCachedPerClassLoader() {
+        TypePoolCache strategy = new TypePoolCache(64);
+        ClassLoader classLoader = DriverStatement.class.getClassLoader();
+
+        long before = TypePoolCache.getMissCount();
+        TypePool pool = strategy.typePool(ClassFileLocator.ForClassLoader.WeaklyReferenced.of(classLoader), classLoader);
+        assertTrue(pool.describe(DriverStatement.class.getName()).resolve().isAssignableTo(Statement.class));
+        long firstMisses = TypePoolCache.getMissCount() - before;
+        assertTrue(firstMisses > 0);
+
+        // A new pool for the same loader, as for the next class load, finds the parsed types
+        long hits = TypePoolCache.getHitCount();
+        before = TypePoolCache.getMissCount();
+        pool = strategy.typePool(ClassFileLocator.ForClassLoader.WeaklyReferenced.of(classLoader), classLoader);
+        assertTrue(pool.describe(DriverStatement.class.getName()).resolve().isAssignableTo(Statement.class));
+        assertTrue(TypePoolCache.getHitCount() > hits);
+        assertTrue(TypePoolCache.getMissCount() - before < firstMisses);
+    }
+
+    @Test
+    public void testCacheIsBounded() {
+        TypePoolCache.Bounded cache = new TypePoolCache.Bounded(2);
+        TypePool.Resolution a = new TypePool.Resolution.Illegal("a");
+        cache.register("a", a);
+        cache.register("b", new TypePool.Resolution.Illegal("b"));
+        assertSame(a, cache.find("a"));
+        cache.register("c", new TypePool.Resolution.Illegal("c"));
+
+        // b was the least recently used
+        assertEquals(2, cache.size());
+        assertNull(cache.find("b"));
+        assertSame(a, cache.find("a"));
+        assertSame(a, cache.register("a", new TypePool.Resolution.Illegal("a")));
+    }
+
+    @Test
+    public void testIgnoredTypes() {
+        ClassLoader app = TypePoolCacheTest.class.getClassLoader();
+        assertTrue(IgnoredTypes.isIgnored("com.example.Foo", null));
+        assertTrue(IgnoredTypes.isIgnored("com.example.Foo", ClassLoader.getPlatformClassLoader()));
+        assertTrue(IgnoredTypes.isIgnored("net.bytebuddy.ByteBuddy", app));
+        assertTrue(IgnoredTypes.isIgnored("com.example.patcher.agent.features.ProfilerAdvice", app));
+        assertTrue(IgnoredTypes.isIgnored("com.example.Foo$$Lambda$14/0x0000000800c02a00", app));
+        assertTrue(IgnoredTypes.isIgnored("com.example.Foo$$EnhancerBySpringCGLIB$$1a2b3c", app));
+        assertTrue(IgnoredTypes.isIgnored("com.example.$Proxy12", app));
+        assertFalse(IgnoredTypes.isIgnored("com.example.Foo", app));
+        assertFalse(IgnoredTypes.isIgnored("com.example.Foo$ProxyFactory", app));
+        assertFalse(IgnoredTypes.isIgnored("org.postgresql.jdbc.PgStatement", app));
+    }
+}
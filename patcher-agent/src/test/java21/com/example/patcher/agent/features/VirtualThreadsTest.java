@@ -0,0 +1,82 @@
+package com.example.patcher.agent.features;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the JDK 21+ version of {@link VirtualThreads}, run on JDK 21 against the classes under
+ * {@code META-INF/versions/21}, with pinning reporting enabled.
+ */
+public class VirtualThreadsTest {
+
+    private static final Object LOCK = new Object();
+
+    @Test
+    public void testDetectsVirtualThreads() throws Exception {
+        AtomicBoolean virtual = new AtomicBoolean();
+        Thread.ofVirtual().start(() -> virtual.set(VirtualThreads.isVirtual(Thread.currentThread()))).join();
+        assertTrue(virtual.get());
+        assertFalse(VirtualThreads.isVirtual(Thread.currentThread()));
+    }
+
+    @Test
+    public void testReportsPinnedVirtualThreads() throws Exception {
+        assertTrue(PinningSites.ENABLED);
+        VirtualThreads.startPinningMonitor();
+        try {
+            // Sleeping while holding a monitor pins the virtual thread to its carrier
+            Thread.ofVirtual().start(VirtualThreadsTest::sleepPinned).join();
+
+            // The stream delivers the events it has recorded about once a second
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            PinningSites.Site site = null;
+            while (site == null && System.nanoTime() < deadline) {
+                site = PinningSites.sites().stream()
+                        .filter(s -> s.site.startsWith(VirtualThreadsTest.class.getName() + ".sleepPinned:"))
+                        .findFirst()
+                        .orElse(null);
+                Thread.sleep(100);
+            }
+            assertNotNull(site, "No pinning reported: " + PinningSites.sites());
+            assertTrue(site.maxNanos.get() >= PinningSites.THRESHOLD_NANOS);
+        } finally {
+            VirtualThreads.stopPinningMonitor();
+        }
+    }
+
+    @Test
+    public void testPinningStreamStopsWithTheProfiler() throws Exception {
+        FeatureTransformer.startProfilerServices();
+        try {
+            assertTrue(VirtualThreads.isPinningMonitorRunning());
+        } finally {
+            FeatureTransformer.stopProfilerServices();
+        }
+        assertFalse(VirtualThreads.isPinningMonitorRunning());
+
+        // Closing the stream ends its thread as well
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (jfrStreamThreadAlive() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(jfrStreamThreadAlive());
+    }
+
+    private static boolean jfrStreamThreadAlive() {
+        return Thread.getAllStackTraces().keySet().stream()
+                .anyMatch(thread -> thread.isAlive() && thread.getName().startsWith("JFR Event Stream"));
+    }
+
+    private static void sleepPinned() {
+        synchronized (LOCK) {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}